@@ -34,24 +34,37 @@ package org.ecoinformatics.datamanager;
 
 
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 
 
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.database.AggregateSelectionItem;
+import org.ecoinformatics.datamanager.database.ArrowExporter;
+import org.ecoinformatics.datamanager.database.BoundQuery;
 import org.ecoinformatics.datamanager.database.ConnectionNotAvailableException;
 import org.ecoinformatics.datamanager.database.DatabaseAdapter;
 import org.ecoinformatics.datamanager.database.DatabaseConnectionPoolInterface;
 import org.ecoinformatics.datamanager.database.DatabaseHandler;
 import org.ecoinformatics.datamanager.database.HSQLAdapter;
+import org.ecoinformatics.datamanager.database.IndexAdvisor;
+import org.ecoinformatics.datamanager.database.LoadScope;
 import org.ecoinformatics.datamanager.database.OracleAdapter;
 import org.ecoinformatics.datamanager.database.PostgresAdapter;
 import org.ecoinformatics.datamanager.database.Query;
+import org.ecoinformatics.datamanager.database.QueryCursor;
+import org.ecoinformatics.datamanager.database.RowCursorInterface;
+import org.ecoinformatics.datamanager.database.SelectionItem;
+import org.ecoinformatics.datamanager.database.StaticSelectionItem;
+import org.ecoinformatics.datamanager.database.TableItem;
 import org.ecoinformatics.datamanager.database.TableMonitor;
 import org.ecoinformatics.datamanager.database.Union;
+import org.ecoinformatics.datamanager.database.UnionCursor;
 import org.ecoinformatics.datamanager.download.DownloadHandler;
 import org.ecoinformatics.datamanager.download.DataStorageInterface;
 import org.ecoinformatics.datamanager.download.EcogridEndPointInterface;
@@ -146,7 +159,10 @@ public class DataManager {
 
   /*
    * Gets DBConnection from connection pool. If no connection available, it will
-   * sleep and try again. If ceiling times reachs, null will return.
+   * sleep and try again. If ceiling times reachs, null will return. Pools
+   * that wait for a connection themselves, such as BoundedConnectionPool,
+   * are not asked again once they have waited for as long as the retries
+   * would take.
    * 
    */
   public static Connection getConnection() throws SQLException
@@ -157,6 +173,8 @@ public class DataManager {
       {
     	  throw new SQLException("The Connection Pool is null");
       }
+      long deadline = System.currentTimeMillis() + 
+                      MAXIMUM_NUMBER_TO_ACCESS_CONNECTIONPOOL * SLEEP_TIME;
       while (index <MAXIMUM_NUMBER_TO_ACCESS_CONNECTIONPOOL)
       {
           try
@@ -166,6 +184,12 @@ public class DataManager {
           }
           catch (ConnectionNotAvailableException cna)
           {
+              if (System.currentTimeMillis() + SLEEP_TIME > deadline)
+              {
+                  log.error("Error in DataManager.getConnection(): " +
+                            cna.getMessage());
+                  break;
+              }
               try
               {
                  Thread.sleep(SLEEP_TIME);
@@ -235,10 +259,64 @@ public class DataManager {
    *         will be returned.
    */
   public boolean createDataView(String ANSISQL, Entity[] entityList) {
-    boolean success = true;
+    boolean success = false;
+    
+    try {
+      DatabaseHandler databaseHandler = 
+        new DatabaseHandler(databaseAdapterName);
+      success = databaseHandler.createDataView(ANSISQL, entityList);
+    }
+    catch (Exception e) {
+      log.error("Error creating the data view: " + e.getMessage());
+      success = false;
+    }
     
     return success;
   }
+  
+  
+  /**
+   * Create a materialized data view of the results of a query. A view of
+   * a query on one entity, without aggregation, DISTINCT or subqueries, is
+   * refreshed from the appended rows alone when data is appended to the
+   * entity.
+   * 
+   * @param  viewName  The name of the view.
+   * @param  query     A Query java object whose entities are loaded.
+   * @return a boolean value indicating the success of the create view 
+   *         operation. True will be returned if successful, else false
+   *         will be returned.
+   */
+  public boolean createDataView(String viewName, Query query) {
+    boolean success = false;
+    
+    try {
+      DatabaseHandler databaseHandler = 
+        new DatabaseHandler(databaseAdapterName);
+      success = databaseHandler.createDataView(viewName, query);
+    }
+    catch (Exception e) {
+      log.error("Error creating the data view '" + viewName + "': " + 
+                e.getMessage());
+      success = false;
+    }
+    
+    return success;
+  }
+  
+  
+  /**
+   * Drop a materialized data view.
+   * 
+   * @param  viewName  The name of the view.
+   * @return true if the view was dropped, false if there is no such view.
+   */
+  public boolean dropDataView(String viewName)
+          throws ClassNotFoundException, SQLException, Exception {
+    DatabaseHandler databaseHandler = new DatabaseHandler(databaseAdapterName);
+    
+    return databaseHandler.dropDataView(viewName);
+  }
  
   
   /**
@@ -558,6 +636,43 @@ public class DataManager {
       success = loadDataToDB(entities[i],endPointInfo) && success;
     }
     
+    DatabaseHandler databaseHandler = new DatabaseHandler(databaseAdapterName);
+    databaseHandler.buildForeignKeys(dataPackage);
+    
+    return success;
+  }
+  
+  
+  /**
+   * Loads the data that a query needs into the database table cache: the
+   * attributes of each of its entities that it refers to and, if rows are
+   * filtered, the rows that can pass the conditions of its WHERE clause.
+   * The tables then answer the query, but not necessarily other queries.
+   * 
+   * @param  query       the query
+   * @param  endPointInfo which provides ecogrid endpoint information
+   * @param  filterRows  true to load only the rows that the query can select
+   * @return a boolean value indicating the success of the load-data operation.
+   *         true if successful, else false.
+   */
+  public boolean loadDataToDB(Query query, 
+                              EcogridEndPointInterface endPointInfo,
+                              boolean filterRows)
+        throws ClassNotFoundException, SQLException, Exception {
+    boolean success = true;
+    TableItem[] tableItems = query.getTableList();
+    ArrayList<Entity> entities = new ArrayList<Entity>();
+    
+    for (int i = 0; i < tableItems.length; i++) {
+      Entity entity = tableItems[i].getEntity();
+      
+      if (entity != null && !entities.contains(entity)) {
+        entities.add(entity);
+        LoadScope loadScope = LoadScope.forQuery(query, entity, filterRows);
+        success = loadDataToDB(entity, endPointInfo, loadScope) && success;
+      }
+    }
+    
     return success;
   }
   
@@ -574,6 +689,28 @@ public class DataManager {
    */
   public boolean loadDataToDB(Entity entity, EcogridEndPointInterface endPointInfo) 
           throws ClassNotFoundException, SQLException, Exception {
+    return loadDataToDB(entity, endPointInfo, null);
+  }
+  
+  
+  /**
+   * Loads the part of an entity's data that is within a scope into the
+   * database table cache. A table that already holds the data of the scope
+   * is kept; a table that holds only part of the entity is otherwise
+   * dropped and loaded again.
+   * 
+   * @param  entity     the entity whose data is to be loaded into the
+   *                    database table cache.
+   * @param  endPointInfo which provides ecogrid endpoint information
+   * @param  loadScope  the attributes and rows to load, or null to load all
+   *                    of the entity
+   * @return a boolean value indicating the success of the load-data operation.
+   *         true if successful, else false.
+   */
+  public boolean loadDataToDB(Entity entity, 
+                              EcogridEndPointInterface endPointInfo,
+                              LoadScope loadScope) 
+          throws ClassNotFoundException, SQLException, Exception {
     boolean success = false;
     
     log.debug(String.format("***** Loading data to DB for: %s, entity: %s\n", entity.getPackageId(), entity.getName()));
@@ -640,15 +777,24 @@ public class DataManager {
         DatabaseHandler databaseHandler = 
                                  new DatabaseHandler(databaseAdapterName);
 
+        boolean isLoaded = databaseHandler.isLoaded(entity, loadScope);
+        
+        if (!isLoaded) {
+          // A table that holds part of the entity is loaded from scratch
+          databaseHandler.dropPartialTable(entity);
+        }
+        
         // First, generate a table for the entity
         success = databaseHandler.generateTable(entity);
 
         // If we have a table, then load the data for the entity.
-        if (success) {
-          success = databaseHandler.loadDataToDB(entity, endPointInfo);
+        if (success && !isLoaded) {
+          success = databaseHandler.loadDataToDB(entity, endPointInfo, 
+                                                 loadScope);
     
-          // If the data could not be loaded to the database, drop the table.
-          if (!success) {
+          // If the data could not be loaded to the database, drop the table,
+          // unless it holds the committed rows of a load that can be resumed.
+          if (!success && !databaseHandler.isLoadResumable(entity)) {
             databaseHandler.dropTable(entity);
           }
         }
@@ -764,13 +910,19 @@ public class DataManager {
   
   /**
    * Runs a database query on one or more data packages. This method
-   * implements Use Case #4.
+   * implements Use Case #4. The values of the query's conditions are bound
+   * to a prepared statement, which the connection reuses for queries that
+   * differ only in their values. If the QueryResultCache is enabled, a
+   * query that is run again while the tables of the data packages are
+   * unchanged is answered from memory. If the IndexAdvisor is enabled, the
+   * fields that the query filters and joins on are recorded for it.
    * 
    * @param query    A Query java object hold query information.
    * @param packages The data packages holding the entities to be queried. 
    *                 Metadata about the data types of the attributes being
    *                 queried is contained in these data packages.
-   * @return A ResultSet object holding the query results.
+   * @return A ResultSet object holding the query results, which must be closed
+   *         to return its database connection.
    */
   public ResultSet selectData(Query query, DataPackage[] packages) 
         throws ClassNotFoundException, SQLException, Exception {
@@ -782,8 +934,9 @@ public class DataManager {
     try
     {
       databaseHandler = new DatabaseHandler(databaseAdapterName);
-      String ANSISQL = query.toSQLString();
-      resultSet = databaseHandler.selectData(ANSISQL, packages);
+      BoundQuery boundQuery = query.toBoundQuery();
+      IndexAdvisor.recordQuery(query);
+      resultSet = databaseHandler.selectData(boundQuery, packages);
     }
     finally
     {}
@@ -805,7 +958,8 @@ public class DataManager {
   *                 lists of entities to be queried. Metadata about the data 
   *                 types of the attributes in the select statement is 
   *                 contained in these data packages.
-  * @return A ResultSet object holding the query results.
+  * @return A ResultSet object holding the query results, which must be closed
+  *         to return its database connection.
   */
   public ResultSet selectData(Query query, InputStream[] emlInputStreams) 
         throws Exception {
@@ -831,25 +985,122 @@ public class DataManager {
 
 		try {
 			databaseHandler = new DatabaseHandler(databaseAdapterName);
-			String ANSISQL = union.toSQLString();
-			resultSet = databaseHandler.selectData(ANSISQL, packages);
+			BoundQuery boundQuery = union.toBoundQuery();
+			IndexAdvisor.recordUnion(union);
+			resultSet = databaseHandler.selectData(boundQuery, packages);
 		} finally {}
 
 		return resultSet;
 	}
   
 
+  /**
+   * Opens a cursor over the results of a database query on one or more data
+   * packages. Unlike selectData(), whose ResultSet is read in full by some
+   * drivers, the cursor fetches the rows a chunk at a time, and reads them
+   * as batches of typed values. It holds a database connection until it is
+   * closed.
+   * 
+   * @param query      A Query java object hold query information.
+   * @param packages   The data packages holding the entities to be queried.
+   * @param fetchSize  The number of rows to fetch from the database at a
+   *                   time, or 0 to leave it to the driver.
+   * @return A QueryCursor that must be closed.
+   */
+  public QueryCursor selectCursor(Query query, DataPackage[] packages,
+                                  int fetchSize) 
+        throws ClassNotFoundException, SQLException, Exception {
+    DatabaseHandler databaseHandler = new DatabaseHandler(databaseAdapterName);
+    BoundQuery boundQuery = query.toBoundQuery();
+    IndexAdvisor.recordQuery(query);
+    
+    return databaseHandler.openCursor(boundQuery, packages, fetchSize);
+  }
+  
+  
+  /**
+   * Opens a cursor over the results of a union of queries on one or more
+   * data packages. See selectCursor(Query, DataPackage[], int). If the
+   * union is parallel, its member queries run at the same time, each on 
+   * its own connection, and their rows are merged as they arrive.
+   * 
+   * @param union      A Union java object holding the queries.
+   * @param packages   The data packages holding the entities to be queried.
+   * @param fetchSize  The number of rows to fetch from the database at a
+   *                   time, or 0 to leave it to the driver.
+   * @return A QueryCursor, or a UnionCursor for a parallel union, that must
+   *         be closed.
+   */
+  public RowCursorInterface selectCursor(Union union, DataPackage[] packages,
+                                         int fetchSize) 
+        throws ClassNotFoundException, SQLException, Exception {
+    DatabaseHandler databaseHandler = new DatabaseHandler(databaseAdapterName);
+    IndexAdvisor.recordUnion(union);
+    
+    if (union.isParallel()) {
+      return databaseHandler.openUnionCursor(union, packages, fetchSize,
+                                       UnionCursor.getDefaultParallelism());
+    }
+    
+    BoundQuery boundQuery = union.toBoundQuery();
+    
+    return databaseHandler.openCursor(boundQuery, packages, fetchSize);
+  }
+  
+  
+  /**
+   * Exports the results of a database query on one or more data packages
+   * in the Apache Arrow IPC format, a batch of rows at a time, with column
+   * types derived from the EML attributes of the selected fields. See
+   * ArrowExporter.
+   * 
+   * @param query         A Query java object hold query information.
+   * @param packages      The data packages holding the entities to be
+   *                      queried.
+   * @param outputStream  The stream to write to, which is not closed.
+   * @param fileFormat    true to write the IPC file format, false to write
+   *                      the IPC stream format.
+   * @return the number of rows exported
+   */
+  public long exportData(Query query, DataPackage[] packages,
+                         OutputStream outputStream, boolean fileFormat)
+        throws ClassNotFoundException, SQLException, Exception {
+    SelectionItem[] selectionItems = query.getSelectionList();
+    Attribute[] attributes = new Attribute[selectionItems.length];
+    
+    for (int i = 0; i < selectionItems.length; i++) {
+      // Aggregates and constants don't have the type of their attribute
+      if (!(selectionItems[i] instanceof AggregateSelectionItem) &&
+          !(selectionItems[i] instanceof StaticSelectionItem)) {
+        attributes[i] = selectionItems[i].getAttribute();
+      }
+    }
+    
+    ArrowExporter exporter = 
+      new ArrowExporter(getDatabaseAdapterObject(databaseAdapterName));
+    exporter.setFileFormat(fileFormat);
+    QueryCursor cursor = selectCursor(query, packages, 
+                                      QueryCursor.getDefaultFetchSize());
+    
+    return exporter.export(cursor, attributes, outputStream);
+  }
+  
+
   /**
    * Runs a database query on a view. The view must already exist in the
-   * database (see createDataView() method).
+   * database (see createDataView() method). A view is refreshed before it
+   * is queried if data has been loaded into its entities since it was
+   * last refreshed.
    * 
    * @param  ANSISQL  A string holding the ANSI SQL selection syntax.
-   * @return A ResultSet object holding the query results.
+   * @return A ResultSet object holding the query results, which must be
+   *         closed.
    */
-  public ResultSet selectDataFromView(String ANSISQL) {
-    ResultSet resultSet = null;
+  public ResultSet selectDataFromView(String ANSISQL)
+        throws ClassNotFoundException, SQLException, Exception {
+    DatabaseHandler databaseHandler = new DatabaseHandler(databaseAdapterName);
     
-    return resultSet;
+    return databaseHandler.selectDataFromView(ANSISQL);
   }
   
   
@@ -881,6 +1132,7 @@ public class DataManager {
 		DatabaseAdapter dbAdapter = getDatabaseAdapterObject(databaseAdapterName);
 	    TableMonitor tableMonitor = new TableMonitor(dbAdapter);	    
 	    tableMonitor.setDBSize(size);
+	    tableMonitor.requestEviction();
 	}
 	finally
 	{}
@@ -31,6 +31,8 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.util.List;
+
 /**
  * This class reprents an AND relation on its sub-components. Sub-components
  * can be conditions, ANDRelations and ORRelations
@@ -60,7 +62,21 @@ public class ANDRelation extends LogicalRelation
 	 */
 	public String toSQLString() throws UnWellFormedQueryException
 	{
-		return transferToString(AND);
+		return transferToString(AND, null);
+	}
+	
+    
+	/**
+	 * Transfer an ANDRelation to a sql template, adding its values to the
+	 * binds
+	 * @param binds the list to add the values to
+	 * @return sql string of ANDRelation
+	 * @throws UnWellFormedQueryException
+	 */
+	public String toSQLString(List<Object> binds) 
+            throws UnWellFormedQueryException
+	{
+		return transferToString(AND, binds);
 	}
     
 }
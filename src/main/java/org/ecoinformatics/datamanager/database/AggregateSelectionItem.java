@@ -17,6 +17,10 @@ public class AggregateSelectionItem extends SelectionItem {
 		this.function = function;
 	}
 
+	public String getFunction() {
+		return function;
+	}
+
 	/**
 	 * Gets one selection item string (real name in DB) in sql query string.
      * 
@@ -0,0 +1,379 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.Domain;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.EnumeratedDomain;
+
+/**
+ * Exports query results and entity data to the Apache Arrow IPC format, a
+ * batch of rows at a time, so that analysis tools can read typed columns
+ * instead of parsing text. The Arrow type of a column is derived from its
+ * EML attribute, as DatabaseAdapter derives the database type:
+ *
+ *   integer, whole and natural numbers  Int64
+ *   real numbers                        Float64
+ *   datetimes with a format string      Timestamp (milliseconds)
+ *   enumerated text                     Utf8, dictionary-encoded
+ *   other text                          Utf8
+ *
+ * A column of a query result without an attribute gets the Arrow type of
+ * its java.sql.Types type.
+ */
+public class ArrowExporter {
+
+  /*
+   * Class fields
+   */
+
+  /* The default number of rows in a record batch */
+  public static final int DEFAULT_BATCH_SIZE = 65536;
+
+
+  /*
+   * Instance fields
+   */
+
+  private final DatabaseAdapter databaseAdapter;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private boolean fileFormat = true;
+  private long conversionErrorCount = 0;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs an exporter.
+   *
+   * @param databaseAdapter  the adapter that determines the types of the
+   *                         attributes
+   */
+  public ArrowExporter(DatabaseAdapter databaseAdapter) {
+    this.databaseAdapter = databaseAdapter;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the Arrow type of a column of a query result that has no attribute.
+   *
+   * @param sqlType  the java.sql.Types type of the column
+   * @return one of the ArrowWriter.TYPE_ constants
+   */
+  public static int getArrowType(int sqlType) {
+    switch (sqlType) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+        return ArrowWriter.TYPE_INT64;
+
+      case Types.REAL:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return ArrowWriter.TYPE_FLOAT64;
+
+      case Types.DATE:
+      case Types.TIMESTAMP:
+        return ArrowWriter.TYPE_TIMESTAMP;
+
+      case Types.BIT:
+      case Types.BOOLEAN:
+        return ArrowWriter.TYPE_BOOL;
+
+      default:
+        return ArrowWriter.TYPE_UTF8;
+    }
+  }
+
+
+  /*
+   * Gets the codes of an attribute with an enumerated domain, or null.
+   */
+  private static String[] getCodes(Attribute attribute) {
+    Domain domain = (attribute == null) ? null : attribute.getDomain();
+
+    if (!(domain instanceof EnumeratedDomain)) {
+      return null;
+    }
+
+    EnumeratedDomain enumeratedDomain = (EnumeratedDomain) domain;
+    String[] codes = new String[enumeratedDomain.getDomainInfoCount()];
+    for (int i = 0; i < codes.length; i++) {
+      codes[i] = enumeratedDomain.getDomainInfo(i);
+    }
+    return codes;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the number of rows in a record batch.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+
+  /**
+   * Sets the number of rows in a record batch, which bounds the memory that
+   * an export holds at a time.
+   *
+   * @param batchSize  the batch size, at least 1
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("The batch size must be at least 1");
+    }
+    this.batchSize = batchSize;
+  }
+
+
+  /**
+   * Determines whether the IPC file format is written.
+   *
+   * @return true for the file format, false for the stream format
+   */
+  public boolean isFileFormat() {
+    return fileFormat;
+  }
+
+
+  /**
+   * Sets whether the IPC file format, which can be memory-mapped, or the
+   * IPC stream format, which can be read as it arrives, is written. The
+   * file format is the default.
+   *
+   * @param fileFormat  true for the file format, false for the stream format
+   */
+  public void setFileFormat(boolean fileFormat) {
+    this.fileFormat = fileFormat;
+  }
+
+
+  /**
+   * Gets the number of entity values that did not match their attribute's
+   * type and were exported as null.
+   *
+   * @return the number of values
+   */
+  public long getConversionErrorCount() {
+    return conversionErrorCount;
+  }
+
+
+  /**
+   * Gets the Arrow type of the values of an attribute.
+   *
+   * @param attribute  the attribute
+   * @return one of the ArrowWriter.TYPE_ constants
+   */
+  public int getArrowType(Attribute attribute) {
+    return getArrowType(new AttributeConverter(databaseAdapter, attribute));
+  }
+
+
+  /*
+   * Gets the Arrow type of the values of a compiled attribute.
+   */
+  private int getArrowType(AttributeConverter converter) {
+    switch (converter.getKind()) {
+      case AttributeConverter.KIND_INTEGER:
+        return ArrowWriter.TYPE_INT64;
+      case AttributeConverter.KIND_FLOAT:
+        return ArrowWriter.TYPE_FLOAT64;
+      case AttributeConverter.KIND_DATETIME:
+        return ArrowWriter.TYPE_TIMESTAMP;
+      case AttributeConverter.KIND_STRING:
+        if (getCodes(converter.getAttribute()) != null) {
+          return ArrowWriter.TYPE_DICTIONARY;
+        }
+        return ArrowWriter.TYPE_UTF8;
+      default:
+        return ArrowWriter.TYPE_UTF8;
+    }
+  }
+
+
+  /**
+   * Exports the remaining rows of a cursor, and closes the cursor.
+   *
+   * @param cursor        the cursor, such as one opened by
+   *                      DataManager.selectCursor()
+   * @param attributes    the attribute of each column, or null for a column
+   *                      that has none; null if no column has one
+   * @param outputStream  the stream to write to, which is not closed
+   * @return the number of rows exported
+   * @throws SQLException if the rows cannot be read
+   * @throws IOException if a value does not fit the type of its column, or
+   *         the rows cannot be written
+   */
+  public long export(RowCursorInterface cursor, Attribute[] attributes,
+                     OutputStream outputStream)
+          throws SQLException, IOException {
+    try {
+      String[] columnNames = cursor.getColumnNames();
+      int[] sqlTypes = cursor.getColumnTypes();
+      int[] columnTypes = new int[columnNames.length];
+
+      for (int i = 0; i < columnTypes.length; i++) {
+        Attribute attribute = (attributes != null && i < attributes.length) ?
+                              attributes[i] : null;
+        columnTypes[i] = (attribute == null) ? getArrowType(sqlTypes[i]) :
+                                               getArrowType(attribute);
+      }
+
+      ArrowWriter writer =
+        newWriter(outputStream, columnNames, columnTypes, attributes);
+      List<Object[]> batch = cursor.nextBatch(batchSize);
+
+      while (!batch.isEmpty()) {
+        writer.writeBatch(batch);
+        batch = cursor.nextBatch(batchSize);
+      }
+
+      writer.finish();
+      return writer.getRowCount();
+    }
+    finally {
+      cursor.close();
+    }
+  }
+
+
+  /**
+   * Exports the data of an entity, as read from its data file.
+   *
+   * @param entity        the entity
+   * @param reader        the reader of the entity's data
+   * @param outputStream  the stream to write to, which is not closed
+   * @return the number of rows exported
+   * @throws SQLException if the entity has no attributes
+   * @throws IOException if the rows cannot be written
+   */
+  public long export(Entity entity, TextDataReader reader,
+                     OutputStream outputStream)
+          throws SQLException, IOException {
+    return export(entity.getAttributeList(), reader, outputStream);
+  }
+
+
+  /**
+   * Exports rows of text values, converting each value to the type of its
+   * attribute. Null values, empty values and missing value codes are
+   * exported as null, and so are values that do not match their attribute's
+   * type, which are counted by getConversionErrorCount().
+   *
+   * @param attributeList  the attributes of the columns
+   * @param reader         the reader of the rows
+   * @param outputStream   the stream to write to, which is not closed
+   * @return the number of rows exported
+   * @throws SQLException if the attribute list is empty
+   * @throws IOException if the rows cannot be written
+   */
+  public long export(AttributeList attributeList, TextDataReader reader,
+                     OutputStream outputStream)
+          throws SQLException, IOException {
+    final AttributeConverter[] converters =
+      databaseAdapter.compileConverters(attributeList);
+    Attribute[] attributes = attributeList.getAttributes();
+    String[] columnNames = new String[converters.length];
+    int[] columnTypes = new int[converters.length];
+
+    for (int i = 0; i < converters.length; i++) {
+      columnNames[i] = attributes[i].getName();
+      columnTypes[i] = getArrowType(converters[i]);
+    }
+
+    ArrowWriter writer =
+      newWriter(outputStream, columnNames, columnTypes, attributes);
+    final List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+    Spliterator<Row> rows = reader.spliterator();
+    Consumer<Row> convert = new Consumer<Row>() {
+      public void accept(Row row) {
+        Object[] values = new Object[converters.length];
+        for (int i = 0; i < values.length && i < row.size(); i++) {
+          values[i] = convert(converters[i], row.get(i));
+        }
+        batch.add(values);
+      }
+    };
+
+    while (rows.tryAdvance(convert)) {
+      if (batch.size() == batchSize) {
+        writer.writeBatch(batch);
+        batch.clear();
+      }
+    }
+
+    writer.writeBatch(batch);
+    writer.finish();
+    return writer.getRowCount();
+  }
+
+
+  /*
+   * Creates a writer whose dictionaries start with the codes of the
+   * enumerated attributes, in the order they are declared.
+   */
+  private ArrowWriter newWriter(OutputStream outputStream,
+                                String[] columnNames, int[] columnTypes,
+                                Attribute[] attributes) {
+    ArrowWriter writer =
+      new ArrowWriter(outputStream, columnNames, columnTypes, fileFormat);
+
+    for (int i = 0; i < columnTypes.length; i++) {
+      if (columnTypes[i] == ArrowWriter.TYPE_DICTIONARY) {
+        writer.addDictionaryValues(i, getCodes(attributes[i]));
+      }
+    }
+
+    return writer;
+  }
+
+
+  /*
+   * Converts a text value to the Java object of its attribute's type. A
+   * value that does not match the type is counted and exported as null; the
+   * value of an attribute of unknown type is kept as it is.
+   */
+  private Object convert(AttributeConverter converter, String value) {
+    if (converter.isNullValue(value)) {
+      return null;
+    }
+    else if (converter.getKind() == AttributeConverter.KIND_UNKNOWN) {
+      return value;
+    }
+
+    try {
+      return converter.convertValue(value);
+    }
+    catch (DataNotMatchingMetadataException e) {
+      conversionErrorCount++;
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,940 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Writes rows of typed values in the Apache Arrow IPC format, either as a
+ * stream or as a file, so that tools that read Arrow can use the values
+ * without parsing text. The schema is written first. Each call to
+ * writeBatch() writes one record batch, column by column, preceded by a
+ * dictionary batch for any new values of the dictionary-encoded columns.
+ * finish() ends the stream and, for a file, writes the footer that lets a
+ * reader find the batches and memory-map them.
+ *
+ * The FlatBuffers metadata of the messages is laid out by the writer
+ * itself, so no Arrow library is needed. Buffers are aligned to 8 bytes and
+ * the metadata version is V5.
+ */
+public class ArrowWriter {
+
+  /*
+   * Class fields
+   */
+
+  /* The column types that can be written */
+  public static final int TYPE_UTF8       = 1;
+  public static final int TYPE_INT64      = 2;
+  public static final int TYPE_FLOAT64    = 3;
+  public static final int TYPE_TIMESTAMP  = 4;
+  public static final int TYPE_BOOL       = 5;
+  public static final int TYPE_DICTIONARY = 6;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] MAGIC = "ARROW1".getBytes(UTF8);
+  private static final int CONTINUATION = 0xFFFFFFFF;
+  private static final short METADATA_VERSION_V5 = 4;
+
+  /* The members of the MessageHeader union */
+  private static final byte HEADER_SCHEMA = 1;
+  private static final byte HEADER_DICTIONARY_BATCH = 2;
+  private static final byte HEADER_RECORD_BATCH = 3;
+
+  /* The members of the Type union */
+  private static final byte ARROW_INT = 2;
+  private static final byte ARROW_FLOATING_POINT = 3;
+  private static final byte ARROW_UTF8 = 5;
+  private static final byte ARROW_BOOL = 6;
+  private static final byte ARROW_TIMESTAMP = 10;
+
+  private static final short PRECISION_DOUBLE = 2;
+  private static final short TIME_UNIT_MILLISECOND = 1;
+
+
+  /*
+   * Instance fields
+   */
+
+  private final OutputStream outputStream;
+  private final String[] columnNames;
+  private final int[] columnTypes;
+  private final boolean fileFormat;
+  private final List<Map<String, Integer>> dictionaries;
+  private final int[] dictionarySizesWritten;
+  private final List<long[]> dictionaryBlocks = new ArrayList<long[]>();
+  private final List<long[]> recordBatchBlocks = new ArrayList<long[]>();
+  private long position = 0;
+  private long rowCount = 0;
+  private boolean started = false;
+  private boolean finished = false;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a writer. Nothing is written until the first batch, or
+   * until finish() for a result without rows.
+   *
+   * @param outputStream  the stream to write to, which the writer does not
+   *                      close
+   * @param columnNames   the names of the columns, in order
+   * @param columnTypes   the TYPE_ constant of each column, in order
+   * @param fileFormat    true to write the IPC file format, false to write
+   *                      the IPC stream format
+   */
+  public ArrowWriter(OutputStream outputStream, String[] columnNames,
+                     int[] columnTypes, boolean fileFormat) {
+    if (columnNames.length != columnTypes.length) {
+      throw new IllegalArgumentException(
+          "There must be one column type for each column name");
+    }
+
+    this.outputStream = outputStream;
+    this.columnNames = columnNames.clone();
+    this.columnTypes = columnTypes.clone();
+    this.fileFormat = fileFormat;
+    this.dictionaries = new ArrayList<Map<String, Integer>>();
+    this.dictionarySizesWritten = new int[columnTypes.length];
+
+    for (int i = 0; i < columnTypes.length; i++) {
+      dictionaries.add((columnTypes[i] == TYPE_DICTIONARY) ?
+                       new LinkedHashMap<String, Integer>() : null);
+      dictionarySizesWritten[i] = -1;
+    }
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Adds values to the dictionary of a dictionary-encoded column before the
+   * first batch is written, such as the codes of an enumerated domain, so
+   * that they are written in that order in the first dictionary batch.
+   *
+   * @param column  the zero-based number of the column
+   * @param values  the values to add
+   */
+  public void addDictionaryValues(int column, String[] values) {
+    Map<String, Integer> dictionary = dictionaries.get(column);
+
+    if (dictionary == null) {
+      throw new IllegalArgumentException("Column " + columnNames[column] +
+                                         " is not dictionary-encoded");
+    }
+    if (started) {
+      throw new IllegalStateException("The schema has been written");
+    }
+
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null && !dictionary.containsKey(values[i])) {
+        dictionary.put(values[i], Integer.valueOf(dictionary.size()));
+      }
+    }
+  }
+
+
+  /**
+   * Writes a record batch. The values of a row are in column order, with
+   * null for a missing value. An INT64 or FLOAT64 column takes any Number,
+   * a TIMESTAMP column any java.util.Date, whose local time is written as
+   * milliseconds without a time zone, and a BOOL column a Boolean or a
+   * Number; other values are parsed from their text. UTF8 and DICTIONARY
+   * columns take the text of any value.
+   *
+   * @param rows  the rows of the batch
+   * @throws IOException if a value does not fit the type of its column, or
+   *         the batch cannot be written
+   */
+  public void writeBatch(List<Object[]> rows) throws IOException {
+    if (finished) {
+      throw new IOException("The Arrow " + (fileFormat ? "file" : "stream") +
+                            " has been finished");
+    }
+
+    start();
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    int length = rows.size();
+    Body body = new Body();
+    long[] nodes = new long[columnTypes.length * 2];
+    int[][] indices = new int[columnTypes.length][];
+
+    for (int i = 0; i < columnTypes.length; i++) {
+      if (columnTypes[i] == TYPE_DICTIONARY) {
+        indices[i] = encode(i, rows);
+      }
+    }
+    writeDictionaryBatches();
+
+    for (int i = 0; i < columnTypes.length; i++) {
+      nodes[i * 2] = length;
+      nodes[i * 2 + 1] = addColumn(body, i, rows, indices[i]);
+    }
+
+    Table recordBatch = recordBatch(length, nodes, body);
+    long[] block = writeMessage(HEADER_RECORD_BATCH, recordBatch, body);
+    recordBatchBlocks.add(block);
+    rowCount += length;
+  }
+
+
+  /**
+   * Ends the stream. For the file format, the footer is written after the
+   * end of the stream. The output stream is flushed but not closed.
+   *
+   * @throws IOException if the end cannot be written
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+
+    start();
+    writeDictionaryBatches();
+    writeInt(CONTINUATION);
+    writeInt(0);
+
+    if (fileFormat) {
+      Table footer = new Table();
+      footer.addShort(0, METADATA_VERSION_V5);
+      footer.addChild(1, schema());
+      footer.addChild(2, blocks(dictionaryBlocks));
+      footer.addChild(3, blocks(recordBatchBlocks));
+      byte[] bytes = footer.finish();
+      write(bytes, bytes.length);
+      writeInt(bytes.length);
+      write(MAGIC, MAGIC.length);
+    }
+
+    outputStream.flush();
+    finished = true;
+  }
+
+
+  /**
+   * Gets the number of rows written.
+   *
+   * @return the row count
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Gets the number of record batches written.
+   *
+   * @return the batch count
+   */
+  public int getBatchCount() {
+    return recordBatchBlocks.size();
+  }
+
+
+  /*
+   * Writes the file magic, for a file, and the schema, the first time it is
+   * called.
+   */
+  private void start() throws IOException {
+    if (started) {
+      return;
+    }
+
+    started = true;
+    if (fileFormat) {
+      write(MAGIC, MAGIC.length);
+      write(new byte[2], 2);
+    }
+    writeMessage(HEADER_SCHEMA, schema(), null);
+  }
+
+
+  /*
+   * Builds the Schema table.
+   */
+  private Table schema() {
+    List<Table> fields = new ArrayList<Table>();
+
+    for (int i = 0; i < columnTypes.length; i++) {
+      Table field = new Table();
+      field.addChild(0, columnNames[i]);
+      field.addBool(1, true);
+
+      switch (columnTypes[i]) {
+        case TYPE_INT64:
+          field.addByte(2, ARROW_INT);
+          field.addChild(3, intType(64));
+          break;
+
+        case TYPE_FLOAT64:
+          Table floatingPoint = new Table();
+          floatingPoint.addShort(0, PRECISION_DOUBLE);
+          field.addByte(2, ARROW_FLOATING_POINT);
+          field.addChild(3, floatingPoint);
+          break;
+
+        case TYPE_TIMESTAMP:
+          Table timestamp = new Table();
+          timestamp.addShort(0, TIME_UNIT_MILLISECOND);
+          field.addByte(2, ARROW_TIMESTAMP);
+          field.addChild(3, timestamp);
+          break;
+
+        case TYPE_BOOL:
+          field.addByte(2, ARROW_BOOL);
+          field.addChild(3, new Table());
+          break;
+
+        case TYPE_DICTIONARY:
+          Table encoding = new Table();
+          encoding.addLong(0, i);
+          encoding.addChild(1, intType(32));
+          encoding.addBool(2, false);
+          field.addByte(2, ARROW_UTF8);
+          field.addChild(3, new Table());
+          field.addChild(4, encoding);
+          break;
+
+        default:
+          field.addByte(2, ARROW_UTF8);
+          field.addChild(3, new Table());
+          break;
+      }
+
+      field.addChild(5, new ArrayList<Table>());
+      fields.add(field);
+    }
+
+    Table schema = new Table();
+    schema.addShort(0, (short) 0);
+    schema.addChild(1, fields);
+    return schema;
+  }
+
+
+  /*
+   * Builds the table of a signed Int type.
+   */
+  private static Table intType(int bitWidth) {
+    Table type = new Table();
+    type.addInt(0, bitWidth);
+    type.addBool(1, true);
+    return type;
+  }
+
+
+  /*
+   * Builds a vector of Block structs for the footer.
+   */
+  private static StructVector blocks(List<long[]> blocks) {
+    byte[] data = new byte[blocks.size() * 24];
+
+    for (int i = 0; i < blocks.size(); i++) {
+      long[] block = blocks.get(i);
+      putLong(data, i * 24, block[0]);
+      putInt(data, i * 24 + 8, (int) block[1]);
+      putLong(data, i * 24 + 16, block[2]);
+    }
+
+    return new StructVector(data, blocks.size(), 8);
+  }
+
+
+  /*
+   * Builds a RecordBatch table for the nodes and buffers of a body.
+   */
+  private static Table recordBatch(long length, long[] nodes, Body body) {
+    byte[] nodeData = new byte[nodes.length * 8];
+    for (int i = 0; i < nodes.length; i++) {
+      putLong(nodeData, i * 8, nodes[i]);
+    }
+
+    Table recordBatch = new Table();
+    recordBatch.addLong(0, length);
+    recordBatch.addChild(1, new StructVector(nodeData, nodes.length / 2, 8));
+    recordBatch.addChild(2, body.buffers());
+    return recordBatch;
+  }
+
+
+  /*
+   * Looks up the dictionary indices of the values of a column, adding the
+   * values that are not in the dictionary yet.
+   */
+  private int[] encode(int column, List<Object[]> rows) {
+    Map<String, Integer> dictionary = dictionaries.get(column);
+    int[] indices = new int[rows.size()];
+
+    for (int row = 0; row < indices.length; row++) {
+      Object value = rows.get(row)[column];
+      if (value == null) {
+        indices[row] = -1;
+        continue;
+      }
+
+      String text = value.toString();
+      Integer index = dictionary.get(text);
+      if (index == null) {
+        index = Integer.valueOf(dictionary.size());
+        dictionary.put(text, index);
+      }
+      indices[row] = index.intValue();
+    }
+
+    return indices;
+  }
+
+
+  /*
+   * Writes a dictionary batch for each dictionary that has not been written,
+   * and a delta batch for each dictionary that has grown since it was.
+   */
+  private void writeDictionaryBatches() throws IOException {
+    for (int i = 0; i < columnTypes.length; i++) {
+      Map<String, Integer> dictionary = dictionaries.get(i);
+      if (dictionary == null ||
+          dictionary.size() == dictionarySizesWritten[i]) {
+        continue;
+      }
+
+      int from = Math.max(dictionarySizesWritten[i], 0);
+      List<Object[]> values = new ArrayList<Object[]>();
+      int index = 0;
+      for (String value : dictionary.keySet()) {
+        if (index++ >= from) {
+          values.add(new Object[] {value});
+        }
+      }
+
+      Body body = new Body();
+      long[] nodes = {values.size(), addUtf8(body, values, 0)};
+
+      Table dictionaryBatch = new Table();
+      dictionaryBatch.addLong(0, i);
+      dictionaryBatch.addChild(1, recordBatch(values.size(), nodes, body));
+      dictionaryBatch.addBool(2, dictionarySizesWritten[i] >= 0);
+      long[] block = writeMessage(HEADER_DICTIONARY_BATCH, dictionaryBatch,
+                                  body);
+      dictionaryBlocks.add(block);
+      dictionarySizesWritten[i] = dictionary.size();
+    }
+  }
+
+
+  /*
+   * Adds the buffers of a column to a body, and returns its null count.
+   */
+  private long addColumn(Body body, int column, List<Object[]> rows,
+                         int[] indices) throws IOException {
+    int length = rows.size();
+
+    switch (columnTypes[column]) {
+      case TYPE_INT64:
+      case TYPE_FLOAT64:
+      case TYPE_TIMESTAMP: {
+        byte[] values = new byte[length * 8];
+        byte[] validity = new byte[(length + 7) / 8];
+        int nullCount = 0;
+
+        for (int row = 0; row < length; row++) {
+          Object value = rows.get(row)[column];
+          if (value == null) {
+            nullCount++;
+            continue;
+          }
+
+          validity[row >> 3] |= 1 << (row & 7);
+          if (columnTypes[column] == TYPE_FLOAT64) {
+            putLong(values, row * 8,
+                    Double.doubleToRawLongBits(toDouble(value, column)));
+          }
+          else {
+            putLong(values, row * 8, (columnTypes[column] == TYPE_INT64) ?
+                                     toLong(value, column) :
+                                     toMillis(value, column));
+          }
+        }
+
+        body.addValidity(validity, nullCount);
+        body.add(values, values.length);
+        return nullCount;
+      }
+
+      case TYPE_BOOL: {
+        byte[] values = new byte[(length + 7) / 8];
+        byte[] validity = new byte[values.length];
+        int nullCount = 0;
+
+        for (int row = 0; row < length; row++) {
+          Object value = rows.get(row)[column];
+          if (value == null) {
+            nullCount++;
+            continue;
+          }
+
+          validity[row >> 3] |= 1 << (row & 7);
+          if (toBoolean(value)) {
+            values[row >> 3] |= 1 << (row & 7);
+          }
+        }
+
+        body.addValidity(validity, nullCount);
+        body.add(values, values.length);
+        return nullCount;
+      }
+
+      case TYPE_DICTIONARY: {
+        byte[] values = new byte[length * 4];
+        byte[] validity = new byte[(length + 7) / 8];
+        int nullCount = 0;
+
+        for (int row = 0; row < length; row++) {
+          if (indices[row] < 0) {
+            nullCount++;
+            continue;
+          }
+
+          validity[row >> 3] |= 1 << (row & 7);
+          putInt(values, row * 4, indices[row]);
+        }
+
+        body.addValidity(validity, nullCount);
+        body.add(values, values.length);
+        return nullCount;
+      }
+
+      default:
+        return addUtf8(body, rows, column);
+    }
+  }
+
+
+  /*
+   * Adds the validity, offsets and data buffers of a text column to a body,
+   * and returns its null count.
+   */
+  private static long addUtf8(Body body, List<Object[]> rows, int column)
+          throws IOException {
+    int length = rows.size();
+    byte[] validity = new byte[(length + 7) / 8];
+    byte[] offsets = new byte[(length + 1) * 4];
+    byte[][] values = new byte[length][];
+    long dataLength = 0;
+    int nullCount = 0;
+
+    for (int row = 0; row < length; row++) {
+      Object value = rows.get(row)[column];
+      if (value == null) {
+        nullCount++;
+      }
+      else {
+        validity[row >> 3] |= 1 << (row & 7);
+        values[row] = value.toString().getBytes(UTF8);
+        dataLength += values[row].length;
+      }
+    }
+
+    if (dataLength > Integer.MAX_VALUE) {
+      throw new IOException("The text of a batch is longer than 2GB; " +
+                            "write smaller batches");
+    }
+
+    byte[] data = new byte[(int) dataLength];
+    int offset = 0;
+    for (int row = 0; row < length; row++) {
+      if (values[row] != null) {
+        System.arraycopy(values[row], 0, data, offset, values[row].length);
+        offset += values[row].length;
+      }
+      putInt(offsets, (row + 1) * 4, offset);
+    }
+
+    body.addValidity(validity, nullCount);
+    body.add(offsets, offsets.length);
+    body.add(data, data.length);
+    return nullCount;
+  }
+
+
+  private long toLong(Object value, int column) throws IOException {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+
+    try {
+      return Long.parseLong(value.toString().trim());
+    }
+    catch (NumberFormatException e) {
+      throw notMatching(value, column);
+    }
+  }
+
+
+  private double toDouble(Object value, int column) throws IOException {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+
+    try {
+      return Double.parseDouble(value.toString().trim());
+    }
+    catch (NumberFormatException e) {
+      throw notMatching(value, column);
+    }
+  }
+
+
+  /*
+   * Gets the local time of a date as milliseconds since the epoch, as an
+   * Arrow timestamp without a time zone holds it.
+   */
+  private long toMillis(Object value, int column) throws IOException {
+    if (!(value instanceof Date)) {
+      throw notMatching(value, column);
+    }
+
+    long time = ((Date) value).getTime();
+    return time + TimeZone.getDefault().getOffset(time);
+  }
+
+
+  private static boolean toBoolean(Object value) {
+    if (value instanceof Boolean) {
+      return ((Boolean) value).booleanValue();
+    }
+    else if (value instanceof Number) {
+      return ((Number) value).doubleValue() != 0;
+    }
+    return Boolean.valueOf(value.toString().trim()).booleanValue();
+  }
+
+
+  private IOException notMatching(Object value, int column) {
+    return new IOException("Value '" + value + "' of column " +
+                           columnNames[column] + " does not fit its " +
+                           "Arrow type");
+  }
+
+
+  /*
+   * Writes an encapsulated message: the continuation marker, the length of
+   * the metadata, the metadata padded to 8 bytes, and the body. Returns the
+   * offset, metadata length and body length of the message.
+   */
+  private long[] writeMessage(byte headerType, Table header, Body body)
+          throws IOException {
+    long bodyLength = (body == null) ? 0 : body.length();
+    Table message = new Table();
+    message.addShort(0, METADATA_VERSION_V5);
+    message.addByte(1, headerType);
+    message.addChild(2, header);
+    message.addLong(3, bodyLength);
+
+    byte[] metadata = message.finish();
+    int paddedLength = (metadata.length + 7) & ~7;
+    long offset = position;
+
+    writeInt(CONTINUATION);
+    writeInt(paddedLength);
+    write(metadata, metadata.length);
+    write(new byte[paddedLength - metadata.length],
+          paddedLength - metadata.length);
+    if (body != null) {
+      body.writeTo(this);
+    }
+
+    return new long[] {offset, 8 + paddedLength, bodyLength};
+  }
+
+
+  private void writeInt(int value) throws IOException {
+    byte[] bytes = new byte[4];
+    putInt(bytes, 0, value);
+    write(bytes, 4);
+  }
+
+
+  private void write(byte[] bytes, int length) throws IOException {
+    outputStream.write(bytes, 0, length);
+    position += length;
+  }
+
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+    bytes[offset + 2] = (byte) (value >>> 16);
+    bytes[offset + 3] = (byte) (value >>> 24);
+  }
+
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    putInt(bytes, offset, (int) value);
+    putInt(bytes, offset + 4, (int) (value >>> 32));
+  }
+
+
+  /*
+   * The buffers of a message body, each padded to 8 bytes.
+   */
+  private static class Body {
+    private final List<byte[]> buffers = new ArrayList<byte[]>();
+    private final List<long[]> locations = new ArrayList<long[]>();
+    private long length = 0;
+
+    void add(byte[] buffer, int used) {
+      buffers.add(buffer);
+      locations.add(new long[] {length, used});
+      length += (used + 7) & ~7L;
+    }
+
+    /*
+     * Adds a validity bitmap, which is left empty for a column without
+     * nulls.
+     */
+    void addValidity(byte[] validity, int nullCount) {
+      add(validity, (nullCount == 0) ? 0 : validity.length);
+    }
+
+    long length() {
+      return length;
+    }
+
+    StructVector buffers() {
+      byte[] data = new byte[locations.size() * 16];
+      for (int i = 0; i < locations.size(); i++) {
+        putLong(data, i * 16, locations.get(i)[0]);
+        putLong(data, i * 16 + 8, locations.get(i)[1]);
+      }
+      return new StructVector(data, locations.size(), 8);
+    }
+
+    void writeTo(ArrowWriter writer) throws IOException {
+      byte[] padding = new byte[8];
+      for (int i = 0; i < buffers.size(); i++) {
+        int used = (int) locations.get(i)[1];
+        writer.write(buffers.get(i), used);
+        writer.write(padding, (8 - (used & 7)) & 7);
+      }
+    }
+  }
+
+
+  /*
+   * A vector of FlatBuffers structs, given as their little-endian bytes.
+   */
+  private static class StructVector {
+    final byte[] data;
+    final int count;
+    final int alignment;
+
+    StructVector(byte[] data, int count, int alignment) {
+      this.data = data;
+      this.count = count;
+      this.alignment = alignment;
+    }
+  }
+
+
+  /*
+   * A FlatBuffers table, built up field by field. A field is a scalar, or a
+   * child: a string, a table, a list of tables or a struct vector. The
+   * tables are laid out front to back, each vtable just before its table
+   * and each child after its parent, so that all offsets are positive.
+   */
+  private static class Table {
+    private final List<Object[]> fields = new ArrayList<Object[]>();
+
+    void addByte(int slot, byte value) {
+      fields.add(new Object[] {slot, 1, Long.valueOf(value)});
+    }
+
+    void addBool(int slot, boolean value) {
+      fields.add(new Object[] {slot, 1, Long.valueOf(value ? 1 : 0)});
+    }
+
+    void addShort(int slot, short value) {
+      fields.add(new Object[] {slot, 2, Long.valueOf(value)});
+    }
+
+    void addInt(int slot, int value) {
+      fields.add(new Object[] {slot, 4, Long.valueOf(value)});
+    }
+
+    void addLong(int slot, long value) {
+      fields.add(new Object[] {slot, 8, Long.valueOf(value)});
+    }
+
+    void addChild(int slot, Object child) {
+      fields.add(new Object[] {slot, 0, child});
+    }
+
+    /*
+     * Lays out a buffer whose root is this table.
+     */
+    byte[] finish() {
+      FlatBuffer buffer = new FlatBuffer();
+      buffer.skip(4);
+      buffer.setInt(0, buffer.place(this));
+      return buffer.toByteArray();
+    }
+  }
+
+
+  /*
+   * The bytes of a FlatBuffers buffer being laid out.
+   */
+  private static class FlatBuffer {
+    private byte[] bytes = new byte[256];
+    private int size = 0;
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+
+    void skip(int count) {
+      if (size + count > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + count));
+      }
+      size += count;
+    }
+
+    void align(int alignment) {
+      skip((alignment - (size % alignment)) % alignment);
+    }
+
+    void setInt(int offset, int value) {
+      putInt(bytes, offset, value);
+    }
+
+    void setShort(int offset, int value) {
+      bytes[offset] = (byte) value;
+      bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    void putScalar(int size, long value) {
+      int offset = this.size;
+      skip(size);
+      for (int i = 0; i < size; i++) {
+        bytes[offset + i] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    /*
+     * Lays out a node at the end of the buffer and returns its position.
+     */
+    @SuppressWarnings("unchecked")
+    int place(Object node) {
+      if (node instanceof Table) {
+        return placeTable((Table) node);
+      }
+      else if (node instanceof String) {
+        byte[] text = ((String) node).getBytes(UTF8);
+        align(4);
+        int position = size;
+        putScalar(4, text.length);
+        skip(text.length + 1);
+        System.arraycopy(text, 0, bytes, position + 4, text.length);
+        return position;
+      }
+      else if (node instanceof StructVector) {
+        StructVector vector = (StructVector) node;
+        while ((size + 4) % vector.alignment != 0) {
+          skip(1);
+        }
+        int position = size;
+        putScalar(4, vector.count);
+        skip(vector.data.length);
+        System.arraycopy(vector.data, 0, bytes, position + 4,
+                         vector.data.length);
+        return position;
+      }
+
+      List<Object> children = (List<Object>) node;
+      align(4);
+      int position = size;
+      putScalar(4, children.size());
+      skip(children.size() * 4);
+      for (int i = 0; i < children.size(); i++) {
+        int reference = position + 4 + i * 4;
+        setInt(reference, place(children.get(i)) - reference);
+      }
+      return position;
+    }
+
+    private int placeTable(Table table) {
+      List<Object[]> fields = new ArrayList<Object[]>(table.fields);
+      int slotCount = 0;
+      boolean wide = false;
+
+      for (Object[] field : fields) {
+        slotCount = Math.max(slotCount, ((Integer) field[0]).intValue() + 1);
+        wide |= ((Integer) field[1]).intValue() == 8;
+      }
+
+      // The widest fields first, so that the table needs little padding
+      Collections.sort(fields, new Comparator<Object[]>() {
+        public int compare(Object[] a, Object[] b) {
+          return width(b) - width(a);
+        }
+      });
+
+      align(2);
+      int vtable = size;
+      int vtableSize = 4 + 2 * slotCount;
+      skip(vtableSize);
+
+      align(wide ? 8 : 4);
+      int tablePosition = size;
+      putScalar(4, tablePosition - vtable);
+
+      List<int[]> references = new ArrayList<int[]>();
+      for (int i = 0; i < fields.size(); i++) {
+        Object[] field = fields.get(i);
+        int width = width(field);
+        align(width);
+        setShort(vtable + 4 + 2 * ((Integer) field[0]).intValue(),
+                 size - tablePosition);
+        if (((Integer) field[1]).intValue() == 0) {
+          references.add(new int[] {size, i});
+          skip(4);
+        }
+        else {
+          putScalar(width, ((Long) field[2]).longValue());
+        }
+      }
+
+      setShort(vtable, vtableSize);
+      setShort(vtable + 2, size - tablePosition);
+
+      for (int[] reference : references) {
+        int child = place(fields.get(reference[1])[2]);
+        setInt(reference[0], child - reference[0]);
+      }
+
+      return tablePosition;
+    }
+
+    private static int width(Object[] field) {
+      int width = ((Integer) field[1]).intValue();
+      return (width == 0) ? 4 : width;
+    }
+  }
+
+}
@@ -0,0 +1,724 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.DateTimeDomain;
+import org.ecoinformatics.datamanager.parser.Domain;
+import org.ecoinformatics.datamanager.util.DateTimeFormatRegistry;
+
+/**
+ * Converts the text values of one attribute into SQL values for a given
+ * DatabaseAdapter. Everything that depends only on the attribute metadata,
+ * such as the missing value codes, the attribute type, the database type and
+ * the datetime format string, is resolved once when the converter is
+ * compiled, so that converting a value does not repeat that work for every
+ * row of a table.
+ *
+ * Converters are obtained from DatabaseAdapter.compileConverters().
+ */
+public class AttributeConverter {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(AttributeConverter.class);
+
+  /* The kinds of conversion a converter can perform */
+  public static final int KIND_UNKNOWN  = 0;
+  public static final int KIND_STRING   = 1;
+  public static final int KIND_INTEGER  = 2;
+  public static final int KIND_FLOAT    = 3;
+  public static final int KIND_DATETIME = 4;
+
+
+  /*
+   * Instance fields
+   */
+
+  private final DatabaseAdapter databaseAdapter;
+  private final Attribute attribute;
+  private final String fieldName;
+  private final String attributeType;
+  private final String dbDataType;
+  private final int kind;
+  private final Set<String> missingValues;
+  private final String emlFormatString;
+  private final String formatString;
+  private final String datetimePrefix;
+  private final String datetimeSuffix;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Compiles a converter for an attribute. The attribute's database field
+   * name should already have been assigned.
+   *
+   * @param databaseAdapter  the adapter whose SQL dialect is generated
+   * @param attribute        the attribute whose values are converted
+   */
+  AttributeConverter(DatabaseAdapter databaseAdapter, Attribute attribute) {
+    this.databaseAdapter = databaseAdapter;
+    this.attribute = attribute;
+    this.fieldName = attribute.getDBFieldName();
+    this.attributeType = databaseAdapter.getAttributeType(attribute);
+
+    String[] missingValueCodes = attribute.getMissingValueCode();
+    if (missingValueCodes == null || missingValueCodes.length == 0) {
+      this.missingValues = Collections.emptySet();
+    }
+    else {
+      Set<String> codes = new HashSet<String>();
+      for (int i = 0; i < missingValueCodes.length; i++) {
+        if (missingValueCodes[i] != null) {
+          codes.add(missingValueCodes[i]);
+        }
+      }
+      this.missingValues = codes;
+    }
+
+    Domain domain = attribute.getDomain();
+    String emlFormatString = null;
+
+    if (attributeType == null) {
+      this.kind = KIND_UNKNOWN;
+      this.dbDataType = null;
+    }
+    else if (attributeType.equalsIgnoreCase("datetime") &&
+             domain instanceof DateTimeDomain &&
+             ((DateTimeDomain) domain).getFormatString() != null) {
+      this.kind = KIND_DATETIME;
+      this.dbDataType = databaseAdapter.mapDataType(attributeType);
+      emlFormatString = ((DateTimeDomain) domain).getFormatString();
+    }
+    else if (attributeType.equalsIgnoreCase("datetime") ||
+             attributeType.equals("string")) {
+      // A datetime without a format string is inserted as quoted text
+      this.kind = KIND_STRING;
+      this.dbDataType = databaseAdapter.mapDataType(attributeType);
+    }
+    else {
+      this.dbDataType = databaseAdapter.mapDataType(attributeType);
+      if (dbDataType == null) {
+        this.kind = KIND_UNKNOWN;
+      }
+      else if (dbDataType.equals("FLOAT")) {
+        this.kind = KIND_FLOAT;
+      }
+      else {
+        this.kind = KIND_INTEGER;
+      }
+    }
+
+    this.emlFormatString = emlFormatString;
+
+    if (kind == KIND_DATETIME) {
+      // Transform the datetime format string for database compatibility
+      this.formatString = databaseAdapter.transformFormatString(emlFormatString);
+      this.datetimePrefix = databaseAdapter.TO_DATE_FUNCTION +
+                            DatabaseAdapter.LEFTPARENTH +
+                            DatabaseAdapter.SINGLEQUOTE;
+      this.datetimeSuffix = DatabaseAdapter.SINGLEQUOTE +
+                            DatabaseAdapter.COMMA +
+                            DatabaseAdapter.SINGLEQUOTE +
+                            formatString +
+                            DatabaseAdapter.SINGLEQUOTE +
+                            DatabaseAdapter.RIGHTPARENTH;
+    }
+    else {
+      this.formatString = null;
+      this.datetimePrefix = null;
+      this.datetimeSuffix = null;
+    }
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Determines whether a range of characters is a plain decimal number,
+   * optionally signed and with an exponent, such as "-12", "2.5", ".5" or
+   * "1.0E-3". No objects are allocated.
+   *
+   * @param value  the characters to examine
+   * @param begin  the index of the first character
+   * @param end    the index after the last character
+   * @return true if the characters form a decimal number
+   */
+  static boolean isDecimalNumber(CharSequence value, int begin, int end) {
+    int i = begin;
+
+    if (i < end && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+      i++;
+    }
+
+    int digits = 0;
+    while (i < end && isDigit(value.charAt(i))) {
+      i++;
+      digits++;
+    }
+
+    if (i < end && value.charAt(i) == '.') {
+      i++;
+      while (i < end && isDigit(value.charAt(i))) {
+        i++;
+        digits++;
+      }
+    }
+
+    if (digits == 0) {
+      return false;
+    }
+
+    if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+      i++;
+      if (i < end && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+        i++;
+      }
+      int exponentDigits = 0;
+      while (i < end && isDigit(value.charAt(i))) {
+        i++;
+        exponentDigits++;
+      }
+      if (exponentDigits == 0) {
+        return false;
+      }
+    }
+
+    return i == end;
+  }
+
+
+  /*
+   * Determines whether a character is an ASCII digit.
+   */
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the attribute whose values are converted.
+   *
+   * @return the attribute
+   */
+  public Attribute getAttribute() {
+    return attribute;
+  }
+
+
+  /**
+   * Gets the database field name of the attribute.
+   *
+   * @return the field name
+   */
+  public String getFieldName() {
+    return fieldName;
+  }
+
+
+  /**
+   * Gets the attribute type, e.g. "string", "datetime" or an EML number type.
+   *
+   * @return the attribute type
+   */
+  public String getAttributeType() {
+    return attributeType;
+  }
+
+
+  /**
+   * Gets the database data type of the attribute's column.
+   *
+   * @return the database data type, e.g. "INTEGER"
+   */
+  public String getDbDataType() {
+    return dbDataType;
+  }
+
+
+  /**
+   * Gets the kind of conversion performed by this converter.
+   *
+   * @return one of the KIND_ constants
+   */
+  public int getKind() {
+    return kind;
+  }
+
+
+  /**
+   * Gets the JDBC type of the attribute's column, as defined in
+   * java.sql.Types.
+   *
+   * @return the JDBC type
+   */
+  public int getSqlType() {
+    switch (kind) {
+      case KIND_INTEGER:  return Types.INTEGER;
+      case KIND_FLOAT:    return Types.DOUBLE;
+      case KIND_DATETIME: return Types.TIMESTAMP;
+      default:            return Types.VARCHAR;
+    }
+  }
+
+
+  /**
+   * Gets the database format string used for datetime values.
+   *
+   * @return the transformed format string, or null if the attribute is not
+   *         a datetime
+   */
+  public String getFormatString() {
+    return formatString;
+  }
+
+
+  /**
+   * Parses a datetime value with the attribute's EML format string, using
+   * the formatter cached by DateTimeFormatRegistry.
+   *
+   * @param value  the datetime value as found in a data table
+   * @return the value as a Timestamp
+   * @throws ParseException if the attribute is not a datetime with a format
+   *         string, or the value does not match the format string
+   */
+  public Timestamp parseTimestamp(String value) throws ParseException {
+    if (emlFormatString == null) {
+      throw new ParseException("Attribute " + attribute.getName() +
+                               " has no datetime format string", 0);
+    }
+
+    return DateTimeFormatRegistry.parseTimestamp(value, emlFormatString);
+  }
+
+
+  /**
+   * Converts a datetime value to a Timestamp, as parseTimestamp() does, but
+   * reports a value that does not match the format string as data that does
+   * not match the metadata.
+   *
+   * @param value  the datetime value as found in a data table
+   * @return the value as a Timestamp
+   * @throws DataNotMatchingMetadataException if the value does not match the
+   *         attribute's format string
+   */
+  public Timestamp toTimestamp(String value)
+          throws DataNotMatchingMetadataException {
+    try {
+      return parseTimestamp(value);
+    }
+    catch (ParseException e) {
+      throw new DataNotMatchingMetadataException(
+          "Data value '" + value + "' does not match the datetime format '" +
+          emlFormatString + "'");
+    }
+  }
+
+
+  /**
+   * Determines whether a value is one of the attribute's missing value codes.
+   *
+   * @param value  the value to check
+   * @return true if the value is a missing value code
+   */
+  public boolean isMissingValue(String value) {
+    return value != null && !missingValues.isEmpty() &&
+           missingValues.contains(value);
+  }
+
+
+  /**
+   * Appends a value to a SQL statement as a literal of the attribute's type.
+   * Strings and datetimes are quoted and escaped, and numbers are checked
+   * against the attribute's number type.
+   *
+   * @param sql    the buffer holding the SQL statement
+   * @param value  the value to append, which must not be null, empty or a
+   *               missing value code
+   * @throws DataNotMatchingMetadataException if the value does not match the
+   *         attribute's type
+   */
+  public void appendSQLValue(StringBuffer sql, String value)
+          throws DataNotMatchingMetadataException {
+    switch (kind) {
+      case KIND_STRING:
+        sql.append(DatabaseAdapter.SINGLEQUOTE);
+        sql.append(databaseAdapter.escapeSpecialCharacterInData(value));
+        sql.append(DatabaseAdapter.SINGLEQUOTE);
+        break;
+
+      case KIND_DATETIME:
+        // Transform the datetime value for database compatibility
+        value = databaseAdapter.transformDatetime(value);
+        sql.append(datetimePrefix);
+        sql.append(databaseAdapter.escapeSpecialCharacterInData(value));
+        sql.append(datetimeSuffix);
+        break;
+
+      case KIND_INTEGER:
+      case KIND_FLOAT:
+        appendNumericValue(sql, value);
+        break;
+
+      default:
+        throw notMatching(value, null);
+    }
+  }
+
+
+  /**
+   * Appends a numeric value in a form that can be read by the database,
+   * after checking it against the attribute's number type.
+   *
+   * @param buffer  the buffer to append to
+   * @param value   the value to append
+   * @throws DataNotMatchingMetadataException if the attribute is not numeric
+   *         or the value does not match its number type
+   */
+  public void appendNumericValue(StringBuffer buffer, String value)
+          throws DataNotMatchingMetadataException {
+    if (kind == KIND_INTEGER) {
+      try {
+        buffer.append(Integer.parseInt(value));
+      }
+      catch (NumberFormatException e) {
+        throw notMatching(value, e);
+      }
+    }
+    else if (kind == KIND_FLOAT) {
+      appendFloat(buffer, value);
+    }
+    else {
+      throw notMatching(value, null);
+    }
+  }
+
+
+  /**
+   * Determines whether a value is stored as a database null: a null or
+   * blank value, or one of the attribute's missing value codes.
+   *
+   * @param value  the value to check
+   * @return true if the value is stored as null
+   */
+  public boolean isNullValue(String value) {
+    return value == null || value.trim().length() == 0 ||
+           isMissingValue(value);
+  }
+
+
+  /**
+   * Determines whether the attribute declares any missing value codes.
+   *
+   * @return true if the attribute has missing value codes
+   */
+  public boolean hasMissingValues() {
+    return !missingValues.isEmpty();
+  }
+
+
+  /**
+   * Appends a SQL condition that is true when a text expression holds a
+   * value that is stored as null, mirroring isNullValue(): a null or blank
+   * value, or one of the attribute's missing value codes.
+   *
+   * @param sql         the buffer holding the SQL statement
+   * @param expression  a SQL expression of a character type, such as the
+   *                    name of a text column
+   */
+  public void appendSQLNullTest(StringBuffer sql, String expression) {
+    sql.append(DatabaseAdapter.LEFTPARENTH);
+    sql.append(expression);
+    sql.append(" IS NULL OR TRIM(BOTH FROM ");
+    sql.append(expression);
+    sql.append(") = ''");
+
+    if (!missingValues.isEmpty()) {
+      sql.append(" OR ");
+      sql.append(expression);
+      sql.append(" IN ");
+      sql.append(DatabaseAdapter.LEFTPARENTH);
+      boolean first = true;
+      for (String code : missingValues) {
+        if (!first) {
+          sql.append(DatabaseAdapter.COMMA);
+        }
+        sql.append(DatabaseAdapter.SINGLEQUOTE);
+        sql.append(databaseAdapter.escapeSpecialCharacterInData(code));
+        sql.append(DatabaseAdapter.SINGLEQUOTE);
+        first = false;
+      }
+      sql.append(DatabaseAdapter.RIGHTPARENTH);
+    }
+
+    sql.append(DatabaseAdapter.RIGHTPARENTH);
+  }
+
+
+  /**
+   * Appends a SQL expression that converts a text expression to the
+   * attribute's database type, yielding null for the values that
+   * appendSQLNullTest() matches. This lets the database convert values that
+   * it reads as text, e.g. from a text table, the same way bindValue()
+   * would.
+   *
+   * @param sql         the buffer holding the SQL statement
+   * @param expression  a SQL expression of a character type, such as the
+   *                    name of a text column
+   * @throws DataNotMatchingMetadataException if the attribute's type is
+   *         not known
+   */
+  public void appendSQLConversion(StringBuffer sql, String expression)
+          throws DataNotMatchingMetadataException {
+    sql.append("CASE WHEN ");
+    appendSQLNullTest(sql, expression);
+    sql.append(" THEN NULL ELSE ");
+
+    switch (kind) {
+      case KIND_STRING:
+        sql.append(expression);
+        break;
+
+      case KIND_DATETIME:
+        sql.append(databaseAdapter.TO_DATE_FUNCTION);
+        sql.append(DatabaseAdapter.LEFTPARENTH);
+        sql.append(expression);
+        sql.append(DatabaseAdapter.COMMA);
+        sql.append(DatabaseAdapter.SINGLEQUOTE);
+        sql.append(formatString);
+        sql.append(DatabaseAdapter.SINGLEQUOTE);
+        sql.append(DatabaseAdapter.RIGHTPARENTH);
+        break;
+
+      case KIND_INTEGER:
+      case KIND_FLOAT:
+        sql.append("CAST");
+        sql.append(DatabaseAdapter.LEFTPARENTH);
+        sql.append("TRIM(BOTH FROM ");
+        sql.append(expression);
+        sql.append(") AS ");
+        sql.append(dbDataType);
+        sql.append(DatabaseAdapter.RIGHTPARENTH);
+        break;
+
+      default:
+        throw new DataNotMatchingMetadataException(
+            "The type of attribute '" + attribute.getName() +
+            "' is not known and cannot be converted");
+    }
+
+    sql.append(" END");
+  }
+
+
+  /**
+   * Binds a value to a parameter of a prepared statement, using the setter
+   * that matches the attribute's type. Values for which isNullValue() is
+   * true are bound as SQL null.
+   *
+   * @param statement  the prepared statement
+   * @param index      the index of the parameter, starting at 1
+   * @param value      the value to bind
+   * @return true if a value was bound, false if null was bound
+   * @throws DataNotMatchingMetadataException if the value does not match the
+   *         attribute's type
+   * @throws SQLException if the parameter cannot be set
+   */
+  public boolean bindValue(PreparedStatement statement, int index,
+                           String value)
+          throws DataNotMatchingMetadataException, SQLException {
+    if (isNullValue(value)) {
+      statement.setNull(index, getSqlType());
+      return false;
+    }
+
+    switch (kind) {
+      case KIND_STRING:
+        statement.setString(index, value);
+        break;
+
+      case KIND_DATETIME:
+        statement.setTimestamp(index, toTimestamp(value));
+        break;
+
+      case KIND_INTEGER:
+        try {
+          statement.setInt(index, Integer.parseInt(value));
+        }
+        catch (NumberFormatException e) {
+          throw notMatching(value, e);
+        }
+        break;
+
+      case KIND_FLOAT:
+        try {
+          double doubleNum = Double.parseDouble(value);
+          if (Double.isNaN(doubleNum) || Double.isInfinite(doubleNum)) {
+            throw new NumberFormatException("Not a finite number");
+          }
+          statement.setDouble(index, doubleNum);
+        }
+        catch (NumberFormatException e) {
+          throw notMatching(value, e);
+        }
+        break;
+
+      default:
+        throw notMatching(value, null);
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Converts a value to the Java object that bindValue() would bind for it:
+   * a String, an Integer, a Double or a Timestamp depending on the
+   * attribute's type. This lets values be converted apart from the thread
+   * that binds them.
+   *
+   * @param value  the value to convert
+   * @return the converted value, or null if isNullValue() is true for it
+   * @throws DataNotMatchingMetadataException if the value does not match the
+   *         attribute's type
+   */
+  public Object convertValue(String value)
+          throws DataNotMatchingMetadataException {
+    if (isNullValue(value)) {
+      return null;
+    }
+
+    switch (kind) {
+      case KIND_STRING:
+        return value;
+
+      case KIND_DATETIME:
+        return toTimestamp(value);
+
+      case KIND_INTEGER:
+        try {
+          return Integer.valueOf(value);
+        }
+        catch (NumberFormatException e) {
+          throw notMatching(value, e);
+        }
+
+      case KIND_FLOAT:
+        try {
+          double doubleNum = Double.parseDouble(value);
+          if (Double.isNaN(doubleNum) || Double.isInfinite(doubleNum)) {
+            throw new NumberFormatException("Not a finite number");
+          }
+          return Double.valueOf(doubleNum);
+        }
+        catch (NumberFormatException e) {
+          throw notMatching(value, e);
+        }
+
+      default:
+        throw notMatching(value, null);
+    }
+  }
+
+
+  /**
+   * Binds a value returned by convertValue() to a parameter of a prepared
+   * statement.
+   *
+   * @param statement  the prepared statement
+   * @param index      the index of the parameter, starting at 1
+   * @param value      the converted value, or null
+   * @throws SQLException if the parameter cannot be set
+   */
+  public void bindConvertedValue(PreparedStatement statement, int index,
+                                 Object value)
+          throws SQLException {
+    if (value == null) {
+      statement.setNull(index, getSqlType());
+    }
+    else if (value instanceof Integer) {
+      statement.setInt(index, ((Integer) value).intValue());
+    }
+    else if (value instanceof Double) {
+      statement.setDouble(index, ((Double) value).doubleValue());
+    }
+    else if (value instanceof Timestamp) {
+      statement.setTimestamp(index, (Timestamp) value);
+    }
+    else {
+      statement.setString(index, value.toString());
+    }
+  }
+
+
+  /*
+   * Appends a floating point value. Plain decimal numbers are copied as they
+   * are, which avoids parsing them and keeps their full precision; anything
+   * else is left to Float.parseFloat().
+   */
+  private void appendFloat(StringBuffer sql, String value)
+          throws DataNotMatchingMetadataException {
+    int begin = 0;
+    int end = value.length();
+
+    while (begin < end && value.charAt(begin) <= ' ') {
+      begin++;
+    }
+    while (end > begin && value.charAt(end - 1) <= ' ') {
+      end--;
+    }
+
+    if (isDecimalNumber(value, begin, end)) {
+      sql.append(value, begin, end);
+    }
+    else {
+      try {
+        float floatNum = Float.parseFloat(value);
+        if (Float.isNaN(floatNum) || Float.isInfinite(floatNum)) {
+          throw new NumberFormatException("Not a finite number");
+        }
+        sql.append(floatNum);
+      }
+      catch (NumberFormatException e) {
+        throw notMatching(value, e);
+      }
+    }
+  }
+
+
+  /*
+   * Creates the exception thrown when a value does not match the attribute's
+   * type.
+   */
+  private DataNotMatchingMetadataException notMatching(String value,
+                                                       Exception e) {
+    if (e != null) {
+      log.error("Error determining numeric value: " + e.getMessage());
+    }
+
+    return new DataNotMatchingMetadataException(
+        "Data value '" + value +
+        "' is NOT the expected data type of '" + dbDataType + "'");
+  }
+
+}
@@ -0,0 +1,208 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Vector;
+
+/**
+ * Inserts the rows of an entity into its table through a single
+ * parameterized INSERT statement. Values are bound with the setter that
+ * matches each attribute's type and the rows are sent to the database in
+ * JDBC batches, so the statement is only parsed once per table rather than
+ * once per row.
+ *
+ * The caller owns the connection and is responsible for committing.
+ */
+public class BatchedInsertStatement {
+
+  /*
+   * Instance fields
+   */
+
+  private final AttributeConverter[] converters;
+  private final int batchSize;
+  private PreparedStatement statement;
+  private int pendingRows = 0;
+  private int rowCount = 0;
+  private int insertedRowCount = 0;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Prepares the INSERT statement for a table.
+   *
+   * @param connection  the connection to insert with
+   * @param insertSQL   the parameterized INSERT statement, as generated by
+   *                    DatabaseAdapter.generateParameterizedInsertSQL()
+   * @param converters  the converters of the table's attributes
+   * @param batchSize   the number of rows sent to the database at a time
+   * @throws SQLException if the statement cannot be prepared
+   */
+  public BatchedInsertStatement(Connection connection, String insertSQL,
+                                AttributeConverter[] converters,
+                                int batchSize)
+          throws SQLException {
+    this.converters = converters;
+    this.batchSize = Math.max(1, batchSize);
+    this.statement = connection.prepareStatement(insertSQL);
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Binds a row of data and adds it to the current batch, executing the
+   * batch when it is full. Rows whose values are all null, blank or missing
+   * value codes are skipped, as with DatabaseAdapter.generateInsertSQL().
+   *
+   * @param oneRowData  the values of the row, one per attribute
+   * @return true if the row was added, false if it was skipped
+   * @throws DataNotMatchingMetadataException if a value does not match its
+   *         attribute's type
+   * @throws SQLException if the row cannot be bound or the batch fails
+   */
+  public boolean addRow(Vector<String> oneRowData)
+          throws DataNotMatchingMetadataException, SQLException {
+    if (oneRowData == null || oneRowData.isEmpty()) {
+      throw new SQLException("The the data is null and couldn't be inserted");
+    }
+
+    int hasValueCounter = 0;
+
+    for (int i = 0; i < converters.length; i++) {
+      String value = oneRowData.elementAt(i);
+      if (converters[i].bindValue(statement, i + 1, value)) {
+        hasValueCounter++;
+      }
+    }
+
+    if (hasValueCounter == 0) {
+      statement.clearParameters();
+      return false;
+    }
+
+    statement.addBatch();
+    pendingRows++;
+    rowCount++;
+
+    if (pendingRows >= batchSize) {
+      executeBatch();
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Binds a row whose values were already converted with
+   * AttributeConverter.convertValue() and adds it to the current batch,
+   * executing the batch when it is full.
+   *
+   * @param values  the converted values of the row, one per attribute
+   * @throws SQLException if the row cannot be bound or the batch fails
+   */
+  public void addConvertedRow(Object[] values) throws SQLException {
+    for (int i = 0; i < converters.length; i++) {
+      converters[i].bindConvertedValue(statement, i + 1, values[i]);
+    }
+
+    statement.addBatch();
+    pendingRows++;
+    rowCount++;
+
+    if (pendingRows >= batchSize) {
+      executeBatch();
+    }
+  }
+
+
+  /**
+   * Sends any rows of the current batch to the database.
+   *
+   * @throws SQLException if the batch fails
+   */
+  public void executeBatch() throws SQLException {
+    if (pendingRows == 0) {
+      return;
+    }
+
+    try {
+      statement.executeBatch();
+      insertedRowCount += pendingRows;
+    }
+    catch (BatchUpdateException e) {
+      int[] updateCounts = e.getUpdateCounts();
+      if (updateCounts != null && updateCounts.length < pendingRows) {
+        insertedRowCount += updateCounts.length;
+      }
+      throw e;
+    }
+    finally {
+      pendingRows = 0;
+    }
+  }
+
+
+  /**
+   * Gets the number of rows added so far, including rows that have not yet
+   * been sent to the database.
+   *
+   * @return the number of rows added
+   */
+  public int getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Gets the number of rows that were sent to the database successfully.
+   * After a failed batch, the failing row is the one that follows them.
+   *
+   * @return the number of rows inserted
+   */
+  public int getInsertedRowCount() {
+    return insertedRowCount;
+  }
+
+
+  /**
+   * Gets the number of the row that an exception thrown by addRow(),
+   * addConvertedRow() or executeBatch() failed on. A failed batch stops at
+   * the row after those inserted; any other failure is in binding the row
+   * after those added.
+   *
+   * @param e  the exception
+   * @return the one-based number of the failing row
+   */
+  public int getFailedRow(Exception e) {
+    if (e instanceof BatchUpdateException) {
+      return insertedRowCount + 1;
+    }
+    return rowCount + 1;
+  }
+
+
+  /**
+   * Closes the prepared statement. Rows in an unexecuted batch are
+   * discarded.
+   */
+  public void close() {
+    if (statement != null) {
+      try {
+        statement.close();
+      }
+      catch (SQLException e) {
+        // The statement is no longer used
+      }
+      statement = null;
+    }
+  }
+
+}
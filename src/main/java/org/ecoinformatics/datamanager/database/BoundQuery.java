@@ -0,0 +1,116 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A query compiled to a SQL template, in which each literal value is
+ * replaced by a '?' parameter, and the values to bind to the parameters in
+ * order. Queries that differ only in their values share a template, so the
+ * database can reuse the statement it prepared for the template.
+ *
+ * A value that the SQL string of the query would quote is a String; a
+ * value that it would write as a number is a Number.
+ */
+public class BoundQuery {
+
+  /*
+   * Instance fields
+   */
+
+  private final String sql;
+  private final Object[] binds;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a bound query from a template and its values.
+   *
+   * @param sql    the SQL template
+   * @param binds  the values of the parameters of the template, in order
+   */
+  public BoundQuery(String sql, List<Object> binds) {
+    this.sql = sql;
+    this.binds = binds.toArray();
+  }
+
+
+  /**
+   * Constructs a bound query from SQL without parameters.
+   *
+   * @param sql  the SQL string
+   */
+  public BoundQuery(String sql) {
+    this.sql = sql;
+    this.binds = new Object[0];
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the SQL template.
+   *
+   * @return the SQL, with a '?' for each bound value
+   */
+  public String getSQL() {
+    return sql;
+  }
+
+
+  /**
+   * Gets the values to bind to the parameters of the template.
+   *
+   * @return a copy of the values, in order
+   */
+  public Object[] getBinds() {
+    return binds.clone();
+  }
+
+
+  /**
+   * Gets the number of values bound to the template.
+   *
+   * @return the number of parameters
+   */
+  public int getBindCount() {
+    return binds.length;
+  }
+
+
+  /**
+   * Gets a value bound to the template.
+   *
+   * @param index  the zero-based position of the parameter
+   * @return the value
+   */
+  public Object getBind(int index) {
+    return binds[index];
+  }
+
+
+  public boolean equals(Object object) {
+    if (!(object instanceof BoundQuery)) {
+      return false;
+    }
+
+    BoundQuery other = (BoundQuery) object;
+    return sql.equals(other.sql) && Arrays.equals(binds, other.binds);
+  }
+
+
+  public int hashCode() {
+    return 31 * sql.hashCode() + Arrays.hashCode(binds);
+  }
+
+
+  public String toString() {
+    return sql + " " + Arrays.toString(binds);
+  }
+
+}
@@ -0,0 +1,662 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rows of a query result, held in memory column by column. A column
+ * whose values are all Integers, Longs or Doubles is held as an array of
+ * the primitive type, with the nulls in a bit set; other columns are held
+ * as an array of objects. The result is immutable, so it can be read by
+ * any number of threads at once through its own ResultSets and cursors.
+ */
+public class ColumnarResult {
+
+  /*
+   * Class fields
+   */
+
+  /* The estimated sizes, in bytes, of the parts of a result */
+  private static final int OBJECT_OVERHEAD = 16;
+  private static final int REFERENCE_SIZE = 8;
+  private static final int BOXED_VALUE_SIZE = 24;
+
+
+  /*
+   * Instance fields
+   */
+
+  private final String[] columnNames;
+  private final int[] columnTypes;
+  private final int rowCount;
+  private final Object[] columns;
+  private final BitSet[] nulls;
+  private final long byteSize;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a columnar result from rows.
+   *
+   * @param columnNames  the column labels, in order
+   * @param columnTypes  the java.sql.Types of the columns, in order
+   * @param rows         the rows, each with a value per column
+   */
+  public ColumnarResult(String[] columnNames, int[] columnTypes,
+                        List<Object[]> rows) {
+    int columnCount = columnNames.length;
+    SizeEstimate estimate = new SizeEstimate(columnNames);
+
+    this.columnNames = columnNames.clone();
+    this.columnTypes = columnTypes.clone();
+    this.rowCount = rows.size();
+    this.columns = new Object[columnCount];
+    this.nulls = new BitSet[columnCount];
+
+    for (int i = 0; i < columnCount; i++) {
+      nulls[i] = new BitSet(rowCount);
+      columns[i] = toColumn(rows, i, nulls[i]);
+    }
+    for (Object[] row : rows) {
+      estimate.add(row);
+    }
+
+    this.byteSize = estimate.getByteSize();
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Reads the remaining rows of a cursor into a columnar result, and closes
+   * the cursor.
+   *
+   * @param cursor  the cursor
+   * @return the rows of the cursor
+   * @throws SQLException if the rows cannot be read
+   */
+  public static ColumnarResult read(RowCursorInterface cursor)
+          throws SQLException {
+    return read(cursor, Long.MAX_VALUE);
+  }
+
+
+  /**
+   * Reads the rows of a cursor into a columnar result until their estimated
+   * size passes a limit. The cursor is closed if all of its rows were read,
+   * and is otherwise left open on the rows that follow, which
+   * openResultSet(RowCursorInterface) can go on to read.
+   *
+   * @param cursor    the cursor
+   * @param maxBytes  the estimated size, in bytes, after which no more
+   *                  batches are read
+   * @return the rows read from the cursor
+   * @throws SQLException if the rows cannot be read, in which case the
+   *         cursor is closed
+   */
+  public static ColumnarResult read(RowCursorInterface cursor, long maxBytes)
+          throws SQLException {
+    boolean partial = false;
+
+    try {
+      String[] columnNames = cursor.getColumnNames();
+      int[] columnTypes = cursor.getColumnTypes();
+      SizeEstimate estimate = new SizeEstimate(columnNames);
+      List<Object[]> rows = new ArrayList<Object[]>();
+      List<Object[]> batch = cursor.nextBatch(QueryCursor.DEFAULT_FETCH_SIZE);
+
+      while (!batch.isEmpty()) {
+        rows.addAll(batch);
+        for (Object[] row : batch) {
+          estimate.add(row);
+        }
+        if (estimate.getByteSize() > maxBytes) {
+          partial = !cursor.isClosed();
+          break;
+        }
+        batch = cursor.nextBatch(QueryCursor.DEFAULT_FETCH_SIZE);
+      }
+
+      return new ColumnarResult(columnNames, columnTypes, rows);
+    }
+    finally {
+      if (!partial) {
+        cursor.close();
+      }
+    }
+  }
+
+
+  /*
+   * Holds the values of a column in the most compact array that fits them.
+   */
+  private static Object toColumn(List<Object[]> rows, int column,
+                                 BitSet nulls) {
+    Class<?> valueClass = null;
+    int rowCount = rows.size();
+
+    for (int row = 0; row < rowCount; row++) {
+      Object value = rows.get(row)[column];
+      if (value == null) {
+        nulls.set(row);
+      }
+      else if (valueClass == null) {
+        valueClass = value.getClass();
+      }
+      else if (valueClass != value.getClass()) {
+        valueClass = Object.class;
+      }
+    }
+
+    if (valueClass == Integer.class) {
+      int[] values = new int[rowCount];
+      for (int row = 0; row < rowCount; row++) {
+        if (!nulls.get(row)) {
+          values[row] = ((Integer) rows.get(row)[column]).intValue();
+        }
+      }
+      return values;
+    }
+    else if (valueClass == Long.class) {
+      long[] values = new long[rowCount];
+      for (int row = 0; row < rowCount; row++) {
+        if (!nulls.get(row)) {
+          values[row] = ((Long) rows.get(row)[column]).longValue();
+        }
+      }
+      return values;
+    }
+    else if (valueClass == Double.class) {
+      double[] values = new double[rowCount];
+      for (int row = 0; row < rowCount; row++) {
+        if (!nulls.get(row)) {
+          values[row] = ((Double) rows.get(row)[column]).doubleValue();
+        }
+      }
+      return values;
+    }
+
+    Object[] values = new Object[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      values[row] = rows.get(row)[column];
+    }
+    return values;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the names of the columns.
+   *
+   * @return the column labels, in order
+   */
+  public String[] getColumnNames() {
+    return columnNames.clone();
+  }
+
+
+  /**
+   * Gets the types of the columns.
+   *
+   * @return the java.sql.Types of the columns, in order
+   */
+  public int[] getColumnTypes() {
+    return columnTypes.clone();
+  }
+
+
+  /**
+   * Gets the number of rows.
+   *
+   * @return the row count
+   */
+  public int getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Gets the estimated size of the result in memory.
+   *
+   * @return the size in bytes
+   */
+  public long getByteSize() {
+    return byteSize;
+  }
+
+
+  /**
+   * Gets a value of the result, as the Java object that the driver returned
+   * for it.
+   *
+   * @param row     the zero-based row number
+   * @param column  the zero-based column number
+   * @return the value, or null for SQL NULL
+   */
+  public Object getValue(int row, int column) {
+    Object values = columns[column];
+
+    if (nulls[column].get(row)) {
+      return null;
+    }
+    else if (values instanceof int[]) {
+      return Integer.valueOf(((int[]) values)[row]);
+    }
+    else if (values instanceof long[]) {
+      return Long.valueOf(((long[]) values)[row]);
+    }
+    else if (values instanceof double[]) {
+      return Double.valueOf(((double[]) values)[row]);
+    }
+    return ((Object[]) values)[row];
+  }
+
+
+  /**
+   * Opens a cursor over the rows of the result.
+   *
+   * @return a new cursor, positioned before the first row
+   */
+  public RowCursorInterface openCursor() {
+    return new ResultCursor();
+  }
+
+
+  /**
+   * Opens a read-only, forward-only ResultSet over the rows of the result.
+   * It supports next(), the getters by column index and label, wasNull(),
+   * findColumn(), getMetaData() and close(); other methods throw an
+   * SQLException.
+   *
+   * @return a new result set, positioned before the first row
+   */
+  public ResultSet openResultSet() {
+    return openResultSet(null);
+  }
+
+
+  /**
+   * Opens a read-only, forward-only ResultSet over the rows of the result,
+   * followed by the remaining rows of a cursor, such as one that a result
+   * was partly read from. Closing the result set closes the cursor.
+   *
+   * @param rest  the cursor whose rows follow those of the result, or null
+   * @return a new result set, positioned before the first row
+   */
+  public ResultSet openResultSet(RowCursorInterface rest) {
+    return (ResultSet) Proxy.newProxyInstance(
+      ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+      new ResultSetHandler(rest));
+  }
+
+
+  /*
+   * Finds the zero-based number of a column by its label.
+   */
+  private int findColumn(String columnLabel) throws SQLException {
+    for (int i = 0; i < columnNames.length; i++) {
+      if (columnNames[i].equalsIgnoreCase(columnLabel)) {
+        return i;
+      }
+    }
+    throw new SQLException("Column not found: " + columnLabel);
+  }
+
+
+  /*
+   * A cursor over the rows of the result.
+   */
+  private class ResultCursor implements RowCursorInterface {
+    private int nextRow = 0;
+    private boolean closed = false;
+
+    public String[] getColumnNames() {
+      return columnNames.clone();
+    }
+
+    public int[] getColumnTypes() {
+      return columnTypes.clone();
+    }
+
+    public List<Object[]> nextBatch(int maxRows) {
+      List<Object[]> rows = new ArrayList<Object[]>();
+
+      while (!closed && rows.size() < maxRows) {
+        if (nextRow == rowCount) {
+          close();
+          break;
+        }
+
+        Object[] row = new Object[columnNames.length];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = getValue(nextRow, i);
+        }
+        rows.add(row);
+        nextRow++;
+      }
+
+      return rows;
+    }
+
+    public long getRowCount() {
+      return nextRow;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    public void close() {
+      closed = true;
+    }
+  }
+
+
+  /*
+   * Answers the calls to a ResultSet over the rows of the result and of the
+   * cursor that follows them, if any.
+   */
+  private class ResultSetHandler implements InvocationHandler {
+    private final RowCursorInterface rest;
+    private List<Object[]> batch = Collections.emptyList();
+    private int batchRow = 0;
+    private Object[] restRow = null;
+    private int row = -1;
+    private int position = 0;
+    private boolean onRow = false;
+    private boolean closed = false;
+    private boolean wasNull = false;
+
+    ResultSetHandler(RowCursorInterface rest) {
+      this.rest = rest;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+      String name = method.getName();
+
+      if (name.equals("close")) {
+        closed = true;
+        onRow = false;
+        if (rest != null) {
+          rest.close();
+        }
+        return null;
+      }
+      else if (name.equals("isClosed")) {
+        return Boolean.valueOf(closed);
+      }
+      else if (name.equals("getMetaData")) {
+        return getMetaData();
+      }
+      else if (name.equals("equals")) {
+        return Boolean.valueOf(proxy == args[0]);
+      }
+      else if (name.equals("hashCode")) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      }
+      else if (name.equals("toString")) {
+        return "ColumnarResult.ResultSet";
+      }
+
+      if (closed) {
+        throw new SQLException("The result set is closed");
+      }
+
+      if (name.equals("next")) {
+        return Boolean.valueOf(next());
+      }
+      else if (name.equals("wasNull")) {
+        return Boolean.valueOf(wasNull);
+      }
+      else if (name.equals("findColumn")) {
+        return Integer.valueOf(findColumn((String) args[0]) + 1);
+      }
+      else if (name.equals("getRow")) {
+        return Integer.valueOf(onRow ? position : 0);
+      }
+      else if (name.equals("getType")) {
+        return Integer.valueOf(ResultSet.TYPE_FORWARD_ONLY);
+      }
+      else if (name.equals("getConcurrency")) {
+        return Integer.valueOf(ResultSet.CONCUR_READ_ONLY);
+      }
+      else if (name.equals("getWarnings") || name.equals("getStatement")) {
+        return null;
+      }
+      else if (name.equals("clearWarnings") || name.equals("setFetchSize")) {
+        return null;
+      }
+      else if (name.equals("getFetchSize")) {
+        return Integer.valueOf(0);
+      }
+      else if (name.startsWith("get") && args != null && args.length == 1) {
+        return getColumnValue(name, args[0]);
+      }
+
+      throw new SQLException("Not supported by a cached result: " + name);
+    }
+
+    /*
+     * Moves to the next row of the result, or else of the cursor.
+     */
+    private boolean next() throws SQLException {
+      if (row < rowCount) {
+        row++;
+      }
+      if (row < rowCount) {
+        onRow = true;
+      }
+      else {
+        restRow = nextRestRow();
+        onRow = (restRow != null);
+      }
+      if (onRow) {
+        position++;
+      }
+      return onRow;
+    }
+
+    private Object[] nextRestRow() throws SQLException {
+      if (rest == null) {
+        return null;
+      }
+      if (batchRow == batch.size()) {
+        if (rest.isClosed()) {
+          return null;
+        }
+        batch = rest.nextBatch(QueryCursor.DEFAULT_FETCH_SIZE);
+        batchRow = 0;
+        if (batch.isEmpty()) {
+          return null;
+        }
+      }
+      return batch.get(batchRow++);
+    }
+
+    private Object getColumnValue(String getter, Object column)
+            throws SQLException {
+      if (!onRow) {
+        throw new SQLException("The result set is not on a row");
+      }
+
+      int index = (column instanceof String) ?
+                  findColumn((String) column) :
+                  ((Integer) column).intValue() - 1;
+      if (index < 0 || index >= columnNames.length) {
+        throw new SQLException("Invalid column index: " + column);
+      }
+
+      Object value = (row < rowCount) ? getValue(row, index) : restRow[index];
+      wasNull = (value == null);
+      return convert(getter, value);
+    }
+
+    /*
+     * Converts a value to the type that a getter returns, as a driver
+     * would for the common types.
+     */
+    private Object convert(String getter, Object value) throws SQLException {
+      if (getter.equals("getObject")) {
+        return value;
+      }
+      else if (getter.equals("getString")) {
+        return (value == null) ? null : value.toString();
+      }
+      else if (getter.equals("getBoolean")) {
+        if (value instanceof Boolean) return value;
+        if (value instanceof Number) {
+          return Boolean.valueOf(((Number) value).intValue() != 0);
+        }
+        return Boolean.valueOf(value != null &&
+                               Boolean.valueOf(value.toString()).booleanValue());
+      }
+      else if (getter.equals("getBigDecimal")) {
+        return (value == null) ? null : new BigDecimal(value.toString());
+      }
+
+      Number number;
+      if (value == null) {
+        number = Integer.valueOf(0);
+      }
+      else if (value instanceof Number) {
+        number = (Number) value;
+      }
+      else if (getter.equals("getDate") || getter.equals("getTime") ||
+               getter.equals("getTimestamp")) {
+        return value;
+      }
+      else {
+        try {
+          number = new BigDecimal(value.toString().trim());
+        }
+        catch (NumberFormatException e) {
+          throw new SQLException("Not a number: " + value);
+        }
+      }
+
+      if (getter.equals("getInt")) return Integer.valueOf(number.intValue());
+      if (getter.equals("getLong")) return Long.valueOf(number.longValue());
+      if (getter.equals("getDouble")) {
+        return Double.valueOf(number.doubleValue());
+      }
+      if (getter.equals("getFloat")) return Float.valueOf(number.floatValue());
+      if (getter.equals("getShort")) return Short.valueOf(number.shortValue());
+      if (getter.equals("getByte")) return Byte.valueOf(number.byteValue());
+      if (value == null) return null;
+
+      throw new SQLException("Not supported by a cached result: " + getter);
+    }
+  }
+
+
+  /*
+   * Estimates the size of a result as its rows are added, column by column,
+   * for the arrays that the columns will be held in.
+   */
+  private static class SizeEstimate {
+    private final String[] columnNames;
+    private final Class<?>[] valueClasses;
+    private final long[] objectBytes;
+    private int rowCount = 0;
+
+    SizeEstimate(String[] columnNames) {
+      this.columnNames = columnNames;
+      this.valueClasses = new Class<?>[columnNames.length];
+      this.objectBytes = new long[columnNames.length];
+    }
+
+    void add(Object[] row) {
+      for (int i = 0; i < columnNames.length; i++) {
+        Object value = row[i];
+        objectBytes[i] += REFERENCE_SIZE;
+        if (value instanceof String) {
+          objectBytes[i] += OBJECT_OVERHEAD + ((String) value).length() * 2;
+        }
+        else if (value != null) {
+          objectBytes[i] += BOXED_VALUE_SIZE;
+        }
+
+        if (value == null) {
+          continue;
+        }
+        else if (valueClasses[i] == null) {
+          valueClasses[i] = value.getClass();
+        }
+        else if (valueClasses[i] != value.getClass()) {
+          valueClasses[i] = Object.class;
+        }
+      }
+      rowCount++;
+    }
+
+    long getByteSize() {
+      long size = OBJECT_OVERHEAD;
+
+      for (int i = 0; i < columnNames.length; i++) {
+        size += OBJECT_OVERHEAD + columnNames[i].length() * 2 + rowCount / 8;
+        if (valueClasses[i] == Integer.class) {
+          size += 4L * rowCount;
+        }
+        else if (valueClasses[i] == Long.class ||
+                 valueClasses[i] == Double.class) {
+          size += 8L * rowCount;
+        }
+        else {
+          size += objectBytes[i];
+        }
+      }
+      return size;
+    }
+  }
+
+
+  /*
+   * Creates the metadata of the result sets.
+   */
+  private ResultSetMetaData getMetaData() {
+    return (ResultSetMetaData) Proxy.newProxyInstance(
+      ResultSetMetaData.class.getClassLoader(),
+      new Class<?>[] { ResultSetMetaData.class },
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+          String name = method.getName();
+
+          if (name.equals("getColumnCount")) {
+            return Integer.valueOf(columnNames.length);
+          }
+          else if (name.equals("getColumnName") ||
+                   name.equals("getColumnLabel")) {
+            return columnNames[((Integer) args[0]).intValue() - 1];
+          }
+          else if (name.equals("getColumnType")) {
+            return Integer.valueOf(columnTypes[((Integer) args[0]).intValue() - 1]);
+          }
+          else if (name.equals("isNullable")) {
+            return Integer.valueOf(ResultSetMetaData.columnNullableUnknown);
+          }
+
+          throw new SQLException("Not supported by a cached result: " + name);
+        }
+      });
+  }
+
+}
@@ -32,6 +32,7 @@
 package org.ecoinformatics.datamanager.database;
 
 import java.sql.SQLException;
+import java.util.List;
 
 import org.ecoinformatics.datamanager.DataManager;
 import org.ecoinformatics.datamanager.parser.Attribute;
@@ -84,6 +85,22 @@ public class Condition implements ConditionInterface
     * @throws UnWellFormedQueryException
     */
 	public String toSQLString() throws UnWellFormedQueryException
+	{
+		return toSQLString(null);
+	}
+	
+    
+	/**
+	 * Transfers a Condition object to a SQL template in which the value is
+	 * a '?' parameter, and adds the value to a list of binds. A value that
+	 * the SQL string would quote is bound as a String.
+	 * 
+	 * @param binds the list to add the value to, or null to inline it
+	 * @return SQL string for this Condition object
+	 * @throws UnWellFormedQueryException
+	 */
+	public String toSQLString(List<Object> binds) 
+            throws UnWellFormedQueryException
 	{
 		String condition = null;
 		StringBuffer conditionBuffer = new StringBuffer();
@@ -138,13 +155,23 @@ public class Condition implements ConditionInterface
 		}
         
 		// operator part
-		conditionBuffer.append(handleOperatorAndValue());
+		conditionBuffer.append(handleOperatorAndValue(binds));
 		condition = conditionBuffer.toString();
         
 		return condition;
 	}
 	
     
+	public Entity getEntity() {
+		return entity;
+	}
+
+
+	public Attribute getAttribute() {
+		return attribute;
+	}
+
+
 	public String getOperator() {
 		return operator;
 	}
@@ -166,9 +193,11 @@ public class Condition implements ConditionInterface
 
 
 	/*
-	 * Transfer operator and value part into SQL string.
+	 * Transfer operator and value part into SQL string, or into a parameter
+	 * and its bind if binds is not null.
 	 */
-	private String handleOperatorAndValue() throws UnWellFormedQueryException
+	private String handleOperatorAndValue(List<Object> binds) 
+            throws UnWellFormedQueryException
 	{
 		StringBuffer sql = new StringBuffer();
         
@@ -179,9 +208,17 @@ public class Condition implements ConditionInterface
 				sql.append(SPACE);
 				sql.append(operator);
 				sql.append(SPACE);
-				sql.append(SINGLEQUOTE);
-				sql.append(value);
-				sql.append(SINGLEQUOTE);
+				if (binds != null)
+				{
+					sql.append(PARAMETER);
+					binds.add(value.toString());
+				}
+				else
+				{
+					sql.append(SINGLEQUOTE);
+					sql.append(value);
+					sql.append(SINGLEQUOTE);
+				}
 			}
 			else
 			{
@@ -196,7 +233,15 @@ public class Condition implements ConditionInterface
 				sql.append(SPACE);
 				sql.append(operator);
 				sql.append(SPACE);
-				sql.append(value);
+				if (binds != null)
+				{
+					sql.append(PARAMETER);
+					binds.add(value);
+				}
+				else
+				{
+					sql.append(value);
+				}
 			}
 			else if ( value != null)
 			{
@@ -31,6 +31,8 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.util.List;
+
 
 /**
  * This interface represents a Condition in where clause in SQL query.
@@ -56,6 +58,7 @@ public interface ConditionInterface
 	public static final String AS = "AS";
 	public static final String LEFT_PARENSIS = "(";
 	public static final String RIGHT_PARENSIS = ")";
+	public static final String PARAMETER = "?";
 	
 	public static final String[] STRING_OPERATOR_LIST = { 
                                                          LIKE_OPERATOR, 
@@ -86,4 +89,18 @@ public interface ConditionInterface
      */
    public String toSQLString() throws UnWellFormedQueryException;
    
+   
+   /**
+    * Transfers a Condition object to a SQL template in which each literal
+    * value is a '?' parameter, and adds the values to a list of binds in
+    * the order of their parameters.
+    * 
+    * @param binds the list to add the values to, or null to inline them
+    *              as toSQLString() does
+    * @return SQL string for this Condition object
+    * @throws UnWellFormedQueryException
+    */
+   public String toSQLString(List<Object> binds) 
+           throws UnWellFormedQueryException;
+   
 }
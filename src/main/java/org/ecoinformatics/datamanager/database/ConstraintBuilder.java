@@ -0,0 +1,656 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.Constraint;
+import org.ecoinformatics.datamanager.parser.DataPackage;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.ForeignKey;
+import org.ecoinformatics.datamanager.parser.PrimaryKey;
+import org.ecoinformatics.datamanager.parser.UniqueKey;
+import org.ecoinformatics.datamanager.quality.QualityCheck;
+import org.ecoinformatics.datamanager.quality.QualityReport;
+import org.ecoinformatics.datamanager.quality.QualityCheck.Status;
+
+/**
+ * Builds the primary key, unique key and foreign key constraints of an
+ * entity's table after its rows have been loaded, rather than declaring them
+ * in the table's DDL, so that each index is built in one pass over the data
+ * instead of being maintained by every insert.
+ *
+ * The keys are checked before a constraint is added. Rows that would violate
+ * a constraint do not fail the load: the constraint is left out and the
+ * violation is reported in the entity's quality report.
+ *
+ * Foreign keys are only built if enabled, once all the entities of a data
+ * package are loaded. A table that is referenced by a foreign key cannot be
+ * dropped or emptied, so the foreign keys that reference a table are dropped
+ * before it is.
+ */
+public class ConstraintBuilder {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(ConstraintBuilder.class);
+
+  private static boolean foreignKeysEnabled = false;
+
+  /* Quality check identifiers */
+  private static final String TABLE_CONSTRAINTS = "tableConstraints";
+  private static final String FOREIGN_KEY_CONSTRAINTS = "foreignKeyConstraints";
+
+  /* Constraint name suffixes */
+  private static final String PRIMARY_KEY_SUFFIX = "_PK";
+  private static final String UNIQUE_KEY_SUFFIX = "_UK";
+  private static final String FOREIGN_KEY_SUFFIX = "_FK";
+
+
+  /*
+   * Instance fields
+   */
+
+  private DatabaseAdapter databaseAdapter = null;
+  private TableMonitor tableMonitor = null;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a builder for tables in the database of a given adapter.
+   *
+   * @param databaseAdapter  the database adapter
+   * @param tableMonitor     the table monitor of the database
+   */
+  public ConstraintBuilder(DatabaseAdapter databaseAdapter,
+                           TableMonitor tableMonitor) {
+    this.databaseAdapter = databaseAdapter;
+    this.tableMonitor = tableMonitor;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Determines whether foreign keys are built after a data package is
+   * loaded.
+   *
+   * @return true if foreign keys are built, else false
+   */
+  public static boolean isForeignKeysEnabled() {
+    return foreignKeysEnabled;
+  }
+
+
+  /**
+   * Sets whether foreign keys are built after a data package is loaded.
+   * They are not by default.
+   *
+   * @param enabled  true to build foreign keys
+   */
+  public static void setForeignKeysEnabled(boolean enabled) {
+    foreignKeysEnabled = enabled;
+  }
+
+
+  /*
+   * Gets the name of a constraint of a table, shortened to fit the length
+   * of a table name.
+   */
+  private static String getConstraintName(String tableName, String suffix) {
+    int maxLength = DatabaseAdapter.DEFAULT_TABLE_NAME_MAX_LENGTH;
+
+    if (tableName.length() + suffix.length() > maxLength) {
+      tableName = tableName.substring(0, maxLength - suffix.length());
+    }
+
+    return tableName + suffix;
+  }
+
+
+  /*
+   * Gets the database field names of the keys of a constraint, or null if
+   * a key is not an attribute of the entity.
+   */
+  private static String[] getFieldNames(Entity entity, String[] keys) {
+    AttributeList attributeList = entity.getAttributeList();
+
+    if (attributeList == null || keys == null || keys.length == 0) {
+      return null;
+    }
+
+    String[] fieldNames = new String[keys.length];
+
+    for (int i = 0; i < keys.length; i++) {
+      Attribute attribute = attributeList.getAttribute(keys[i]);
+
+      if (attribute == null || attribute.getDBFieldName() == null) {
+        return null;
+      }
+      fieldNames[i] = attribute.getDBFieldName();
+    }
+
+    return fieldNames;
+  }
+
+
+  /*
+   * Gets the keys of a primary, unique or foreign key constraint.
+   */
+  private static String[] getKeys(Constraint constraint) {
+    if (constraint instanceof PrimaryKey) {
+      return ((PrimaryKey) constraint).getKeys();
+    }
+    else if (constraint instanceof UniqueKey) {
+      return ((UniqueKey) constraint).getKeys();
+    }
+    else if (constraint instanceof ForeignKey) {
+      return ((ForeignKey) constraint).getKeys();
+    }
+
+    return null;
+  }
+
+
+  /*
+   * Joins field names into a comma-separated list, optionally qualifying
+   * them with a table alias, and with a condition on each.
+   */
+  private static String join(String[] fieldNames, String alias,
+                             String condition, String separator) {
+    StringBuffer buffer = new StringBuffer();
+
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (i > 0) {
+        buffer.append(separator);
+      }
+      if (alias != null) {
+        buffer.append(alias);
+        buffer.append(".");
+      }
+      buffer.append(fieldNames[i]);
+      buffer.append(condition);
+    }
+
+    return buffer.toString();
+  }
+
+
+  /*
+   * Gets a table name in the case that the database metadata stores it in.
+   */
+  private static String getMetaDataName(DatabaseMetaData metaData,
+                                        String tableName)
+          throws SQLException {
+    if (metaData.storesUpperCaseIdentifiers()) {
+      return tableName.toUpperCase();
+    }
+    else if (metaData.storesLowerCaseIdentifiers()) {
+      return tableName.toLowerCase();
+    }
+
+    return tableName;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Builds the primary key and unique keys of an entity whose rows have
+   * been loaded into its table. Each constraint is committed as it is
+   * built. Keys with null or duplicate values are reported in a quality
+   * check and their constraint is not built.
+   *
+   * @param connection  the connection to the database
+   * @param entity      the entity whose table was loaded
+   * @return the number of constraints built
+   */
+  public int buildKeys(Connection connection, Entity entity) {
+    String tableName = entity.getDBTableName();
+    Constraint[] constraints = entity.getConstraints();
+    ArrayList<String> built = new ArrayList<String>();
+    ArrayList<String> problems = new ArrayList<String>();
+    int uniqueKeyCount = 0;
+
+    for (int i = 0; i < constraints.length; i++) {
+      int type = constraints[i].getType();
+      String constraintName = null;
+
+      if (type == Constraint.PRIMARYKEY) {
+        constraintName = getConstraintName(tableName, PRIMARY_KEY_SUFFIX);
+      }
+      else if (type == Constraint.UNIQUEKEY) {
+        uniqueKeyCount++;
+        constraintName = getConstraintName(tableName,
+                                           UNIQUE_KEY_SUFFIX + uniqueKeyCount);
+      }
+      else {
+        continue;
+      }
+
+      String description = describe(constraints[i]);
+      String[] fieldNames = getFieldNames(entity, getKeys(constraints[i]));
+
+      if (fieldNames == null) {
+        problems.add(description + ": a key is not an attribute of the entity");
+        continue;
+      }
+
+      try {
+        String columns = join(fieldNames, null, "", ", ");
+        long violations = 0;
+
+        if (type == Constraint.PRIMARYKEY) {
+          violations = countRows(connection,
+            "SELECT COUNT(*) FROM " + tableName + " WHERE " +
+            join(fieldNames, null, " IS NULL", " OR "));
+          if (violations > 0) {
+            problems.add(description + ": " + violations +
+                         " rows have a null key");
+            continue;
+          }
+        }
+
+        violations = countRows(connection,
+          "SELECT COUNT(*) FROM (SELECT " + columns + " FROM " + tableName +
+          " WHERE " + join(fieldNames, null, " IS NOT NULL", " AND ") +
+          " GROUP BY " + columns + " HAVING COUNT(*) > 1) DUPLICATE_KEYS");
+        if (violations > 0) {
+          problems.add(description + ": " + violations +
+                       " key values occur in more than one row");
+          continue;
+        }
+
+        execute(connection, databaseAdapter.generateAddConstraintSQL(
+                  tableName, constraintName, type, fieldNames, null, null));
+        built.add(description);
+      }
+      catch (SQLException e) {
+        log.error("Unable to build " + description + " of " + tableName +
+                  ": " + e.getMessage());
+        problems.add(description + ": " + e.getMessage());
+      }
+    }
+
+    if (built.size() > 0 || problems.size() > 0) {
+      addQualityCheck(entity, TABLE_CONSTRAINTS, built, problems);
+    }
+
+    return built.size();
+  }
+
+
+  /**
+   * Builds the foreign keys of the entities of a data package whose tables
+   * have been loaded, if foreign keys are enabled. A foreign key references
+   * the primary key of the entity it names. Foreign keys whose values are
+   * missing from the referenced table are reported in a quality check and
+   * are not built.
+   *
+   * @param connection   the connection to the database
+   * @param dataPackage  the data package whose entities were loaded
+   * @return the number of foreign keys built or already present
+   */
+  public int buildForeignKeys(Connection connection, DataPackage dataPackage) {
+    Entity[] entities = dataPackage.getEntityList();
+    int count = 0;
+
+    if (!foreignKeysEnabled || entities == null) {
+      return count;
+    }
+
+    for (int i = 0; i < entities.length; i++) {
+      Entity entity = entities[i];
+      Constraint[] constraints = entity.getConstraints();
+      ArrayList<String> built = new ArrayList<String>();
+      ArrayList<String> problems = new ArrayList<String>();
+      int foreignKeyCount = 0;
+
+      for (int j = 0; j < constraints.length; j++) {
+        if (constraints[j].getType() != Constraint.FOREIGNKEY) {
+          continue;
+        }
+
+        foreignKeyCount++;
+        ForeignKey foreignKey = (ForeignKey) constraints[j];
+        String tableName = entity.getDBTableName();
+        String constraintName = getConstraintName(tableName,
+                                   FOREIGN_KEY_SUFFIX + foreignKeyCount);
+        String description = describe(foreignKey);
+        Entity parent = findEntity(entities, foreignKey.getEntityReference());
+        String[] fieldNames = getFieldNames(entity, foreignKey.getKeys());
+        String[] parentFieldNames = null;
+
+        if (parent != null && parent.getPrimaryKey() != null) {
+          parentFieldNames = getFieldNames(parent,
+                                           getKeys(parent.getPrimaryKey()));
+        }
+
+        try {
+          if (!tableMonitor.isTableInDB(tableName) || parent == null ||
+              !tableMonitor.isTableInDB(parent.getDBTableName())) {
+            // The entity or the one it references was not loaded
+            continue;
+          }
+
+          if (fieldNames == null || parentFieldNames == null ||
+              fieldNames.length != parentFieldNames.length) {
+            problems.add(description + ": the keys do not match the " +
+                         "primary key of the referenced entity");
+            continue;
+          }
+
+          if (hasForeignKey(connection, tableName, constraintName)) {
+            built.add(description);
+            continue;
+          }
+
+          String parentTableName = parent.getDBTableName();
+          StringBuffer matches = new StringBuffer();
+          for (int k = 0; k < fieldNames.length; k++) {
+            matches.append(" AND PARENT_ROWS." + parentFieldNames[k] +
+                           " = CHILD_ROWS." + fieldNames[k]);
+          }
+          long violations = countRows(connection,
+            "SELECT COUNT(*) FROM " + tableName + " CHILD_ROWS WHERE " +
+            join(fieldNames, "CHILD_ROWS", " IS NOT NULL", " AND ") +
+            " AND NOT EXISTS (SELECT * FROM " + parentTableName +
+            " PARENT_ROWS WHERE " + matches.substring(5) + ")");
+          if (violations > 0) {
+            problems.add(description + ": " + violations + " rows have " +
+                         "keys that are not found in " + parent.getName());
+            continue;
+          }
+
+          execute(connection, databaseAdapter.generateAddConstraintSQL(
+                    tableName, constraintName, Constraint.FOREIGNKEY,
+                    fieldNames, parentTableName, parentFieldNames));
+          built.add(description);
+        }
+        catch (SQLException e) {
+          log.error("Unable to build " + description + " of " + tableName +
+                    ": " + e.getMessage());
+          problems.add(description + ": " + e.getMessage());
+        }
+      }
+
+      if (built.size() > 0 || problems.size() > 0) {
+        addQualityCheck(entity, FOREIGN_KEY_CONSTRAINTS, built, problems);
+      }
+      count += built.size();
+    }
+
+    return count;
+  }
+
+
+  /**
+   * Drops the constraints that were built on the table of an entity, so
+   * that its rows can be replaced or appended to without maintaining its
+   * indexes. The foreign keys of other tables that reference it are
+   * dropped as well. Constraints that do not exist are ignored. The
+   * connection should be in auto-commit mode.
+   *
+   * @param connection  the connection to the database
+   * @param entity      the entity whose table is loaded again
+   */
+  public void dropConstraints(Connection connection, Entity entity) {
+    String tableName = entity.getDBTableName();
+    Constraint[] constraints = entity.getConstraints();
+    int uniqueKeyCount = 0;
+    int foreignKeyCount = 0;
+
+    if (constraints.length == 0) {
+      return;
+    }
+
+    dropReferencingForeignKeys(connection, tableName);
+
+    for (int i = 0; i < constraints.length; i++) {
+      String suffix = null;
+
+      if (constraints[i].getType() == Constraint.PRIMARYKEY) {
+        suffix = PRIMARY_KEY_SUFFIX;
+      }
+      else if (constraints[i].getType() == Constraint.UNIQUEKEY) {
+        suffix = UNIQUE_KEY_SUFFIX + (++uniqueKeyCount);
+      }
+      else if (constraints[i].getType() == Constraint.FOREIGNKEY) {
+        suffix = FOREIGN_KEY_SUFFIX + (++foreignKeyCount);
+      }
+      else {
+        continue;
+      }
+
+      try {
+        execute(connection, databaseAdapter.generateDropConstraintSQL(
+                  tableName, getConstraintName(tableName, suffix)));
+      }
+      catch (SQLException e) {
+        // The constraint was not built
+        log.debug(e.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Drops the foreign keys of other tables that reference a given table,
+   * so that the table can be dropped or emptied.
+   *
+   * @param connection  the connection to the database
+   * @param tableName   the referenced table
+   */
+  public void dropReferencingForeignKeys(Connection connection,
+                                         String tableName) {
+    ArrayList<String[]> foreignKeys = new ArrayList<String[]>();
+
+    try {
+      DatabaseMetaData metaData = connection.getMetaData();
+      ResultSet rs = metaData.getExportedKeys(null, null,
+                                       getMetaDataName(metaData, tableName));
+
+      while (rs.next()) {
+        String[] foreignKey = { rs.getString("FKTABLE_NAME"),
+                                rs.getString("FK_NAME") };
+        if (foreignKey[1] != null && !containsKey(foreignKeys, foreignKey)) {
+          foreignKeys.add(foreignKey);
+        }
+      }
+      rs.close();
+
+      for (String[] foreignKey : foreignKeys) {
+        log.info("Dropping foreign key " + foreignKey[1] + " of " +
+                 foreignKey[0] + ", which references " + tableName);
+        execute(connection, databaseAdapter.generateDropConstraintSQL(
+                  foreignKey[0], foreignKey[1]));
+      }
+    }
+    catch (SQLException e) {
+      log.error("Unable to drop the foreign keys that reference " +
+                tableName + ": " + e.getMessage());
+    }
+  }
+
+
+  /*
+   * Determines whether a list of table and constraint names holds a given
+   * pair; a foreign key of several columns is listed once per column.
+   */
+  private static boolean containsKey(ArrayList<String[]> foreignKeys,
+                                     String[] foreignKey) {
+    for (String[] other : foreignKeys) {
+      if (other[0].equals(foreignKey[0]) && other[1].equals(foreignKey[1])) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /*
+   * Determines whether a table already has a foreign key of a given name.
+   */
+  private boolean hasForeignKey(Connection connection, String tableName,
+                                String constraintName)
+          throws SQLException {
+    DatabaseMetaData metaData = connection.getMetaData();
+    ResultSet rs = metaData.getImportedKeys(null, null,
+                                     getMetaDataName(metaData, tableName));
+    boolean found = false;
+
+    while (rs.next() && !found) {
+      found = constraintName.equalsIgnoreCase(rs.getString("FK_NAME"));
+    }
+    rs.close();
+
+    return found;
+  }
+
+
+  /*
+   * Finds the entity of a data package with a given id.
+   */
+  private static Entity findEntity(Entity[] entities, String id) {
+    for (int i = 0; id != null && i < entities.length; i++) {
+      if (id.equals(entities[i].getId())) {
+        return entities[i];
+      }
+    }
+
+    return null;
+  }
+
+
+  /*
+   * Describes a constraint for the quality report.
+   */
+  private static String describe(Constraint constraint) {
+    String kind = "foreign key";
+    String name = null;
+
+    if (constraint instanceof PrimaryKey) {
+      kind = "primary key";
+      name = ((PrimaryKey) constraint).getName();
+    }
+    else if (constraint instanceof UniqueKey) {
+      kind = "unique key";
+      name = ((UniqueKey) constraint).getName();
+    }
+    else if (constraint instanceof ForeignKey) {
+      name = ((ForeignKey) constraint).getName();
+    }
+
+    String[] keys = getKeys(constraint);
+    StringBuffer description = new StringBuffer(kind);
+    if (name != null && !name.equals("")) {
+      description.append(" '" + name + "'");
+    }
+    description.append(" (");
+    for (int i = 0; keys != null && i < keys.length; i++) {
+      description.append((i > 0) ? ", " : "");
+      description.append(keys[i]);
+    }
+    description.append(")");
+
+    return description.toString();
+  }
+
+
+  /*
+   * Counts rows with a query that returns a single count.
+   */
+  private static long countRows(Connection connection, String sql)
+          throws SQLException {
+    Statement stmt = null;
+    long count = 0;
+
+    try {
+      stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery(sql);
+      if (rs.next()) {
+        count = rs.getLong(1);
+      }
+      rs.close();
+    }
+    finally {
+      if (stmt != null) stmt.close();
+    }
+
+    return count;
+  }
+
+
+  /*
+   * Executes a statement, committing it unless the connection is in
+   * auto-commit mode, and rolling it back if it fails.
+   */
+  private static void execute(Connection connection, String sql)
+          throws SQLException {
+    Statement stmt = null;
+    boolean autoCommit = connection.getAutoCommit();
+
+    try {
+      stmt = connection.createStatement();
+      stmt.executeUpdate(sql);
+      if (!autoCommit) {
+        connection.commit();
+      }
+    }
+    catch (SQLException e) {
+      if (!autoCommit) {
+        connection.rollback();
+      }
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+    }
+  }
+
+
+  /*
+   * Reports the constraints that were built and the violations that kept
+   * others from being built in a quality check of the entity.
+   */
+  private static void addQualityCheck(Entity entity, String identifier,
+                                      ArrayList<String> built,
+                                      ArrayList<String> problems) {
+    QualityCheck template = QualityReport.getQualityCheckTemplate(identifier);
+    QualityCheck qualityCheck = new QualityCheck(identifier, template);
+
+    if (QualityCheck.shouldRunQualityCheck(entity, qualityCheck)) {
+      if (problems.isEmpty()) {
+        qualityCheck.setStatus(Status.valid);
+        qualityCheck.setFound("Built " + built);
+      }
+      else {
+        qualityCheck.setFailedStatus();
+        qualityCheck.setFound(problems.size() + " constraints could not " +
+                              "be built");
+        qualityCheck.setExplanation("<![CDATA[" + problems + "]]>");
+        qualityCheck.setSuggestion("Check that the keys documented in the " +
+                                   "metadata identify the rows of the data");
+      }
+      entity.addQualityCheck(qualityCheck);
+    }
+  }
+
+}
@@ -0,0 +1,24 @@
+package org.ecoinformatics.datamanager.database;
+
+/**
+ * Unchecked exception thrown when a row cannot be read from an entity's
+ * data while it is being consumed through a java.util.stream.Stream or
+ * Spliterator. The original exception, for example a
+ * DataNotMatchingMetadataException, is available as the cause.
+ */
+public class DataReaderException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor
+   *
+   * @param message  information about the error
+   * @param cause    the exception raised by the underlying reader
+   */
+  public DataReaderException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
+
+}
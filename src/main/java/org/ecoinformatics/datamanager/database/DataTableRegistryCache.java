@@ -0,0 +1,254 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ecoinformatics.datamanager.DataManager;
+
+/**
+ * Holds the entries of the data table registry in memory, indexed by table
+ * name, by entity identifier and by package id and entity name, so that
+ * TableMonitor can resolve names without querying the database. The cache is
+ * loaded once per connection pool and kept up to date by TableMonitor, which
+ * writes every change through to the registry table before applying it here.
+ * Since the cache holds every entry, a name that is not cached is not in the
+ * registry; changes made to the registry table by another process are only
+ * seen after TableMonitor.refreshRegistryCache().
+ *
+ * The cache is safe for concurrent use. Table names are matched ignoring
+ * case, as the database does.
+ */
+class DataTableRegistryCache {
+
+  /*
+   * Instance fields
+   */
+
+  private final Object connectionPool;
+  private final boolean loadCheckpointsSupported;
+  private final boolean sourceValidatorsSupported;
+  private final boolean loadScopesSupported;
+  private final ConcurrentHashMap<String, Entry> byTableName =
+    new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, Entry> byEntity =
+    new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, Entry> byPackageEntity =
+    new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, Entry> byIdentifier =
+    new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, String[]> fieldNames =
+    new ConcurrentHashMap<String, String[]>();
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs an empty cache for the registry of the current connection
+   * pool.
+   *
+   * @param loadCheckpointsSupported   whether the registry has the load
+   *                                   checkpoint columns
+   * @param sourceValidatorsSupported  whether the registry has the source
+   *                                   validator columns
+   * @param loadScopesSupported        whether the registry has the load
+   *                                   scope column
+   */
+  DataTableRegistryCache(boolean loadCheckpointsSupported,
+                         boolean sourceValidatorsSupported,
+                         boolean loadScopesSupported) {
+    this.connectionPool = DataManager.getDatabaseConnectionPool();
+    this.loadCheckpointsSupported = loadCheckpointsSupported;
+    this.sourceValidatorsSupported = sourceValidatorsSupported;
+    this.loadScopesSupported = loadScopesSupported;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  private static String key(String tableName) {
+    return tableName.toUpperCase();
+  }
+
+
+  private static String key(String first, String second) {
+    return first + '\u0000' + second;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Determines whether the cache holds the registry of the database that
+   * DataManager currently connects to.
+   *
+   * @return true if the cache was loaded through the current pool
+   */
+  boolean isCurrent() {
+    return connectionPool == DataManager.getDatabaseConnectionPool();
+  }
+
+
+  boolean supportsLoadCheckpoints() {
+    return loadCheckpointsSupported;
+  }
+
+
+  boolean supportsSourceValidators() {
+    return sourceValidatorsSupported;
+  }
+
+
+  boolean supportsLoadScopes() {
+    return loadScopesSupported;
+  }
+
+
+  /**
+   * Adds or replaces the entry of a table.
+   *
+   * @param entry  the registry entry
+   */
+  synchronized void put(Entry entry) {
+    remove(entry.tableName);
+    byTableName.put(key(entry.tableName), entry);
+    byEntity.put(key(entry.entityIdentifier, entry.entityName), entry);
+    byIdentifier.put(entry.entityIdentifier, entry);
+
+    // The first entry of a package's entity is the one that the registry
+    // table returned first
+    String packageEntityKey = key(entry.packageId, entry.entityName);
+    if (!byPackageEntity.containsKey(packageEntityKey)) {
+      byPackageEntity.put(packageEntityKey, entry);
+    }
+  }
+
+
+  /**
+   * Removes the entry of a table, if there is one.
+   *
+   * @param tableName  the table name
+   * @return the removed entry, or null
+   */
+  synchronized Entry remove(String tableName) {
+    Entry entry = byTableName.remove(key(tableName));
+    fieldNames.remove(key(tableName));
+
+    if (entry != null) {
+      byEntity.remove(key(entry.entityIdentifier, entry.entityName), entry);
+      byIdentifier.remove(entry.entityIdentifier, entry);
+      byPackageEntity.remove(key(entry.packageId, entry.entityName), entry);
+
+      // Index any other entry of the same entity in its place
+      for (Entry other : byTableName.values()) {
+        if (other.entityIdentifier.equals(entry.entityIdentifier)) {
+          byIdentifier.putIfAbsent(other.entityIdentifier, other);
+          if (other.entityName.equals(entry.entityName)) {
+            byEntity.putIfAbsent(key(other.entityIdentifier,
+                                     other.entityName), other);
+          }
+        }
+        if (other.packageId.equals(entry.packageId) &&
+            other.entityName.equals(entry.entityName)) {
+          byPackageEntity.putIfAbsent(key(other.packageId, other.entityName),
+                                      other);
+        }
+      }
+    }
+
+    return entry;
+  }
+
+
+  Entry getByTableName(String tableName) {
+    return (tableName == null) ? null : byTableName.get(key(tableName));
+  }
+
+
+  Entry getByEntity(String entityIdentifier, String entityName) {
+    return byEntity.get(key(entityIdentifier, entityName));
+  }
+
+
+  Entry getByPackageEntity(String packageId, String entityName) {
+    return byPackageEntity.get(key(packageId, entityName));
+  }
+
+
+  Entry getByIdentifier(String entityIdentifier) {
+    return (entityIdentifier == null) ? null :
+                                        byIdentifier.get(entityIdentifier);
+  }
+
+
+  /**
+   * Gets a snapshot of all the entries.
+   *
+   * @return the entries
+   */
+  List<Entry> getEntries() {
+    return new ArrayList<Entry>(byTableName.values());
+  }
+
+
+  String[] getFieldNames(String tableName) {
+    return fieldNames.get(key(tableName));
+  }
+
+
+  void putFieldNames(String tableName, String[] names) {
+    if (byTableName.containsKey(key(tableName))) {
+      fieldNames.put(key(tableName), names);
+    }
+  }
+
+
+  /*
+   * Inner classes
+   */
+
+  /**
+   * An entry of the data table registry. The usage date and priority change
+   * as the table is used and its expiration policy is set. The entry also
+   * remembers when the table was last used, to the millisecond, and its
+   * size on disk in bytes, or -1 until it is measured.
+   */
+  static class Entry {
+    final String tableName;
+    final String packageId;
+    final String entityIdentifier;
+    final String entityName;
+    final Date creationDate;
+    volatile Date lastUsageDate;
+    volatile int priority;
+    volatile long lastAccessMillis;
+    volatile long size = -1;
+
+    Entry(String tableName, String packageId, String entityIdentifier,
+          String entityName, Date creationDate, Date lastUsageDate,
+          int priority) {
+      this.tableName = tableName;
+      this.packageId = String.valueOf(packageId);
+      this.entityIdentifier = String.valueOf(entityIdentifier);
+      this.entityName = String.valueOf(entityName);
+      this.creationDate = creationDate;
+      this.lastUsageDate = lastUsageDate;
+      this.priority = priority;
+      this.lastAccessMillis =
+        (lastUsageDate == null) ? 0 : lastUsageDate.getTime();
+    }
+
+
+    void touch() {
+      lastAccessMillis = System.currentTimeMillis();
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+package org.ecoinformatics.datamanager.database;
+
+/**
+ * The definition of a materialized data view, as registered in the
+ * DATA_VIEW_REGISTRY: the name of the table that holds its rows, the names
+ * of the entity tables it is selected from, and the selection. A view whose
+ * rows each come from one row of its only source table also has an
+ * incremental selection, which selects the rows of a table of appended
+ * rows in place of the source table.
+ */
+class DataView {
+
+  /*
+   * Class fields
+   */
+
+  /* Stands for the table of appended rows in an incremental selection */
+  static final String DELTA_TABLE = "{DELTA_TABLE}";
+
+
+  /*
+   * Instance fields
+   */
+
+  private final String name;
+  private final String[] sourceTableNames;
+  private final String sql;
+  private final String incrementalSQL;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a view definition.
+   *
+   * @param name              the name of the view and of its table
+   * @param sourceTableNames  the names of the tables it is selected from
+   * @param sql               the selection
+   * @param incrementalSQL    the incremental selection, or null if the view
+   *                          is always refreshed in full
+   */
+  DataView(String name, String[] sourceTableNames, String sql,
+           String incrementalSQL) {
+    this.name = name.toUpperCase();
+    this.sourceTableNames = new String[sourceTableNames.length];
+    for (int i = 0; i < sourceTableNames.length; i++) {
+      this.sourceTableNames[i] = sourceTableNames[i].toUpperCase();
+    }
+    this.sql = sql;
+    this.incrementalSQL = incrementalSQL;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  String getName() {
+    return name;
+  }
+
+
+  String[] getSourceTableNames() {
+    return sourceTableNames;
+  }
+
+
+  String getSQL() {
+    return sql;
+  }
+
+
+  String getIncrementalSQL() {
+    return incrementalSQL;
+  }
+
+
+  /**
+   * Gets the incremental selection of the rows of a table of appended rows.
+   *
+   * @param deltaTableName  the name of the table of appended rows
+   * @return the selection, or null if the view is refreshed in full
+   */
+  String getIncrementalSQL(String deltaTableName) {
+    if (incrementalSQL == null) {
+      return null;
+    }
+
+    int index = incrementalSQL.indexOf(DELTA_TABLE);
+
+    return incrementalSQL.substring(0, index) + deltaTableName +
+           incrementalSQL.substring(index + DELTA_TABLE.length());
+  }
+
+
+  /**
+   * Determines whether the view can be refreshed from appended rows alone.
+   *
+   * @return true if the view has an incremental selection
+   */
+  boolean isIncremental() {
+    return incrementalSQL != null;
+  }
+
+
+  /**
+   * Determines whether the view is selected from a given table.
+   *
+   * @param tableName  the name of the table
+   * @return true if the table is one of the view's sources
+   */
+  boolean dependsOn(String tableName) {
+    for (int i = 0; i < sourceTableNames.length; i++) {
+      if (sourceTableNames[i].equalsIgnoreCase(tableName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
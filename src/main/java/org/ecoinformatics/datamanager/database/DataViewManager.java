@@ -0,0 +1,721 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.parser.Entity;
+
+/**
+ * Creates and refreshes materialized data views. A view is a table that
+ * holds the rows of a selection from one or more entity tables, so that a
+ * summary across entities is selected from its table rather than joined
+ * and aggregated again on every request. The views are registered in the
+ * DATA_VIEW_REGISTRY by the TableMonitor.
+ *
+ * A view is refreshed when one of its source tables is loaded again. The
+ * versions of the source tables that the rows of each view were selected
+ * from are kept in memory, so a view is refreshed before it is read if a
+ * source table has changed since, and once in each process that reads it.
+ * A view whose rows each come from one row of its only source table is
+ * refreshed from the appended rows alone when rows are appended to the
+ * source table; other views are selected again in full.
+ */
+public class DataViewManager {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(DataViewManager.class);
+
+  /* Matches CREATE [MATERIALIZED] VIEW name AS selection */
+  private static final Pattern CREATE_VIEW_PATTERN = Pattern.compile(
+    "\\s*CREATE\\s+(?:MATERIALIZED\\s+)?VIEW\\s+([A-Za-z_][A-Za-z0-9_]*)" +
+    "\\s+AS\\s+(.*?)[\\s;]*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+  private static final Pattern NAME_PATTERN =
+    Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+  /* Appended to the name of a table to name the table of its appended rows */
+  private static final String DELTA_SUFFIX = "_DELTA";
+
+  /* Serializes the refreshing of views */
+  private static final Object refreshLock = new Object();
+
+  /* The versions of the source tables of each view when it was refreshed */
+  private static final HashMap<String, Map<String, Long>> refreshedVersions =
+    new HashMap<String, Map<String, Long>>();
+
+
+  /*
+   * Instance fields
+   */
+
+  private final DatabaseAdapter databaseAdapter;
+  private final TableMonitor tableMonitor;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a manager of the data views in the database that the
+   * DataManager connects to.
+   *
+   * @param databaseAdapter  the adapter of the database
+   * @param tableMonitor     the monitor of the tables in the database
+   */
+  public DataViewManager(DatabaseAdapter databaseAdapter,
+                         TableMonitor tableMonitor) {
+    this.databaseAdapter = databaseAdapter;
+    this.tableMonitor = tableMonitor;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /*
+   * Removes a trailing semicolon, and white space, from a statement.
+   */
+  private static String trimStatement(String sql) {
+    String trimmed = sql.trim();
+
+    while (trimmed.endsWith(Query.SEMICOLON)) {
+      trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+    }
+
+    return trimmed;
+  }
+
+
+  /*
+   * Gets the incremental selection of a query, in which the table of
+   * appended rows stands in for its source table under the source table's
+   * name, or null if its rows are not each selected from one row of its
+   * source table.
+   */
+  private static String incrementalSQL(Query query, String sql)
+          throws UnWellFormedQueryException {
+    TableItem[] tableItems = query.getTableList();
+
+    if (tableItems.length != 1 || query.isDistinct() ||
+        query.getGroupBy() != null) {
+      return null;
+    }
+
+    SelectionItem[] selectionItems = query.getSelectionList();
+    for (int i = 0; i < selectionItems.length; i++) {
+      if (selectionItems[i] instanceof AggregateSelectionItem) {
+        return null;
+      }
+    }
+
+    WhereClause whereClause = query.getWhereClause();
+    if (whereClause != null &&
+        (hasSubQuery(whereClause.getConditionInterface()) ||
+         hasSubQuery(whereClause.getANDRelation()) ||
+         hasSubQuery(whereClause.getORRelation()))) {
+      // A subquery may select other rows of the source table
+      return null;
+    }
+
+    String tableName = tableItems[0].toSQLString();
+    String from = " FROM " + tableName;
+    int index = sql.indexOf(from);
+    int end = index + from.length();
+
+    if (index < 0 || sql.indexOf(from, end) >= 0 ||
+        (end < sql.length() && sql.charAt(end) != ' ')) {
+      return null;
+    }
+
+    return sql.substring(0, index) + " FROM " + DataView.DELTA_TABLE + " " +
+           tableName + sql.substring(end);
+  }
+
+
+  private static boolean hasSubQuery(ConditionInterface condition) {
+    return condition instanceof SubQueryClause;
+  }
+
+
+  private static boolean hasSubQuery(LogicalRelation relation) {
+    if (relation == null) {
+      return false;
+    }
+
+    ConditionInterface[] conditions = relation.getConditionInterfaceList();
+    ANDRelation[] ands = relation.getANDRelationList();
+    ORRelation[] ors = relation.getORRelationList();
+
+    if (conditions != null) {
+      for (ConditionInterface condition : conditions) {
+        if (hasSubQuery(condition)) return true;
+      }
+    }
+    if (ands != null) {
+      for (ANDRelation and : ands) {
+        if (hasSubQuery(and)) return true;
+      }
+    }
+    if (ors != null) {
+      for (ORRelation or : ors) {
+        if (hasSubQuery(or)) return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /*
+   * Gets the current versions of the source tables of a view.
+   */
+  private static Map<String, Long> currentVersions(DataView dataView) {
+    Map<String, Long> versions = new HashMap<String, Long>();
+    String[] sourceTableNames = dataView.getSourceTableNames();
+
+    for (int i = 0; i < sourceTableNames.length; i++) {
+      versions.put(sourceTableNames[i],
+             Long.valueOf(TableMonitor.getTableVersion(sourceTableNames[i])));
+    }
+
+    return versions;
+  }
+
+
+  /*
+   * Gets the versions of the source tables of a view when it was refreshed,
+   * or null if it has not been refreshed by this process.
+   */
+  private static Map<String, Long> getRefreshedVersions(String viewName) {
+    synchronized (refreshedVersions) {
+      return refreshedVersions.get(viewName.toUpperCase());
+    }
+  }
+
+
+  private static void setRefreshedVersions(String viewName,
+                                           Map<String, Long> versions) {
+    synchronized (refreshedVersions) {
+      if (versions == null) {
+        refreshedVersions.remove(viewName.toUpperCase());
+      }
+      else {
+        refreshedVersions.put(viewName.toUpperCase(), versions);
+      }
+    }
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Creates a materialized data view from a CREATE VIEW statement, such as
+   * "CREATE VIEW site_summary AS SELECT ...". The word MATERIALIZED may
+   * precede VIEW. The entity tables that the selection refers to must be
+   * loaded, and the columns of its rows must have distinct names. A view
+   * of the same name is replaced.
+   *
+   * @param ANSISQL   the CREATE VIEW statement
+   * @param entities  the entities whose tables the view is selected from
+   * @return true if the view was created
+   * @throws SQLException if the statement is not a CREATE VIEW statement,
+   *         or the view cannot be created
+   */
+  public boolean createView(String ANSISQL, Entity[] entities)
+          throws SQLException {
+    Matcher matcher = CREATE_VIEW_PATTERN.matcher(ANSISQL);
+
+    if (!matcher.matches()) {
+      throw new SQLException("Not a CREATE VIEW statement: " + ANSISQL);
+    }
+
+    List<String> sourceTableNames = new ArrayList<String>();
+
+    if (entities != null) {
+      for (int i = 0; i < entities.length; i++) {
+        String tableName = entities[i].getDBTableName();
+        if (tableName == null) {
+          throw new SQLException("The entity " + entities[i].getName() +
+                                 " has not been loaded");
+        }
+        if (!sourceTableNames.contains(tableName.toUpperCase())) {
+          sourceTableNames.add(tableName.toUpperCase());
+        }
+      }
+    }
+
+    DataView dataView =
+      new DataView(matcher.group(1),
+                   sourceTableNames.toArray(new String[0]),
+                   trimStatement(matcher.group(2)), null);
+
+    return createView(dataView);
+  }
+
+
+  /**
+   * Creates a materialized data view of the rows of a query. A view whose
+   * rows each come from one row of its only entity, without aggregation,
+   * DISTINCT or subqueries, is refreshed incrementally when rows are
+   * appended to the entity's table.
+   *
+   * @param viewName  the name of the view
+   * @param query     the query, whose entities must be loaded
+   * @return true if the view was created
+   * @throws SQLException if the view cannot be created
+   * @throws UnWellFormedQueryException if the query is not well formed
+   */
+  public boolean createView(String viewName, Query query)
+          throws SQLException, UnWellFormedQueryException {
+    String sql = trimStatement(query.toSQLString());
+    TableItem[] tableItems = query.getTableList();
+    List<String> sourceTableNames = new ArrayList<String>();
+
+    for (int i = 0; i < tableItems.length; i++) {
+      String tableName = tableItems[i].toSQLString().toUpperCase();
+      if (!sourceTableNames.contains(tableName)) {
+        sourceTableNames.add(tableName);
+      }
+    }
+
+    DataView dataView =
+      new DataView(viewName, sourceTableNames.toArray(new String[0]), sql,
+                   incrementalSQL(query, sql));
+
+    return createView(dataView);
+  }
+
+
+  /*
+   * Creates the table of a view, registers the view and selects its rows.
+   */
+  private boolean createView(DataView dataView) throws SQLException {
+    String viewName = dataView.getName();
+
+    if (!NAME_PATTERN.matcher(viewName).matches()) {
+      throw new SQLException("Not a valid view name: " + viewName);
+    }
+
+    synchronized (refreshLock) {
+      if (tableMonitor.getViewEntry(viewName) != null) {
+        dropView(viewName);
+      }
+      else if (tableMonitor.isTableInDB(viewName)) {
+        throw new SQLException("A table named " + viewName +
+                               " is already in the database");
+      }
+
+      try {
+        createViewTable(dataView);
+        tableMonitor.addViewEntry(dataView);
+        refresh(dataView);
+      }
+      catch (SQLException e) {
+        dropTable(viewName);
+        tableMonitor.dropViewEntry(viewName);
+        throw e;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Drops a materialized data view and its table.
+   *
+   * @param viewName  the name of the view
+   * @return true if the view was dropped, false if there is no such view
+   * @throws SQLException if the view cannot be dropped
+   */
+  public boolean dropView(String viewName) throws SQLException {
+    synchronized (refreshLock) {
+      if (tableMonitor.getViewEntry(viewName) == null) {
+        return false;
+      }
+
+      dropTable(viewName);
+      setRefreshedVersions(viewName, null);
+
+      return tableMonitor.dropViewEntry(viewName);
+    }
+  }
+
+
+  /**
+   * Refreshes the views that a selection refers to by name, if a table they
+   * are selected from has changed since they were refreshed.
+   *
+   * @param ANSISQL  the selection
+   * @return the number of views refreshed
+   * @throws SQLException if a view cannot be refreshed
+   */
+  public int refreshViewsIn(String ANSISQL) throws SQLException {
+    int count = 0;
+
+    for (DataView dataView : tableMonitor.getViewEntries()) {
+      Pattern namePattern =
+        Pattern.compile("\\b" + Pattern.quote(dataView.getName()) + "\\b",
+                        Pattern.CASE_INSENSITIVE);
+      if (namePattern.matcher(ANSISQL).find() && refreshIfStale(dataView)) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+
+  /**
+   * Refreshes a view in full if a table it is selected from has changed
+   * since it was refreshed. A view whose source tables are no longer in the
+   * database keeps the rows selected from them.
+   *
+   * @param viewName  the name of the view
+   * @return true if the view was refreshed
+   * @throws SQLException if there is no such view, or it cannot be
+   *         refreshed
+   */
+  public boolean refreshIfStale(String viewName) throws SQLException {
+    DataView dataView = tableMonitor.getViewEntry(viewName);
+
+    if (dataView == null) {
+      throw new SQLException("No data view named " + viewName);
+    }
+
+    return refreshIfStale(dataView);
+  }
+
+
+  private boolean refreshIfStale(DataView dataView) throws SQLException {
+    synchronized (refreshLock) {
+      Map<String, Long> versions = getRefreshedVersions(dataView.getName());
+
+      if (versions != null && versions.equals(currentVersions(dataView)) &&
+          tableMonitor.isTableInDB(dataView.getName())) {
+        return false;
+      }
+
+      String[] sourceTableNames = dataView.getSourceTableNames();
+      for (int i = 0; i < sourceTableNames.length; i++) {
+        if (!tableMonitor.isTableInDB(sourceTableNames[i])) {
+          log.warn("The data view " + dataView.getName() + " is not " +
+                   "refreshed, since " + sourceTableNames[i] +
+                   " is not in the database");
+          return false;
+        }
+      }
+
+      if (!tableMonitor.isTableInDB(dataView.getName())) {
+        createViewTable(dataView);
+      }
+      refresh(dataView);
+
+      return true;
+    }
+  }
+
+
+  /**
+   * Refreshes the views that are selected from a table that has been
+   * loaded. A view that was current before the load is refreshed from the
+   * appended rows alone, if the rows were appended and the view can be
+   * refreshed incrementally, or is left as it is if no rows were loaded.
+   * Other views are refreshed in full. A view that cannot be refreshed is
+   * refreshed before it is next read.
+   *
+   * @param tableName        the name of the table that was loaded
+   * @param previousVersion  the version of the table before the load
+   * @param changed          true if rows were loaded into the table
+   * @param deltaTableName   the name of the table of the appended rows, or
+   *                         null if the rows were not appended
+   * @return the number of views refreshed
+   */
+  public int refreshViewsOf(String tableName, long previousVersion,
+                            boolean changed, String deltaTableName) {
+    int count = 0;
+    List<DataView> dataViews;
+
+    try {
+      dataViews = tableMonitor.getViewEntries();
+    }
+    catch (SQLException e) {
+      log.error("Unable to read the data views: " + e.getMessage());
+      return 0;
+    }
+
+    for (DataView dataView : dataViews) {
+      if (!dataView.dependsOn(tableName)) {
+        continue;
+      }
+
+      synchronized (refreshLock) {
+        try {
+          if (wasCurrent(dataView, tableName, previousVersion)) {
+            if (!changed) {
+              setRefreshedVersions(dataView.getName(),
+                                   currentVersions(dataView));
+              continue;
+            }
+            else if (deltaTableName != null && dataView.isIncremental()) {
+              refreshFromDelta(dataView, deltaTableName);
+              count++;
+              continue;
+            }
+          }
+
+          if (refreshIfStale(dataView)) {
+            count++;
+          }
+        }
+        catch (SQLException e) {
+          log.error("Unable to refresh the data view " + dataView.getName() +
+                    ": " + e.getMessage());
+          setRefreshedVersions(dataView.getName(), null);
+        }
+      }
+    }
+
+    return count;
+  }
+
+
+  /*
+   * Determines whether a view was current before a table was loaded: its
+   * rows were selected from the previous version of the table, and from the
+   * current versions of its other source tables.
+   */
+  private boolean wasCurrent(DataView dataView, String tableName,
+                             long previousVersion) throws SQLException {
+    Map<String, Long> versions = getRefreshedVersions(dataView.getName());
+
+    if (versions == null || !tableMonitor.isTableInDB(dataView.getName())) {
+      return false;
+    }
+
+    Map<String, Long> expected = currentVersions(dataView);
+    expected.put(tableName.toUpperCase(), Long.valueOf(previousVersion));
+
+    return versions.equals(expected);
+  }
+
+
+  /**
+   * Determines whether rows appended to a table should be loaded through a
+   * table of appended rows, from which the views selected from the table
+   * can be refreshed incrementally.
+   *
+   * @param tableName  the name of the table
+   * @return true if an incremental view is selected from the table, and the
+   *         name of the table of appended rows is not taken
+   * @throws SQLException if the views cannot be read
+   */
+  public boolean shouldStageRows(String tableName) throws SQLException {
+    String deltaTableName = getDeltaTableName(tableName);
+
+    if (tableMonitor.isDBTableNameInUse(deltaTableName) ||
+        tableMonitor.getViewEntry(deltaTableName) != null) {
+      return false;
+    }
+
+    for (DataView dataView : tableMonitor.getViewEntries()) {
+      if (dataView.isIncremental() && dataView.dependsOn(tableName)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Gets the name of the table that holds the rows appended to a table.
+   *
+   * @param tableName  the name of the table
+   * @return the name of the table of appended rows
+   */
+  public String getDeltaTableName(String tableName) {
+    return tableName.toUpperCase() + DELTA_SUFFIX;
+  }
+
+
+  /**
+   * Creates an empty table of appended rows with the columns of a table,
+   * dropping any that was left by an earlier load.
+   *
+   * @param connection  the connection that the rows are loaded through
+   * @param tableName   the name of the table
+   * @return the name of the table of appended rows
+   * @throws SQLException if the table cannot be created
+   */
+  public String createDeltaTable(Connection connection, String tableName)
+          throws SQLException {
+    String deltaTableName = getDeltaTableName(tableName);
+    Statement stmt = null;
+
+    dropTable(deltaTableName);
+
+    try {
+      stmt = connection.createStatement();
+      stmt.executeUpdate(databaseAdapter.generateCreateTableAsSQL(
+                           deltaTableName,
+                           "SELECT * FROM " + tableName + " WHERE 1=0"));
+    }
+    catch (SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+    }
+
+    return deltaTableName;
+  }
+
+
+  /**
+   * Copies the appended rows into their table. The rows are not committed.
+   *
+   * @param connection      the connection that the rows are loaded through
+   * @param tableName       the name of the table
+   * @param deltaTableName  the name of the table of appended rows
+   * @return the number of rows copied
+   * @throws SQLException if the rows cannot be copied
+   */
+  public int mergeDeltaTable(Connection connection, String tableName,
+                             String deltaTableName)
+          throws SQLException {
+    Statement stmt = null;
+
+    try {
+      stmt = connection.createStatement();
+      return stmt.executeUpdate("INSERT INTO " + tableName +
+                                " SELECT * FROM " + deltaTableName);
+    }
+    catch (SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+    }
+  }
+
+
+  /**
+   * Drops a table of appended rows once the views have been refreshed.
+   *
+   * @param deltaTableName  the name of the table of appended rows
+   */
+  public void dropDeltaTable(String deltaTableName) {
+    try {
+      dropTable(deltaTableName);
+    }
+    catch (SQLException e) {
+      log.error("Unable to drop " + deltaTableName + ": " + e.getMessage());
+    }
+  }
+
+
+  /*
+   * Creates the empty table of a view.
+   */
+  private void createViewTable(DataView dataView) throws SQLException {
+    execute(databaseAdapter.generateCreateTableAsSQL(dataView.getName(),
+                                                     dataView.getSQL()));
+  }
+
+
+  /*
+   * Selects the rows of a view again, in one transaction.
+   */
+  private void refresh(DataView dataView) throws SQLException {
+    Map<String, Long> versions = currentVersions(dataView);
+
+    execute(new String[] {
+              "DELETE FROM " + dataView.getName(),
+              "INSERT INTO " + dataView.getName() + " " + dataView.getSQL() });
+    setRefreshedVersions(dataView.getName(), versions);
+    TableMonitor.recordTableChange(dataView.getName());
+    log.debug("Refreshed the data view " + dataView.getName());
+  }
+
+
+  /*
+   * Adds the rows selected from the appended rows of its source table to a
+   * view.
+   */
+  private void refreshFromDelta(DataView dataView, String deltaTableName)
+          throws SQLException {
+    Map<String, Long> versions = currentVersions(dataView);
+
+    execute(new String[] {
+              "INSERT INTO " + dataView.getName() + " " +
+              dataView.getIncrementalSQL(deltaTableName) });
+    setRefreshedVersions(dataView.getName(), versions);
+    TableMonitor.recordTableChange(dataView.getName());
+    log.debug("Refreshed the data view " + dataView.getName() +
+              " from " + deltaTableName);
+  }
+
+
+  /*
+   * Drops a table if it is in the database.
+   */
+  private void dropTable(String tableName) throws SQLException {
+    if (tableMonitor.isTableInDB(tableName)) {
+      execute(databaseAdapter.generateDropTableSQL(tableName));
+    }
+  }
+
+
+  private void execute(String sql) throws SQLException {
+    execute(new String[] { sql });
+  }
+
+
+  /*
+   * Executes statements in one transaction.
+   */
+  private void execute(String[] sql) throws SQLException {
+    Connection connection = DataManager.getConnection();
+    Statement stmt = null;
+
+    try {
+      connection.setAutoCommit(false);
+      stmt = connection.createStatement();
+      for (int i = 0; i < sql.length; i++) {
+        stmt.executeUpdate(sql[i]);
+      }
+      connection.commit();
+    }
+    catch (SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      connection.rollback();
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      connection.setAutoCommit(true);
+      DataManager.returnConnection(connection);
+    }
+  }
+
+}
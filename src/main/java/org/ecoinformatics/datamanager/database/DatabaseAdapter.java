@@ -31,6 +31,7 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.TreeMap;
@@ -41,8 +42,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ecoinformatics.datamanager.parser.Attribute;
 import org.ecoinformatics.datamanager.parser.AttributeList;
-import org.ecoinformatics.datamanager.parser.DateTimeDomain;
-import org.ecoinformatics.datamanager.parser.Domain;
+import org.ecoinformatics.datamanager.parser.Constraint;
 import org.ecoinformatics.datamanager.parser.StorageType;
 
 /**
@@ -73,6 +73,9 @@ public abstract class DatabaseAdapter {
 	public static final String           VALUES = "VALUES";
 	public static final String             NULL = "null";
   public static final String       UNDERSCORE = "_";
+  public static final String       ALTERTABLE = "ALTER TABLE";
+  public static final String              ADD = "ADD";
+  public static final String   DROPCONSTRAINT = "DROP CONSTRAINT";
 
   
   
@@ -84,6 +87,7 @@ public abstract class DatabaseAdapter {
 	private final String XML_SCHEMA_DATATYPES = 
 	    "http://www.w3.org/2001/XMLSchema-datatypes";
 	protected static final int DEFAULT_TABLE_NAME_MAX_LENGTH = 30;
+	private volatile CompiledAttributeList compiledAttributeList = null;
   
   
   /*
@@ -218,10 +222,89 @@ public abstract class DatabaseAdapter {
     return sqlString;
   }
 
+
+  /**
+   * Creates a SQL command that creates an empty table with the columns of
+   * the rows of a selection, such as the table of a materialized data view.
+   * 
+   * @param  tableName  The name of the table to be created.
+   * @param  selectSQL  The selection, without a trailing semicolon.
+   * @return the SQL string
+   */
+  public String generateCreateTableAsSQL(String tableName, String selectSQL) {
+    return "CREATE TABLE " + tableName + " AS SELECT * FROM (" + selectSQL + 
+           ") SELECTION WHERE 1=0";
+  }
+
+
+  /**
+   * Creates a SQL command that creates a secondary index on a field of a
+   * table that is already loaded.
+   *
+   * @param  indexName  The name of the index.
+   * @param  tableName  The name of the indexed table.
+   * @param  fieldName  The database field name of the indexed field.
+   * @return the SQL string
+   */
+  public String generateCreateIndexSQL(String indexName, String tableName,
+                                       String fieldName) {
+    return "CREATE INDEX " + indexName + SPACE + "ON" + SPACE + tableName +
+           SPACE + LEFTPARENTH + fieldName + RIGHTPARENTH;
+  }
+
+
+  /**
+   * Creates a SQL command that drops a secondary index.
+   *
+   * @param  indexName  The name of the index.
+   * @param  tableName  The name of the indexed table.
+   * @return the SQL string
+   */
+  public String generateDropIndexSQL(String indexName, String tableName) {
+    return "DROP INDEX " + indexName;
+  }
+
+  
+  /**
+   * Compiles a value converter for each attribute in an attribute list. The
+   * converters resolve the missing value codes, types and datetime format of
+   * the attributes once, so they should be compiled after the table has been
+   * created and then reused for every row that is inserted.
+   * 
+   * @param attributeList  the AttributeList whose attributes are converted
+   * @return an array holding one converter per attribute
+   * @throws SQLException if the attribute list is empty or holds a null
+   *         attribute
+   */
+  public AttributeConverter[] compileConverters(AttributeList attributeList)
+          throws SQLException {
+    if (attributeList == null) {
+      throw new SQLException("The attribute list is null and couldn't generate insert sql statement");
+    }
+
+    Attribute[] list = attributeList.getAttributes();
+    
+    if (list == null || list.length == 0) {
+        throw new SQLException("The attributes is null and couldn't generate insert sql statement");
+    }
+
+    AttributeConverter[] converters = new AttributeConverter[list.length];
+    
+    for (int i = 0; i < list.length; i++) {
+      if (list[i] == null) {
+        throw new SQLException("Attribute list contains a null attribute");
+      }
+      converters[i] = new AttributeConverter(this, list[i]);
+    }
+    
+    return converters;
+  }
+  
   
   /**
    * Creates a SQL command to insert data. If some error happens, null will be
-   * returned.
+   * returned. The attribute converters are compiled on the first call and
+   * reused for later calls with the same attribute list.
    * 
    * @param attributeList  AttributeList which will be inserted
    * @param tableName      The name of the table which the data will be inserted into
@@ -232,12 +315,38 @@ public abstract class DatabaseAdapter {
                                   String tableName, 
                                   Vector oneRowData) 
           throws DataNotMatchingMetadataException, SQLException{
+    if (attributeList == null) {
+      throw new SQLException("The attribute list is null and couldn't generate insert sql statement");
+    }
+
+    if (oneRowData == null || oneRowData.isEmpty()) {
+        throw new SQLException("The the data is null and couldn't generte insert sql statement");
+    }
+
+    return generateInsertSQL(getConverters(attributeList), tableName, oneRowData);
+  }
+  
+  
+  /**
+   * Creates a SQL command to insert data using converters compiled by
+   * compileConverters(). If all values are null, empty or missing value codes,
+   * null will be returned.
+   * 
+   * @param converters     The converters of the attributes to be inserted
+   * @param tableName      The name of the table which the data will be inserted into
+   * @param oneRowData     The data vector which contains data to be inserted
+   * @return A SQL String that can be run to insert one row of data into table
+   */
+  public String generateInsertSQL(AttributeConverter[] converters,
+                                  String tableName, 
+                                  Vector oneRowData) 
+          throws DataNotMatchingMetadataException, SQLException{
     String sqlString = null;
     int NULLValueCounter = 0;
     int hasValueCounter = 0;
     
-    if (attributeList == null) {
-      throw new SQLException("The attribute list is null and couldn't generate insert sql statement");
+    if (converters == null || converters.length == 0) {
+        throw new SQLException("The attributes is null and couldn't generate insert sql statement");
     }
 
     if (oneRowData == null || oneRowData.isEmpty()) {
@@ -254,13 +363,8 @@ public abstract class DatabaseAdapter {
     sqlDataPart.append(VALUES);
     sqlDataPart.append(SPACE);
     sqlDataPart.append(LEFTPARENTH);
-    Attribute[] list = attributeList.getAttributes();
-    
-    if (list == null || list.length == 0) {
-        throw new SQLException("The attributes is null and couldn't generate insert sql statement");
-    }
     
-    int size = list.length;
+    int size = converters.length;
     // column name part
     boolean firstAttribute = true;
     
@@ -275,110 +379,32 @@ public abstract class DatabaseAdapter {
       } 
       else {
         value = (String) obj;
-        if (value.trim().equals(""))
+        if (value.trim().length() == 0)
         {
         	continue;
         }   
       }
       
-      Attribute attribute = list[i];
+      AttributeConverter converter = converters[i];
       
-      if (attribute == null) {
-          throw new SQLException("Attribute list contains a null attribute");
-      }
-      String[] missingValues = attribute.getMissingValueCode();
-      boolean isMissingValue = isMissingValue(value, missingValues);
-      if (isMissingValue)
+      if (converter.isMissingValue(value))
       {
           continue;
       }
-      String name = attribute.getDBFieldName();
-      String attributeType = getAttributeType(attribute);
       
       if (!firstAttribute) {
         sqlAttributePart.append(COMMA);
         sqlDataPart.append(COMMA);
       }
       
-      sqlAttributePart.append(name);
-      Domain domain = attribute.getDomain();
-      
-      /* If attributeType is "datetime", convert to a timestamp
-       * and wrap single quotes around the value. But only if we
-       * have a format string!
-       */
-      if (attributeType.equalsIgnoreCase("datetime")) {
-      	String formatString = ((DateTimeDomain)domain).getFormatString();
-      	
-      	// Transform the datetime format string for database compatibility
-        formatString = transformFormatString(formatString);
-        
-        // Transform the datetime value for database compatibility
-        value = transformDatetime(value);
-        
-        value = escapeSpecialCharacterInData(value);
-    	sqlDataPart.append(TO_DATE_FUNCTION);
-    	sqlDataPart.append(LEFTPARENTH);
-       
-        sqlDataPart.append(SINGLEQUOTE);
-        sqlDataPart.append(value);
-        sqlDataPart.append(SINGLEQUOTE);
-        
-        sqlDataPart.append(COMMA);
-        
-    	sqlDataPart.append(SINGLEQUOTE);
-        sqlDataPart.append(formatString);
-        sqlDataPart.append(SINGLEQUOTE);
-        
-        sqlDataPart.append(RIGHTPARENTH);
-        hasValueCounter++;
-        log.debug("datetime value expression= " + sqlDataPart.toString());
-      } 
-      /* If domain is null or it is not NumericDomain we assign it text type
-       * and wrap single quotes around the value.
-       */
-      else if (attributeType.equals("string")) {
-    	value = escapeSpecialCharacterInData(value);
-        sqlDataPart.append(SINGLEQUOTE);
-        sqlDataPart.append(value);
-        sqlDataPart.append(SINGLEQUOTE);
-        hasValueCounter++;
-      } 
-      /* Else we have a NumericDomain. Determine whether it is a float or
-       * integer.
-       */
-      else {
-    	
-        String dataType = mapDataType(attributeType);
-
-        try {
-          if (dataType.equals("FLOAT")) {
-            Float floatObj = new Float(value);
-            float floatNum = floatObj.floatValue();
-            sqlDataPart.append(floatNum);
-          } 
-          else {
-            Integer integerObj = new Integer(value);
-            int integerNum = integerObj.intValue();
-            sqlDataPart.append(integerNum);
-          }
-        } 
-        catch (Exception e) {
-          log.error("Error determining numeric value: " + 
-                    e.getMessage());
-          throw new DataNotMatchingMetadataException(
-              "Data value '" + value + 
-              "' is NOT the expected data type of '" +
-        		  dataType + "'");
-        }
-        hasValueCounter++;
-      }
-
+      sqlAttributePart.append(converter.getFieldName());
+      converter.appendSQLValue(sqlDataPart, value);
+      hasValueCounter++;
       firstAttribute = false;
     }
     
     // If all data is null, return null value for sql string.
-    if (NULLValueCounter == list.length || hasValueCounter==0) {
+    if (NULLValueCounter == size || hasValueCounter==0) {
       return sqlString;
     }
     
@@ -387,12 +413,76 @@ public abstract class DatabaseAdapter {
     sqlDataPart.append(SEMICOLON);
     
     // Combine the two parts
-    sqlAttributePart.append(sqlDataPart.toString());
+    sqlAttributePart.append(sqlDataPart);
     sqlString = sqlAttributePart.toString();
     
     return sqlString;
   }
   
+  
+  /**
+   * Creates a parameterized SQL command to insert one row of data, with one
+   * parameter per attribute, in the order of the converters. Values are
+   * bound with AttributeConverter.bindValue().
+   * 
+   * @param converters     The converters of the attributes to be inserted
+   * @param tableName      The name of the table which the data will be inserted into
+   * @return A SQL String that can be prepared once and executed for every row,
+   *         or null if the adapter does not support parameterized inserts
+   */
+  public String generateParameterizedInsertSQL(AttributeConverter[] converters,
+                                               String tableName)
+          throws SQLException {
+    if (converters == null || converters.length == 0) {
+        throw new SQLException("The attributes is null and couldn't generate insert sql statement");
+    }
+
+    StringBuffer sqlAttributePart = new StringBuffer();
+    StringBuffer sqlDataPart = new StringBuffer();
+    sqlAttributePart.append(INSERT);
+    sqlAttributePart.append(SPACE);
+    sqlAttributePart.append(tableName);
+    sqlAttributePart.append(LEFTPARENTH);
+    sqlDataPart.append(SPACE);
+    sqlDataPart.append(VALUES);
+    sqlDataPart.append(SPACE);
+    sqlDataPart.append(LEFTPARENTH);
+    
+    for (int i = 0; i < converters.length; i++) {
+      if (i > 0) {
+        sqlAttributePart.append(COMMA);
+        sqlDataPart.append(COMMA);
+      }
+      sqlAttributePart.append(converters[i].getFieldName());
+      sqlDataPart.append("?");
+    }
+    
+    sqlAttributePart.append(RIGHTPARENTH);
+    sqlDataPart.append(RIGHTPARENTH);
+    sqlAttributePart.append(sqlDataPart);
+    
+    return sqlAttributePart.toString();
+  }
+  
+  
+  /*
+   * Gets the converters for an attribute list, compiling them again if the
+   * list, its attributes or their field names have changed since the last
+   * call.
+   */
+  private AttributeConverter[] getConverters(AttributeList attributeList)
+          throws SQLException {
+    CompiledAttributeList compiled = compiledAttributeList;
+    
+    if (compiled == null || !compiled.matches(attributeList)) {
+      compiled = new CompiledAttributeList(attributeList,
+                                           compileConverters(attributeList));
+      compiledAttributeList = compiled;
+    }
+    
+    return compiled.converters;
+  }
+  
 
   /**
    * Gets attribute type for a given attribute. Attribute types include:
@@ -491,6 +581,132 @@ public abstract class DatabaseAdapter {
   public abstract String getCountingRowNumberSQL(String tableName);
 
 
+  /**
+   * Gets the sql command to get the size of a given table on disk, in bytes,
+   * as a single value.
+   * 
+   * @param tableName  the given table name
+   * @return   In the parent DatabaseAdapter class, returns null, meaning that
+   *           the size has to be estimated from the rows in the table.
+   */
+  public String getTableSizeSQL(String tableName) {
+    return null;
+  }
+
+
+  /**
+   * Creates a sql command that adds a primary key, unique or foreign key
+   * constraint to a table that is already loaded, building its index in a
+   * single pass over the rows.
+   * 
+   * @param tableName             the name of the constrained table
+   * @param constraintName        the name of the constraint
+   * @param type                  Constraint.PRIMARYKEY, Constraint.UNIQUEKEY
+   *                              or Constraint.FOREIGNKEY
+   * @param fieldNames            the database field names of the keys
+   * @param referencedTableName   the table that a foreign key references,
+   *                              else null
+   * @param referencedFieldNames  the field names that a foreign key
+   *                              references, else null
+   * @return the sql string
+   */
+  public String generateAddConstraintSQL(String tableName, 
+                                         String constraintName, int type,
+                                         String[] fieldNames, 
+                                         String referencedTableName,
+                                         String[] referencedFieldNames) {
+    StringBuffer sql = new StringBuffer();
+    sql.append(ALTERTABLE);
+    sql.append(SPACE);
+    sql.append(tableName);
+    sql.append(SPACE);
+    sql.append(ADD);
+    sql.append(SPACE);
+    sql.append(Constraint.CONSTRAINT);
+    sql.append(SPACE);
+    sql.append(constraintName);
+    sql.append(SPACE);
+    
+    if (type == Constraint.PRIMARYKEY) {
+      sql.append(Constraint.PRIMARYKEYSTRING);
+    }
+    else if (type == Constraint.UNIQUEKEY) {
+      sql.append(Constraint.UNIQUEKEYSTRING);
+    }
+    else {
+      sql.append(Constraint.FOREIGNKEYSTRING);
+    }
+    
+    sql.append(SPACE);
+    appendFieldNames(sql, fieldNames);
+    
+    if (type == Constraint.FOREIGNKEY) {
+      sql.append(SPACE);
+      sql.append(Constraint.REFERENCESTRING);
+      sql.append(SPACE);
+      sql.append(referencedTableName);
+      sql.append(SPACE);
+      appendFieldNames(sql, referencedFieldNames);
+    }
+    
+    return sql.toString();
+  }
+  
+  
+  /**
+   * Creates a sql command that drops a constraint from a table.
+   * 
+   * @param tableName       the name of the constrained table
+   * @param constraintName  the name of the constraint
+   * @return the sql string
+   */
+  public String generateDropConstraintSQL(String tableName, 
+                                          String constraintName) {
+    return ALTERTABLE + SPACE + tableName + SPACE + DROPCONSTRAINT + SPACE + 
+           constraintName;
+  }
+  
+  
+  /**
+   * Binds a value of a bound query to a parameter of a prepared statement.
+   * A String stands for a value that would be quoted in the SQL string of
+   * the query, so the database may convert it to the type of the column it
+   * is compared with; a Number is bound as it is.
+   * 
+   * @param statement  the prepared statement
+   * @param index      the one-based index of the parameter
+   * @param value      the value
+   * @throws SQLException if the value cannot be bound
+   */
+  public void setParameter(PreparedStatement statement, int index, 
+                           Object value)
+          throws SQLException {
+    if (value instanceof String) {
+      statement.setString(index, (String) value);
+    }
+    else {
+      statement.setObject(index, value);
+    }
+  }
+  
+  
+  /*
+   * Appends a parenthesized list of field names to a sql string.
+   */
+  private static void appendFieldNames(StringBuffer sql, String[] fieldNames) {
+    sql.append(LEFTPARENTH);
+    
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (i > 0) {
+        sql.append(COMMA);
+      }
+      sql.append(fieldNames[i]);
+    }
+    
+    sql.append(RIGHTPARENTH);
+  }
+
+
   /**
    * The map between metadat data type and database native data type.
    * 
@@ -526,29 +742,6 @@ public abstract class DatabaseAdapter {
   }
 
   
-  /*
-   * Determins if the value is in the missValue list
-   */
-  private boolean isMissingValue(String value, String[] missValues)
-  {
-      boolean isMissingValue = false;
-      if (missValues != null && value!=null)
-      {
-          int size = missValues.length;
-          for (int i=0; i<size; i++)
-          {
-              String missValue = missValues[i];
-              if (value.equals(missValue))
-              {
-                  isMissingValue = true;
-                  break;
-              }
-          }
-      }
-      return isMissingValue;
-  }
-  
-  
   /**
    * Mangles a field name by appending a string to it. The purpose is to
    * handle the case where a field name has already been found in the table,
@@ -690,21 +883,64 @@ public abstract class DatabaseAdapter {
    */
   protected String escapeSpecialCharacterInData(String data)
   {
-	  String[] specialArray = {"'"};
-	  String escape = "'";
-	  if (data == null)
+	  if (data == null || data.indexOf('\'') < 0)
 	  {
 		  return data;
 	  }
-	  int size = specialArray.length;
+	  StringBuffer escaped = new StringBuffer(data.length() + 8);
+	  int size = data.length();
 	  for (int i=0; i<size; i++)
 	  {
-		  String special = specialArray[i];
-		  if (data.contains(special)) {
-			  data = data.replaceAll(special, escape+special);
+		  char c = data.charAt(i);
+		  if (c == '\'') {
+			  escaped.append(c);
 		  }
+		  escaped.append(c);
 	  }
-	  return data;
+	  return escaped.toString();
+  }
+  
+  
+  /*
+   * The converters compiled for the attribute list that was last passed to
+   * generateInsertSQL(). Instances are immutable so that the field can be
+   * replaced safely.
+   */
+  private static final class CompiledAttributeList {
+    private final AttributeList attributeList;
+    private final AttributeConverter[] converters;
+    
+    private CompiledAttributeList(AttributeList attributeList,
+                                  AttributeConverter[] converters) {
+      this.attributeList = attributeList;
+      this.converters = converters;
+    }
+    
+    private boolean matches(AttributeList list) {
+      if (list != attributeList) {
+        return false;
+      }
+      
+      Attribute[] attributes = list.getAttributes();
+      if (attributes == null || attributes.length != converters.length) {
+        return false;
+      }
+      
+      for (int i = 0; i < attributes.length; i++) {
+        Attribute attribute = attributes[i];
+        if (attribute != converters[i].getAttribute()) {
+          return false;
+        }
+        String fieldName = attribute.getDBFieldName();
+        String compiledName = converters[i].getFieldName();
+        if (fieldName == null ? compiledName != null
+                              : !fieldName.equals(compiledName)) {
+          return false;
+        }
+      }
+      
+      return true;
+    }
   }
   
 }
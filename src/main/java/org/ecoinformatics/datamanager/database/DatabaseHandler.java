@@ -36,7 +36,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.ecoinformatics.datamanager.DataManager;
 import org.ecoinformatics.datamanager.download.DataStorageInterface;
 import org.ecoinformatics.datamanager.download.DownloadHandler;
@@ -61,6 +65,8 @@ public class DatabaseHandler
   /*
    * Class fields
    */
+  public static Log log = LogFactory.getLog(DatabaseHandler.class);
+  
   private TableMonitor tableMonitor = null;
   
   
@@ -125,7 +131,6 @@ public class DatabaseHandler
    * @return  true if the data table was successfully dropped, else false.
    */
   boolean dropTable(String tableName) throws SQLException {
-    Connection connection = DataManager.getConnection();
     boolean success = false;
     String sqlString;
     
@@ -134,10 +139,13 @@ public class DatabaseHandler
        * If the table is in the database, drop it.
        */
       if (tableMonitor.isTableInDB(tableName)) {
+        Connection connection = DataManager.getConnection();
         Statement stmt = null;
         sqlString = databaseAdapter.generateDropTableSQL(tableName);
 
         try {
+          new ConstraintBuilder(databaseAdapter, tableMonitor)
+            .dropReferencingForeignKeys(connection, tableName);
           stmt = connection.createStatement();
           stmt.executeUpdate(sqlString);
           success = true;
@@ -390,6 +398,103 @@ public class DatabaseHandler
   }
   
   
+  /**
+   * Determines whether an interrupted load of an entity's data table can be
+   * resumed, in which case its table should be kept rather than dropped.
+   * This is simply a pass-through method to the TableMonitor.
+   * 
+   * @param   entity  the entity whose load is being checked
+   * @return  true if the table holds rows committed by an unfinished load
+   *          that can be resumed, else false
+   */
+  public boolean isLoadResumable(Entity entity) {
+    boolean isResumable = false;
+    String tableName = entity.getDBTableName();
+    
+    try {
+      if (tableName != null) {
+        LoadCheckpoint checkpoint = tableMonitor.getLoadCheckpoint(tableName);
+        isResumable = (checkpoint != null && checkpoint.isResumable());
+      }
+    }
+    catch (SQLException e) {
+      log.warn("Treating the load of " + tableName + " as not resumable, " +
+               "since its checkpoint could not be read: " + e.getMessage());
+      return false;
+    }
+    
+    return isResumable;
+  }
+  
+  
+  /**
+   * Gets the scope that the table of an entity was loaded within.
+   * 
+   * @param   entity  the entity
+   * @return  the load scope, or null if the entity has no table or its
+   *          table holds all of the entity
+   */
+  public LoadScope getLoadScope(Entity entity) throws SQLException {
+    String tableName = 
+      tableMonitor.identifierToTableName(entity.getEntityIdentifier());
+    
+    return (tableName == null) ? null : tableMonitor.getLoadScope(tableName);
+  }
+  
+  
+  /**
+   * Determines whether the table of an entity already holds the data that
+   * a load within a given scope would. A table that holds all of the
+   * entity holds that of any scope; whether it holds all of the data of
+   * its source is left to the DownloadHandler to determine.
+   * 
+   * @param   entity     the entity
+   * @param   loadScope  the scope of the load, or null for all of the entity
+   * @return  true if the table need not be loaded, else false
+   */
+  public boolean isLoaded(Entity entity, LoadScope loadScope) 
+          throws SQLException {
+    if (loadScope == null) {
+      return false;
+    }
+    
+    String tableName = 
+      tableMonitor.identifierToTableName(entity.getEntityIdentifier());
+    
+    if (tableName == null || !tableMonitor.isTableInDB(tableName)) {
+      return false;
+    }
+    
+    LoadCheckpoint checkpoint = tableMonitor.getLoadCheckpoint(tableName);
+    if (checkpoint != null && !checkpoint.isComplete()) {
+      return false;
+    }
+    
+    LoadScope tableScope = tableMonitor.getLoadScope(tableName);
+    
+    return (tableScope == null) || tableScope.covers(loadScope);
+  }
+  
+  
+  /**
+   * Drops the table of an entity if it holds only part of the entity, so
+   * that it can be loaded again within another scope.
+   * 
+   * @param   entity  the entity
+   * @return  true if a table was dropped, else false
+   */
+  public boolean dropPartialTable(Entity entity) throws SQLException {
+    String tableName = 
+      tableMonitor.identifierToTableName(entity.getEntityIdentifier());
+    
+    if (tableName != null && tableMonitor.getLoadScope(tableName) != null) {
+      return dropTable(tableName);
+    }
+    
+    return false;
+  }
+  
+  
   /**
    * Loads the data for all entities in a data package into the database.
    * 
@@ -406,9 +511,45 @@ public class DatabaseHandler
       success = success && loadDataToDB(entity, endInfo);
     }
     
+    try {
+      buildForeignKeys(dataPackage);
+    }
+    catch (SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+    }
+    
     return success;
   }
   
+  
+  /**
+   * Builds the foreign keys between the loaded tables of a data package,
+   * if foreign keys are enabled in the ConstraintBuilder. Foreign keys
+   * whose values are not found in the referenced table are reported in
+   * the quality report of their entity.
+   * 
+   * @param   dataPackage  the data package whose entities were loaded
+   * @return  the number of foreign keys in the database
+   */
+  public int buildForeignKeys(DataPackage dataPackage) throws SQLException {
+    int count = 0;
+    
+    if (ConstraintBuilder.isForeignKeysEnabled()) {
+      Connection connection = DataManager.getConnection();
+      
+      try {
+        ConstraintBuilder constraintBuilder = 
+          new ConstraintBuilder(databaseAdapter, tableMonitor);
+        count = constraintBuilder.buildForeignKeys(connection, dataPackage);
+      }
+      finally {
+        DataManager.returnConnection(connection);
+      }
+    }
+    
+    return count;
+  }
+  
 
   /**
    * Loads the data for a single entity into the database.
@@ -418,16 +559,67 @@ public class DatabaseHandler
    * @return  true on success, false on failure
    */
   public boolean loadDataToDB(Entity entity, EcogridEndPointInterface endPointInfo)
+  {
+    return loadDataToDB(entity, endPointInfo, null);
+  }
+  
+  
+  /**
+   * Loads the data of a single entity that is within a scope into the
+   * database. The scope is dropped, and all of the entity loaded, if the
+   * registry cannot record it. The load fails if the entity's table is
+   * being evicted to free space.
+   * 
+   * @param   entity        the Entity object whose data is to be loaded.
+   * @param   endPointInfo  which provides ecogrid endpoint information
+   * @param   loadScope     the attributes and rows to load, or null to load
+   *                        all of the entity
+   * @return  true on success, false on failure
+   */
+  public boolean loadDataToDB(Entity entity, 
+                              EcogridEndPointInterface endPointInfo,
+                              LoadScope loadScope)
   {
 	boolean success = false;
     
 	if (entity != null) {
       // String identifier = entity.getEntityIdentifier();
       DownloadHandler downloadHandler = entity.getDownloadHandler(endPointInfo);
-      DatabaseLoader dbLoader = null;
+      DataStorageInterface dbLoader = null;
+      String tableName = entity.getDBTableName();
+      long previousVersion = TableMonitor.getTableVersion(tableName);
+      
+      // Keep the table from being evicted while it is loaded
+      boolean isOpen = (tableName != null) && tableMonitor.openTable(tableName);
+      
+      if (tableName != null && !isOpen) {
+        // The table is being dropped to free space, so there is nothing
+        // left to load into
+        log.warn("Unable to load " + tableName + 
+                 ", since it is being evicted from the database");
+        return false;
+      }
       
       try {
-        dbLoader = new DatabaseLoader(dbAdapterName, entity);
+        if (loadScope != null && 
+            (!tableMonitor.supportsLoadScopes() ||
+             loadScope.toString().length() > LoadScope.MAX_LENGTH)) {
+          loadScope = null;
+        }
+        
+        if (loadScope == null &&
+            databaseAdapter instanceof HSQLAdapter &&
+            HSQLTextTableLoader.getLoadMode() != HSQLTextTableLoader.MODE_OFF &&
+            HSQLTextTableLoader.canLoad(entity)) {
+          // Let HSQLDB read the delimited file through a TEXT table
+          dbLoader = new HSQLTextTableLoader(entity);
+        }
+        else {
+          DatabaseLoader databaseLoader = 
+            new DatabaseLoader(dbAdapterName, entity);
+          databaseLoader.setLoadScope(loadScope);
+          dbLoader = databaseLoader;
+        }
         DataStorageInterface[] storage = new DataStorageInterface[1];
         storage[0] = dbLoader;
         /*
@@ -441,15 +633,120 @@ public class DatabaseHandler
       catch (Exception e) {
         success = false;
       }
-		
+      finally {
+        if (isOpen) tableMonitor.closeTable(tableName);
+      }
+      
+      String deltaTableName = null;
+      boolean changed = true;
+      boolean rowsWritten = success;
+      if (dbLoader instanceof DatabaseLoader) {
+        deltaTableName = ((DatabaseLoader) dbLoader).getDeltaTableName();
+        changed = ((DatabaseLoader) dbLoader).isSerializing();
+        rowsWritten = ((DatabaseLoader) dbLoader).isRowsWritten();
+      }
+      
+      if (rowsWritten) {
+        // Only a change to the rows makes the cached results stale
+        TableMonitor.recordTableChange(tableName);
+      }
+      
+      if (success && tableName != null) {
+        // Bring the views of the table up to date with the loaded rows
+        new DataViewManager(databaseAdapter, tableMonitor)
+          .refreshViewsOf(tableName, previousVersion, changed, deltaTableName);
+      }
+      if (deltaTableName != null) {
+        new DataViewManager(databaseAdapter, tableMonitor)
+          .dropDeltaTable(deltaTableName);
+      }
+      
+      // The new data may push the tables beyond the maximum database size
+      if (success) {
+        tableMonitor.requestEviction();
+      }
 	}
     return success;
   }
   
 
+  /**
+   * Creates a materialized data view from a CREATE VIEW statement on the
+   * tables of loaded entities.
+   * 
+   * @param ANSISQL   The CREATE VIEW statement.
+   * @param entities  The entities whose tables the view is selected from.
+   * @return          true if the view was created
+   */
+  public boolean createDataView(String ANSISQL, Entity[] entities)
+          throws SQLException {
+    return new DataViewManager(databaseAdapter, tableMonitor)
+      .createView(ANSISQL, entities);
+  }
+  
+  
+  /**
+   * Creates a materialized data view of the rows of a query on the tables
+   * of loaded entities.
+   * 
+   * @param viewName  The name of the view.
+   * @param query     The query.
+   * @return          true if the view was created
+   */
+  public boolean createDataView(String viewName, Query query)
+          throws SQLException, UnWellFormedQueryException {
+    return new DataViewManager(databaseAdapter, tableMonitor)
+      .createView(viewName, query);
+  }
+  
+  
+  /**
+   * Drops a materialized data view.
+   * 
+   * @param viewName  The name of the view.
+   * @return          true if the view was dropped
+   */
+  public boolean dropDataView(String viewName) throws SQLException {
+    return new DataViewManager(databaseAdapter, tableMonitor)
+      .dropView(viewName);
+  }
+  
+  
+  /**
+   * Runs the index advisor on the tables in the database, creating the
+   * indexes of the fields that queries use most and retiring those of the
+   * fields they no longer use.
+   * 
+   * @return  the number of indexes created and retired
+   */
+  public int adviseIndexes() {
+    return new IndexAdvisor(databaseAdapter, tableMonitor).advise();
+  }
+  
+  
+  /**
+   * Runs a selection query on one or more materialized data views. A view
+   * is refreshed first if a table it is selected from has changed since it
+   * was refreshed. The result set holds its connection until it is closed,
+   * so it must be closed.
+   * 
+   * @param ANSISQL  The ANSI SQL query string.
+   * @return         A ResultSet object as returned by the database query.
+   */
+  public ResultSet selectDataFromView(String ANSISQL) throws SQLException {
+    new DataViewManager(databaseAdapter, tableMonitor).refreshViewsIn(ANSISQL);
+    QueryCursor queryCursor = 
+      new QueryCursor(ANSISQL, QueryCursor.getDefaultFetchSize(), 
+                      tableMonitor, new ArrayList<String>());
+    
+    return queryCursor.getResultSet();
+  }
+  
+  
   /**
    * Runs a selection query on the data contained in one or more data packages.
-   * Not yet implemented.
+   * The result set holds its connection, and keeps the tables of the data
+   * packages from being evicted, until it is closed, so it must be closed.
    * 
    * @param ANSISQL      The ANSI SQL query string.
    * @param dataPackage  The data packages to be queried.
@@ -457,24 +754,194 @@ public class DatabaseHandler
    */
   public ResultSet selectData(String ANSISQL, DataPackage[] packages)
           throws SQLException {
-    Connection connection = DataManager.getConnection();
-    ResultSet rs = null;
-    Statement stmt = null;
+    QueryCursor queryCursor = openCursor(ANSISQL, packages);
     
-    try {
-      stmt = connection.createStatement();
-      rs = stmt.executeQuery(ANSISQL);
+    return queryCursor.getResultSet();
+  }
+  
+  
+  /**
+   * Opens a cursor over the rows of a selection query on the data contained
+   * in one or more data packages, which fetches the default fetch size of
+   * rows at a time.
+   * 
+   * @param ANSISQL   The ANSI SQL query string.
+   * @param packages  The data packages to be queried.
+   * @return          A QueryCursor that must be closed.
+   */
+  public QueryCursor openCursor(String ANSISQL, DataPackage[] packages)
+          throws SQLException {
+    return openCursor(ANSISQL, packages, QueryCursor.getDefaultFetchSize());
+  }
+  
+  
+  /**
+   * Opens a cursor over the rows of a selection query on the data contained
+   * in one or more data packages. The cursor holds a connection, and keeps 
+   * the tables of the data packages from being evicted, until it is closed.
+   * 
+   * @param ANSISQL    The ANSI SQL query string.
+   * @param packages   The data packages to be queried.
+   * @param fetchSize  The number of rows to fetch from the database at a
+   *                   time, or 0 to leave it to the driver.
+   * @return           A QueryCursor that must be closed.
+   */
+  public QueryCursor openCursor(String ANSISQL, DataPackage[] packages,
+                                int fetchSize)
+          throws SQLException {
+    ArrayList<String> openTableNames = openTables(packages);
+    
+    return new QueryCursor(ANSISQL, fetchSize, tableMonitor, openTableNames);
+  }
+  
+  
+  /**
+   * Runs a bound selection query on the data contained in one or more data
+   * packages, with the statement that the connection has prepared for its
+   * template. The result set must be closed.
+   * 
+   * If the QueryResultCache is enabled, the result is read into memory and
+   * cached, and a query that is run again while the tables of the data
+   * packages are unchanged is answered from the cache. Once a result is
+   * larger than the cache allows, the rows that were read are followed by
+   * the rest of the query's rows, which are not read into memory.
+   * 
+   * @param boundQuery  The query template and its values.
+   * @param packages    The data packages to be queried.
+   * @return            A ResultSet object as returned by the database query.
+   */
+  public ResultSet selectData(BoundQuery boundQuery, DataPackage[] packages)
+          throws SQLException {
+    if (QueryResultCache.isEnabled()) {
+      // The versions are read before the query runs
+      Map<String, Long> versions = getTableVersions(packages);
+      
+      if (versions != null) {
+        ColumnarResult result = QueryResultCache.get(boundQuery, versions);
+        
+        if (result == null) {
+          QueryCursor queryCursor = 
+            openCursor(boundQuery, packages, QueryCursor.getDefaultFetchSize());
+          result = ColumnarResult.read(queryCursor, 
+                                       QueryResultCache.getMaxBytes());
+          
+          if (!queryCursor.isClosed()) {
+            // Too large to cache, so the rest of the rows are streamed
+            return result.openResultSet(queryCursor);
+          }
+          QueryResultCache.put(boundQuery, versions, result);
+        }
+        
+        return result.openResultSet();
+      }
     }
-    catch (SQLException e) {
-      System.err.println("SQLException: " + e.getMessage());
-      throw(e);
+    
+    QueryCursor queryCursor = 
+      openCursor(boundQuery, packages, QueryCursor.getDefaultFetchSize());
+    
+    return queryCursor.getResultSet();
+  }
+  
+  
+  /**
+   * Opens a cursor over the rows of a bound selection query on the data
+   * contained in one or more data packages. Queries that differ only in
+   * their values reuse the statement that the connection prepared for
+   * their template.
+   * 
+   * @param boundQuery  The query template and its values.
+   * @param packages    The data packages to be queried.
+   * @param fetchSize   The number of rows to fetch from the database at a
+   *                    time, or 0 to leave it to the driver.
+   * @return            A QueryCursor that must be closed.
+   */
+  public QueryCursor openCursor(BoundQuery boundQuery, DataPackage[] packages,
+                                int fetchSize)
+          throws SQLException {
+    ArrayList<String> openTableNames = openTables(packages);
+    
+    return new QueryCursor(boundQuery, databaseAdapter, fetchSize, 
+                           tableMonitor, openTableNames);
+  }
+  
+  
+  /**
+   * Opens a cursor over the rows of a union of queries on the data contained
+   * in one or more data packages, which runs the member queries in parallel,
+   * each on its own connection, and merges their rows as they arrive.
+   * 
+   * @param union        The union of queries.
+   * @param packages     The data packages to be queried.
+   * @param fetchSize    The number of rows to fetch from the database at a
+   *                     time.
+   * @param parallelism  The largest number of member queries to run at a
+   *                     time.
+   * @return             A UnionCursor that must be closed.
+   */
+  public UnionCursor openUnionCursor(Union union, DataPackage[] packages,
+                                     int fetchSize, int parallelism)
+          throws SQLException, UnWellFormedQueryException {
+    BoundQuery[] memberQueries = union.toBoundQueries();
+    ArrayList<String> openTableNames = openTables(packages);
+    
+    return new UnionCursor(memberQueries, databaseAdapter,
+                           union.getUnionType(), fetchSize, parallelism,
+                           tableMonitor, openTableNames);
+  }
+  
+  
+  /*
+   * Gets the versions of the tables of the data packages, by upper-case
+   * table name, or null if the data packages have no tables.
+   */
+  private Map<String, Long> getTableVersions(DataPackage[] packages) 
+          throws SQLException {
+    TreeMap<String, Long> versions = new TreeMap<String, Long>();
+    
+    if (packages != null) {
+      for (int i = 0; i < packages.length; i++) {
+        if (packages[i] == null) continue;
+        ArrayList<String> tableNames = 
+          tableMonitor.getDBTableNames(packages[i].getPackageId());
+        
+        if (tableNames != null) {
+          for (String tableName : tableNames) {
+            versions.put(tableName.toUpperCase(), 
+                         Long.valueOf(TableMonitor.getTableVersion(tableName)));
+          }
+        }
+      }
     }
-    finally {
-      //if (stmt != null) stmt.close();
-      DataManager.returnConnection(connection);
+    
+    return versions.isEmpty() ? null : versions;
+  }
+  
+  
+  /*
+   * Keeps the tables of the data packages from being evicted while they are
+   * queried, returning the names of the tables that were opened.
+   */
+  private ArrayList<String> openTables(DataPackage[] packages) 
+          throws SQLException {
+    ArrayList<String> openTableNames = new ArrayList<String>();
+    
+    if (packages != null) {
+      for (int i = 0; i < packages.length; i++) {
+        if (packages[i] == null) continue;
+        ArrayList<String> tableNames = 
+          tableMonitor.getDBTableNames(packages[i].getPackageId());
+        
+        if (tableNames != null) {
+          for (String tableName : tableNames) {
+            if (tableMonitor.openTable(tableName)) {
+              openTableNames.add(tableName);
+            }
+          }
+        }
+      }
     }
     
-    return rs;
+    return openTableNames;
   }
 
 }
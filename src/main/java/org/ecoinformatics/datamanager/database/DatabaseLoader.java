@@ -8,13 +8,15 @@ import java.io.PipedOutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ecoinformatics.datamanager.DataManager;
 import org.ecoinformatics.datamanager.download.DataSourceNotFoundException;
-import org.ecoinformatics.datamanager.download.DataStorageInterface;
+import org.ecoinformatics.datamanager.download.IncrementalDataStorageInterface;
+import org.ecoinformatics.datamanager.download.SourceValidator;
 import org.ecoinformatics.datamanager.parser.AttributeList;
 import org.ecoinformatics.datamanager.parser.Entity;
 import org.ecoinformatics.datamanager.quality.QualityCheck;
@@ -29,7 +31,8 @@ import org.ecoinformatics.datamanager.quality.QualityCheck.Status;
  * @author Jing Tao
  *
  */
-public class DatabaseLoader implements DataStorageInterface, Runnable 
+public class DatabaseLoader implements IncrementalDataStorageInterface, 
+                                       Runnable 
 {
   
   /*
@@ -40,6 +43,26 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
 
   private static TableMonitor tableMonitor = null;  
   
+  /* The default number of rows sent to the database in one JDBC batch */
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  
+  private static int batchSize = DEFAULT_BATCH_SIZE;
+  
+  /* By default a table is loaded in a single transaction */
+  public static final int DEFAULT_COMMIT_INTERVAL = 0;
+  
+  private static int commitInterval = DEFAULT_COMMIT_INTERVAL;
+  
+  /* By default rows are converted by the thread that inserts them */
+  public static final int DEFAULT_CONVERSION_THREADS = 0;
+  
+  private static int conversionThreads = DEFAULT_CONVERSION_THREADS;
+  
+  /* The default number of batches queued between the pipeline's stages */
+  public static final int DEFAULT_PIPELINE_QUEUE_CAPACITY = 4;
+  
+  private static int pipelineQueueCapacity = DEFAULT_PIPELINE_QUEUE_CAPACITY;
+  
   
   /*
    * Instance fields
@@ -52,6 +75,15 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
   private boolean completed = false;
   private boolean success = false;
   private Exception exception = null;
+  private LoadCheckpoint lastCheckpoint = null;
+  private LoadPipelineMetrics pipelineMetrics = null;
+  private SourceValidator sourceValidator = null; // recorded on success
+  private long appendOffset = 0;     // source bytes loaded before, to append
+  private boolean replaceData = false;  // true to replace the loaded rows
+  private boolean serializing = false;  // true once startSerialize is called
+  private boolean rowsWritten = false;  // true once rows are committed
+  private LoadScope loadScope = null;   // the attributes and rows to load
+  private String deltaTableName = null; // the table of the appended rows
   
   
   /*
@@ -89,6 +121,186 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
     
     tableMonitor = new TableMonitor(databaseAdapter);
   }
+  
+  
+  /*
+   * Class methods
+   */
+  
+  /**
+   * Gets the number of rows that loaders send to the database in one JDBC
+   * batch.
+   * 
+   * @return the batch size
+   */
+  public static int getBatchSize() {
+    return batchSize;
+  }
+  
+  
+  /**
+   * Sets the number of rows that loaders send to the database in one JDBC
+   * batch. Rows are then inserted through a single parameterized INSERT
+   * statement. A batch size of zero or less switches back to executing one
+   * INSERT statement with literal values per row.
+   * 
+   * @param size  the batch size
+   */
+  public static void setBatchSize(int size) {
+    batchSize = size;
+  }
+  
+  
+  /**
+   * Gets the number of rows that loaders commit at a time.
+   * 
+   * @return the commit interval, or zero if tables are loaded in a single
+   *         transaction
+   */
+  public static int getCommitInterval() {
+    return commitInterval;
+  }
+  
+  
+  /**
+   * Sets the number of rows that loaders commit at a time. With each commit
+   * a checkpoint holding the number of rows read and the offset reached in
+   * the data is recorded in the data table registry, so that a load that is
+   * interrupted, e.g. by a failing download, keeps its committed rows and
+   * is resumed after the last checkpoint the next time the entity is
+   * loaded. A load that fails on the data itself is not resumed. An
+   * interval of zero or less, the default, loads each table in a single 
+   * transaction.
+   * 
+   * @param interval  the number of rows read between commits
+   */
+  public static void setCommitInterval(int interval) {
+    commitInterval = interval;
+  }
+  
+  
+  /**
+   * Gets the number of threads that convert the values of each load.
+   * 
+   * @return the number of conversion threads, or zero if rows are loaded
+   *         by a single thread
+   */
+  public static int getConversionThreads() {
+    return conversionThreads;
+  }
+  
+  
+  /**
+   * Sets the number of threads that convert the values of each load. With
+   * one or more threads, tables loaded through batched INSERT statements 
+   * are loaded by a LoadPipeline: one thread parses the data, the 
+   * conversion threads convert its values, and the loader's thread inserts
+   * them, each stage working on a different batch of rows. Parsing stays on
+   * a single thread since the rows of a stream can only be found in order.
+   * Zero or less, the default, loads each table on a single thread.
+   * 
+   * @param threads  the number of conversion threads
+   */
+  public static void setConversionThreads(int threads) {
+    conversionThreads = threads;
+  }
+  
+  
+  /**
+   * Gets the number of batches of rows that may be queued between the
+   * stages of a LoadPipeline.
+   * 
+   * @return the queue capacity
+   */
+  public static int getPipelineQueueCapacity() {
+    return pipelineQueueCapacity;
+  }
+  
+  
+  /**
+   * Sets the number of batches of rows that may be queued between the
+   * stages of a LoadPipeline. A larger queue absorbs more variation in the
+   * speed of the stages, at the cost of holding more rows in memory.
+   * 
+   * @param capacity  the queue capacity, in batches
+   */
+  public static void setPipelineQueueCapacity(int capacity) {
+    pipelineQueueCapacity = capacity;
+  }
+	
+	 
+  /**
+   * Records the outcome of a load in the entity's quality report: the data
+   * load status, and whether the number of rows loaded matches the number
+   * of records declared in the metadata.
+   * 
+   * @param entity                the entity that was loaded
+   * @param dataLoadQualityCheck  the "dataLoadStatus" quality check
+   * @param rowCount              the number of rows loaded
+   */
+  static void addLoadStatusChecks(Entity entity, 
+                                  QualityCheck dataLoadQualityCheck,
+                                  int rowCount) {
+    if (QualityCheck.shouldRunQualityCheck(entity, dataLoadQualityCheck)) {
+
+      if (rowCount > 0) {         
+        dataLoadQualityCheck.setStatus(Status.valid);
+        dataLoadQualityCheck.setFound("The data table loaded successfully into a database");
+      }
+      else {
+        dataLoadQualityCheck.setFailedStatus();
+        dataLoadQualityCheck.setFound("No data could be loaded into a database");
+      }
+      entity.addQualityCheck(dataLoadQualityCheck);   
+       
+      /*
+       * Store number of records found in a QualityCheck object
+       */
+      String numberOfRecordsIdentifier = "numberOfRecords";
+      QualityCheck numberOfRecordsTemplate = 
+        QualityReport.getQualityCheckTemplate(numberOfRecordsIdentifier);
+      QualityCheck numberOfRecordsQualityCheck = 
+        new QualityCheck(numberOfRecordsIdentifier, numberOfRecordsTemplate);
+      if (QualityCheck.shouldRunQualityCheck(entity, numberOfRecordsQualityCheck)) {
+        int expectedNumberOfRecords = entity.getNumRecords();
+        numberOfRecordsQualityCheck.setExpected("" + expectedNumberOfRecords);
+        numberOfRecordsQualityCheck.setFound("" + rowCount);        
+        if (expectedNumberOfRecords == rowCount) {
+          numberOfRecordsQualityCheck.setStatus(Status.valid);
+          numberOfRecordsQualityCheck.setExplanation(
+            "The expected number of records (" + 
+            rowCount + ") was found in the data table.");
+        }
+        // When zero records were counted, set an error status
+        else if ((expectedNumberOfRecords != 0) && (rowCount == 0)) {
+          numberOfRecordsQualityCheck.setFailedStatus();
+          numberOfRecordsQualityCheck.setExplanation(
+            "The number of records found in the data table was: " +  
+            rowCount +
+            ". Check that a valid record delimiter was specified in the metadata.");
+        }
+        // When 'numberOfRecords' is not specified in the EML, the EML
+        // parser sets the value to -1.
+        else if (expectedNumberOfRecords < 0) {
+          numberOfRecordsQualityCheck.setStatus(Status.info);
+          numberOfRecordsQualityCheck.setExplanation(
+            "The number of records found in the data table was: " +  
+            rowCount +
+            ". There was no 'numberOfRecords' value specified in the EML.");
+        }
+        else {
+          // Report number of records check as failed
+          numberOfRecordsQualityCheck.setFailedStatus();
+          numberOfRecordsQualityCheck.setExplanation(
+            "The number of records found in the data table (" + rowCount +
+            ") does not match the 'numberOfRecords' value specified in the EML (" +
+            expectedNumberOfRecords + ")"
+          );
+        }
+        entity.addQualityCheck(numberOfRecordsQualityCheck);
+      }
+    }
+  }
 	
 	 
   /**
@@ -122,14 +334,165 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
    *         is to be serialized.
    */
   public OutputStream startSerialize(String identifier) {
+    appendOffset = 0;
+    replaceData = false;
+    
+    return startLoad();
+  }
+  
+  
+  /**
+   * Starts to serialize a source whose data is already loaded into the table,
+   * either replacing the rows of the table or appending the rows of the tail
+   * of the source that starts at the given offset. This method is required
+   * for implementing IncrementalDataStorageInterface.
+   * 
+   * @param identifier  An identifier to the data in the local store that is 
+   *                    to be serialized.
+   * @param validator   the validator of the source, recorded on success
+   * @param offset      zero to replace the rows, or the number of bytes of
+   *                    the source that are already loaded
+   * @return An output stream to the location in the local store where the data
+   *         is to be serialized.
+   */
+  public OutputStream startSerialize(String identifier, 
+                                     SourceValidator validator, long offset) {
+    sourceValidator = validator;
+    appendOffset = (offset > 0) ? offset : 0;
+    replaceData = (offset <= 0);
+    
+    return startLoad();
+  }
+  
+  
+  /*
+   * Starts the thread that loads the data written to the output stream.
+   */
+  private OutputStream startLoad() {
     log.debug("DatabaseLoader.startSerialize()");
     completed = false;
     success = false;
+    serializing = true;
     Thread newThread = new Thread(this);
     newThread.start();
     
     return outputStream;
   }
+  
+  
+  /**
+   * Gets the validator of the source that the table of the given identifier
+   * was loaded from.
+   * 
+   * @param identifier  the identifier for the data table
+   * @return  the validator, or null if none is recorded
+   */
+  public SourceValidator getSourceValidator(String identifier) {
+    SourceValidator validator = null;
+    
+    if (loadScope != null) {
+      // A source that is loaded within a scope is always read again
+      return null;
+    }
+    
+    try {
+      String tableName = tableMonitor.identifierToTableName(identifier);
+      
+      if (tableName != null) {
+        validator = tableMonitor.getSourceValidator(tableName);
+      }
+    }
+    catch (SQLException e) {
+      log.error(e.getMessage());
+    }
+    
+    return validator;
+  }
+  
+  
+  /**
+   * Sets the validator of the source to record once the data is loaded.
+   * 
+   * @param identifier  the identifier for the data table
+   * @param validator   the validator of the source, or null
+   */
+  public void setSourceValidator(String identifier, SourceValidator validator) {
+    sourceValidator = validator;
+  }
+  
+  
+  /**
+   * Determines whether the rows of a tail of the source can be appended to
+   * the table. This is the case for simple delimited data without footer
+   * lines, whose rows can be read from any line on.
+   * 
+   * @param identifier  the identifier for the data table
+   * @return  true if a tail can be appended, else false
+   */
+  public boolean canAppend(String identifier) {
+    return entity != null && entity.isSimpleDelimited() &&
+           entity.getNumFooterLines() == 0 && loadScope == null &&
+           tableMonitor.supportsSourceValidators();
+  }
+  
+  
+  /**
+   * Gets the scope that the data is loaded within.
+   * 
+   * @return  the load scope, or null if all of the entity is loaded
+   */
+  public LoadScope getLoadScope() {
+    return loadScope;
+  }
+  
+  
+  /**
+   * Sets the scope that the data is loaded within: only the attributes of
+   * the scope are given values, and only the rows that pass its conditions
+   * are inserted. The scope is recorded with the table in the registry. A
+   * scoped load is neither checkpointed nor appended to, and the keys of
+   * the entity are not built on its table.
+   * 
+   * @param loadScope  the load scope, or null to load all of the entity
+   */
+  public void setLoadScope(LoadScope loadScope) {
+    this.loadScope = loadScope;
+  }
+
+
+  /**
+   * Gets the table that the appended rows were loaded into before they were
+   * copied into the table of the entity, so that the views of the entity
+   * can be refreshed from them.
+   *
+   * @return  the name of the table of appended rows, or null if the rows
+   *          were loaded into the table of the entity directly
+   */
+  public String getDeltaTableName() {
+    return deltaTableName;
+  }
+
+
+  /**
+   * Determines whether the data was serialized into the database, rather
+   * than found to be loaded already.
+   *
+   * @return  true once startSerialize has been called
+   */
+  public boolean isSerializing() {
+    return serializing;
+  }
+
+
+  /**
+   * Determines whether the load committed any change to the rows of the
+   * table, including the chunks committed before a load failed.
+   *
+   * @return  true if rows were inserted into or deleted from the table
+   */
+  public boolean isRowsWritten() {
+    return rowsWritten;
+  }
 		
         
   /**
@@ -231,39 +594,90 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
     String tableName = entity.getDBTableName();
     TextDataReader dataReader = null;
     boolean stripHeaderLine = true;
+    boolean useCheckpoints = false;
+    LoadCheckpoint checkpoint = null;
+    InputStream dataStream = inputStream;
+    long skippedBytes = 0;
+    long sourceRows = 0;
+    int resumedRowCount = 0;
     
     if (inputStream != null) {
+      if (conversionThreads > 0 && batchSize > 0) {
+        pipelineMetrics = new LoadPipelineMetrics();
+        dataStream = pipelineMetrics.timeReads(inputStream);
+      }
+      
       try {
-        if (entity.isSimpleDelimited()) {
-          delimitedReader = new DelimitedReader(
-                                  inputStream,
-                                  entity.getAttributes().length, 
-                                  entity.getFieldDelimiter(), 
-                                  entity.getNumHeaderLines(),
-                                  entity.getRecordDelimiter(),
-                                  entity.getNumRecords(),
-                                  stripHeaderLine
-                                 );
-          delimitedReader.setEntity(entity);
-          delimitedReader.setCollapseDelimiters(entity.getCollapseDelimiters());
-          delimitedReader.setNumFooterLines(entity.getNumFooterLines());
-          if (entity.getQuoteCharacter() != null)
-          {
-            delimitedReader.setQuoteCharacter(entity.getQuoteCharacter());
+        if (commitInterval > 0 && loadScope == null &&
+            tableMonitor.supportsLoadCheckpoints()) {
+          useCheckpoints = true;
+          checkpoint = tableMonitor.getLoadCheckpoint(tableName);
+          
+          if (appendOffset > 0 && checkpoint != null) {
+            // Count the appended rows on from those of the complete load
+            sourceRows = checkpoint.getRowNumber();
           }
-          if (entity.getLiteralCharacter() != null)
-          {
-            delimitedReader.setLiteralCharacter(entity.getLiteralCharacter());
+          
+          if (checkpoint != null && 
+              (!checkpoint.isResumable() || appendOffset > 0 || replaceData)) {
+            checkpoint = null;
           }
+        }
+        
+        if (appendOffset > 0) {
+          // The stream starts at the first row after the loaded ones
+          log.info("Appending to " + tableName + " from byte " + appendOffset);
+          skippedBytes = appendOffset;
+          resumedRowCount = tableMonitor.countRows(tableName);
+          delimitedReader = new DelimitedReader(dataStream, entity, false);
+          dataReader = delimitedReader;
+        }
+        else if (checkpoint != null && checkpoint.getByteOffset() > 0 &&
+            entity.isSimpleDelimited()) {
+          // Skip the committed rows, and the header, without parsing them
+          skipBytes(inputStream, checkpoint.getByteOffset(), tableName);
+          skippedBytes = checkpoint.getByteOffset();
+          delimitedReader = new DelimitedReader(dataStream, entity, false);
+          dataReader = delimitedReader;
+        }
+        else if (entity.isSimpleDelimited()) {
+          delimitedReader = 
+            new DelimitedReader(dataStream, entity, stripHeaderLine);
           dataReader = delimitedReader;
         } 
         else {
-          dataReader = new TextComplexFormatDataReader(inputStream, 
+          dataReader = new TextComplexFormatDataReader(dataStream, 
                                                        entity,
                                                        stripHeaderLine
                                                       );
         }
         
+        if (checkpoint != null) {
+          log.info("Resuming the load of " + tableName + " after the " +
+                   "checkpoint: " + checkpoint);
+          sourceRows = checkpoint.getRowNumber();
+          resumedRowCount = tableMonitor.countRows(tableName);
+          lastCheckpoint = checkpoint;
+          
+          if (skippedBytes == 0) {
+            // The offset is not known, so read past the committed rows
+            for (long i = 0; i < sourceRows; i++) {
+              if (dataReader.getOneRowDataVector().isEmpty()) {
+                checkReadException(delimitedReader);
+                abandonCheckpoint(tableName);
+                throw new IOException("The data has fewer rows than were " +
+                                      "loaded before: " + checkpoint);
+              }
+            }
+          }
+        }
+        
+        if (loadScope != null) {
+          log.info("Loading " + tableName + " within " + loadScope);
+          dataReader = loadScope.filter(dataReader, 
+                         databaseAdapter.compileConverters(attributeList));
+        }
+        
         rowVector = dataReader.getOneRowDataVector();
       }
       catch (Exception e) {
@@ -287,6 +701,9 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
       }
 
       Connection connection = null;
+      BatchedInsertStatement batchedInsert = null;
+      PostgresCopyLoader copyLoader = null;
+      LoadPipeline pipeline = null;
 
       try {
         /*
@@ -315,22 +732,167 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
     		  completed = true;
     		  return;
     	  }
+    	  if (appendOffset > 0 || replaceData) {
+    	    // The keys are built again once the rows are loaded
+    	    new ConstraintBuilder(databaseAdapter, tableMonitor)
+    	      .dropConstraints(connection, entity);
+    	  }
+    	  
+    	  String insertTableName = tableName;
+    	  int chunkInterval = commitInterval;
+    	  DataViewManager viewManager = 
+    	    new DataViewManager(databaseAdapter, tableMonitor);
+    	  if (appendOffset > 0 && viewManager.shouldStageRows(tableName)) {
+    	    /*
+    	     * Load the appended rows into a table of their own, from which the
+    	     * views of the table are refreshed, and copy them into the table
+    	     * in the same transaction
+    	     */
+    	    deltaTableName = viewManager.createDeltaTable(connection, tableName);
+    	    insertTableName = deltaTableName;
+    	    chunkInterval = 0;
+    	    log.info("Staging the rows appended to " + tableName + " in " + 
+    	             deltaTableName);
+    	  }
     	  connection.setAutoCommit(false);
-        while (!rowVector.isEmpty()) {
-          insertSQL = databaseAdapter.generateInsertSQL(attributeList,
-                                                        tableName, 
-                                                        rowVector);
-          if (insertSQL != null)
-          {
-      	    PreparedStatement statement = connection.prepareStatement(insertSQL);
-      	    statement.execute();
-      	    statement.close();
-            rowCount++;
-          }
-            
-          rowVector = dataReader.getOneRowDataVector();
-        }
+    	  
+    	  if (appendOffset > 0 || replaceData) {
+    	    /*
+    	     * Until the source is loaded, the validator no longer describes
+    	     * the rows, even if a chunk of them is committed
+    	     */
+    	    tableMonitor.setSourceValidator(connection, tableName, null);
+    	    if (replaceData) {
+    	      log.info("Replacing the rows of " + tableName);
+    	      deleteRows(connection, tableName);
+    	      if (useCheckpoints) {
+    	        tableMonitor.setLoadCheckpoint(connection, tableName, null);
+    	      }
+    	    }
+    	  }
+    	  
+    	  AttributeConverter[] converters = 
+    	    databaseAdapter.compileConverters(attributeList);
+    	  if (loadScope != null) {
+    	    converters = loadScope.selectConverters(converters);
+    	  }
+    	  
+    	  if (databaseAdapter instanceof PostgresAdapter &&
+    	      PostgresCopyLoader.isCopySupported(connection)) {
+    	    // Stream the rows into the table with COPY rather than INSERT
+    	    String copySQL = ((PostgresAdapter) databaseAdapter).generateCopySQL(
+    	                                            converters, insertTableName);
+    	    copyLoader = new PostgresCopyLoader(connection, copySQL, converters);
+    	    copyLoader.setEntity(entity);
+    	    long firstSourceRow = sourceRows;
+    	    copyLoader.copyRows(rowVector, dataReader, chunkInterval);
+    	    sourceRows = firstSourceRow + copyLoader.getSourceRowCount();
+    	    
+    	    while (!copyLoader.isReaderExhausted()) {
+    	      commitChunk(connection, tableName, useCheckpoints, sourceRows,
+    	                  getByteOffset(delimitedReader, skippedBytes));
+    	      copyLoader.copyRows(null, dataReader, chunkInterval);
+    	      sourceRows = firstSourceRow + copyLoader.getSourceRowCount();
+    	    }
+    	    rowCount = resumedRowCount + copyLoader.getRowCount();
+    	  }
+    	  else {
+    	    insertSQL = 
+    	      databaseAdapter.generateParameterizedInsertSQL(converters, 
+    	                                                     insertTableName);
+    	    
+    	    if (batchSize > 0 && insertSQL != null) {
+    	      // Bind the values of every row to a single prepared statement
+    	      batchedInsert = new BatchedInsertStatement(connection, insertSQL, 
+    	                                                 converters, batchSize);
+    	      if (pipelineMetrics != null) {
+    	        pipeline = new LoadPipeline(converters, batchSize, 
+    	                                    conversionThreads, 
+    	                                    pipelineQueueCapacity,
+    	                                    pipelineMetrics);
+    	        if (chunkInterval > 0) {
+    	          final Connection chunkConnection = connection;
+    	          final String chunkTableName = tableName;
+    	          final boolean chunkCheckpoints = useCheckpoints;
+    	          final long chunkSkippedBytes = skippedBytes;
+    	          pipeline.setCommitInterval(chunkInterval, 
+    	            new LoadPipeline.ChunkListener() {
+    	              public void chunkLoaded(long chunkRows, long endOffset)
+    	                      throws SQLException {
+    	                long byteOffset = (endOffset < 0) ? -1 : 
+    	                                  chunkSkippedBytes + endOffset;
+    	                commitChunk(chunkConnection, chunkTableName, 
+    	                            chunkCheckpoints, chunkRows, byteOffset);
+    	              }
+    	            });
+    	        }
+    	        pipeline.load(rowVector, dataReader, sourceRows, batchedInsert);
+    	        sourceRows += pipeline.getSourceRowCount();
+    	        log.info("Loaded " + tableName + " through a pipeline: " + 
+    	                 pipelineMetrics);
+    	      }
+    	      else {
+    	        while (!rowVector.isEmpty()) {
+    	          batchedInsert.addRow(rowVector);
+    	          sourceRows++;
+    	          if (chunkInterval > 0 && sourceRows % chunkInterval == 0) {
+    	            batchedInsert.executeBatch();
+    	            commitChunk(connection, tableName, useCheckpoints, sourceRows,
+    	                        getByteOffset(delimitedReader, skippedBytes));
+    	          }
+    	          rowVector = dataReader.getOneRowDataVector();
+    	        }
+    	      }
+    	      batchedInsert.executeBatch();
+    	      rowCount = resumedRowCount + batchedInsert.getRowCount();
+    	    }
+    	    else {
+    	      rowCount = resumedRowCount;
+            while (!rowVector.isEmpty()) {
+              insertSQL = databaseAdapter.generateInsertSQL(converters,
+                                                            insertTableName, 
+                                                            rowVector);
+              if (insertSQL != null)
+              {
+          	    PreparedStatement statement = connection.prepareStatement(insertSQL);
+          	    statement.execute();
+          	    statement.close();
+                rowCount++;
+              }
+              
+              sourceRows++;
+              if (chunkInterval > 0 && sourceRows % chunkInterval == 0) {
+                commitChunk(connection, tableName, useCheckpoints, sourceRows,
+                            getByteOffset(delimitedReader, skippedBytes));
+              }
+              rowVector = dataReader.getOneRowDataVector();
+            }
+    	    }
+    	  }
+    	  
+    	  if (chunkInterval > 0) {
+    	    // Keep the committed chunks of an interrupted stream for resuming
+    	    checkReadException(delimitedReader);
+    	  }
+    	  
+    	  if (deltaTableName != null) {
+    	    viewManager.mergeDeltaTable(connection, tableName, deltaTableName);
+    	  }
+    	  
+    	  if (useCheckpoints) {
+    	    tableMonitor.setLoadCheckpoint(connection, tableName, 
+    	      new LoadCheckpoint(sourceRows, 
+    	                         getByteOffset(delimitedReader, skippedBytes),
+    	                         LoadCheckpoint.STATUS_COMPLETE));
+    	  }
+    	  tableMonitor.setSourceValidator(connection, tableName, 
+    	                                  (loadScope == null) ? sourceValidator :
+    	                                                        null);
+    	  tableMonitor.setLoadScope(connection, tableName, loadScope);
         connection.commit();
+        if (replaceData || rowCount > resumedRowCount) {
+          rowsWritten = true;
+        }
         
         if (delimitedReader != null) {
           /*
@@ -396,64 +958,14 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
           }
         }
 
-        if (QualityCheck.shouldRunQualityCheck(entity, dataLoadQualityCheck)) {
-
-          if (rowCount > 0) {         
-            dataLoadQualityCheck.setStatus(Status.valid);
-            dataLoadQualityCheck.setFound("The data table loaded successfully into a database");
-          }
-          else {
-            dataLoadQualityCheck.setFailedStatus();
-            dataLoadQualityCheck.setFound("No data could be loaded into a database");
-          }
-          entity.addQualityCheck(dataLoadQualityCheck);   
-           
-          /*
-           * Store number of records found in a QualityCheck object
-           */
-          String numberOfRecordsIdentifier = "numberOfRecords";
-          QualityCheck numberOfRecordsTemplate = 
-            QualityReport.getQualityCheckTemplate(numberOfRecordsIdentifier);
-          QualityCheck numberOfRecordsQualityCheck = 
-            new QualityCheck(numberOfRecordsIdentifier, numberOfRecordsTemplate);
-          if (QualityCheck.shouldRunQualityCheck(entity, numberOfRecordsQualityCheck)) {
-            int expectedNumberOfRecords = entity.getNumRecords();
-            numberOfRecordsQualityCheck.setExpected("" + expectedNumberOfRecords);
-            numberOfRecordsQualityCheck.setFound("" + rowCount);        
-            if (expectedNumberOfRecords == rowCount) {
-              numberOfRecordsQualityCheck.setStatus(Status.valid);
-              numberOfRecordsQualityCheck.setExplanation(
-                "The expected number of records (" + 
-                rowCount + ") was found in the data table.");
-            }
-            // When zero records were counted, set an error status
-            else if ((expectedNumberOfRecords != 0) && (rowCount == 0)) {
-              numberOfRecordsQualityCheck.setFailedStatus();
-              numberOfRecordsQualityCheck.setExplanation(
-                "The number of records found in the data table was: " +  
-                rowCount +
-                ". Check that a valid record delimiter was specified in the metadata.");
-            }
-            // When 'numberOfRecords' is not specified in the EML, the EML
-            // parser sets the value to -1.
-            else if (expectedNumberOfRecords < 0) {
-              numberOfRecordsQualityCheck.setStatus(Status.info);
-              numberOfRecordsQualityCheck.setExplanation(
-                "The number of records found in the data table was: " +  
-                rowCount +
-                ". There was no 'numberOfRecords' value specified in the EML.");
-            }
-            else {
-              // Report number of records check as failed
-              numberOfRecordsQualityCheck.setFailedStatus();
-              numberOfRecordsQualityCheck.setExplanation(
-                "The number of records found in the data table (" + rowCount +
-                ") does not match the 'numberOfRecords' value specified in the EML (" +
-                expectedNumberOfRecords + ")"
-              );
-            }
-            entity.addQualityCheck(numberOfRecordsQualityCheck);
-          }
+        if (loadScope == null || !loadScope.isRowFiltered()) {
+          // Filtered rows are not counted against the metadata
+          addLoadStatusChecks(entity, dataLoadQualityCheck, rowCount);
+        }
+        if (loadScope == null) {
+          // The keys may be on attributes or rows that were not loaded
+          new ConstraintBuilder(databaseAdapter, tableMonitor)
+            .buildKeys(connection, entity);
         }
 
         success = true;
@@ -467,8 +979,18 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
         if (QualityCheck.shouldRunQualityCheck(entity, dataLoadQualityCheck)) {
           // Report data load status as failed
           dataLoadQualityCheck.setFailedStatus();
+          int failedRow = rowCount + 1;
+          if (copyLoader != null && copyLoader.getFailedRow() > 0) {
+            failedRow = resumedRowCount + copyLoader.getFailedRow();
+          }
+          else if (pipeline != null && pipeline.getFailedRow() > 0) {
+            failedRow = resumedRowCount + pipeline.getFailedRow();
+          }
+          else if (batchedInsert != null) {
+            failedRow = resumedRowCount + batchedInsert.getFailedRow(e);
+          }
           dataLoadQualityCheck.setFound("Error inserting data at row " +
-                                        (rowCount + 1) + ".");
+                                        failedRow + ".");
           String explanation = "<![CDATA[" + e.getMessage() + "]]>";
           dataLoadQualityCheck.setExplanation(explanation);
           entity.addQualityCheck(dataLoadQualityCheck);
@@ -476,12 +998,23 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
         
         try {
           connection.rollback();
+          
+          if (useCheckpoints && lastCheckpoint != null && 
+              !(e instanceof IOException)) {
+            // The data itself is at fault, so don't resume from the checkpoint
+            abandonCheckpoint(connection, tableName);
+            connection.commit();
+          }
         } 
         catch (Exception ee) {
           log.error(ee.getMessage());
         }
       } 
       finally {
+        if (batchedInsert != null) {
+          batchedInsert.close();
+        }
+        
         try {
           connection.setAutoCommit(true);
         } 
@@ -501,6 +1034,129 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
   }
 		
 		
+  /*
+   * Deletes the rows of a table that is loaded again, without committing.
+   */
+  private static void deleteRows(Connection connection, String tableName) 
+          throws SQLException {
+    Statement stmt = null;
+    
+    try {
+      stmt = connection.createStatement();
+      stmt.executeUpdate("DELETE FROM " + tableName);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+    }
+  }
+  
+  
+  /*
+   * Commits the rows inserted so far, together with a checkpoint recording
+   * how far the data has been read if checkpoints are in use.
+   */
+  private void commitChunk(Connection connection, String tableName,
+                           boolean useCheckpoints, long sourceRows,
+                           long byteOffset) 
+          throws SQLException {
+    LoadCheckpoint checkpoint = null;
+    
+    if (useCheckpoints) {
+      checkpoint = new LoadCheckpoint(sourceRows, byteOffset,
+                                      LoadCheckpoint.STATUS_LOADING);
+      tableMonitor.setLoadCheckpoint(connection, tableName, checkpoint);
+    }
+    
+    connection.commit();
+    rowsWritten = true;
+    lastCheckpoint = checkpoint;
+    log.debug("Committed " + sourceRows + " rows of " + tableName);
+  }
+  
+  
+  /*
+   * Marks the checkpoint of a table as failed so that the load is not
+   * resumed from it, using the given connection without committing.
+   */
+  private void abandonCheckpoint(Connection connection, String tableName)
+          throws SQLException {
+    long rowNumber = (lastCheckpoint == null) ? 0 : lastCheckpoint.getRowNumber();
+    long byteOffset = (lastCheckpoint == null) ? -1 : lastCheckpoint.getByteOffset();
+    tableMonitor.setLoadCheckpoint(connection, tableName, 
+      new LoadCheckpoint(rowNumber, byteOffset, LoadCheckpoint.STATUS_FAILED));
+  }
+  
+  
+  /*
+   * Marks the checkpoint of a table as failed, through a connection of its
+   * own.
+   */
+  private void abandonCheckpoint(String tableName) throws SQLException {
+    Connection connection = DataManager.getConnection();
+    
+    try {
+      abandonCheckpoint(connection, tableName);
+    }
+    finally {
+      DataManager.returnConnection(connection);
+    }
+  }
+  
+  
+  /*
+   * Gets the offset in the data stream just past the last row read, or -1
+   * if it is not known.
+   */
+  private static long getByteOffset(DelimitedReader delimitedReader, 
+                                    long skippedBytes) {
+    if (delimitedReader == null || delimitedReader.getRowEndOffset() < 0) {
+      return -1;
+    }
+    
+    return skippedBytes + delimitedReader.getRowEndOffset();
+  }
+  
+  
+  /*
+   * Throws an IOException if the reader stopped because the data stream
+   * could not be read, rather than because it ended.
+   */
+  private static void checkReadException(DelimitedReader delimitedReader) 
+          throws IOException {
+    if (delimitedReader != null && 
+        delimitedReader.getReadException() != null) {
+      Exception e = delimitedReader.getReadException();
+      IOException ioException = 
+        new IOException("The data could not be read completely: " + 
+                        e.getMessage());
+      ioException.initCause(e);
+      throw ioException;
+    }
+  }
+  
+  
+  /*
+   * Reads and discards a number of bytes from the data stream. Ending before
+   * the offset means that the data has changed since the checkpoint, so the
+   * checkpoint is abandoned.
+   */
+  private void skipBytes(InputStream stream, long count, String tableName) 
+          throws IOException, SQLException {
+    byte[] buffer = new byte[8192];
+    long remaining = count;
+    
+    while (remaining > 0) {
+      int length = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (length < 0) {
+        abandonCheckpoint(tableName);
+        throw new IOException("The data is shorter than the " + count + 
+                              " bytes that were loaded before");
+      }
+      remaining -= length;
+    }
+  }
+  
+  
   /**
    * Determines whether the data table corresponding to a given identifier
    * already exists in the database and is loaded with data. This method is
@@ -522,8 +1178,16 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
       doesExist = tableMonitor.isTableInDB(tableName);
 
       if (doesExist) {
-        int rowCount = tableMonitor.countRows(tableName);
-        doesExist = (rowCount > 0);
+        LoadCheckpoint checkpoint = tableMonitor.getLoadCheckpoint(tableName);
+        
+        if (checkpoint != null && !checkpoint.isComplete()) {
+          // The table holds the rows of an unfinished load
+          doesExist = false;
+        }
+        else {
+          int rowCount = tableMonitor.countRows(tableName);
+          doesExist = (rowCount > 0);
+        }
       }
     } 
     catch (SQLException e) {
@@ -536,13 +1200,14 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
     
   
   /**
-   * Gets the completion status of the serialize process.
+   * Gets the completion status of the serialize process. Data that was
+   * loaded before counts as complete, unless it is being loaded again.
    * 
    * @param identifier   Identifier of the entity which is being serialized
    * @return             true if complete, false if not complete
    */
   public boolean isCompleted(String identifier) {
-    return completed || doesDataExist(identifier);
+    return completed || (!serializing && doesDataExist(identifier));
   }
 	
   
@@ -553,9 +1218,20 @@ public class DatabaseLoader implements DataStorageInterface, Runnable
    * @return              true if success, else false
    */
   public boolean isSuccess(String identifier) {
-    return success ||doesDataExist(identifier);
+    return success || (!serializing && doesDataExist(identifier));
+  }
+  
+  /**
+   * Gets the stage timings and queue depths of the load, if it was loaded
+   * through a LoadPipeline.
+   * 
+   * @return the metrics, or null if the load did not use a pipeline
+   */
+  public LoadPipelineMetrics getPipelineMetrics() {
+    return pipelineMetrics;
   }
   
+  
     /**
 	 * Gets the Exception happend in serialization
 	 * @return Exception happend in serialization
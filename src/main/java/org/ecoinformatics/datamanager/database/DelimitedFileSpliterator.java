@@ -0,0 +1,389 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.ecoinformatics.datamanager.parser.Entity;
+
+/**
+ * A splittable Spliterator over the rows of an entity whose data is stored
+ * in a local, uncompressed file. The file is split into byte ranges that are
+ * aligned on record delimiters, and each range is parsed by its own
+ * DelimitedReader, so that a parallel Stream can filter and aggregate the
+ * rows of a large table on several cores without loading it into a
+ * database.
+ *
+ * Splitting is only possible for simple delimited entities without footer
+ * lines, where each record is terminated by the record delimiter. Other
+ * entities are read sequentially from the start of the file. Quality checks
+ * are only recorded on the entity when the file is read as a single range,
+ * since EntityReport is not safe for concurrent use.
+ */
+public class DelimitedFileSpliterator implements Spliterator<Row> {
+
+  /*
+   * Class fields
+   */
+
+  /* Ranges smaller than twice this size (in bytes) are not split further */
+  public static final long DEFAULT_MINIMUM_CHUNK_SIZE = 1024 * 1024;
+
+  private static final int CHARACTERISTICS =
+    Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+
+
+  /*
+   * Instance fields
+   */
+
+  private final File dataFile;
+  private final Entity entity;
+  private final long fileLength;
+  private final byte[] recordDelimiter;
+  private final long minimumChunkSize;
+  private final boolean splittable;
+  private boolean split = false;
+  private long start;
+  private long end;
+  private InputStream chunkStream = null;
+  private TextDataReaderSpliterator rows = null;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a spliterator over all rows of a local data file using the
+   * default minimum chunk size.
+   *
+   * @param dataFile  the local file holding the entity's data
+   * @param entity    the entity metadata describing the file
+   */
+  public DelimitedFileSpliterator(File dataFile, Entity entity)
+          throws IOException {
+    this(dataFile, entity, DEFAULT_MINIMUM_CHUNK_SIZE);
+  }
+
+
+  /**
+   * Constructs a spliterator over all rows of a local data file.
+   *
+   * @param dataFile          the local file holding the entity's data
+   * @param entity            the entity metadata describing the file
+   * @param minimumChunkSize  the smallest byte range that will be produced
+   *                          by splitting
+   */
+  public DelimitedFileSpliterator(File dataFile, Entity entity,
+                                  long minimumChunkSize)
+          throws IOException {
+    if (dataFile == null || !dataFile.isFile()) {
+      throw new IOException("Data file does not exist: " + dataFile);
+    }
+
+    this.dataFile = dataFile;
+    this.entity = entity;
+    this.fileLength = dataFile.length();
+    this.minimumChunkSize = Math.max(1, minimumChunkSize);
+    this.splittable =
+      entity.isSimpleDelimited() && entity.getNumFooterLines() == 0;
+
+    Charset charset = DelimitedReader.resolveCharset(entity.getCharacterEncoding());
+    String delimiter = DelimitedReader.unescapeDelimiter(entity.getRecordDelimiter());
+    this.recordDelimiter = delimiter.getBytes(charset);
+
+    this.start = splittable ? findRecordStart(0, entity.getNumHeaderLines()) : 0;
+    this.end = fileLength;
+  }
+
+
+  /*
+   * Constructs the prefix range produced by trySplit().
+   */
+  private DelimitedFileSpliterator(DelimitedFileSpliterator parent,
+                                   long start, long end) {
+    this.dataFile = parent.dataFile;
+    this.entity = parent.entity;
+    this.fileLength = parent.fileLength;
+    this.recordDelimiter = parent.recordDelimiter;
+    this.minimumChunkSize = parent.minimumChunkSize;
+    this.splittable = true;
+    this.split = true;
+    this.start = start;
+    this.end = end;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets a Stream over all rows of a local data file.
+   *
+   * @param dataFile  the local file holding the entity's data
+   * @param entity    the entity metadata describing the file
+   * @param parallel  if true, a parallel stream is returned
+   * @return a Stream of Row objects
+   */
+  public static Stream<Row> stream(File dataFile, Entity entity,
+                                   boolean parallel)
+          throws IOException {
+    DelimitedFileSpliterator spliterator =
+      new DelimitedFileSpliterator(dataFile, entity);
+    Stream<Row> stream = StreamSupport.stream(spliterator, parallel);
+
+    return stream.onClose(spliterator::close);
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Reads the next row of this range and passes it to the action.
+   *
+   * @param action  the action to perform on the row
+   * @return false when there are no more rows in this range
+   * @throws DataReaderException if the file cannot be read or parsed
+   */
+  public boolean tryAdvance(Consumer<? super Row> action) {
+    if (rows == null) {
+      open();
+    }
+
+    boolean advanced = false;
+
+    try {
+      advanced = rows.tryAdvance(action);
+    }
+    finally {
+      if (!advanced) {
+        close();
+      }
+    }
+
+    return advanced;
+  }
+
+
+  /**
+   * Splits off the first half of the remaining byte range, aligned on a
+   * record boundary. Returns null once reading has started or when the
+   * range is too small to split.
+   *
+   * @return a spliterator over the first part of the range, or null
+   */
+  public Spliterator<Row> trySplit() {
+    if (!splittable || rows != null) {
+      return null;
+    }
+
+    long size = end - start;
+
+    if (size < 2 * minimumChunkSize) {
+      return null;
+    }
+
+    long middle;
+
+    try {
+      long position = start + size / 2;
+      middle = findRecordStart(Math.max(0, position - recordDelimiter.length), 1);
+    }
+    catch (IOException e) {
+      return null;
+    }
+
+    if (middle <= start || middle >= end) {
+      return null;
+    }
+
+    DelimitedFileSpliterator prefix =
+      new DelimitedFileSpliterator(this, start, middle);
+    this.start = middle;
+    this.split = true;
+
+    return prefix;
+  }
+
+
+  /**
+   * Gets the number of bytes remaining in this range, which is an
+   * estimate of the number of rows.
+   *
+   * @return the size of the remaining byte range
+   */
+  public long estimateSize() {
+    return Math.max(0, end - start);
+  }
+
+
+  /**
+   * Gets the characteristics of this spliterator.
+   *
+   * @return ORDERED, NONNULL and IMMUTABLE
+   */
+  public int characteristics() {
+    return CHARACTERISTICS;
+  }
+
+
+  /**
+   * Closes the file stream of this range, if one is open.
+   */
+  public void close() {
+    if (chunkStream != null) {
+      try {
+        chunkStream.close();
+      }
+      catch (IOException e) {
+        // Nothing more can be read from this range anyway
+      }
+      chunkStream = null;
+    }
+  }
+
+
+  /*
+   * Opens a reader over this range. A range produced by splitting does not
+   * record quality checks on the entity.
+   */
+  private void open() {
+    try {
+      TextDataReader dataReader;
+
+      if (splittable) {
+        chunkStream = new ChunkInputStream(dataFile, start, end - start);
+        DelimitedReader delimitedReader =
+          new DelimitedReader(chunkStream, entity, false);
+        if (split) {
+          delimitedReader.setEntity(null);
+        }
+        dataReader = delimitedReader;
+      }
+      else {
+        chunkStream = new BufferedInputStream(new FileInputStream(dataFile));
+        if (entity.isSimpleDelimited()) {
+          dataReader = new DelimitedReader(chunkStream, entity, true);
+        }
+        else {
+          dataReader =
+            new TextComplexFormatDataReader(chunkStream, entity, true);
+        }
+      }
+
+      rows = new TextDataReaderSpliterator(dataReader);
+    }
+    catch (Exception e) {
+      close();
+      throw new DataReaderException(
+        "Error opening data file " + dataFile + ": " + e.getMessage(), e);
+    }
+  }
+
+
+  /*
+   * Scans forward from a byte position and returns the position just after
+   * the given number of record delimiters, or the file length if fewer
+   * delimiters are found. Used both to skip header lines and to align a
+   * split point on the start of a record.
+   */
+  private long findRecordStart(long from, int occurrences) throws IOException {
+    if (occurrences <= 0) {
+      return from;
+    }
+
+    int delimiterLength = recordDelimiter.length;
+    byte[] window = new byte[delimiterLength];
+    long position = from;
+    int filled = 0;
+    int found = 0;
+    InputStream in = new ChunkInputStream(dataFile, from, fileLength - from);
+
+    try {
+      int singleByte = in.read();
+
+      while (singleByte != -1) {
+        position++;
+        System.arraycopy(window, 1, window, 0, delimiterLength - 1);
+        window[delimiterLength - 1] = (byte) singleByte;
+        filled++;
+
+        if (filled >= delimiterLength &&
+            Arrays.equals(window, recordDelimiter)) {
+          found++;
+          filled = 0;
+          if (found == occurrences) {
+            return position;
+          }
+        }
+
+        singleByte = in.read();
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return fileLength;
+  }
+
+
+  /*
+   * An input stream over a byte range of a file.
+   */
+  private static final class ChunkInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    private ChunkInputStream(File file, long offset, long length)
+            throws IOException {
+      FileInputStream fileStream = new FileInputStream(file);
+      fileStream.getChannel().position(offset);
+      this.in = new BufferedInputStream(fileStream, 65536);
+      this.remaining = length;
+    }
+
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+
+      int singleByte = in.read();
+      if (singleByte != -1) {
+        remaining--;
+      }
+
+      return singleByte;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+
+      int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+      if (count > 0) {
+        remaining -= count;
+      }
+
+      return count;
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+}
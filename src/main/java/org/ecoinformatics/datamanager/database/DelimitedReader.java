@@ -32,9 +32,12 @@
 
 package org.ecoinformatics.datamanager.database;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Vector;
 
 import org.ecoinformatics.datamanager.parser.Entity;
@@ -49,12 +52,43 @@ import org.ecoinformatics.datamanager.quality.QualityReport;
 public class DelimitedReader extends TextDataReader
 {
   
+  /*
+   * Class fields
+   */
+  
+  /* 
+   * Character encoding used when the metadata does not declare one. This is
+   * used instead of the platform default so that parsing results do not 
+   * depend on the locale of the host.
+   */
+  public static final String DEFAULT_CHARACTER_ENCODING = "UTF-8";
+  
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final int INPUT_BUFFER_SIZE = 65536;
+  private static final int INITIAL_RECORD_SIZE = 256;
+  
+  
   /*
    * Instance fields
    */
   
   private String data;
+  private InputStream dataStream;
   private InputStreamReader dataReader;
+  private Charset charset = UTF_8;
+  
+  // Fields used by the byte-oriented fast path
+  private boolean initializedDataSource = false;
+  private boolean byteFastPath = false;
+  private byte[] lineEndingBytes;
+  private byte[] fieldDelimiterBytes;
+  private byte[] inputBuffer;
+  private int inputPosition = 0;
+  private int inputLimit = 0;
+  private long streamOffset = 0;      // bytes consumed by the fast path
+  private long rowEndOffset = -1;     // stream offset after the last row
+  private Exception readException = null;
   private Vector[] lines;
   private Vector linesVector;
   private int numHeaderLines;
@@ -222,7 +256,7 @@ public class DelimitedReader extends TextDataReader
                          int numHeaderLines, String lineEnding, int numRecords, 
                          boolean stripHeader)
   {
-    this.dataReader = new InputStreamReader(dataStream);
+    this.dataStream = dataStream;
     this.numHeaderLines = numHeaderLines;
     this.numCols = numCols;
     this.numRecords = numRecords;    
@@ -233,6 +267,42 @@ public class DelimitedReader extends TextDataReader
   }
   
   
+  /**
+   * Constructs a stream reader whose parsing settings (field and record
+   * delimiters, header and footer lines, quote and literal characters,
+   * collapseDelimiters, and character encoding) are taken from the entity
+   * metadata. Quality checks are recorded on the entity.
+   * 
+   * @param dataStream   the input stream of delimited data
+   * @param entity       the entity metadata describing the data stream
+   * @param stripHeader  if true, the header lines are discarded
+   */
+  public DelimitedReader(InputStream dataStream, Entity entity, 
+                         boolean stripHeader)
+  {
+    this(dataStream,
+         entity.getAttributes().length, 
+         entity.getFieldDelimiter(), 
+         entity.getNumHeaderLines(),
+         entity.getRecordDelimiter(),
+         entity.getNumRecords(),
+         stripHeader
+        );
+    setEntity(entity);
+    setCharacterEncoding(entity.getCharacterEncoding());
+    setCollapseDelimiters(entity.getCollapseDelimiters());
+    setNumFooterLines(entity.getNumFooterLines());
+    
+    if (entity.getQuoteCharacter() != null) {
+      setQuoteCharacter(entity.getQuoteCharacter());
+    }
+    
+    if (entity.getLiteralCharacter() != null) {
+      setLiteralCharacter(entity.getLiteralCharacter());
+    }
+  }
+  
+  
   /*
    * Class methods
    */
@@ -323,6 +393,41 @@ public class DelimitedReader extends TextDataReader
   }
   
   
+  /**
+   * Resolves an EML characterEncoding value to a Java Charset. Common EML
+   * spellings such as "ASCII" and "UTF8" are accepted. If the encoding is 
+   * null, blank, or not supported by the JVM, UTF-8 is returned.
+   * 
+   * @param characterEncoding  the character encoding declared in the metadata
+   * @return the corresponding Charset object
+   */
+  public static Charset resolveCharset(String characterEncoding)
+  {
+    Charset resolved = UTF_8;
+    
+    if (characterEncoding != null && !characterEncoding.trim().equals("")) {
+      String name = characterEncoding.trim();
+      
+      if (name.equalsIgnoreCase("ASCII")) {
+        name = "US-ASCII";
+      }
+      else if (name.equalsIgnoreCase("UTF8")) {
+        name = "UTF-8";
+      }
+      
+      try {
+        resolved = Charset.forName(name);
+      }
+      catch (Exception e) {
+        // Illegal or unsupported charset name; fall back to the default
+        resolved = UTF_8;
+      }
+    }
+    
+    return resolved;
+  }
+  
+  
   /**
    * Auxiliary method called by unescapeDelimiter(). Transforms digits for a 
    * given radix into the equivalent character value.
@@ -367,7 +472,33 @@ public class DelimitedReader extends TextDataReader
   */
   public void setInputStream(InputStream dataStream)
   {
-    this.dataReader = new InputStreamReader(dataStream);
+    this.dataStream = dataStream;
+    this.dataReader = null;
+    this.initializedDataSource = false;
+  }
+  
+  
+  /**
+   * Sets the character encoding of the data stream, typically the value of
+   * the entity's physical/characterEncoding element. Must be called before
+   * the first row is read. When no encoding is set, UTF-8 is assumed.
+   * 
+   * @param characterEncoding  the character encoding name, e.g. "UTF-8"
+   */
+  public void setCharacterEncoding(String characterEncoding)
+  {
+    this.charset = resolveCharset(characterEncoding);
+  }
+  
+  
+  /**
+   * Gets the character set used to decode the data stream.
+   * 
+   * @return the Charset object
+   */
+  public Charset getCharset()
+  {
+    return charset;
   }
   
   
@@ -428,33 +559,33 @@ public class DelimitedReader extends TextDataReader
     rowCounter++;
     if (!initializedFooterBuffer) {
 		  for (int i = 0; i < numFooterLines; i++) {
-			  String rowData = readOneRowDataString();
+			  Object rowData = readOneRowData();
 			  footerBuffer.add(rowData);
 		  }
          
 		  // this is for no footer lines
 		  if (numFooterLines == 0) {
-			  String rowData = readOneRowDataString();
+			  Object rowData = readOneRowData();
 			  footerBuffer.add(rowData);
 		  }
          
 		  initializedFooterBuffer = true;
     }
      
-    String nextRowData = readOneRowDataString();
-    String oneRowDataString = null;
+    Object nextRowData = readOneRowData();
+    Object oneRowData = null;
     Vector<String> oneRowDataVector = new Vector<String>();
      
     if (nextRowData != null) {
-      oneRowDataString = (String) footerBuffer.remove(0);
+      oneRowData = footerBuffer.remove(0);
       reIndexFooterBufferVector();
       footerBuffer.add(nextRowData);
     }
     else if (numFooterLines == 0 && !footerBuffer.isEmpty()) {
-      oneRowDataString = (String)footerBuffer.remove(0);
+      oneRowData = footerBuffer.remove(0);
     }
      
-    if (oneRowDataString != null) {
+    if (oneRowData != null) {
 
       /*
        * Quality check: 'examineRecordDelimiter'
@@ -479,6 +610,7 @@ public class DelimitedReader extends TextDataReader
            * If metadata didn't specify a valid record delimiter, check
            * whether other potential candidates can be identified.
            */
+          String oneRowDataString = rowDataToString(oneRowData);
           ArrayList<String> otherDelimiters = otherRecordDelimiters(oneRowDataString, metadataRecordDelimiter);
           boolean hasSuggestedDelimiter = 
             entity.isSuggestedRecordDelimiter(metadataRecordDelimiter);
@@ -508,7 +640,15 @@ public class DelimitedReader extends TextDataReader
         examineRecordDelimiterCounter++;
       }
       
-      oneRowDataVector = splitDelimitedRowStringIntoVector(oneRowDataString);
+      if (oneRowData instanceof ByteRecord) {
+        ByteRecord record = (ByteRecord) oneRowData;
+        rowEndOffset = record.endOffset;
+        oneRowDataVector = splitDelimitedRowBytesIntoVector(record);
+      }
+      else {
+        rowEndOffset = -1;
+        oneRowDataVector = splitDelimitedRowStringIntoVector((String) oneRowData);
+      }
     }
 
     return oneRowDataVector;
@@ -575,6 +715,184 @@ public class DelimitedReader extends TextDataReader
   }
   
   
+  /*
+   * Reads one row of data, either as a ByteRecord when the byte-oriented
+   * fast path is in use, or as a String otherwise. Returns null at the end
+   * of the stream.
+   */
+  private Object readOneRowData() {
+    if (!initializedDataSource) {
+      initializeDataSource();
+    }
+    
+    if (byteFastPath) {
+      return readOneRowDataBytes();
+    }
+    else {
+      return readOneRowDataString();
+    }
+  }
+  
+  
+  /*
+   * Decides how the data stream will be read. For ASCII and UTF-8 data whose
+   * field and record delimiters are plain ASCII characters, delimiters can be
+   * found on the raw bytes because those byte values never occur inside a
+   * multi-byte UTF-8 sequence. Any other encoding is decoded through an
+   * InputStreamReader using the declared charset.
+   */
+  private void initializeDataSource() {
+    initializedDataSource = true;
+    
+    if (dataStream == null) {
+      return;
+    }
+    
+    boolean asciiCompatible = 
+      charset.equals(UTF_8) || charset.equals(US_ASCII);
+    
+    if (asciiCompatible && isAscii(lineEnding) && isAscii(fieldDelimiter)) {
+      byteFastPath = true;
+      lineEndingBytes = lineEnding.getBytes(US_ASCII);
+      fieldDelimiterBytes = fieldDelimiter.getBytes(US_ASCII);
+      inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    }
+    else {
+      byteFastPath = false;
+      dataReader = new InputStreamReader(dataStream, charset);
+    }
+  }
+  
+  
+  /*
+   * Returns true if every character in the string is a 7-bit ASCII character.
+   */
+  private static boolean isAscii(String value) {
+    if (value == null || value.length() == 0) {
+      return false;
+    }
+    
+    for (int i = 0; i < value.length(); i++) {
+      if (value.charAt(i) > 0x7F) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  /*
+   * Returns true if the bytes starting at the offset match the pattern.
+   */
+  private static boolean matchesAt(byte[] bytes, int offset, byte[] pattern) {
+    for (int j = 0; j < pattern.length; j++) {
+      if (bytes[offset + j] != pattern[j]) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  /*
+   * Reads the next byte from the buffered data stream, or -1 at the end.
+   */
+  private int readByte() throws IOException {
+    if (inputPosition >= inputLimit) {
+      inputLimit = dataStream.read(inputBuffer, 0, inputBuffer.length);
+      inputPosition = 0;
+      
+      if (inputLimit <= 0) {
+        inputLimit = 0;
+        return -1;
+      }
+    }
+    
+    streamOffset++;
+    return inputBuffer[inputPosition++] & 0xFF;
+  }
+  
+  
+  /*
+   * Byte-oriented counterpart of readOneRowDataString(). Reads raw bytes up
+   * to and including the record delimiter, discarding header lines. The
+   * record length limit is measured in bytes.
+   */
+  private ByteRecord readOneRowDataBytes() {
+    byte[] recordBytes = new byte[INITIAL_RECORD_SIZE];
+    int length = 0;
+    int delimiterLength = lineEndingBytes.length;
+    
+    if ((dataStream != null) && (!this.exceedsRecordLengthLimit)) {
+      try {
+        int singleByte = readByte();
+        
+        while ((singleByte != -1) && (!this.exceedsRecordLengthLimit)) {
+          if (length == recordBytes.length) {
+            recordBytes = Arrays.copyOf(recordBytes, length * 2);
+          }
+          recordBytes[length++] = (byte) singleByte;
+          if (length > recordLengthLimit) {
+            this.exceedsRecordLengthLimit = true;
+          }
+          
+          // Check for a line ending at the end of the row data
+          if (length >= delimiterLength && 
+              matchesAt(recordBytes, length - delimiterLength, lineEndingBytes)) {
+            // Strip the header lines
+            if (stripHeader && 
+                numHeaderLines > 0 && 
+                headLineNumberCount < numHeaderLines) {
+              // Discard the header line
+              length = 0;
+            }
+            else {
+              hasRecordDelimiter = true;
+              break;
+            }
+            
+            headLineNumberCount++;
+          }
+          
+          singleByte = readByte();
+        }
+      }
+      catch (Exception e) {
+        // Couldn't read data from input stream
+        e.printStackTrace();
+        readException = e;
+        length = 0;
+      }
+    }
+    
+    // If we have data for the row, then return it
+    if (length > 0) {
+      return new ByteRecord(recordBytes, length, streamOffset);
+    }
+    
+    return null;
+  }
+  
+  
+  /*
+   * Returns the text of a row as read from the stream, decoding it when the
+   * row was read by the byte-oriented fast path.
+   */
+  private String rowDataToString(Object rowData) {
+    if (rowData == null) {
+      return null;
+    }
+    else if (rowData instanceof ByteRecord) {
+      ByteRecord record = (ByteRecord) rowData;
+      return new String(record.bytes, 0, record.length, charset);
+    }
+    
+    return (String) rowData;
+  }
+  
+  
   /*
    * This method will read a row of data from a vector. It
    * discards the header lines but it doesn't discard the footer lines.
@@ -626,6 +944,7 @@ public class DelimitedReader extends TextDataReader
       catch (Exception e) {
         // Couldn't read data from input stream
         e.printStackTrace();
+        readException = e;
         rowBuffer = new StringBuffer();
 	    }
     }
@@ -660,11 +979,8 @@ public class DelimitedReader extends TextDataReader
    */
   private Vector<String> splitDelimitedRowStringIntoVector(String data) 
           throws Exception {
-    Vector<String> rowVector = new Vector<String>();
-    int maxExplanationLength = 200;
-    
     if (data == null) {
-      return rowVector;
+      return new Vector<String>();
     }
     
     String[] stringArray = null;
@@ -684,6 +1000,78 @@ public class DelimitedReader extends TextDataReader
     	stringArray = processQuoteCharacterOneRowData(data);
     }
     
+    return buildRowVector(stringArray, data);
+  }
+  
+  
+  /*
+   * Byte-oriented counterpart of splitDelimitedRowStringIntoVector(). When
+   * there are no quote or literal characters, field delimiters are located
+   * directly on the raw bytes and only the field slices are decoded. This
+   * follows the String.split() semantics used by the character path,
+   * including the removal of trailing empty fields.
+   */
+  private Vector<String> splitDelimitedRowBytesIntoVector(ByteRecord record) 
+          throws Exception {
+    String[] stringArray = null;
+    
+    if (quoteCharacter != null || literalCharacter != null) {
+      stringArray = processQuoteCharacterOneRowData(rowDataToString(record));
+    }
+    else {
+      byte[] bytes = record.bytes;
+      int length = record.length;
+      byte[] delimiter = fieldDelimiterBytes;
+      int delimiterLength = delimiter.length;
+      ArrayList<String> fields = new ArrayList<String>(Math.max(numCols, 1));
+      int fieldStart = 0;
+      int i = 0;
+      
+      while (i <= length - delimiterLength) {
+        if (matchesAt(bytes, i, delimiter)) {
+          fields.add(new String(bytes, fieldStart, i - fieldStart, charset));
+          i += delimiterLength;
+          if (collapseDelimiters) {
+            while (i <= length - delimiterLength && matchesAt(bytes, i, delimiter)) {
+              i += delimiterLength;
+            }
+          }
+          fieldStart = i;
+        }
+        else {
+          i++;
+        }
+      }
+      
+      fields.add(new String(bytes, fieldStart, length - fieldStart, charset));
+      
+      // Match String.split(): trailing empty fields are discarded, unless
+      // the whole record is empty.
+      if (length > 0) {
+        int size = fields.size();
+        while (size > 0 && fields.get(size - 1).length() == 0) {
+          fields.remove(--size);
+        }
+      }
+      
+      stringArray = fields.toArray(new String[fields.size()]);
+    }
+    
+    return buildRowVector(stringArray, record);
+  }
+  
+  
+  /*
+   * Runs the field count quality checks on the split fields of one row and
+   * builds the row vector, padding missing fields with empty strings. The
+   * row data (a String or a ByteRecord) is only decoded when it is needed
+   * for a quality check explanation.
+   */
+  private Vector<String> buildRowVector(String[] stringArray, Object rowData) 
+          throws Exception {
+    Vector<String> rowVector = new Vector<String>();
+    int maxExplanationLength = 200;
+    
     if (stringArray != null) {
     	int columnCounter = stringArray.length;
         
@@ -707,7 +1095,7 @@ public class DelimitedReader extends TextDataReader
             "In row " + rowCounter + 
             ", fewer fields were found in the row than were expected: ";
           tooFewCheck.setFailedStatus();
-          String truncatedData = data.trim();
+          String truncatedData = rowDataToString(rowData).trim();
           if (truncatedData.length() > maxExplanationLength) {
             truncatedData = truncatedData.substring(0, maxExplanationLength) + "... (truncated)";
           }
@@ -738,7 +1126,7 @@ public class DelimitedReader extends TextDataReader
           String found = columnCounter + " " + fieldWord(columnCounter);
           tooManyCheck.setFound(found);
           String explanation = null;
-          String truncatedData = data.trim();
+          String truncatedData = rowDataToString(rowData).trim();
           if (truncatedData.length() > maxExplanationLength) {
             truncatedData = truncatedData.substring(0, maxExplanationLength) + "... (truncated)";
           }
@@ -1159,6 +1547,35 @@ public class DelimitedReader extends TextDataReader
   }
 
 
+  /**
+   * Gets the offset in the data stream just past the last row returned by
+   * getOneRowDataVector(), counting from where the stream was positioned
+   * when reading started. Reading can later be resumed at this offset with
+   * a new reader that does not strip the header lines.
+   * 
+   * The offset is only known when the stream is read as bytes, that is for
+   * ASCII or UTF-8 data with ASCII delimiters.
+   * 
+   * @return the byte offset, or -1 if it is not known
+   */
+  public long getRowEndOffset() {
+    return rowEndOffset;
+  }
+
+
+  /**
+   * Gets the exception, if any, that stopped the data stream from being
+   * read. Rows are then no longer returned, as if the end of the stream had
+   * been reached, so callers that need to tell an interrupted stream from a
+   * complete one should check this after reading.
+   * 
+   * @return the exception, or null if the stream was read without error
+   */
+  public Exception getReadException() {
+    return readException;
+  }
+
+
   /**
    * Returns a string representation of the data.
    * 
@@ -1196,4 +1613,21 @@ public class DelimitedReader extends TextDataReader
     this.entity = entity;
   }
   
+  
+  /*
+   * One undecoded row of data read by the byte-oriented fast path, including
+   * its record delimiter.
+   */
+  private static final class ByteRecord {
+    private final byte[] bytes;
+    private final int length;
+    private final long endOffset;
+    
+    private ByteRecord(byte[] bytes, int length, long endOffset) {
+      this.bytes = bytes;
+      this.length = length;
+      this.endOffset = endOffset;
+    }
+  }
+  
 }
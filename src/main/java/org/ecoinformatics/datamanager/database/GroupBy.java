@@ -67,6 +67,15 @@ public class GroupBy
 		}
 	}
 
+	/**
+	 * Gets the items to group by
+	 * @return the items, or null if there are none
+	 */
+	public SelectionItem[] getGroupByList()
+	{
+		return groupByList;
+	}
+
 	/**
 	 * Gets a sql string from group by object
 	 * @return sql string
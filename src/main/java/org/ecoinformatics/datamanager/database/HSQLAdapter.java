@@ -34,18 +34,19 @@ package org.ecoinformatics.datamanager.database;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.ecoinformatics.datamanager.parser.Attribute;
 import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.Constraint;
 import org.ecoinformatics.datamanager.parser.DateTimeDomain;
 import org.ecoinformatics.datamanager.parser.Domain;
+import org.ecoinformatics.datamanager.parser.Entity;
 import org.ecoinformatics.datamanager.parser.EnumeratedDomain;
 import org.ecoinformatics.datamanager.parser.NumericDomain;
 import org.ecoinformatics.datamanager.parser.TextDomain;
+import org.ecoinformatics.datamanager.util.DateTimeFormatRegistry;
 
 /**
  * This class extends the DatabaseAdapter class for the HSQL database.
@@ -60,44 +61,17 @@ public class HSQLAdapter extends DatabaseAdapter {
      */
 	private static final String IFEXISTS          = "IF EXISTS";
 	private static final String CREATETABLE       = "CREATE CACHED TABLE";
-	//private static final String CREATETEXTTABLE   = "CREATE TEXT TABLE";
+	private static final String CREATETEXTTABLE   = "CREATE TEXT TABLE";
+	private static final String TEXTCOLUMNTYPE    = "LONGVARCHAR";
     
     
 	/**
-	 * A custom static class for use by the HSQLDB instance for converting stings to dates
+	 * A custom static class for use by the HSQLDB instance for converting stings to dates.
+	 * The EML (ISO 8601) format string is translated once and cached by
+	 * DateTimeFormatRegistry, since HSQLDB calls this for every datetime value.
 	 */
 	public static Timestamp to_timestamp(String value, String formatString) throws ParseException {
-		//take care of differences between EML (ISO 8601) format strings and java format strings
-		// year
-		formatString = formatString.replaceAll("Y", "y");
-		// day in month
-		formatString = formatString.replaceAll("D", "d");
-		// abbreviated month name
-		formatString = formatString.replaceAll("W", "M");
-		// AM or PM?
-		formatString = formatString.replaceAll("A", "a");
-		formatString = formatString.replaceAll("P", "p");
-		// "T" between date and time
-		formatString = formatString.replaceAll("T", "'T'");
-		//TODO: this may not be an exhaustive list for dealing with the conversion
-
-		// remove any quotes from the dates
-		// TODO: should this be handled elsewhere?
-		value = value.replaceAll("\"", "");
-		
-		Timestamp timestamp = null;
-		SimpleDateFormat sdf = new SimpleDateFormat(formatString);
-		Date temp = null;
-		try {
-			temp = sdf.parse(value);
-		} catch (ParseException e) {
-			e.printStackTrace();
-			throw e;
-		}
-		timestamp = new Timestamp(temp.getTime());
-		
-		return timestamp;
-		
+		return DateTimeFormatRegistry.parseTimestamp(value, formatString);
 	}
 	
 	/*
@@ -141,6 +115,220 @@ public class HSQLAdapter extends DatabaseAdapter {
 	}
 	
   
+  /**
+   * Creates a sql command to generate a TEXT table, whose rows are read
+   * directly from a delimited file attached with the command returned by
+   * generateTextTableSourceSQL(). The converters must have been compiled for
+   * the entity's attribute list, so that the field names are assigned.
+   * 
+   * @param converters  the converters of the table's attributes
+   * @param tableName   the name of the text table
+   * @param typed       if true, each column has the database type of its
+   *                    attribute; if false, every column is LONGVARCHAR so
+   *                    that any value can be read and converted later with
+   *                    generateMaterializeSQL()
+   * @return            a String holding the DDL of the text table
+   * @throws SQLException if there are no attributes
+   */
+  public String generateTextTableDDL(AttributeConverter[] converters,
+                                     String tableName, boolean typed)
+         throws SQLException
+  {
+    if (converters == null || converters.length == 0) {
+      throw new SQLException("No attribute definition found in entity");
+    }
+
+    StringBuffer stringBuffer = new StringBuffer();
+    stringBuffer.append(CREATETEXTTABLE);
+    stringBuffer.append(PostgresAdapter.SPACE);
+    stringBuffer.append(tableName);
+    stringBuffer.append(PostgresAdapter.LEFTPARENTH);
+
+    for (int i = 0; i < converters.length; i++) {
+      if (i > 0) {
+        stringBuffer.append(PostgresAdapter.COMMA);
+      }
+      stringBuffer.append(converters[i].getFieldName());
+      stringBuffer.append(PostgresAdapter.SPACE);
+      stringBuffer.append(typed ? converters[i].getDbDataType() : TEXTCOLUMNTYPE);
+    }
+
+    stringBuffer.append(PostgresAdapter.RIGHTPARENTH);
+    stringBuffer.append(PostgresAdapter.SEMICOLON);
+    return stringBuffer.toString();
+  }
+
+
+  /**
+   * Creates a sql command to attach a delimited file to a TEXT table. The
+   * field separator, quoting, header line and character encoding are taken
+   * from the entity's physical description, which must be one that HSQLDB
+   * can read (see HSQLTextTableLoader.canLoad()).
+   * 
+   * @param tableName  the name of the text table
+   * @param fileName   the path of the delimited file
+   * @param entity     the entity whose data the file holds
+   * @return           a String holding the SET TABLE SOURCE command
+   */
+  public String generateTextTableSourceSQL(String tableName, String fileName,
+                                           Entity entity)
+  {
+    String fieldDelimiter =
+      DelimitedReader.unescapeDelimiter(entity.getFieldDelimiter());
+    String quoteCharacter = entity.getQuoteCharacter();
+    boolean quoted = (quoteCharacter != null && quoteCharacter.length() > 0);
+    String encoding = 
+      DelimitedReader.resolveCharset(entity.getCharacterEncoding()).name();
+
+    StringBuffer stringBuffer = new StringBuffer();
+    stringBuffer.append("SET TABLE ");
+    stringBuffer.append(tableName);
+    stringBuffer.append(" SOURCE ");
+    stringBuffer.append(PostgresAdapter.DOUBLEQUOTE);
+    stringBuffer.append(fileName.replace('\\', '/'));
+    stringBuffer.append(";fs=");
+    stringBuffer.append(escapeTextTableSeparator(fieldDelimiter));
+    stringBuffer.append(";ignore_first=");
+    stringBuffer.append(entity.getNumHeaderLines() > 0);
+    stringBuffer.append(";quoted=");
+    stringBuffer.append(quoted);
+    stringBuffer.append(";encoding=");
+    stringBuffer.append(encoding);
+    stringBuffer.append(PostgresAdapter.DOUBLEQUOTE);
+    return stringBuffer.toString();
+  }
+
+
+  /**
+   * Creates a sql command that copies the rows of an untyped TEXT table into
+   * the entity's table, converting each value to its attribute's type. As
+   * with generateInsertSQL(), blank values and missing value codes become
+   * nulls and rows without any value are skipped.
+   * 
+   * @param converters     the converters of the table's attributes
+   * @param tableName      the name of the table to insert into
+   * @param textTableName  the name of the text table, as created with
+   *                       generateTextTableDDL(converters, name, false)
+   * @return  a String holding the INSERT ... SELECT command
+   * @throws DataNotMatchingMetadataException if an attribute's type is not
+   *         known
+   * @throws SQLException if there are no attributes
+   */
+  public String generateMaterializeSQL(AttributeConverter[] converters,
+                                       String tableName, String textTableName)
+         throws DataNotMatchingMetadataException, SQLException
+  {
+    if (converters == null || converters.length == 0) {
+      throw new SQLException("No attribute definition found in entity");
+    }
+
+    StringBuffer insertPart = new StringBuffer();
+    StringBuffer selectPart = new StringBuffer();
+    StringBuffer wherePart = new StringBuffer();
+    insertPart.append(PostgresAdapter.INSERT);
+    insertPart.append(PostgresAdapter.SPACE);
+    insertPart.append(tableName);
+    insertPart.append(PostgresAdapter.LEFTPARENTH);
+    selectPart.append(" SELECT ");
+    wherePart.append(" WHERE NOT ");
+    wherePart.append(PostgresAdapter.LEFTPARENTH);
+
+    for (int i = 0; i < converters.length; i++) {
+      String fieldName = converters[i].getFieldName();
+      if (i > 0) {
+        insertPart.append(PostgresAdapter.COMMA);
+        selectPart.append(PostgresAdapter.COMMA);
+        wherePart.append(" AND ");
+      }
+      insertPart.append(fieldName);
+      converters[i].appendSQLConversion(selectPart, fieldName);
+      converters[i].appendSQLNullTest(wherePart, fieldName);
+    }
+
+    insertPart.append(PostgresAdapter.RIGHTPARENTH);
+    wherePart.append(PostgresAdapter.RIGHTPARENTH);
+    insertPart.append(selectPart);
+    insertPart.append(" FROM ");
+    insertPart.append(textTableName);
+    insertPart.append(wherePart);
+    return insertPart.toString();
+  }
+
+
+  /*
+   * Escapes a field separator for the source string of a TEXT table, which
+   * is itself delimited by semicolons and double quotes.
+   */
+  static String escapeTextTableSeparator(String separator)
+  {
+    StringBuffer escaped = new StringBuffer();
+
+    for (int i = 0; i < separator.length(); i++) {
+      char c = separator.charAt(i);
+      switch (c) {
+        case ';':  escaped.append("\\semi");  break;
+        case '"':  escaped.append("\\quote"); break;
+        case '\'': escaped.append("\\apos");  break;
+        case ' ':  escaped.append("\\space"); break;
+        case '\t': escaped.append("\\t");     break;
+        case '\n': escaped.append("\\n");     break;
+        case '\r': escaped.append("\\r");     break;
+        case '\\': escaped.append("\\\\");    break;
+        default:
+          if (c < 0x20 || c > 0x7E) {
+            String hex = Integer.toHexString(c);
+            escaped.append("\\u");
+            for (int j = hex.length(); j < 4; j++) {
+              escaped.append('0');
+            }
+            escaped.append(hex);
+          }
+          else {
+            escaped.append(c);
+          }
+      }
+    }
+
+    return escaped.toString();
+  }
+
+
+  /**
+   * Creates a sql command that adds a constraint to a loaded table. HSQLDB
+   * cannot add a primary key to an existing table, so a primary key is
+   * added as a unique constraint, which foreign keys can reference as well;
+   * its keys are checked for null values before it is added.
+   */
+  public String generateAddConstraintSQL(String tableName, 
+                                         String constraintName, int type,
+                                         String[] fieldNames, 
+                                         String referencedTableName,
+                                         String[] referencedFieldNames) {
+    if (type == Constraint.PRIMARYKEY) {
+      type = Constraint.UNIQUEKEY;
+    }
+    
+    return super.generateAddConstraintSQL(tableName, constraintName, type, 
+                                          fieldNames, referencedTableName, 
+                                          referencedFieldNames);
+  }
+  
+  
+  /**
+   * Creates a SQL command that creates an empty cached table with the
+   * columns of the rows of a selection. This version of HSQLDB creates a
+   * table from a selection through SELECT INTO rather than CREATE TABLE AS.
+   * 
+   * @param  tableName  the name of the table to be created
+   * @param  selectSQL  the selection, without a trailing semicolon
+   * @return the SQL string
+   */
+  public String generateCreateTableAsSQL(String tableName, String selectSQL) {
+    return "SELECT * INTO CACHED " + tableName + " FROM (" + selectSQL + 
+           ") SELECTION WHERE 1=0";
+  }
+  
+  
   /**
    * Create a drop table sql command.
    * 
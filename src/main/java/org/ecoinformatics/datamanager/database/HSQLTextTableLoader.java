@@ -0,0 +1,530 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.download.DataSourceNotFoundException;
+import org.ecoinformatics.datamanager.download.DataStorageInterface;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.quality.QualityCheck;
+import org.ecoinformatics.datamanager.quality.QualityReport;
+
+/**
+ * Implements the DataStorageInterface to load a simple delimited entity into
+ * an HSQL database without parsing it in Java. The data is spooled to a file
+ * in the spool directory, which is then attached to a TEXT table so that
+ * HSQLDB reads its rows directly.
+ *
+ * In MODE_ATTACH the TEXT table replaces the entity's table, as long as
+ * HSQLDB can read every column with its own type: string and numeric
+ * attributes without missing value codes. The spooled file then stays in
+ * the spool directory for as long as the table exists. Otherwise, and
+ * always in MODE_MATERIALIZE, the file is attached to a staging TEXT table
+ * whose rows are converted and copied into the entity's CACHED table with
+ * INSERT ... SELECT, after which the staging table and file are removed.
+ *
+ * TEXT tables need a file-based HSQL database; they cannot be created in a
+ * memory-only database.
+ */
+public class HSQLTextTableLoader implements DataStorageInterface
+{
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(HSQLTextTableLoader.class);
+
+  /* Entities are loaded by DatabaseLoader */
+  public static final int MODE_OFF = 0;
+
+  /* Entities are attached as TEXT tables where possible */
+  public static final int MODE_ATTACH = 1;
+
+  /* Entities are copied from a TEXT table into a CACHED table */
+  public static final int MODE_MATERIALIZE = 2;
+
+  private static final String TEXT_TABLE_SUFFIX = "_text";
+  private static final String SPOOL_FILE_SUFFIX = ".txt";
+
+  private static int loadMode = MODE_OFF;
+
+  private static File spoolDirectory =
+    new File(System.getProperty("java.io.tmpdir"), "datamanager");
+
+
+  /*
+   * Instance fields
+   */
+
+  private final Entity entity;
+  private final HSQLAdapter databaseAdapter;
+  private final int mode;
+  private File spoolFile = null;
+  private OutputStream outputStream = null;
+  private boolean completed = false;
+  private boolean success = false;
+  private Exception exception = null;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a loader for an entity, using the current load mode.
+   *
+   * @param entity  the entity whose data is loaded
+   */
+  public HSQLTextTableLoader(Entity entity) {
+    this(entity, loadMode);
+  }
+
+
+  /**
+   * Constructs a loader for an entity.
+   *
+   * @param entity  the entity whose data is loaded
+   * @param mode    MODE_ATTACH or MODE_MATERIALIZE
+   */
+  public HSQLTextTableLoader(Entity entity, int mode) {
+    this.entity = entity;
+    this.databaseAdapter = new HSQLAdapter();
+    this.mode = mode;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the mode in which DatabaseHandler loads entities into an HSQL
+   * database.
+   *
+   * @return MODE_OFF, MODE_ATTACH or MODE_MATERIALIZE
+   */
+  public static int getLoadMode() {
+    return loadMode;
+  }
+
+
+  /**
+   * Sets the mode in which DatabaseHandler loads entities into an HSQL
+   * database. With MODE_OFF, the default, entities are parsed and inserted
+   * by DatabaseLoader.
+   *
+   * @param mode  MODE_OFF, MODE_ATTACH or MODE_MATERIALIZE
+   */
+  public static void setLoadMode(int mode) {
+    loadMode = mode;
+  }
+
+
+  /**
+   * Gets the directory that entities are spooled to.
+   *
+   * @return the spool directory
+   */
+  public static File getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+
+  /**
+   * Sets the directory that entities are spooled to. Attached files remain
+   * in this directory, so it should be kept next to the HSQL database files.
+   *
+   * @param directory  the spool directory
+   */
+  public static void setSpoolDirectory(File directory) {
+    spoolDirectory = directory;
+  }
+
+
+  /**
+   * Determines whether the physical format of an entity can be read by an
+   * HSQL TEXT table: a simple delimited format with a single-character
+   * field delimiter that is not collapsed, lines ending with a newline, at
+   * most one header line and no footer lines, and either no quote
+   * character or the double quote.
+   *
+   * @param entity  the entity to check
+   * @return true if the entity can be loaded by this class
+   */
+  public static boolean canLoad(Entity entity) {
+    if (entity == null || !entity.isSimpleDelimited() ||
+        entity.getCollapseDelimiters() ||
+        entity.getNumHeaderLines() > 1 || entity.getNumFooterLines() > 0) {
+      return false;
+    }
+
+    String literalCharacter = entity.getLiteralCharacter();
+    if (literalCharacter != null && literalCharacter.length() > 0) {
+      return false;
+    }
+
+    String quoteCharacter = entity.getQuoteCharacter();
+    if (quoteCharacter != null && quoteCharacter.length() > 0 &&
+        !quoteCharacter.equals("\"")) {
+      return false;
+    }
+
+    String fieldDelimiter = entity.getFieldDelimiter();
+    if (fieldDelimiter == null ||
+        DelimitedReader.unescapeDelimiter(fieldDelimiter).length() != 1) {
+      return false;
+    }
+
+    String recordDelimiter = entity.getRecordDelimiter();
+    if (recordDelimiter != null) {
+      String lineEnding = DelimitedReader.unescapeDelimiter(recordDelimiter);
+      if (!lineEnding.equals("\n") && !lineEnding.equals("\r\n")) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Determines whether every attribute can be read by HSQLDB with its own
+   * type, so that the entity's table can be a typed TEXT table: string and
+   * numeric attributes without missing value codes.
+   *
+   * @param converters  the converters of the table's attributes
+   * @return true if a typed TEXT table holds the same values as a loaded
+   *         CACHED table
+   */
+  static boolean canAttachTyped(AttributeConverter[] converters) {
+    for (int i = 0; i < converters.length; i++) {
+      int kind = converters[i].getKind();
+      if (converters[i].hasMissingValues() ||
+          (kind != AttributeConverter.KIND_STRING &&
+           kind != AttributeConverter.KIND_INTEGER &&
+           kind != AttributeConverter.KIND_FLOAT)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Accesses the data for a given identifier. Not used, since the data is
+   * read through the database.
+   *
+   * @param identifier  An identifier of the data to be loaded.
+   * @return  null
+   */
+  public InputStream load(String identifier)
+          throws DataSourceNotFoundException {
+    return null;
+  }
+
+
+  /**
+   * Starts to serialize the entity into a spool file. The file is attached
+   * to the database when the returned stream is closed.
+   *
+   * @param identifier  An identifier to the data in the local store that is
+   *                    to be serialized.
+   * @return An output stream to the spool file, or null if it cannot be
+   *         created.
+   */
+  public OutputStream startSerialize(String identifier) {
+    completed = false;
+    success = false;
+    exception = null;
+
+    try {
+      if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+        throw new IOException("Unable to create spool directory " +
+                              spoolDirectory);
+      }
+      spoolFile = new File(spoolDirectory,
+                           entity.getDBTableName() + SPOOL_FILE_SUFFIX);
+      outputStream = new SpoolOutputStream(new FileOutputStream(spoolFile));
+    }
+    catch (IOException e) {
+      log.error("Unable to spool entity: " + e.getMessage());
+      exception = e;
+      completed = true;
+      outputStream = null;
+    }
+
+    return outputStream;
+  }
+
+
+  /**
+   * Finishes serialization of the data. Closes the spool file, if it is
+   * still open, which attaches it to the database.
+   *
+   * @param identifier  the identifier for the data whose serialization is done
+   * @param errorCode   a string indicating whether there was an error during
+   *                    the serialization
+   */
+  public void finishSerialize(String identifier, String errorCode) {
+    if (outputStream != null) {
+      try {
+        outputStream.close();
+      }
+      catch (IOException e) {
+        log.error("Could not close the spool file in " +
+                  "HSQLTextTableLoader.finishSerialize(): " + e.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Gets the spool file of the entity.
+   *
+   * @return the spool file, or null if serialization has not started
+   */
+  public File getSpoolFile() {
+    return spoolFile;
+  }
+
+
+  /**
+   * Loads the spooled file into the entity's table, through a connection
+   * obtained from the DataManager.
+   */
+  void attach() {
+    Connection connection = null;
+
+    try {
+      connection = DataManager.getConnection();
+      if (connection == null) {
+        throw new SQLException("The connection to db is null");
+      }
+      attach(connection);
+    }
+    catch (Exception e) {
+      // Already recorded by attach(Connection)
+      if (exception == null) {
+        exception = e;
+      }
+    }
+    finally {
+      if (connection != null) {
+        DataManager.returnConnection(connection);
+      }
+      completed = true;
+    }
+  }
+
+
+  /**
+   * Loads the spooled file into the entity's table, whose definition must
+   * already have been generated, and records the outcome in the entity's
+   * quality report.
+   *
+   * @param connection  a connection to a file-based HSQL database
+   * @return the number of rows loaded
+   * @throws Exception if the rows cannot be loaded
+   */
+  int attach(Connection connection) throws Exception {
+    String dataLoadIdentifier = "dataLoadStatus";
+    QualityCheck dataLoadTemplate =
+      QualityReport.getQualityCheckTemplate(dataLoadIdentifier);
+    QualityCheck dataLoadQualityCheck =
+      new QualityCheck(dataLoadIdentifier, dataLoadTemplate);
+    String tableName = entity.getDBTableName();
+    String textTableName = tableName + TEXT_TABLE_SUFFIX;
+    String fileName = spoolFile.getAbsolutePath();
+    AttributeConverter[] converters =
+      databaseAdapter.compileConverters(entity.getAttributeList());
+    boolean typed = (mode == MODE_ATTACH && canAttachTyped(converters));
+    Statement statement = null;
+    int rowCount = 0;
+
+    try {
+      statement = connection.createStatement();
+
+      if (typed) {
+        // The text table takes the place of the entity's table
+        statement.execute(databaseAdapter.generateDropTableSQL(tableName));
+        statement.execute(
+          databaseAdapter.generateTextTableDDL(converters, tableName, true));
+        statement.execute(databaseAdapter.generateTextTableSourceSQL(
+                                                tableName, fileName, entity));
+        ResultSet resultSet = statement.executeQuery(
+          databaseAdapter.getCountingRowNumberSQL(tableName));
+        if (resultSet.next()) {
+          rowCount = resultSet.getInt(1);
+        }
+        resultSet.close();
+      }
+      else {
+        statement.execute(databaseAdapter.generateDropTableSQL(textTableName));
+        statement.execute(databaseAdapter.generateTextTableDDL(
+                                          converters, textTableName, false));
+        statement.execute(databaseAdapter.generateTextTableSourceSQL(
+                                            textTableName, fileName, entity));
+        rowCount = statement.executeUpdate(databaseAdapter.generateMaterializeSQL(
+                                         converters, tableName, textTableName));
+        statement.execute(databaseAdapter.generateDropTableSQL(textTableName));
+      }
+
+      DatabaseLoader.addLoadStatusChecks(entity, dataLoadQualityCheck, rowCount);
+      if (!typed) {
+        // A text table cannot be indexed without reading its file again
+        new ConstraintBuilder(databaseAdapter,
+          new TableMonitor(databaseAdapter)).buildKeys(connection, entity);
+      }
+      success = true;
+      return rowCount;
+    }
+    catch (Exception e) {
+      log.error("Exception in HSQLTextTableLoader.attach(): " + e.getMessage());
+      success = false;
+      exception = e;
+
+      if (QualityCheck.shouldRunQualityCheck(entity, dataLoadQualityCheck)) {
+        // Report data load status as failed
+        dataLoadQualityCheck.setFailedStatus();
+        dataLoadQualityCheck.setFound(
+          "One or more errors occurred during data loading");
+        String explanation = "<![CDATA[" + e.getMessage() + "]]>";
+        dataLoadQualityCheck.setExplanation(explanation);
+        entity.addQualityCheck(dataLoadQualityCheck);
+      }
+
+      if (!typed && statement != null) {
+        try {
+          statement.execute(databaseAdapter.generateDropTableSQL(textTableName));
+        }
+        catch (SQLException ee) {
+          log.error(ee.getMessage());
+        }
+      }
+
+      throw e;
+    }
+    finally {
+      if (statement != null) {
+        statement.close();
+      }
+
+      if (!typed && !spoolFile.delete()) {
+        log.warn("Unable to delete spool file " + spoolFile);
+      }
+    }
+  }
+
+
+  /**
+   * Determines whether the data table corresponding to a given identifier
+   * already exists in the database and is loaded with data.
+   *
+   * @param  identifier  the identifier for the data table
+   * @return true if the data table has been loaded into the database, else
+   *         false
+   */
+  public boolean doesDataExist(String identifier) {
+    boolean doesExist = false;
+
+    try {
+      TableMonitor tableMonitor = new TableMonitor(databaseAdapter);
+      String tableName = tableMonitor.identifierToTableName(identifier);
+      doesExist = tableMonitor.isTableInDB(tableName);
+
+      if (doesExist) {
+        doesExist = (tableMonitor.countRows(tableName) > 0);
+      }
+    }
+    catch (SQLException e) {
+      log.error(e.getMessage());
+    }
+
+    return doesExist;
+  }
+
+
+  /**
+   * Gets the completion status of the serialize process.
+   *
+   * @param identifier   Identifier of the entity which is being serialized
+   * @return             true if complete, false if not complete
+   */
+  public boolean isCompleted(String identifier) {
+    return completed || doesDataExist(identifier);
+  }
+
+
+  /**
+   * Gets the success status of the serialize process - success or failure
+   *
+   * @param identifier    Identifier of the entity which has been serialized
+   * @return              true if success, else false
+   */
+  public boolean isSuccess(String identifier) {
+    return success || doesDataExist(identifier);
+  }
+
+
+  /**
+   * Gets the Exception that happened in serialization
+   *
+   * @return the Exception, or null
+   */
+  public Exception getException() {
+    return exception;
+  }
+
+
+  /*
+   * The stream returned to the DownloadHandler, which attaches the spool
+   * file once the download has been written and the stream is closed.
+   */
+  private class SpoolOutputStream extends FilterOutputStream {
+    private boolean closed = false;
+
+    private SpoolOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      try {
+        super.close();
+      }
+      catch (IOException e) {
+        exception = e;
+        completed = true;
+        throw e;
+      }
+
+      attach();
+    }
+  }
+
+}
@@ -0,0 +1,806 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+
+/**
+ * Creates secondary indexes on the fields of entity tables that queries
+ * filter and join on. The tables are created without indexes other than
+ * those of their keys, so a condition or join on another field scans the
+ * table.
+ *
+ * Each query run through the DataManager records a use of every field that
+ * one of its conditions compares with a value, or that one of its joins
+ * matches. The advisor runs in the background once in a period, and on
+ * each run it indexes the fields used at least a number of times, in order
+ * of use, within a budget of bytes for all the indexes it creates. It
+ * retires an index once its field is used less than a smaller number of
+ * times, or to make room for an index on a field used more. The uses are
+ * halved on each run, so they count the uses of recent periods.
+ *
+ * A field that is only filtered on is not indexed if a value selects more
+ * than a fraction of the rows on average, as measured by the number of its
+ * distinct values. The advisor is disabled by default.
+ */
+public class IndexAdvisor {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(IndexAdvisor.class);
+
+  /** The default number of uses for which a field is indexed */
+  public static final int DEFAULT_CREATE_THRESHOLD = 25;
+
+  /** The default number of uses below which an index is retired */
+  public static final int DEFAULT_RETIRE_THRESHOLD = 2;
+
+  /** The default budget of the indexes, 256 megabytes */
+  public static final long DEFAULT_MAX_INDEX_BYTES = 256L * 1024 * 1024;
+
+  /** The default fraction of rows above which a filter is not indexed */
+  public static final double DEFAULT_MAX_SELECTIVITY = 0.2;
+
+  /** The default period between runs, ten minutes */
+  public static final long DEFAULT_ADVICE_PERIOD = 10L * 60 * 1000;
+
+  /* The estimated bytes of an index entry besides its value */
+  private static final int INDEX_ENTRY_OVERHEAD = 16;
+
+  private static final String INDEX_PREFIX = "IX_";
+
+  private static volatile boolean enabled = false;
+  private static int createThreshold = DEFAULT_CREATE_THRESHOLD;
+  private static int retireThreshold = DEFAULT_RETIRE_THRESHOLD;
+  private static long maxIndexBytes = DEFAULT_MAX_INDEX_BYTES;
+  private static double maxSelectivity = DEFAULT_MAX_SELECTIVITY;
+  private static long advicePeriod = DEFAULT_ADVICE_PERIOD;
+  private static Timer adviceTimer = null;
+
+  /* The use of each field, by upper-case table and field name */
+  private static final HashMap<String, FieldUsage> usages =
+    new HashMap<String, FieldUsage>();
+
+  /* Serializes the runs of the advisor */
+  private static final Object adviceLock = new Object();
+
+
+  /*
+   * Instance fields
+   */
+
+  private final DatabaseAdapter databaseAdapter;
+  private final TableMonitor tableMonitor;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs an advisor for the tables in the database that the
+   * DataManager connects to.
+   *
+   * @param databaseAdapter  the adapter of the database
+   * @param tableMonitor     the monitor of the tables in the database
+   */
+  public IndexAdvisor(DatabaseAdapter databaseAdapter,
+                      TableMonitor tableMonitor) {
+    this.databaseAdapter = databaseAdapter;
+    this.tableMonitor = tableMonitor;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Determines whether the uses of fields are recorded and the advisor
+   * runs in the background.
+   *
+   * @return true if the advisor is enabled, else false
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+
+  /**
+   * Enables or disables the advisor. Disabling it stops the background runs
+   * and forgets the uses recorded; the indexes it created are kept.
+   *
+   * @param enable  true to record uses and create indexes, false to stop
+   */
+  public static synchronized void setEnabled(boolean enable) {
+    enabled = enable;
+
+    if (adviceTimer != null) {
+      adviceTimer.cancel();
+      adviceTimer = null;
+    }
+
+    if (enable) {
+      adviceTimer = new Timer("IndexAdvisor", true);
+      adviceTimer.schedule(new TimerTask() {
+        public void run() {
+          try {
+            String dbAdapterName = DataManager.getDatabaseAdapterName();
+            new DatabaseHandler(dbAdapterName).adviseIndexes();
+          }
+          catch (Exception e) {
+            log.error("Unable to advise indexes: " + e.getMessage());
+          }
+        }
+      }, advicePeriod, advicePeriod);
+    }
+    else {
+      synchronized (usages) {
+        usages.clear();
+      }
+    }
+  }
+
+
+  /**
+   * Gets the number of uses in recent periods for which a field is indexed.
+   *
+   * @return the number of uses
+   */
+  public static synchronized int getCreateThreshold() {
+    return createThreshold;
+  }
+
+
+  /**
+   * Sets the number of uses in recent periods for which a field is indexed.
+   *
+   * @param uses  the number of uses, at least 1
+   */
+  public static synchronized void setCreateThreshold(int uses) {
+    createThreshold = Math.max(uses, 1);
+  }
+
+
+  /**
+   * Gets the number of uses in recent periods below which the index of a
+   * field is retired.
+   *
+   * @return the number of uses
+   */
+  public static synchronized int getRetireThreshold() {
+    return retireThreshold;
+  }
+
+
+  /**
+   * Sets the number of uses in recent periods below which the index of a
+   * field is retired. It should be well below the create threshold, so that
+   * an index is not created and retired in turn.
+   *
+   * @param uses  the number of uses
+   */
+  public static synchronized void setRetireThreshold(int uses) {
+    retireThreshold = Math.max(uses, 0);
+  }
+
+
+  /**
+   * Gets the number of bytes that the indexes created by the advisor take
+   * at most, as estimated from the sizes of their tables.
+   *
+   * @return the budget in bytes
+   */
+  public static synchronized long getMaxIndexBytes() {
+    return maxIndexBytes;
+  }
+
+
+  /**
+   * Sets the number of bytes that the indexes created by the advisor take
+   * at most. Indexes that no longer fit are retired on the next run.
+   *
+   * @param bytes  the budget in bytes
+   */
+  public static synchronized void setMaxIndexBytes(long bytes) {
+    maxIndexBytes = Math.max(bytes, 0);
+  }
+
+
+  /**
+   * Gets the average fraction of the rows of a table that a value of a
+   * field selects, above which a field that is only filtered on is not
+   * indexed.
+   *
+   * @return the fraction of rows
+   */
+  public static synchronized double getMaxSelectivity() {
+    return maxSelectivity;
+  }
+
+
+  /**
+   * Sets the average fraction of the rows of a table that a value of a
+   * field selects, above which a field that is only filtered on is not
+   * indexed. A field with few distinct values is scanned as quickly as it
+   * is looked up through an index.
+   *
+   * @param fraction  the fraction of rows, from 0 to 1
+   */
+  public static synchronized void setMaxSelectivity(double fraction) {
+    maxSelectivity = fraction;
+  }
+
+
+  /**
+   * Gets the number of milliseconds between the runs of the advisor.
+   *
+   * @return the period in milliseconds
+   */
+  public static synchronized long getAdvicePeriod() {
+    return advicePeriod;
+  }
+
+
+  /**
+   * Sets the number of milliseconds between the runs of the advisor, which
+   * takes effect when it is next enabled.
+   *
+   * @param millis  the period in milliseconds
+   */
+  public static synchronized void setAdvicePeriod(long millis) {
+    advicePeriod = Math.max(millis, 1);
+  }
+
+
+  /**
+   * Records the uses of the fields that the conditions and joins of a query
+   * compare, including those of its subqueries, if the advisor is enabled.
+   *
+   * @param query  the query that is run
+   */
+  public static void recordQuery(Query query) {
+    if (enabled && query != null) {
+      WhereClause whereClause = query.getWhereClause();
+
+      if (whereClause != null) {
+        recordCondition(whereClause.getConditionInterface());
+        recordRelation(whereClause.getANDRelation());
+        recordRelation(whereClause.getORRelation());
+      }
+    }
+  }
+
+
+  /**
+   * Records the uses of the fields that the queries of a union compare.
+   *
+   * @param union  the union that is run
+   */
+  public static void recordUnion(Union union) {
+    if (enabled && union != null) {
+      Query[] queries = union.getQueries();
+
+      for (int i = 0; queries != null && i < queries.length; i++) {
+        recordQuery(queries[i]);
+      }
+    }
+  }
+
+
+  /**
+   * Gets the uses of a field in recent periods.
+   *
+   * @param tableName  the name of the table
+   * @param fieldName  the database field name
+   * @return the number of uses, which is fractional once it has been halved
+   */
+  public static double getUses(String tableName, String fieldName) {
+    synchronized (usages) {
+      FieldUsage usage = usages.get(usageKey(tableName, fieldName));
+
+      return (usage == null) ? 0 : usage.getUses();
+    }
+  }
+
+
+  /**
+   * Gets the index that the advisor created on a field.
+   *
+   * @param tableName  the name of the table
+   * @param fieldName  the database field name
+   * @return the name of the index, or null if the field is not indexed
+   */
+  public static String getIndexName(String tableName, String fieldName) {
+    synchronized (usages) {
+      FieldUsage usage = usages.get(usageKey(tableName, fieldName));
+
+      return (usage == null) ? null : usage.indexName;
+    }
+  }
+
+
+  /**
+   * Gets the estimated bytes of the indexes that the advisor created, which
+   * it keeps within the budget.
+   *
+   * @return the estimated bytes of the indexes
+   */
+  public static long getIndexBytes() {
+    long bytes = 0;
+
+    synchronized (usages) {
+      for (FieldUsage usage : usages.values()) {
+        bytes += usage.indexBytes;
+      }
+    }
+
+    return bytes;
+  }
+
+
+  private static void recordRelation(LogicalRelation relation) {
+    if (relation == null) {
+      return;
+    }
+
+    ConditionInterface[] conditions = relation.getConditionInterfaceList();
+    ANDRelation[] ands = relation.getANDRelationList();
+    ORRelation[] ors = relation.getORRelationList();
+
+    for (int i = 0; conditions != null && i < conditions.length; i++) {
+      recordCondition(conditions[i]);
+    }
+    for (int i = 0; ands != null && i < ands.length; i++) {
+      recordRelation(ands[i]);
+    }
+    for (int i = 0; ors != null && i < ors.length; i++) {
+      recordRelation(ors[i]);
+    }
+  }
+
+
+  private static void recordCondition(ConditionInterface condition) {
+    if (condition instanceof Condition) {
+      Condition filter = (Condition) condition;
+      String operator = filter.getOperator();
+
+      // An index does not help to find the rows that differ or match a LIKE
+      if (!ConditionInterface.NOT_EQUAL_OPERATOR.equals(operator) &&
+          !ConditionInterface.LIKE_OPERATOR.equals(operator) &&
+          !ConditionInterface.NOT_LIKE_OPERATOR.equals(operator)) {
+        recordField(filter.getEntity(), filter.getAttribute(), false);
+      }
+    }
+    else if (condition instanceof Join) {
+      Join join = (Join) condition;
+      recordField(join.getLeftEntity(), join.getLeftAttribute(), true);
+      recordField(join.getRightEntity(), join.getRightAttribute(), true);
+    }
+    else if (condition instanceof SubQueryClause) {
+      SubQueryClause subQueryClause = (SubQueryClause) condition;
+      recordField(subQueryClause.getEntity(), subQueryClause.getAttribute(),
+                  true);
+      recordQuery(subQueryClause.getQuery());
+    }
+  }
+
+
+  /*
+   * Records a use of the field of an attribute, whose table and field names
+   * are known once its entity is loaded.
+   */
+  private static void recordField(Entity entity, Attribute attribute,
+                                  boolean isJoin) {
+    if (entity == null || attribute == null) {
+      return;
+    }
+
+    String tableName;
+    String fieldName;
+
+    try {
+      tableName = DataManager.getDBTableName(entity);
+      fieldName = DataManager.getDBFieldName(entity, attribute);
+    }
+    catch (SQLException e) {
+      return;
+    }
+
+    if (tableName == null || fieldName == null) {
+      return;
+    }
+
+    synchronized (usages) {
+      String key = usageKey(tableName, fieldName);
+      FieldUsage usage = usages.get(key);
+
+      if (usage == null) {
+        usage = new FieldUsage(tableName, fieldName);
+        usages.put(key, usage);
+      }
+
+      if (isJoin) {
+        usage.joinUses++;
+      }
+      else {
+        usage.filterUses++;
+      }
+    }
+  }
+
+
+  private static String usageKey(String tableName, String fieldName) {
+    return tableName.toUpperCase() + "." + fieldName.toUpperCase();
+  }
+
+
+  /*
+   * Gets the name of the index on a field, shortened to fit the length of a
+   * table name and made unique by a hash of the table and field names.
+   */
+  private static String getIndexName(FieldUsage usage) {
+    String hash = Integer.toHexString(
+      usageKey(usage.tableName, usage.fieldName).hashCode() & 0x7fffffff);
+    String suffix = DatabaseAdapter.UNDERSCORE + hash.toUpperCase();
+    String tableName = usage.tableName.toUpperCase();
+    int maxLength = DatabaseAdapter.DEFAULT_TABLE_NAME_MAX_LENGTH -
+                    INDEX_PREFIX.length() - suffix.length();
+
+    if (tableName.length() > maxLength) {
+      tableName = tableName.substring(0, maxLength);
+    }
+
+    return INDEX_PREFIX + tableName + suffix;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Runs the advisor: forgets the indexes that were dropped with their
+   * tables, retires the indexes of fields that are no longer used enough,
+   * and indexes the fields that are used enough, most used first, within
+   * the budget. The uses are then halved.
+   *
+   * @return the number of indexes created and retired
+   */
+  public int advise() {
+    int changes = 0;
+    int createUses = getCreateThreshold();
+    int retireUses = getRetireThreshold();
+    long budget = getMaxIndexBytes();
+    double selectivityLimit = getMaxSelectivity();
+
+    synchronized (adviceLock) {
+      List<FieldUsage> fields;
+      synchronized (usages) {
+        fields = new ArrayList<FieldUsage>(usages.values());
+        for (FieldUsage usage : fields) {
+          usage.rankedUses = usage.getUses();
+        }
+      }
+
+      long usedBytes = 0;
+      for (FieldUsage usage : fields) {
+        if (usage.indexName != null && !indexExists(usage)) {
+          // The table was dropped or loaded again
+          usage.indexName = null;
+          usage.indexBytes = 0;
+        }
+        usedBytes += usage.indexBytes;
+      }
+
+      // Retire the indexes of fields no longer used, then any over budget
+      List<FieldUsage> indexed = new ArrayList<FieldUsage>();
+      for (FieldUsage usage : fields) {
+        if (usage.indexName != null) {
+          indexed.add(usage);
+        }
+      }
+      Collections.sort(indexed, MOST_USED_FIRST);
+      Collections.reverse(indexed);
+
+      for (FieldUsage usage : indexed) {
+        if ((usage.rankedUses < retireUses || usedBytes > budget) &&
+            dropIndex(usage)) {
+          usedBytes -= usage.indexBytes;
+          usage.indexBytes = 0;
+          changes++;
+        }
+      }
+
+      List<FieldUsage> candidates = new ArrayList<FieldUsage>();
+      for (FieldUsage usage : fields) {
+        if (usage.indexName == null && usage.rankedUses >= createUses) {
+          candidates.add(usage);
+        }
+      }
+      Collections.sort(candidates, MOST_USED_FIRST);
+
+      for (FieldUsage candidate : candidates) {
+        try {
+          if (!tableMonitor.isTableInDB(candidate.tableName)) {
+            continue;
+          }
+
+          measure(candidate);
+        }
+        catch (SQLException e) {
+          log.error("Unable to measure " + candidate + ": " + e.getMessage());
+          continue;
+        }
+
+        if (candidate.joinUses == 0 &&
+            candidate.selectivity > selectivityLimit) {
+          log.debug("Not indexing " + candidate + ", whose values select " +
+                    candidate.selectivity + " of the rows");
+          continue;
+        }
+
+        // Make room by retiring the indexes of less used fields
+        indexed.clear();
+        for (FieldUsage usage : fields) {
+          if (usage.indexName != null) {
+            indexed.add(usage);
+          }
+        }
+        Collections.sort(indexed, MOST_USED_FIRST);
+        Collections.reverse(indexed);
+
+        Iterator<FieldUsage> it = indexed.iterator();
+        while (it.hasNext() &&
+               usedBytes + candidate.estimatedBytes > budget) {
+          FieldUsage usage = it.next();
+          if (usage.rankedUses >= candidate.rankedUses) {
+            break;
+          }
+          if (dropIndex(usage)) {
+            usedBytes -= usage.indexBytes;
+            usage.indexBytes = 0;
+            changes++;
+          }
+        }
+
+        if (usedBytes + candidate.estimatedBytes <= budget &&
+            createIndex(candidate)) {
+          usedBytes += candidate.indexBytes;
+          changes++;
+        }
+      }
+
+      synchronized (usages) {
+        for (Iterator<FieldUsage> it = usages.values().iterator();
+             it.hasNext();) {
+          FieldUsage usage = it.next();
+          usage.filterUses /= 2;
+          usage.joinUses /= 2;
+          if (usage.indexName == null && usage.getUses() < 1) {
+            it.remove();
+          }
+        }
+      }
+    }
+
+    return changes;
+  }
+
+
+  /*
+   * Measures the number of distinct values of a field, and estimates the
+   * bytes of an index on it, unless its table is unchanged since it was
+   * last measured.
+   */
+  private void measure(FieldUsage usage) throws SQLException {
+    long version = TableMonitor.getTableVersion(usage.tableName);
+
+    if (usage.measuredVersion == version && usage.selectivity >= 0) {
+      return;
+    }
+
+    Connection connection = DataManager.getConnection();
+    Statement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      stmt = connection.createStatement();
+      rs = stmt.executeQuery("SELECT COUNT(*), COUNT(DISTINCT " +
+                             usage.fieldName + ") FROM " + usage.tableName);
+      rs.next();
+      long rowCount = rs.getLong(1);
+      long distinctCount = rs.getLong(2);
+      rs.close();
+
+      rs = stmt.executeQuery("SELECT * FROM " + usage.tableName +
+                             " WHERE 1=0");
+      int columnCount = Math.max(rs.getMetaData().getColumnCount(), 1);
+      rs.close();
+      rs = null;
+
+      long tableBytes = tableMonitor.getTableSize(usage.tableName);
+      long valueBytes = (rowCount == 0) ? 0 :
+                        tableBytes / rowCount / columnCount;
+
+      usage.selectivity = (distinctCount == 0) ? 1.0 : 1.0 / distinctCount;
+      usage.estimatedBytes = rowCount * (valueBytes + INDEX_ENTRY_OVERHEAD);
+      usage.measuredVersion = version;
+    }
+    catch (SQLException e) {
+      log.error("Unable to count the values of " + usage + ": " +
+                e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (rs != null) rs.close();
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+  }
+
+
+  private boolean createIndex(FieldUsage usage) {
+    String indexName = getIndexName(usage);
+
+    try {
+      execute(databaseAdapter.generateCreateIndexSQL(indexName,
+                usage.tableName, usage.fieldName));
+    }
+    catch (SQLException e) {
+      log.error("Unable to index " + usage + ": " + e.getMessage());
+      return false;
+    }
+
+    usage.indexName = indexName;
+    usage.indexBytes = usage.estimatedBytes;
+    log.info("Created the index " + indexName + " on " + usage + ", used " +
+             usage.getUses() + " times");
+
+    return true;
+  }
+
+
+  private boolean dropIndex(FieldUsage usage) {
+    try {
+      execute(databaseAdapter.generateDropIndexSQL(usage.indexName,
+                                                   usage.tableName));
+    }
+    catch (SQLException e) {
+      log.error("Unable to drop the index " + usage.indexName + ": " +
+                e.getMessage());
+      return false;
+    }
+
+    log.info("Retired the index " + usage.indexName + " on " + usage +
+             ", used " + usage.getUses() + " times");
+    usage.indexName = null;
+
+    return true;
+  }
+
+
+  /*
+   * Determines whether the index of a field is still on its table.
+   */
+  private boolean indexExists(FieldUsage usage) {
+    Connection connection = null;
+    ResultSet rs = null;
+    boolean exists = false;
+
+    try {
+      connection = DataManager.getConnection();
+      DatabaseMetaData databaseMetaData = connection.getMetaData();
+      String[] candidates = {usage.tableName.toUpperCase(),
+                             usage.tableName.toLowerCase()};
+
+      for (int i = 0; i < candidates.length && !exists; i++) {
+        rs = databaseMetaData.getIndexInfo(null, null, candidates[i],
+                                           false, true);
+        while (rs.next()) {
+          if (usage.indexName.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+            exists = true;
+          }
+        }
+        rs.close();
+        rs = null;
+      }
+    }
+    catch (SQLException e) {
+      log.error("Unable to look up the index " + usage.indexName + ": " +
+                e.getMessage());
+      // Keep it until it can be looked up
+      exists = true;
+    }
+    finally {
+      try {
+        if (rs != null) rs.close();
+      }
+      catch (SQLException e) {
+        log.error(e.getMessage());
+      }
+      if (connection != null) DataManager.returnConnection(connection);
+    }
+
+    return exists;
+  }
+
+
+  private void execute(String sql) throws SQLException {
+    Connection connection = DataManager.getConnection();
+    Statement stmt = null;
+
+    try {
+      stmt = connection.createStatement();
+      stmt.executeUpdate(sql);
+    }
+    catch (SQLException e) {
+      log.error("Unable to execute " + sql + ": " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+  }
+
+
+  /*
+   * Orders fields by their uses when the advisor last ran, most used first.
+   */
+  private static final Comparator<FieldUsage> MOST_USED_FIRST =
+    new Comparator<FieldUsage>() {
+      public int compare(FieldUsage a, FieldUsage b) {
+        return Double.compare(b.rankedUses, a.rankedUses);
+      }
+    };
+
+
+  /*
+   * The uses of a field, and the index that the advisor created on it.
+   */
+  private static class FieldUsage {
+    final String tableName;
+    final String fieldName;
+    double filterUses = 0;
+    double joinUses = 0;
+    double rankedUses = 0;       // the uses when the advisor last ran
+    double selectivity = -1;     // the fraction of rows a value selects
+    long estimatedBytes = 0;     // the estimated bytes of an index
+    long measuredVersion = -1;   // the table version when measured
+    String indexName = null;
+    long indexBytes = 0;
+
+    FieldUsage(String tableName, String fieldName) {
+      this.tableName = tableName;
+      this.fieldName = fieldName;
+    }
+
+    double getUses() {
+      return filterUses + joinUses;
+    }
+
+    public String toString() {
+      return tableName + "." + fieldName;
+    }
+  }
+
+}
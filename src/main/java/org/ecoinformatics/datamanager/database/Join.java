@@ -32,6 +32,7 @@
 package org.ecoinformatics.datamanager.database;
 
 import java.sql.SQLException;
+import java.util.List;
 
 import org.ecoinformatics.datamanager.DataManager;
 import org.ecoinformatics.datamanager.parser.Attribute;
@@ -85,6 +86,22 @@ public class Join implements ConditionInterface
 		this.attribute2 = attribute2;
 	}
 	
+	public Entity getLeftEntity() {
+		return entity1;
+	}
+	
+	public Attribute getLeftAttribute() {
+		return attribute1;
+	}
+	
+	public Entity getRightEntity() {
+		return entity2;
+	}
+	
+	public Attribute getRightAttribute() {
+		return attribute2;
+	}
+	
 	public boolean isLeftSet() {
 		return (entity1 != null) && (attribute1 != null);
 	}
@@ -167,4 +184,19 @@ public class Join implements ConditionInterface
       
 	  return sql.toString();
    }
+   
+   
+   /**
+	* Transfers a Condition object to sql string. A join has no literal
+	* values, so nothing is added to the binds.
+    * 
+    * @param binds the list of binds, which is left as it is
+	* @return condition sql string
+    * @throws UnWellFormedQueryException
+    */
+   public String toSQLString(List<Object> binds) 
+           throws UnWellFormedQueryException
+   {
+	  return toSQLString();
+   }
 }
@@ -0,0 +1,118 @@
+package org.ecoinformatics.datamanager.database;
+
+/**
+ * Records how far the load of a data table has progressed, as stored in the
+ * data table registry by TableMonitor. A checkpoint is written in the same
+ * transaction as each chunk of rows that a DatabaseLoader commits, so the
+ * rows of the table always correspond to the data read up to the
+ * checkpoint. An interrupted load can then be resumed after the last
+ * committed chunk instead of being dropped and restarted.
+ */
+public class LoadCheckpoint {
+
+  /*
+   * Class fields
+   */
+
+  /* The load was interrupted after the checkpoint and can be resumed */
+  public static final String STATUS_LOADING = "loading";
+
+  /* The load finished; the table holds all the rows of the entity */
+  public static final String STATUS_COMPLETE = "complete";
+
+  /* The load failed on the data itself and should not be resumed */
+  public static final String STATUS_FAILED = "failed";
+
+
+  /*
+   * Instance fields
+   */
+
+  private final long rowNumber;
+  private final long byteOffset;
+  private final String status;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a checkpoint.
+   *
+   * @param rowNumber   the number of rows of the source that were read,
+   *                    not counting header lines
+   * @param byteOffset  the offset in the source stream just past the last
+   *                    row read, or -1 if it is not known
+   * @param status      STATUS_LOADING, STATUS_COMPLETE or STATUS_FAILED
+   */
+  public LoadCheckpoint(long rowNumber, long byteOffset, String status) {
+    this.rowNumber = rowNumber;
+    this.byteOffset = byteOffset;
+    this.status = status;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the number of rows of the source that were read up to the
+   * checkpoint, not counting header lines. Rows without any value are
+   * included, even though they are not inserted.
+   *
+   * @return the row number
+   */
+  public long getRowNumber() {
+    return rowNumber;
+  }
+
+
+  /**
+   * Gets the offset in the source stream just past the last row read up to
+   * the checkpoint.
+   *
+   * @return the byte offset, or -1 if it is not known
+   */
+  public long getByteOffset() {
+    return byteOffset;
+  }
+
+
+  /**
+   * Gets the status of the load.
+   *
+   * @return STATUS_LOADING, STATUS_COMPLETE or STATUS_FAILED
+   */
+  public String getStatus() {
+    return status;
+  }
+
+
+  /**
+   * Determines whether the load can be resumed from this checkpoint.
+   *
+   * @return true if the load was interrupted after committing one or more
+   *         rows
+   */
+  public boolean isResumable() {
+    return STATUS_LOADING.equals(status) && rowNumber > 0;
+  }
+
+
+  /**
+   * Determines whether the load finished.
+   *
+   * @return true if the status is STATUS_COMPLETE
+   */
+  public boolean isComplete() {
+    return STATUS_COMPLETE.equals(status);
+  }
+
+
+  public String toString() {
+    return status + " at row " + rowNumber + ", byte " + byteOffset;
+  }
+
+}
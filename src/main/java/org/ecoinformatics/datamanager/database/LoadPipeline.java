@@ -0,0 +1,487 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Loads the rows of an entity in three stages that run concurrently:
+ *
+ *   read     - a thread parses rows from the data stream and groups them
+ *              into batches;
+ *   convert  - a pool of threads converts the values of each batch to the
+ *              types of their attributes;
+ *   insert   - the calling thread binds the converted rows to a
+ *              BatchedInsertStatement, executes it and commits chunks.
+ *
+ * The stages are connected by a bounded queue of batches, so a slow insert
+ * stage holds back the reader instead of letting rows pile up in memory.
+ * Batches are inserted in the order they were read, which keeps row numbers
+ * in error messages and the chunks committed with checkpoints the same as
+ * when a table is loaded by a single thread. The time spent in each stage
+ * and the depth of the queue are recorded in a LoadPipelineMetrics.
+ */
+public class LoadPipeline {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(LoadPipeline.class);
+
+  /* Marks the end of the rows in the queue */
+  private static final Future<ConvertedBatch> END_OF_ROWS =
+    completedFuture(null);
+
+
+  /*
+   * Instance fields
+   */
+
+  private final AttributeConverter[] converters;
+  private final int batchSize;
+  private final int conversionThreads;
+  private final BlockingQueue<Future<ConvertedBatch>> queue;
+  private final LoadPipelineMetrics metrics;
+  private int commitInterval = 0;
+  private ChunkListener chunkListener = null;
+  private ExecutorService converterPool = null;
+  private volatile boolean cancelled = false;
+  private volatile Exception readException = null;
+  private long sourceRowCount = 0;
+  private int failedRow = 0;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a pipeline.
+   *
+   * @param converters         the converters of the table's attributes
+   * @param batchSize          the number of rows in a batch
+   * @param conversionThreads  the number of threads converting values
+   * @param queueCapacity      the number of batches that may wait for the
+   *                           insert stage
+   * @param metrics            the metrics to record the load in
+   */
+  public LoadPipeline(AttributeConverter[] converters, int batchSize,
+                      int conversionThreads, int queueCapacity,
+                      LoadPipelineMetrics metrics) {
+    this.converters = converters;
+    this.batchSize = Math.max(1, batchSize);
+    this.conversionThreads = Math.max(1, conversionThreads);
+    this.queue = new ArrayBlockingQueue<Future<ConvertedBatch>>(
+                                               Math.max(1, queueCapacity));
+    this.metrics = (metrics == null) ? new LoadPipelineMetrics() : metrics;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /*
+   * Creates a future that already holds a batch.
+   */
+  private static Future<ConvertedBatch> completedFuture(
+                                              final ConvertedBatch batch) {
+    FutureTask<ConvertedBatch> future = new FutureTask<ConvertedBatch>(
+      new Callable<ConvertedBatch>() {
+        public ConvertedBatch call() {
+          return batch;
+        }
+      });
+    future.run();
+
+    return future;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Commits the rows loaded at regular intervals. Batches end at the
+   * interval, so the listener is called after every interval rows of the
+   * source, counting from its first row, once they have been inserted.
+   *
+   * @param interval  the number of source rows between commits, or zero
+   *                  to leave committing to the caller
+   * @param listener  commits the rows inserted so far
+   */
+  public void setCommitInterval(int interval, ChunkListener listener) {
+    this.commitInterval = interval;
+    this.chunkListener = listener;
+  }
+
+
+  /**
+   * Loads the rows of a data reader through the pipeline. Rows without any
+   * value are skipped, as with BatchedInsertStatement.addRow(). All the rows
+   * have been executed, but not committed, when this method returns.
+   *
+   * @param firstRow        the first row, already read from the reader
+   * @param dataReader      the reader of the remaining rows
+   * @param firstSourceRow  the number of source rows loaded before the
+   *                        first row, e.g. when resuming a load
+   * @param insert          the statement that inserts the rows
+   * @throws Exception if the data cannot be read, a value does not match
+   *         its attribute's type, or the rows cannot be inserted
+   */
+  public void load(Vector<String> firstRow, TextDataReader dataReader,
+                   long firstSourceRow, BatchedInsertStatement insert)
+          throws Exception {
+    metrics.start();
+    converterPool = Executors.newFixedThreadPool(conversionThreads,
+                                                 new StageThreadFactory());
+    ReadStage readStage = new ReadStage(firstRow, dataReader, firstSourceRow);
+    Thread readThread = new Thread(readStage, "LoadPipeline-read");
+    readThread.setDaemon(true);
+    readThread.start();
+
+    try {
+      while (true) {
+        long start = System.nanoTime();
+        metrics.sampleQueueDepth(queue.size());
+        ConvertedBatch batch = queue.take().get();
+        metrics.addInsertWaitTime(System.nanoTime() - start);
+
+        if (batch == null) {
+          break;
+        }
+
+        start = System.nanoTime();
+        insertBatch(batch, insert);
+        sourceRowCount = batch.lastSourceRow - firstSourceRow;
+
+        if (batch.chunkEnd && chunkListener != null) {
+          insert.executeBatch();
+          chunkListener.chunkLoaded(batch.lastSourceRow, batch.endOffset);
+        }
+        metrics.addInsertTime(System.nanoTime() - start);
+        metrics.addBatch(batch.values.length);
+      }
+
+      readThread.join();
+      if (readException != null) {
+        throw readException;
+      }
+
+      long start = System.nanoTime();
+      insert.executeBatch();
+      metrics.addInsertTime(System.nanoTime() - start);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+    catch (SQLException e) {
+      if (failedRow == 0) {
+        failedRow = insert.getFailedRow(e);
+      }
+      throw e;
+    }
+    finally {
+      cancelled = true;
+      converterPool.shutdownNow();
+      metrics.finish();
+      log.debug("Load pipeline: " + metrics);
+    }
+  }
+
+
+  /*
+   * Adds the rows of a converted batch to the insert statement, throwing
+   * the conversion error of the batch when its row is reached.
+   */
+  private void insertBatch(ConvertedBatch batch,
+                           BatchedInsertStatement insert)
+          throws DataNotMatchingMetadataException, SQLException {
+    for (int i = 0; i < batch.values.length; i++) {
+      if (batch.error != null && i == batch.errorIndex) {
+        failedRow = insert.getFailedRow(batch.error);
+        throw batch.error;
+      }
+
+      if (batch.values[i] != null) {
+        insert.addConvertedRow(batch.values[i]);
+      }
+    }
+  }
+
+
+  /*
+   * Queues a batch for conversion, waiting while the queue is full unless
+   * the pipeline has been cancelled.
+   */
+  private boolean enqueue(Future<ConvertedBatch> future)
+          throws InterruptedException {
+    long start = System.nanoTime();
+
+    try {
+      while (!cancelled) {
+        if (queue.offer(future, 100, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    finally {
+      metrics.addReadBlockedTime(System.nanoTime() - start);
+    }
+  }
+
+
+  /**
+   * Gets the number of source rows inserted, not counting the rows loaded
+   * before the first row.
+   *
+   * @return the source row count
+   */
+  public long getSourceRowCount() {
+    return sourceRowCount;
+  }
+
+
+  /**
+   * Gets the number of the row that made the load fail, counting the rows
+   * inserted by this pipeline.
+   *
+   * @return the row number, or 0 if no row failed
+   */
+  public int getFailedRow() {
+    return failedRow;
+  }
+
+
+  /**
+   * Gets the metrics of the load.
+   *
+   * @return the metrics
+   */
+  public LoadPipelineMetrics getMetrics() {
+    return metrics;
+  }
+
+
+  /*
+   * Inner classes
+   */
+
+  /**
+   * Commits the rows inserted at the end of each chunk.
+   */
+  public interface ChunkListener {
+
+    /**
+     * Called when the rows up to the end of a chunk have been executed.
+     *
+     * @param sourceRows  the number of source rows read up to the end of
+     *                    the chunk, including rows loaded before the first
+     *                    row
+     * @param endOffset   the reader's offset just past the chunk's last
+     *                    row, or -1 if it is not known
+     * @throws SQLException if the rows cannot be committed
+     */
+    void chunkLoaded(long sourceRows, long endOffset) throws SQLException;
+
+  }
+
+
+  /*
+   * A batch of rows as read from the data.
+   */
+  private static class RowBatch {
+    private final List<Vector<String>> rows;
+    private final long lastSourceRow;
+    private final long endOffset;
+    private final boolean chunkEnd;
+
+    RowBatch(List<Vector<String>> rows, long lastSourceRow, long endOffset,
+             boolean chunkEnd) {
+      this.rows = rows;
+      this.lastSourceRow = lastSourceRow;
+      this.endOffset = endOffset;
+      this.chunkEnd = chunkEnd;
+    }
+  }
+
+
+  /*
+   * A batch of rows with converted values. Rows without any value are
+   * null. If a value could not be converted, the rows from errorIndex on
+   * are not converted.
+   */
+  private static class ConvertedBatch {
+    private final Object[][] values;
+    private final long lastSourceRow;
+    private final long endOffset;
+    private final boolean chunkEnd;
+    private DataNotMatchingMetadataException error = null;
+    private int errorIndex = -1;
+
+    ConvertedBatch(RowBatch batch) {
+      this.values = new Object[batch.rows.size()][];
+      this.lastSourceRow = batch.lastSourceRow;
+      this.endOffset = batch.endOffset;
+      this.chunkEnd = batch.chunkEnd;
+    }
+  }
+
+
+  /*
+   * Converts the values of a batch.
+   */
+  private class ConvertTask implements Callable<ConvertedBatch> {
+    private final RowBatch batch;
+
+    ConvertTask(RowBatch batch) {
+      this.batch = batch;
+    }
+
+    public ConvertedBatch call() {
+      long start = System.nanoTime();
+      ConvertedBatch converted = new ConvertedBatch(batch);
+
+      for (int i = 0; i < converted.values.length; i++) {
+        try {
+          converted.values[i] = convertRow(batch.rows.get(i));
+        }
+        catch (DataNotMatchingMetadataException e) {
+          converted.error = e;
+          converted.errorIndex = i;
+          break;
+        }
+      }
+
+      metrics.addConvertTime(System.nanoTime() - start);
+      return converted;
+    }
+
+    /*
+     * Converts the values of a row, returning null if none of them has a
+     * value.
+     */
+    private Object[] convertRow(Vector<String> row)
+            throws DataNotMatchingMetadataException {
+      Object[] values = new Object[converters.length];
+      boolean hasValue = false;
+
+      for (int i = 0; i < converters.length; i++) {
+        values[i] = converters[i].convertValue(row.elementAt(i));
+        if (values[i] != null) {
+          hasValue = true;
+        }
+      }
+
+      return hasValue ? values : null;
+    }
+  }
+
+
+  /*
+   * Reads the rows of the data into batches and queues them for conversion.
+   */
+  private class ReadStage implements Runnable {
+    private final Vector<String> firstRow;
+    private final TextDataReader dataReader;
+    private final long firstSourceRow;
+
+    ReadStage(Vector<String> firstRow, TextDataReader dataReader,
+              long firstSourceRow) {
+      this.firstRow = firstRow;
+      this.dataReader = dataReader;
+      this.firstSourceRow = firstSourceRow;
+    }
+
+    public void run() {
+      try {
+        Vector<String> row = firstRow;
+        long sourceRow = firstSourceRow;
+        List<Vector<String>> rows = new ArrayList<Vector<String>>(batchSize);
+
+        while (!cancelled && !row.isEmpty()) {
+          rows.add(row);
+          sourceRow++;
+          boolean chunkEnd =
+            commitInterval > 0 && sourceRow % commitInterval == 0;
+
+          if (rows.size() >= batchSize || chunkEnd) {
+            if (!submit(new RowBatch(rows, sourceRow, getEndOffset(),
+                                     chunkEnd))) {
+              return;
+            }
+            rows = new ArrayList<Vector<String>>(batchSize);
+          }
+
+          long start = System.nanoTime();
+          row = dataReader.getOneRowDataVector();
+          metrics.addReadTime(System.nanoTime() - start);
+        }
+
+        if (!rows.isEmpty() &&
+            !submit(new RowBatch(rows, sourceRow, getEndOffset(), false))) {
+          return;
+        }
+      }
+      catch (Exception e) {
+        readException = e;
+      }
+
+      try {
+        enqueue(END_OF_ROWS);
+      }
+      catch (InterruptedException e) {
+        cancelled = true;
+      }
+    }
+
+    private boolean submit(RowBatch batch) throws InterruptedException {
+      return enqueue(converterPool.submit(new ConvertTask(batch)));
+    }
+
+    private long getEndOffset() {
+      if (dataReader instanceof DelimitedReader) {
+        return ((DelimitedReader) dataReader).getRowEndOffset();
+      }
+
+      return -1;
+    }
+  }
+
+
+  /*
+   * Creates the daemon threads of the convert stage.
+   */
+  private static class StageThreadFactory implements ThreadFactory {
+    private int threadCount = 0;
+
+    public synchronized Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable,
+                                 "LoadPipeline-convert-" + (++threadCount));
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
@@ -0,0 +1,279 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the timings of the stages of a LoadPipeline and the depth of the
+ * queue between them, to show where the time of a load goes. Times are
+ * kept in nanoseconds; the convert time is summed over all the conversion
+ * threads, so it may exceed the elapsed time.
+ *
+ * The read stage is timed as a whole, and the time it spends blocked on the
+ * data stream is timed separately through timeReads(), which separates
+ * waiting for the download from parsing.
+ */
+public class LoadPipelineMetrics {
+
+  /*
+   * Instance fields
+   */
+
+  private final AtomicLong readNanos = new AtomicLong();
+  private final AtomicLong downloadWaitNanos = new AtomicLong();
+  private final AtomicLong readBlockedNanos = new AtomicLong();
+  private final AtomicLong convertNanos = new AtomicLong();
+  private final AtomicLong insertNanos = new AtomicLong();
+  private final AtomicLong insertWaitNanos = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong rowCount = new AtomicLong();
+  private final AtomicLong queueDepthTotal = new AtomicLong();
+  private final AtomicLong queueDepthSamples = new AtomicLong();
+  private volatile int maxQueueDepth = 0;
+  private volatile long startTime = 0;
+  private volatile long endTime = 0;
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Wraps the data stream of a load so that the time spent waiting for its
+   * bytes is recorded as download wait time.
+   *
+   * @param inputStream  the data stream
+   * @return a stream reading from the data stream
+   */
+  public InputStream timeReads(InputStream inputStream) {
+    return new FilterInputStream(inputStream) {
+
+      public int read() throws IOException {
+        long start = System.nanoTime();
+        try {
+          return super.read();
+        }
+        finally {
+          downloadWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+      }
+
+      public int read(byte[] buffer, int offset, int length)
+              throws IOException {
+        long start = System.nanoTime();
+        try {
+          return super.read(buffer, offset, length);
+        }
+        finally {
+          downloadWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+      }
+
+      public long skip(long count) throws IOException {
+        long start = System.nanoTime();
+        try {
+          return super.skip(count);
+        }
+        finally {
+          downloadWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+      }
+    };
+  }
+
+
+  void start() {
+    startTime = System.nanoTime();
+  }
+
+
+  void finish() {
+    endTime = System.nanoTime();
+  }
+
+
+  void addReadTime(long nanos) {
+    readNanos.addAndGet(nanos);
+  }
+
+
+  void addReadBlockedTime(long nanos) {
+    readBlockedNanos.addAndGet(nanos);
+  }
+
+
+  void addConvertTime(long nanos) {
+    convertNanos.addAndGet(nanos);
+  }
+
+
+  void addInsertTime(long nanos) {
+    insertNanos.addAndGet(nanos);
+  }
+
+
+  void addInsertWaitTime(long nanos) {
+    insertWaitNanos.addAndGet(nanos);
+  }
+
+
+  void addBatch(int rows) {
+    batchCount.incrementAndGet();
+    rowCount.addAndGet(rows);
+  }
+
+
+  void sampleQueueDepth(int depth) {
+    queueDepthTotal.addAndGet(depth);
+    queueDepthSamples.incrementAndGet();
+    if (depth > maxQueueDepth) {
+      maxQueueDepth = depth;
+    }
+  }
+
+
+  /**
+   * Gets the time from the start of the pipeline until its end, or until
+   * now if it is still running.
+   *
+   * @return the elapsed time in nanoseconds
+   */
+  public long getElapsedNanos() {
+    if (startTime == 0) {
+      return 0;
+    }
+
+    return ((endTime == 0) ? System.nanoTime() : endTime) - startTime;
+  }
+
+
+  /**
+   * Gets the time the read stage spent waiting for the data stream.
+   *
+   * @return the download wait time in nanoseconds
+   */
+  public long getDownloadWaitNanos() {
+    return downloadWaitNanos.get();
+  }
+
+
+  /**
+   * Gets the time the read stage spent parsing rows, not counting the time
+   * spent waiting for the data stream.
+   *
+   * @return the parse time in nanoseconds
+   */
+  public long getParseNanos() {
+    return Math.max(0, readNanos.get() - downloadWaitNanos.get());
+  }
+
+
+  /**
+   * Gets the time the read stage spent blocked because the queue was full,
+   * i.e. waiting for the convert or insert stages to catch up.
+   *
+   * @return the blocked time in nanoseconds
+   */
+  public long getReadBlockedNanos() {
+    return readBlockedNanos.get();
+  }
+
+
+  /**
+   * Gets the time spent converting values, summed over the conversion
+   * threads.
+   *
+   * @return the convert time in nanoseconds
+   */
+  public long getConvertNanos() {
+    return convertNanos.get();
+  }
+
+
+  /**
+   * Gets the time the insert stage spent binding, executing and committing
+   * rows.
+   *
+   * @return the insert time in nanoseconds
+   */
+  public long getInsertNanos() {
+    return insertNanos.get();
+  }
+
+
+  /**
+   * Gets the time the insert stage spent waiting for converted rows, i.e.
+   * waiting for the read or convert stages.
+   *
+   * @return the wait time in nanoseconds
+   */
+  public long getInsertWaitNanos() {
+    return insertWaitNanos.get();
+  }
+
+
+  /**
+   * Gets the number of batches that passed through the pipeline.
+   *
+   * @return the batch count
+   */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+
+  /**
+   * Gets the number of source rows that passed through the pipeline,
+   * including rows without values, which are not inserted.
+   *
+   * @return the row count
+   */
+  public long getRowCount() {
+    return rowCount.get();
+  }
+
+
+  /**
+   * Gets the largest number of batches found queued for the insert stage.
+   *
+   * @return the maximum queue depth
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+
+  /**
+   * Gets the average number of batches found queued for the insert stage
+   * each time it took a batch.
+   *
+   * @return the average queue depth
+   */
+  public double getAverageQueueDepth() {
+    long samples = queueDepthSamples.get();
+
+    return (samples == 0) ? 0.0 : (double) queueDepthTotal.get() / samples;
+  }
+
+
+  public String toString() {
+    return "elapsed " + millis(getElapsedNanos()) + " ms, " +
+           "download wait " + millis(getDownloadWaitNanos()) + " ms, " +
+           "parse " + millis(getParseNanos()) + " ms, " +
+           "read blocked " + millis(getReadBlockedNanos()) + " ms, " +
+           "convert " + millis(getConvertNanos()) + " ms, " +
+           "insert " + millis(getInsertNanos()) + " ms, " +
+           "insert wait " + millis(getInsertWaitNanos()) + " ms, " +
+           getRowCount() + " rows in " + getBatchCount() + " batches, " +
+           "queue depth max " + getMaxQueueDepth() + " avg " +
+           Math.round(getAverageQueueDepth() * 10) / 10.0;
+  }
+
+
+  private static long millis(long nanos) {
+    return nanos / 1000000L;
+  }
+
+}
@@ -0,0 +1,743 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+
+/**
+ * The part of an entity that a query needs: the attributes it refers to
+ * and, optionally, the conditions that every row it can select must pass.
+ * A table loaded within a scope holds its attributes only, in their order
+ * in the entity, together with the rows that pass its conditions. Since
+ * the query applies its WHERE clause again, a row may be kept that the
+ * query does not select, but no row is dropped that it could select: a
+ * value that cannot be compared with a condition keeps its row.
+ *
+ * A scope is recorded with its table in the data table registry in the
+ * form returned by toString(), so that a later load can tell whether the
+ * table already holds what it needs.
+ */
+public class LoadScope {
+
+  /*
+   * Class fields
+   */
+
+  /* The longest scope that the registry records */
+  public static final int MAX_LENGTH = 4000;
+
+  private static final String COLUMNS = "columns=";
+  private static final String SEPARATOR = ";";
+  private static final String ENCODING = "UTF-8";
+
+  private static final Pattern CONDITION_PATTERN =
+    Pattern.compile("(\\d+)(<=|>=|=|<|>):([ILDS])(.*)");
+
+  private static final Set<String> OPERATORS = new HashSet<String>(
+    Arrays.asList(new String[] {
+      ConditionInterface.EQUAL_OPERATOR,
+      ConditionInterface.LESS_THAN_OPERATOR,
+      ConditionInterface.LESS_THAN_OR_EQUALS_OPERATOR,
+      ConditionInterface.GREATER_THAN_OPERATOR,
+      ConditionInterface.GREATER_THANOR_EQUALS_OPERATOR }));
+
+
+  /*
+   * Instance fields
+   */
+
+  private final int[] columns;
+  private final List<RowCondition> conditions;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a scope.
+   *
+   * @param columns     the indices of the attributes, in ascending order
+   * @param conditions  the conditions that the rows must pass
+   */
+  private LoadScope(int[] columns, List<RowCondition> conditions) {
+    this.columns = columns;
+    this.conditions = conditions;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Derives the scope of an entity from a query: the attributes of the
+   * entity that the query selects, groups by or compares, in it or in its
+   * subqueries, and, if rows are filtered, the comparisons of an attribute
+   * with a value that are joined by AND at the top of its WHERE clause.
+   * Rows are not filtered for an entity that appears more than once in the
+   * query or in one of its subqueries.
+   *
+   * @param query       the query
+   * @param entity      the entity
+   * @param filterRows  true if the rows are to be filtered as well
+   * @return the scope, or null if the query needs all of the entity
+   */
+  public static LoadScope forQuery(Query query, Entity entity,
+                                   boolean filterRows) {
+    Attribute[] attributes = entity.getAttributes();
+    if (attributes == null || attributes.length == 0) {
+      return null;
+    }
+
+    TreeSet<Integer> columnSet = new TreeSet<Integer>();
+    int references = addColumns(query, entity, columnSet);
+    List<RowCondition> conditions = new ArrayList<RowCondition>();
+
+    if (filterRows && references == 1 && query.getWhereClause() != null) {
+      WhereClause whereClause = query.getWhereClause();
+      boolean single = query.getTableList().length == 1;
+      if (whereClause.getConditionInterface() != null) {
+        addCondition(whereClause.getConditionInterface(), entity, single,
+                     conditions);
+      }
+      else if (whereClause.getANDRelation() != null) {
+        addConditions(whereClause.getANDRelation(), entity, single,
+                      conditions);
+      }
+    }
+
+    if (columnSet.isEmpty()) {
+      // A table needs an attribute even if its rows are only counted
+      columnSet.add(Integer.valueOf(0));
+    }
+
+    if (columnSet.size() == attributes.length && conditions.isEmpty()) {
+      return null;
+    }
+
+    int[] columns = new int[columnSet.size()];
+    int i = 0;
+    for (Integer column : columnSet) {
+      columns[i++] = column.intValue();
+    }
+
+    return new LoadScope(columns, conditions);
+  }
+
+
+  /**
+   * Reads a scope in the form returned by toString().
+   *
+   * @param text  the scope as text, or null
+   * @return the scope, or null if the text is null or empty
+   * @throws IllegalArgumentException if the text is not a scope
+   */
+  public static LoadScope parse(String text) {
+    if (text == null || text.trim().equals("")) {
+      return null;
+    }
+
+    String[] parts = text.trim().split(SEPARATOR);
+    if (!parts[0].startsWith(COLUMNS)) {
+      throw new IllegalArgumentException("Not a load scope: " + text);
+    }
+
+    String columnText = parts[0].substring(COLUMNS.length());
+    String[] columnList = columnText.equals("") ?
+                          new String[0] : columnText.split(",");
+    int[] columns = new int[columnList.length];
+    try {
+      for (int i = 0; i < columnList.length; i++) {
+        columns[i] = Integer.parseInt(columnList[i]);
+      }
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a load scope: " + text);
+    }
+
+    List<RowCondition> conditions = new ArrayList<RowCondition>();
+    for (int i = 1; i < parts.length; i++) {
+      conditions.add(RowCondition.parse(parts[i]));
+    }
+
+    return new LoadScope(columns, conditions);
+  }
+
+
+  /*
+   * Adds the attributes of an entity that a query and its subqueries refer
+   * to, and returns the number of times that the entity is among their
+   * tables.
+   */
+  private static int addColumns(Query query, Entity entity,
+                                Set<Integer> columnSet) {
+    TableItem[] tables = query.getTableList();
+    int references = 0;
+
+    for (int i = 0; i < tables.length; i++) {
+      if (sameEntity(tables[i].getEntity(), entity)) {
+        references++;
+      }
+    }
+
+    SelectionItem[] selections = query.getSelectionList();
+    for (int i = 0; i < selections.length; i++) {
+      addColumn(selections[i].getEntity(), selections[i].getAttribute(),
+                entity, columnSet);
+    }
+
+    GroupBy groupBy = query.getGroupBy();
+    if (groupBy != null && groupBy.getGroupByList() != null) {
+      SelectionItem[] items = groupBy.getGroupByList();
+      for (int i = 0; i < items.length; i++) {
+        addColumn(items[i].getEntity(), items[i].getAttribute(), entity,
+                  columnSet);
+      }
+    }
+
+    WhereClause whereClause = query.getWhereClause();
+    if (whereClause != null) {
+      List<ConditionInterface> list = new ArrayList<ConditionInterface>();
+      if (whereClause.getConditionInterface() != null) {
+        list.add(whereClause.getConditionInterface());
+      }
+      collect(whereClause.getANDRelation(), list);
+      collect(whereClause.getORRelation(), list);
+
+      for (ConditionInterface condition : list) {
+        if (condition instanceof Condition) {
+          Condition c = (Condition) condition;
+          addColumn(c.getEntity(), c.getAttribute(), entity, columnSet);
+        }
+        else if (condition instanceof Join) {
+          Join join = (Join) condition;
+          addColumn(join.getLeftEntity(), join.getLeftAttribute(), entity,
+                    columnSet);
+          addColumn(join.getRightEntity(), join.getRightAttribute(), entity,
+                    columnSet);
+        }
+        else if (condition instanceof SubQueryClause) {
+          SubQueryClause clause = (SubQueryClause) condition;
+          addColumn(clause.getEntity(), clause.getAttribute(), entity,
+                    columnSet);
+          if (clause.getQuery() != null) {
+            // Rows of an entity in a subquery are never filtered
+            references += 2 * addColumns(clause.getQuery(), entity,
+                                         columnSet);
+          }
+        }
+      }
+    }
+
+    return references;
+  }
+
+
+  /*
+   * Adds the conditions within a logical relation to a list.
+   */
+  private static void collect(LogicalRelation relation,
+                              List<ConditionInterface> list) {
+    if (relation == null) {
+      return;
+    }
+
+    ConditionInterface[] conditions = relation.getConditionInterfaceList();
+    ANDRelation[] ands = relation.getANDRelationList();
+    ORRelation[] ors = relation.getORRelationList();
+
+    if (conditions != null) {
+      list.addAll(Arrays.asList(conditions));
+    }
+    if (ands != null) {
+      for (ANDRelation and : ands) {
+        collect(and, list);
+      }
+    }
+    if (ors != null) {
+      for (ORRelation or : ors) {
+        collect(or, list);
+      }
+    }
+  }
+
+
+  /*
+   * Adds the conditions of an AND relation, and of the AND relations
+   * within it; the OR relations within it are not used.
+   */
+  private static void addConditions(ANDRelation and, Entity entity,
+                                    boolean single,
+                                    List<RowCondition> conditions) {
+    ConditionInterface[] list = and.getConditionInterfaceList();
+    ANDRelation[] ands = and.getANDRelationList();
+
+    if (list != null) {
+      for (ConditionInterface condition : list) {
+        addCondition(condition, entity, single, conditions);
+      }
+    }
+    if (ands != null) {
+      for (ANDRelation nested : ands) {
+        addConditions(nested, entity, single, conditions);
+      }
+    }
+  }
+
+
+  /*
+   * Adds a condition if it compares an attribute of the entity with a
+   * value by one of the operators that can be tested while loading.
+   */
+  private static void addCondition(ConditionInterface condition,
+                                   Entity entity, boolean single,
+                                   List<RowCondition> conditions) {
+    if (!(condition instanceof Condition)) {
+      return;
+    }
+
+    Condition c = (Condition) condition;
+    Object value = c.getValue();
+
+    if (value == null || c.getAttribute() == null ||
+        !OPERATORS.contains(c.getOperator()) ||
+        !refersTo(c.getEntity(), entity, single)) {
+      return;
+    }
+
+    int column = indexOf(entity, c.getAttribute());
+    if (column >= 0) {
+      conditions.add(new RowCondition(column, c.getOperator(), value));
+    }
+  }
+
+
+  /*
+   * Adds an attribute if it may be one of the entity's. An attribute
+   * without an entity may be any table's that has it.
+   */
+  private static void addColumn(Entity itemEntity, Attribute attribute,
+                                Entity entity, Set<Integer> columnSet) {
+    if (attribute == null ||
+        (itemEntity != null && !sameEntity(itemEntity, entity))) {
+      return;
+    }
+
+    int column = indexOf(entity, attribute);
+    if (column >= 0) {
+      columnSet.add(Integer.valueOf(column));
+    }
+  }
+
+
+  /*
+   * Tests whether a condition refers to an entity. A condition without an
+   * entity refers to the only table of its query.
+   */
+  private static boolean refersTo(Entity itemEntity, Entity entity,
+                                  boolean single) {
+    return (itemEntity == null) ? single : sameEntity(itemEntity, entity);
+  }
+
+
+  private static boolean sameEntity(Entity entity, Entity other) {
+    if (entity == other) {
+      return true;
+    }
+    if (entity == null || other == null) {
+      return false;
+    }
+    String name = entity.getDBTableName();
+    return name != null && name.equalsIgnoreCase(other.getDBTableName());
+  }
+
+
+  /*
+   * Finds an attribute in an entity by identity, or else by name.
+   */
+  private static int indexOf(Entity entity, Attribute attribute) {
+    Attribute[] attributes = entity.getAttributes();
+
+    for (int i = 0; i < attributes.length; i++) {
+      if (attributes[i] == attribute) {
+        return i;
+      }
+    }
+
+    for (int i = 0; i < attributes.length; i++) {
+      String name = attributes[i].getName();
+      if (name != null && name.equals(attribute.getName())) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the indices of the attributes in the scope, in ascending order.
+   *
+   * @return the indices of the attributes
+   */
+  public int[] getColumns() {
+    return columns.clone();
+  }
+
+
+  /**
+   * Tests whether the rows are filtered.
+   *
+   * @return true if the scope has conditions on its rows
+   */
+  public boolean isRowFiltered() {
+    return !conditions.isEmpty();
+  }
+
+
+  /**
+   * Tests whether a table loaded within this scope holds everything that a
+   * table loaded within another scope would: all of its attributes, and at
+   * least its rows, which holds when each condition of this scope is one
+   * of the other's.
+   *
+   * @param other  the other scope, or null for the whole entity
+   * @return true if this scope covers the other
+   */
+  public boolean covers(LoadScope other) {
+    if (other == null) {
+      return false;
+    }
+
+    for (int i = 0; i < other.columns.length; i++) {
+      if (Arrays.binarySearch(columns, other.columns[i]) < 0) {
+        return false;
+      }
+    }
+
+    Set<String> otherConditions = new HashSet<String>();
+    for (RowCondition condition : other.conditions) {
+      otherConditions.add(condition.toString());
+    }
+    for (RowCondition condition : conditions) {
+      if (!otherConditions.contains(condition.toString())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Selects the converters of the attributes in the scope.
+   *
+   * @param converters  the converters of all the attributes of the entity
+   * @return the converters of the attributes in the scope
+   */
+  public AttributeConverter[] selectConverters(
+                                            AttributeConverter[] converters) {
+    AttributeConverter[] selected = new AttributeConverter[columns.length];
+
+    for (int i = 0; i < columns.length; i++) {
+      selected[i] = converters[columns[i]];
+    }
+
+    return selected;
+  }
+
+
+  /**
+   * Tests whether a row of the entity's data passes the conditions of the
+   * scope. A null value fails a condition, as it does in SQL; a value that
+   * cannot be compared with the condition passes it.
+   *
+   * @param converters  the converters of all the attributes of the entity
+   * @param row         the values of the row, one per attribute
+   * @return true if the row is to be loaded
+   */
+  public boolean matches(AttributeConverter[] converters,
+                         Vector<String> row) {
+    for (RowCondition condition : conditions) {
+      String value = (condition.column < row.size()) ?
+                     row.elementAt(condition.column) : null;
+      if (!condition.test(converters[condition.column], value)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Wraps a reader of the entity's data so that it returns the rows that
+   * pass the conditions of the scope, holding the values of the attributes
+   * in the scope only.
+   *
+   * @param reader      the reader of the entity's data
+   * @param converters  the converters of all the attributes of the entity
+   * @return the reader of the rows in the scope
+   */
+  public TextDataReader filter(TextDataReader reader,
+                               AttributeConverter[] converters) {
+    return new ScopedReader(reader, converters);
+  }
+
+
+  /**
+   * Gets the scope in the form in which it is recorded in the registry,
+   * such as "columns=0,2;2>=:D900.0".
+   *
+   * @return the scope as text
+   */
+  public String toString() {
+    StringBuffer buffer = new StringBuffer(COLUMNS);
+
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+      buffer.append(columns[i]);
+    }
+
+    for (RowCondition condition : conditions) {
+      buffer.append(SEPARATOR).append(condition.toString());
+    }
+
+    return buffer.toString();
+  }
+
+
+  public boolean equals(Object object) {
+    return (object instanceof LoadScope) &&
+           toString().equals(object.toString());
+  }
+
+
+  public int hashCode() {
+    return toString().hashCode();
+  }
+
+
+  /**
+   * A comparison of an attribute with a value.
+   */
+  private static class RowCondition {
+    private final int column;
+    private final String operator;
+    private final Object value;
+
+    RowCondition(int column, String operator, Object value) {
+      this.column = column;
+      this.operator = operator;
+      this.value = value;
+    }
+
+    static RowCondition parse(String text) {
+      Matcher matcher = CONDITION_PATTERN.matcher(text);
+      if (!matcher.matches()) {
+        throw new IllegalArgumentException("Not a load condition: " + text);
+      }
+
+      String tag = matcher.group(3);
+      String decoded;
+      try {
+        decoded = URLDecoder.decode(matcher.group(4), ENCODING);
+      }
+      catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+
+      Object value;
+      try {
+        if (tag.equals("I")) {
+          value = Integer.valueOf(decoded);
+        }
+        else if (tag.equals("L")) {
+          value = Long.valueOf(decoded);
+        }
+        else if (tag.equals("D")) {
+          value = Double.valueOf(decoded);
+        }
+        else {
+          value = decoded;
+        }
+      }
+      catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Not a load condition: " + text);
+      }
+
+      return new RowCondition(Integer.parseInt(matcher.group(1)),
+                              matcher.group(2), value);
+    }
+
+    /*
+     * Tests a value of the data. Strings are only tested for equality,
+     * since the database may order them differently.
+     */
+    boolean test(AttributeConverter converter, String text) {
+      if (converter.isNullValue(text)) {
+        return false;
+      }
+
+      Object converted;
+      try {
+        converted = converter.convertValue(text);
+      }
+      catch (DataNotMatchingMetadataException e) {
+        return true;
+      }
+
+      if (converted instanceof Number) {
+        Double number = toDouble(value);
+        if (number == null) {
+          return true;
+        }
+        double a = ((Number) converted).doubleValue();
+        double b = number.doubleValue();
+        return matches((a < b) ? -1 : ((a > b) ? 1 : 0));
+      }
+      else if (converted instanceof Timestamp) {
+        Timestamp timestamp = toTimestamp(value.toString());
+        if (timestamp == null) {
+          return true;
+        }
+        return matches(((Timestamp) converted).compareTo(timestamp));
+      }
+      else if (operator.equals(ConditionInterface.EQUAL_OPERATOR) &&
+               converter.getKind() == AttributeConverter.KIND_STRING) {
+        return converted.toString().equals(value.toString());
+      }
+
+      return true;
+    }
+
+    private boolean matches(int comparison) {
+      if (operator.equals(ConditionInterface.EQUAL_OPERATOR)) {
+        return comparison == 0;
+      }
+      else if (operator.equals(ConditionInterface.LESS_THAN_OPERATOR)) {
+        return comparison < 0;
+      }
+      else if (operator.equals(
+                   ConditionInterface.LESS_THAN_OR_EQUALS_OPERATOR)) {
+        return comparison <= 0;
+      }
+      else if (operator.equals(ConditionInterface.GREATER_THAN_OPERATOR)) {
+        return comparison > 0;
+      }
+      return comparison >= 0;
+    }
+
+    private static Double toDouble(Object value) {
+      if (value instanceof Number) {
+        return Double.valueOf(((Number) value).doubleValue());
+      }
+      try {
+        double parsed = Double.parseDouble(value.toString().trim());
+        return Double.isNaN(parsed) ? null : Double.valueOf(parsed);
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    /*
+     * Reads a value as a timestamp, taking a date alone as midnight.
+     */
+    private static Timestamp toTimestamp(String text) {
+      String trimmed = text.trim();
+
+      if (trimmed.length() == 10) {
+        trimmed = trimmed + " 00:00:00";
+      }
+
+      try {
+        return Timestamp.valueOf(trimmed);
+      }
+      catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    public String toString() {
+      String tag;
+      if (value instanceof Integer || value instanceof Short ||
+          value instanceof Byte) {
+        tag = "I";
+      }
+      else if (value instanceof Long) {
+        tag = "L";
+      }
+      else if (value instanceof Number) {
+        tag = "D";
+      }
+      else {
+        tag = "S";
+      }
+
+      String text = tag.equals("D") ?
+                    String.valueOf(((Number) value).doubleValue()) :
+                    value.toString();
+      try {
+        return column + operator + ":" + tag +
+               URLEncoder.encode(text, ENCODING);
+      }
+      catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Reads the rows of the entity's data that are in the scope.
+   */
+  private class ScopedReader extends TextDataReader {
+    private final TextDataReader reader;
+    private final AttributeConverter[] converters;
+
+    ScopedReader(TextDataReader reader, AttributeConverter[] converters) {
+      this.reader = reader;
+      this.converters = converters;
+    }
+
+    public Vector<String> getOneRowDataVector() throws Exception {
+      Vector<String> row;
+
+      while ((row = reader.getOneRowDataVector()) != null &&
+             !row.isEmpty()) {
+        if (matches(converters, row)) {
+          Vector<String> scoped = new Vector<String>(columns.length);
+          for (int i = 0; i < columns.length; i++) {
+            scoped.add((columns[i] < row.size()) ?
+                       row.elementAt(columns[i]) : null);
+          }
+          return scoped;
+        }
+      }
+
+      return row;
+    }
+  }
+
+}
@@ -31,6 +31,7 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -179,9 +180,10 @@ public class LogicalRelation
     
     
     /*
-     * Transfer this LogicalRelation to a SQL string.
+     * Transfer this LogicalRelation to a SQL string, or to a SQL template
+     * if binds is not null.
      */
-    protected String transferToString(String operator) 
+    protected String transferToString(String operator, List<Object> binds) 
             throws UnWellFormedQueryException
     {
     	StringBuffer sql = new StringBuffer();
@@ -243,7 +245,7 @@ public class LogicalRelation
             
     		if (firstElement)
     		{
-    			sql.append(condition.toSQLString());
+    			sql.append(condition.toSQLString(binds));
         		sql.append(ConditionInterface.SPACE);
         		firstElement = false;
     		}
@@ -251,7 +253,7 @@ public class LogicalRelation
     		{
     			sql.append(operator);
         		sql.append(ConditionInterface.SPACE);
-        		sql.append(condition.toSQLString());
+        		sql.append(condition.toSQLString(binds));
         		sql.append(ConditionInterface.SPACE);
     		} 		 		
     	}
@@ -264,7 +266,7 @@ public class LogicalRelation
     		if (firstElement)
     		{
     			sql.append(LEFT_PARENSIS);
-    			sql.append(and.toSQLString());
+    			sql.append(and.toSQLString(binds));
     			sql.append(RIGHT_PARENSIS);
     			sql.append(ConditionInterface.SPACE);
         		firstElement = false;
@@ -274,7 +276,7 @@ public class LogicalRelation
     			sql.append(operator);
         		sql.append(ConditionInterface.SPACE);
         		sql.append(LEFT_PARENSIS);
-        		sql.append(and.toSQLString());
+        		sql.append(and.toSQLString(binds));
         		sql.append(RIGHT_PARENSIS);
         		sql.append(ConditionInterface.SPACE);
     		}
@@ -288,7 +290,7 @@ public class LogicalRelation
     		if (firstElement)
     		{
     			sql.append(LEFT_PARENSIS);
-    			sql.append(or.toSQLString());
+    			sql.append(or.toSQLString(binds));
     			sql.append(RIGHT_PARENSIS);
     			sql.append(ConditionInterface.SPACE);
         		firstElement = false;
@@ -298,7 +300,7 @@ public class LogicalRelation
     			sql.append(operator);
         		sql.append(ConditionInterface.SPACE);
         		sql.append(LEFT_PARENSIS);
-        		sql.append(or.toSQLString());
+        		sql.append(or.toSQLString(binds));
         		sql.append(RIGHT_PARENSIS);
         		sql.append(ConditionInterface.SPACE);
     		}
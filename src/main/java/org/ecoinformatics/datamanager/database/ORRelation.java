@@ -31,6 +31,8 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.util.List;
+
 /**
  * This class reprents an OR relation on its sub-components. Sub-components
  * can be conditions, ANDRelations and other ORRelations.
@@ -62,7 +64,22 @@ public class ORRelation extends LogicalRelation
      */
     public String toSQLString() throws UnWellFormedQueryException
     {
-    	return transferToString(OR);
+    	return transferToString(OR, null);
+    }
+    
+    
+    /**
+     * Transfer a ORRelation to a sql template, adding its values to the
+     * binds.
+     * 
+     * @param binds the list to add the values to
+     * @return sql string of ORRelation
+     * @throws UnWellFormedQueryException
+     */
+    public String toSQLString(List<Object> binds) 
+            throws UnWellFormedQueryException
+    {
+    	return transferToString(OR, binds);
     }
     
 }
@@ -96,6 +96,20 @@ public class OracleAdapter extends DatabaseAdapter {
 	}
 	
 
+    /**
+     * Create a parameterized sql command to insert data. (Not yet implemented)
+     * 
+     * @param converters  The converters of the table fields
+     * @param tableName   The table name
+     * @return null, since inserts are not yet supported for Oracle
+     */
+	public String generateParameterizedInsertSQL(AttributeConverter[] converters,
+                                                 String tableName)
+	{
+		return null;
+	}
+	
+
   /**
    * Gets attribute type for a given attribute. Attribute types include:
    *   "datetime" (for Postgres or HSQL, but not Oracle?)
@@ -186,5 +200,21 @@ public class OracleAdapter extends DatabaseAdapter {
 		  String selectString = "SELECT COUNT(*) FROM " + tableName;
 		  return selectString;
 	 }
+	 
+	 
+	 /**
+	  * Gets the sql command to get the size of a given table on disk, from
+	  * the segments that the current user owns.
+	  * 
+	  * @param tableName  the given table name
+	  * @return the sql string which gets the size in bytes
+	  */
+	 public String getTableSizeSQL(String tableName)
+	 {
+		  String selectString = 
+		    "SELECT NVL(SUM(BYTES), 0) FROM USER_SEGMENTS WHERE SEGMENT_NAME='" +
+		    tableName.toUpperCase() + "'";
+		  return selectString;
+	 }
 	
 }
@@ -31,11 +31,11 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.ecoinformatics.datamanager.parser.Attribute;
 import org.ecoinformatics.datamanager.parser.AttributeList;
@@ -154,6 +154,64 @@ public class PostgresAdapter extends DatabaseAdapter {
   }
 
   
+  /**
+   * Creates a COPY command that reads the rows of a table from the client
+   * in the text format, with one column per attribute in the order of the
+   * converters.
+   * 
+   * @param  converters  the converters of the attributes to be loaded
+   * @param  tableName   the table name
+   * @return a SQL string that can be passed to the driver's CopyManager
+   */
+  public String generateCopySQL(AttributeConverter[] converters,
+                                String tableName)
+          throws SQLException {
+    if (converters == null || converters.length == 0) {
+      throw new SQLException("The attributes is null and couldn't generate copy sql statement");
+    }
+
+    StringBuffer stringBuffer = new StringBuffer("COPY ");
+    stringBuffer.append(tableName);
+    stringBuffer.append(SPACE);
+    stringBuffer.append(LEFTPARENTH);
+    
+    for (int i = 0; i < converters.length; i++) {
+      if (i > 0) {
+        stringBuffer.append(COMMA);
+      }
+      stringBuffer.append(converters[i].getFieldName());
+    }
+    
+    stringBuffer.append(RIGHTPARENTH);
+    stringBuffer.append(" FROM STDIN");
+    
+    return stringBuffer.toString();
+  }
+  
+  
+  /**
+   * Binds a value of a bound query to a parameter of a prepared statement.
+   * A String is sent without a type, as a quoted literal would be, so that
+   * PostgreSQL converts it to the type of the column it is compared with
+   * rather than rejecting the comparison of a number with a varchar.
+   * 
+   * @param statement  the prepared statement
+   * @param index      the one-based index of the parameter
+   * @param value      the value
+   * @throws SQLException if the value cannot be bound
+   */
+  public void setParameter(PreparedStatement statement, int index, 
+                           Object value)
+          throws SQLException {
+    if (value instanceof String) {
+      statement.setObject(index, value, Types.OTHER);
+    }
+    else {
+      super.setParameter(statement, index, value);
+    }
+  }
+  
+  
   /**
    * Create a drop table SQL command.
    * 
@@ -257,17 +315,35 @@ public class PostgresAdapter extends DatabaseAdapter {
    *  @return  datetimeString  The transformed datetime string.
    */
   protected String transformDatetime(String datetimeString) {
-    if (datetimeString != null) {
-		Pattern pattern = Pattern.compile(".+\\d+T\\d+.+");
-		Matcher matcher = pattern.matcher(datetimeString);
-		if (matcher.matches()) {
-    	  // Postgres 8.4 and higher doesn't like the "T" character so replace with space
-    	  datetimeString = datetimeString.replace('T', ' ');
-		}
+    if (datetimeString != null && hasDateTimeSeparator(datetimeString)) {
+      // Postgres 8.4 and higher doesn't like the "T" character so replace with space
+      datetimeString = datetimeString.replace('T', ' ');
     }
     
     return datetimeString;
   }
+  
+  
+  /*
+   * Determines whether a datetime value has a "T" between a digit of the
+   * date and a digit of the time, as in "2002-10-14T09:13:45". This is
+   * called for every datetime value, so it scans the characters rather than
+   * matching a regular expression.
+   */
+  private static boolean hasDateTimeSeparator(String datetimeString) {
+    int length = datetimeString.length();
+    
+    for (int i = 2; i < length - 2; i++) {
+      char before = datetimeString.charAt(i - 1);
+      char after = datetimeString.charAt(i + 1);
+      if (datetimeString.charAt(i) == 'T' &&
+          before >= '0' && before <= '9' && after >= '0' && after <= '9') {
+        return true;
+      }
+    }
+    
+    return false;
+  }
 	  
 	  
   /**
@@ -344,5 +420,19 @@ public class PostgresAdapter extends DatabaseAdapter {
     String selectString = "SELECT COUNT(*) FROM " + tableName;
     return selectString;
   }
+  
+  
+  /**
+   * Gets the sql command to get the size of a given table on disk, including
+   * its indexes and TOAST data.
+   * 
+   * @param tableName  the given table name
+   * @return the sql string which gets the size in bytes
+   */
+  public String getTableSizeSQL(String tableName) {
+    String selectString = 
+      "SELECT pg_total_relation_size('" + tableName + "')";
+    return selectString;
+  }
 	
 }
@@ -0,0 +1,554 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.quality.QualityCheck;
+import org.ecoinformatics.datamanager.quality.QualityReport;
+
+/**
+ * Loads the rows of an entity into a PostgreSQL table with
+ * "COPY table (fields) FROM STDIN", streaming the rows through the JDBC
+ * driver's CopyManager instead of executing INSERT statements. Values are
+ * normalized by the attributes' converters first: missing value codes
+ * become NULL, numbers are checked against their number type and datetimes
+ * are parsed with their EML format string.
+ *
+ * The CopyManager was added in version 8.4 of the PostgreSQL JDBC driver, so
+ * it is looked up by reflection; isCopySupported() tells whether the driver
+ * in use provides it. The 8.0 and 8.3 drivers that the datamanager is built
+ * and shipped with do not, so until the driver is upgraded this loader is
+ * inactive and DatabaseLoader inserts the rows instead.
+ *
+ * A row that is rejected, by its converter or by the database, is reported
+ * in a rowRejected quality check of the entity, if one is set.
+ */
+public class PostgresCopyLoader {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(PostgresCopyLoader.class);
+
+  private static final String PG_CONNECTION_CLASS = "org.postgresql.PGConnection";
+
+  /* Matches the line number in the context of a COPY error message */
+  private static final Pattern COPY_LINE_PATTERN =
+    Pattern.compile("COPY [^,]*, line (\\d+)");
+
+  private static final String NULL_VALUE = "\\N";
+
+
+  /*
+   * Instance fields
+   */
+
+  private final Object copyManager;
+  private final String copySQL;
+  private final AttributeConverter[] converters;
+  private Entity entity = null;
+  private int rowCount = 0;
+  private int failedRow = 0;
+  private long sourceRowCount = 0;
+  private boolean readerExhausted = false;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a loader for a table.
+   *
+   * @param connection  a connection to a PostgreSQL database
+   * @param copySQL     the COPY command, as generated by
+   *                    PostgresAdapter.generateCopySQL()
+   * @param converters  the converters of the table's attributes
+   * @throws SQLException if the driver does not support COPY
+   */
+  public PostgresCopyLoader(Connection connection, String copySQL,
+                            AttributeConverter[] converters)
+          throws SQLException {
+    this.copyManager = getCopyManager(connection);
+    this.copySQL = copySQL;
+    this.converters = converters;
+
+    if (copyManager == null) {
+      throw new SQLException("The PostgreSQL driver does not support COPY");
+    }
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Determines whether rows can be loaded with COPY through a connection.
+   *
+   * @param connection  the connection
+   * @return true if the connection is a PostgreSQL connection whose driver
+   *         provides a CopyManager
+   */
+  public static boolean isCopySupported(Connection connection) {
+    return getCopyManager(connection) != null;
+  }
+
+
+  /*
+   * Gets the CopyManager of a PostgreSQL connection, or null if the
+   * connection or its driver does not provide one.
+   */
+  private static Object getCopyManager(Connection connection) {
+    if (connection == null) {
+      return null;
+    }
+
+    try {
+      Class<?> pgConnectionClass = Class.forName(PG_CONNECTION_CLASS);
+      Object pgConnection = null;
+
+      if (pgConnectionClass.isInstance(connection)) {
+        pgConnection = connection;
+      }
+      else {
+        try {
+          if (connection.isWrapperFor(pgConnectionClass)) {
+            pgConnection = connection.unwrap(pgConnectionClass);
+          }
+        }
+        catch (Throwable t) {
+          // Drivers written for JDBC 3 do not implement unwrap()
+          pgConnection = null;
+        }
+      }
+
+      if (pgConnection == null) {
+        return null;
+      }
+
+      Method getCopyAPI = pgConnectionClass.getMethod("getCopyAPI");
+      return getCopyAPI.invoke(pgConnection);
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Appends a string to a row in the COPY text format, escaping the
+   * characters that have a special meaning in that format.
+   *
+   * @param buffer  the buffer holding the row
+   * @param value   the string to append
+   */
+  static void appendEscaped(StringBuffer buffer, String value) {
+    int length = value.length();
+
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+
+      switch (c) {
+        case '\\': buffer.append("\\\\"); break;
+        case '\t': buffer.append("\\t");  break;
+        case '\n': buffer.append("\\n");  break;
+        case '\r': buffer.append("\\r");  break;
+        default:   buffer.append(c);
+      }
+    }
+  }
+
+
+  /**
+   * Formats a row in the COPY text format, with a tab between the values and
+   * a newline at the end. Rows whose values are all null, blank or missing
+   * value codes are not appended, as with
+   * DatabaseAdapter.generateInsertSQL().
+   *
+   * @param converters  the converters of the table's attributes
+   * @param row         the values of the row, one per attribute
+   * @param buffer      the buffer to append the row to
+   * @return true if the row was appended, false if it was skipped
+   * @throws DataNotMatchingMetadataException if a value does not match its
+   *         attribute's type
+   */
+  static boolean formatRow(AttributeConverter[] converters, Vector<String> row,
+                           StringBuffer buffer)
+          throws DataNotMatchingMetadataException {
+    int start = buffer.length();
+    int hasValueCounter = 0;
+
+    for (int i = 0; i < converters.length; i++) {
+      AttributeConverter converter = converters[i];
+      String value = row.elementAt(i);
+
+      if (i > 0) {
+        buffer.append('\t');
+      }
+
+      if (converter.isNullValue(value)) {
+        buffer.append(NULL_VALUE);
+        continue;
+      }
+
+      switch (converter.getKind()) {
+        case AttributeConverter.KIND_STRING:
+          appendEscaped(buffer, value);
+          break;
+
+        case AttributeConverter.KIND_DATETIME:
+          buffer.append(converter.toTimestamp(value).toString());
+          break;
+
+        default:
+          converter.appendNumericValue(buffer, value);
+      }
+
+      hasValueCounter++;
+    }
+
+    if (hasValueCounter == 0) {
+      buffer.setLength(start);
+      return false;
+    }
+
+    buffer.append('\n');
+    return true;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Copies rows into the table. The first row, which the caller has usually
+   * read already, is copied first, followed by the remaining rows of the
+   * reader.
+   *
+   * @param firstRow    the first row of data, or null
+   * @param dataReader  the reader holding the remaining rows
+   * @return the number of rows copied
+   * @throws DataNotMatchingMetadataException if a value does not match its
+   *         attribute, or the database rejects a value; getFailedRow() then
+   *         gives the number of the row
+   * @throws SQLException if the COPY command fails for another reason
+   */
+  public int copyRows(Vector<String> firstRow, TextDataReader dataReader)
+          throws DataNotMatchingMetadataException, SQLException {
+    copyRows(firstRow, dataReader, 0);
+    return rowCount;
+  }
+
+
+  /**
+   * Copies at most a given number of rows of the reader into the table with
+   * one COPY command, so that a long load can be committed in chunks. The
+   * reader is not read past the last row copied; isReaderExhausted() tells
+   * whether all of its rows have been copied.
+   *
+   * @param firstRow       the first row of data, or null
+   * @param dataReader     the reader holding the remaining rows
+   * @param maxSourceRows  the maximum number of rows to read, including rows
+   *                       that are skipped because they have no value, or
+   *                       zero to copy all the rows
+   * @return the number of rows copied by this command
+   * @throws DataNotMatchingMetadataException if a value does not match its
+   *         attribute, or the database rejects a value; getFailedRow() then
+   *         gives the number of the row
+   * @throws SQLException if the COPY command fails for another reason
+   */
+  public int copyRows(Vector<String> firstRow, TextDataReader dataReader,
+                      int maxSourceRows)
+          throws DataNotMatchingMetadataException, SQLException {
+    RowReader rowReader = new RowReader(firstRow, dataReader, maxSourceRows);
+    int copiedCount = 0;
+    Object copiedRows;
+
+    try {
+      Method copyIn =
+        copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+      copiedRows = copyIn.invoke(copyManager, copySQL, rowReader);
+    }
+    catch (InvocationTargetException e) {
+      Exception exception = translateException(e.getCause(), rowReader);
+      if (exception instanceof DataNotMatchingMetadataException) {
+        throw (DataNotMatchingMetadataException) exception;
+      }
+      throw (SQLException) exception;
+    }
+    catch (Exception e) {
+      SQLException sqlException =
+        new SQLException("Unable to run COPY: " + e.getMessage());
+      sqlException.initCause(e);
+      throw sqlException;
+    }
+
+    if (copiedRows instanceof Number) {
+      copiedCount = ((Number) copiedRows).intValue();
+    }
+    else {
+      copiedCount = rowReader.getRowNumber() - rowReader.getFirstRowNumber();
+    }
+
+    rowCount += copiedCount;
+    sourceRowCount += rowReader.getSourceRowCount();
+    readerExhausted = rowReader.isExhausted();
+
+    return copiedCount;
+  }
+
+
+  /**
+   * Sets the entity whose quality report records a rejected row.
+   *
+   * @param entity  the entity being loaded, or null
+   */
+  public void setEntity(Entity entity) {
+    this.entity = entity;
+  }
+
+
+  /**
+   * Gets the number of rows copied so far.
+   *
+   * @return the number of rows
+   */
+  public int getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Gets the number of rows read from the data so far, including rows that
+   * were skipped because they have no value.
+   *
+   * @return the number of rows read
+   */
+  public long getSourceRowCount() {
+    return sourceRowCount;
+  }
+
+
+  /**
+   * Determines whether all the rows of the reader have been copied.
+   *
+   * @return true if the last copyRows() call reached the end of the data
+   */
+  public boolean isReaderExhausted() {
+    return readerExhausted;
+  }
+
+
+  /**
+   * Gets the number of the row that made the COPY fail, counting the rows
+   * that were copied starting at 1.
+   *
+   * @return the row number, or 0 if it is not known
+   */
+  public int getFailedRow() {
+    return failedRow;
+  }
+
+
+  /*
+   * Turns an exception raised during COPY into the exception reported to
+   * the caller, recording the number of the failing row. The result is
+   * either a DataNotMatchingMetadataException or a SQLException.
+   */
+  private Exception translateException(Throwable cause, RowReader rowReader) {
+    Exception readerException = rowReader.getException();
+
+    if (readerException != null) {
+      // The row could not be read or converted on the client side
+      failedRow = rowReader.getRowNumber();
+      if (readerException instanceof DataNotMatchingMetadataException) {
+        addRejectedRowCheck(readerException.getMessage());
+        return readerException;
+      }
+      else if (readerException instanceof SQLException) {
+        return readerException;
+      }
+      SQLException sqlException =
+        new SQLException("Error reading data: " + readerException.getMessage());
+      sqlException.initCause(readerException);
+      return sqlException;
+    }
+
+    if (cause instanceof SQLException) {
+      SQLException sqlException = (SQLException) cause;
+      String sqlState = sqlException.getSQLState();
+      String message = sqlException.getMessage();
+
+      if (message != null) {
+        Matcher matcher = COPY_LINE_PATTERN.matcher(message);
+        if (matcher.find()) {
+          // Lines are counted from the start of this COPY command
+          failedRow = rowReader.getFirstRowNumber() +
+                      Integer.parseInt(matcher.group(1));
+        }
+      }
+
+      // Class 22 is "data exception", class 23 "integrity constraint violation"
+      if (sqlState != null &&
+          (sqlState.startsWith("22") || sqlState.startsWith("23"))) {
+        log.error("COPY rejected row " + failedRow + ": " + message);
+        addRejectedRowCheck(message);
+        return new DataNotMatchingMetadataException(message);
+      }
+
+      return sqlException;
+    }
+
+    SQLException sqlException = new SQLException(
+      "Error during COPY: " + (cause == null ? null : cause.getMessage()));
+    sqlException.initCause(cause);
+    return sqlException;
+  }
+
+
+  /*
+   * Reports the row that made the COPY fail in a quality check of the
+   * entity.
+   */
+  private void addRejectedRowCheck(String message) {
+    if (entity == null) {
+      return;
+    }
+
+    String rowRejectedIdentifier = "rowRejected";
+    QualityCheck rowRejectedTemplate =
+      QualityReport.getQualityCheckTemplate(rowRejectedIdentifier);
+    QualityCheck rowRejectedCheck =
+      new QualityCheck(rowRejectedIdentifier, rowRejectedTemplate);
+
+    if (QualityCheck.shouldRunQualityCheck(entity, rowRejectedCheck)) {
+      rowRejectedCheck.setFailedStatus();
+      rowRejectedCheck.setFound((failedRow > 0) ?
+                                "Row " + failedRow + " was rejected" :
+                                "A row was rejected");
+      rowRejectedCheck.setExplanation("<![CDATA[" + message + "]]>");
+      entity.addQualityCheck(rowRejectedCheck);
+    }
+  }
+
+
+  /*
+   * A Reader that formats rows in the COPY text format as the driver asks
+   * for more data, so that the table is never held in memory.
+   */
+  private class RowReader extends Reader {
+    private Vector<String> pendingRow;
+    private final TextDataReader dataReader;
+    private final int maxSourceRows;
+    private final int firstRowNumber;
+    private final StringBuffer buffer = new StringBuffer(256);
+    private int position = 0;
+    private int rowNumber;
+    private int sourceRowCount = 0;
+    private boolean exhausted = false;
+    private boolean limitReached = false;
+    private Exception exception = null;
+
+    private RowReader(Vector<String> firstRow, TextDataReader dataReader,
+                      int maxSourceRows) {
+      this.pendingRow = firstRow;
+      this.dataReader = dataReader;
+      this.maxSourceRows = maxSourceRows;
+      this.firstRowNumber = rowCount;
+      this.rowNumber = rowCount;
+    }
+
+    public int read(char[] characters, int offset, int length)
+            throws IOException {
+      while (position >= buffer.length()) {
+        if (exhausted || limitReached || !nextRow()) {
+          return -1;
+        }
+      }
+
+      int count = Math.min(length, buffer.length() - position);
+      buffer.getChars(position, position + count, characters, offset);
+      position += count;
+
+      return count;
+    }
+
+    public void close() {
+      limitReached = true;
+    }
+
+    /*
+     * Formats the next row that has a value into the buffer.
+     */
+    private boolean nextRow() throws IOException {
+      buffer.setLength(0);
+      position = 0;
+
+      try {
+        while (true) {
+          if (maxSourceRows > 0 && sourceRowCount >= maxSourceRows) {
+            limitReached = true;
+            return false;
+          }
+
+          Vector<String> row = pendingRow;
+          pendingRow = null;
+
+          if (row == null && dataReader != null) {
+            row = dataReader.getOneRowDataVector();
+          }
+
+          if (row == null || row.isEmpty()) {
+            exhausted = true;
+            return false;
+          }
+
+          sourceRowCount++;
+          rowNumber++;
+          if (formatRow(converters, row, buffer)) {
+            return true;
+          }
+          rowNumber--;
+        }
+      }
+      catch (Exception e) {
+        exception = e;
+        throw new IOException(e.getMessage());
+      }
+    }
+
+    private Exception getException() {
+      return exception;
+    }
+
+    private int getRowNumber() {
+      return rowNumber;
+    }
+
+    private int getFirstRowNumber() {
+      return firstRowNumber;
+    }
+
+    private int getSourceRowCount() {
+      return sourceRowCount;
+    }
+
+    private boolean isExhausted() {
+      return exhausted;
+    }
+  }
+
+}
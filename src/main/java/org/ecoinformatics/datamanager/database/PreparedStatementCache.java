@@ -0,0 +1,328 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Caches the prepared statements of each connection by their SQL template,
+ * so that a query which is run again with different values reuses the
+ * statement, and the plan, that the database prepared for it. Each
+ * connection keeps its most recently used statements, up to the maximum,
+ * and closes the others.
+ *
+ * A cached statement belongs to the cache: it must not be closed, and it
+ * may be used only by the holder of its connection. The statements of a
+ * connection are dropped when the connection is closed, either by the
+ * pool calling clear() or when the cache next sees a new connection.
+ */
+public class PreparedStatementCache {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(PreparedStatementCache.class);
+
+  public static final int DEFAULT_MAX_STATEMENTS = 100;
+
+  private static int maxStatements = DEFAULT_MAX_STATEMENTS;
+
+  private static final Map<Connection, StatementMap> statementMaps =
+    new HashMap<Connection, StatementMap>();
+
+  private static long hitCount = 0;
+  private static long missCount = 0;
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the prepared statement of a connection for a SQL template,
+   * preparing it if the connection has none.
+   *
+   * @param connection  the connection, held by the caller
+   * @param sql         the SQL template
+   * @return the cached statement, whose parameters are still set from its
+   *         last use
+   * @throws SQLException if the statement cannot be prepared
+   */
+  public static PreparedStatement prepare(Connection connection, String sql)
+          throws SQLException {
+    StatementMap statementMap = getStatementMap(connection);
+    PreparedStatement statement;
+
+    synchronized (statementMap) {
+      statement = statementMap.get(sql);
+    }
+
+    if (statement != null) {
+      recordLookup(true);
+      return statement;
+    }
+
+    recordLookup(false);
+    statement = connection.prepareStatement(sql);
+
+    synchronized (statementMap) {
+      PreparedStatement previous = statementMap.put(sql, statement);
+      if (previous != null && previous != statement) {
+        closeQuietly(previous);
+      }
+    }
+
+    return statement;
+  }
+
+
+  /**
+   * Determines whether a connection has a prepared statement for a SQL
+   * template.
+   *
+   * @param connection  the connection
+   * @param sql         the SQL template
+   * @return true if the statement is cached, else false
+   */
+  public static boolean contains(Connection connection, String sql) {
+    StatementMap statementMap;
+
+    synchronized (statementMaps) {
+      statementMap = statementMaps.get(connection);
+    }
+
+    if (statementMap == null) {
+      return false;
+    }
+
+    synchronized (statementMap) {
+      return statementMap.containsKey(sql);
+    }
+  }
+
+
+  /**
+   * Closes and drops the prepared statement of a connection for a SQL
+   * template, such as one that the database no longer accepts because a
+   * table it uses was dropped and created again.
+   *
+   * @param connection  the connection
+   * @param sql         the SQL template
+   */
+  public static void remove(Connection connection, String sql) {
+    StatementMap statementMap;
+
+    synchronized (statementMaps) {
+      statementMap = statementMaps.get(connection);
+    }
+
+    if (statementMap != null) {
+      PreparedStatement statement;
+      synchronized (statementMap) {
+        statement = statementMap.remove(sql);
+      }
+      if (statement != null) {
+        closeQuietly(statement);
+      }
+    }
+  }
+
+
+  /**
+   * Closes and drops all of the prepared statements of a connection. A
+   * connection pool calls this before it closes a connection.
+   *
+   * @param connection  the connection
+   */
+  public static void clear(Connection connection) {
+    StatementMap statementMap;
+
+    synchronized (statementMaps) {
+      statementMap = statementMaps.remove(connection);
+    }
+
+    if (statementMap != null) {
+      closeAll(statementMap);
+    }
+  }
+
+
+  /**
+   * Gets the number of prepared statements cached for a connection.
+   *
+   * @param connection  the connection
+   * @return the number of statements
+   */
+  public static int size(Connection connection) {
+    StatementMap statementMap;
+
+    synchronized (statementMaps) {
+      statementMap = statementMaps.get(connection);
+    }
+
+    if (statementMap == null) {
+      return 0;
+    }
+
+    synchronized (statementMap) {
+      return statementMap.size();
+    }
+  }
+
+
+  /**
+   * Gets the number of statements that each connection keeps.
+   *
+   * @return the maximum number of statements per connection
+   */
+  public static int getMaxStatements() {
+    return maxStatements;
+  }
+
+
+  /**
+   * Sets the number of statements that each connection keeps. Connections
+   * that keep more close their least recently used statements as new ones
+   * are prepared.
+   *
+   * @param max  the maximum number of statements per connection, at least 1
+   */
+  public static void setMaxStatements(int max) {
+    maxStatements = Math.max(max, 1);
+  }
+
+
+  /**
+   * Gets the number of lookups that found a cached statement.
+   *
+   * @return the number of hits
+   */
+  public static synchronized long getHitCount() {
+    return hitCount;
+  }
+
+
+  /**
+   * Gets the number of lookups that prepared a new statement.
+   *
+   * @return the number of misses
+   */
+  public static synchronized long getMissCount() {
+    return missCount;
+  }
+
+
+  /*
+   * Gets the statements of a connection. When a connection is seen for the
+   * first time, the statements of connections that have been closed are
+   * dropped.
+   */
+  private static StatementMap getStatementMap(Connection connection) {
+    List<StatementMap> closedMaps = new ArrayList<StatementMap>();
+    StatementMap statementMap;
+
+    synchronized (statementMaps) {
+      statementMap = statementMaps.get(connection);
+
+      if (statementMap == null) {
+        Iterator<Map.Entry<Connection, StatementMap>> entries =
+          statementMaps.entrySet().iterator();
+        while (entries.hasNext()) {
+          Map.Entry<Connection, StatementMap> entry = entries.next();
+          if (isClosed(entry.getKey())) {
+            closedMaps.add(entry.getValue());
+            entries.remove();
+          }
+        }
+
+        statementMap = new StatementMap();
+        statementMaps.put(connection, statementMap);
+      }
+    }
+
+    for (StatementMap closedMap : closedMaps) {
+      closeAll(closedMap);
+    }
+
+    return statementMap;
+  }
+
+
+  private static synchronized void recordLookup(boolean hit) {
+    if (hit) {
+      hitCount++;
+    }
+    else {
+      missCount++;
+    }
+  }
+
+
+  private static boolean isClosed(Connection connection) {
+    try {
+      return connection.isClosed();
+    }
+    catch (SQLException e) {
+      return true;
+    }
+  }
+
+
+  private static void closeAll(StatementMap statementMap) {
+    List<PreparedStatement> statements;
+
+    synchronized (statementMap) {
+      statements = new ArrayList<PreparedStatement>(statementMap.values());
+      statementMap.clear();
+    }
+
+    for (PreparedStatement statement : statements) {
+      closeQuietly(statement);
+    }
+  }
+
+
+  private static void closeQuietly(PreparedStatement statement) {
+    try {
+      statement.close();
+    }
+    catch (SQLException e) {
+      log.debug("Unable to close a cached statement: " + e.getMessage());
+    }
+  }
+
+
+  /*
+   * The statements of a connection, in order of use, which closes its least
+   * recently used statement when it holds more than the maximum.
+   */
+  private static class StatementMap
+          extends LinkedHashMap<String, PreparedStatement> {
+
+    private static final long serialVersionUID = 1L;
+
+    StatementMap() {
+      super(16, 0.75f, true);
+    }
+
+    protected boolean removeEldestEntry(
+                        Map.Entry<String, PreparedStatement> eldest) {
+      if (size() > maxStatements) {
+        closeQuietly(eldest.getValue());
+        return true;
+      }
+      return false;
+    }
+  }
+
+}
@@ -31,6 +31,9 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This class represents a sql query in java presentation.
  * @author tao
@@ -134,6 +137,18 @@ public class Query
 		return selectionList;
 	}
 	
+	public TableItem[] getTableList() {
+		return tableList;
+	}
+	
+	public WhereClause getWhereClause() {
+		return whereClause;
+	}
+	
+	public GroupBy getGroupBy() {
+		return groupBy;
+	}
+	
 	/**
 	 * Set where clause to the query
 	 * @param where where clause need be set
@@ -174,6 +189,20 @@ public class Query
 	 * @throws UnWellFormedQueryException
 	 */
 	public String toSQLString() throws UnWellFormedQueryException
+	{
+		return toSQLString(null);
+	}
+	
+	/**
+	 * Gets a sql template from query object, in which the literal values of
+	 * the where clause are '?' parameters, and adds the values to the binds.
+	 * The values of static selection items are still inlined.
+	 * @param binds the list to add the values to, or null to inline them
+	 * @return sql string
+	 * @throws UnWellFormedQueryException
+	 */
+	public String toSQLString(List<Object> binds) 
+            throws UnWellFormedQueryException
 	{
 		if (selectionList == null || tableList == null)
 		{
@@ -227,7 +256,7 @@ public class Query
 		if (whereClause != null)
 		{
 			sql.append(ConditionInterface.SPACE);
-			sql.append(whereClause.toSQLString());
+			sql.append(whereClause.toSQLString(binds));
 		}
 		// group by part
 		if (groupBy != null)
@@ -239,4 +268,17 @@ public class Query
 		return sql.toString();
 	}
 	
+	/**
+	 * Compiles the query to a sql template and the values to bind to it, so
+	 * that queries which differ only in their values share a statement.
+	 * @return the bound query
+	 * @throws UnWellFormedQueryException
+	 */
+	public BoundQuery toBoundQuery() throws UnWellFormedQueryException
+	{
+		List<Object> binds = new ArrayList<Object>();
+		String sql = toSQLString(binds);
+		return new BoundQuery(sql, binds);
+	}
+	
 }
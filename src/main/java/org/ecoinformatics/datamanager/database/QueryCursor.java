@@ -0,0 +1,403 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.DataManager;
+
+/**
+ * A cursor over the rows of a query that holds its connection, and keeps
+ * the tables it queries from being evicted, until it is closed. The rows
+ * are fetched from the database in chunks of the fetch size as they are
+ * read, so that a large result does not have to fit in memory. The
+ * PostgreSQL driver uses a server-side cursor for this only within a
+ * transaction, so the connection is taken out of auto-commit mode while
+ * the cursor is open.
+ *
+ * A cursor must be closed, which also happens when its ResultSet is
+ * closed or when the last row has been read with nextBatch().
+ */
+public class QueryCursor implements RowCursorInterface {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(QueryCursor.class);
+
+  public static final int DEFAULT_FETCH_SIZE = 1000;
+
+  private static int defaultFetchSize = DEFAULT_FETCH_SIZE;
+
+
+  /*
+   * Instance fields
+   */
+
+  private Connection connection = null;
+  private Statement statement = null;
+  private boolean statementCached = false;
+  private ResultSet resultSet = null;
+  private ResultSet closingResultSet = null;
+  private TableMonitor tableMonitor = null;
+  private List<String> openTableNames = null;
+  private boolean autoCommit = true;
+  private boolean closed = false;
+  private long rowCount = 0;
+  private String[] columnNames = null;
+  private int[] columnTypes = null;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Runs a query on a connection of the DataManager's pool, holding the
+   * connection and the tables that are open for the query until the
+   * cursor is closed. If the query fails, the connection is returned and
+   * the tables are closed before the exception is thrown.
+   *
+   * @param sql             the query
+   * @param fetchSize       the number of rows to fetch from the database at
+   *                        a time, or 0 to leave it to the driver
+   * @param tableMonitor    the table monitor that opened the tables, or null
+   * @param openTableNames  the names of the tables that are open for the
+   *                        query, which the cursor closes
+   * @throws SQLException if the query cannot be run
+   */
+  QueryCursor(String sql, int fetchSize, TableMonitor tableMonitor,
+              List<String> openTableNames)
+          throws SQLException {
+    this.tableMonitor = tableMonitor;
+    this.openTableNames = openTableNames;
+
+    try {
+      connection = DataManager.getConnection();
+      autoCommit = connection.getAutoCommit();
+      if (fetchSize > 0 && autoCommit) {
+        connection.setAutoCommit(false);
+      }
+      statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                                             ResultSet.CONCUR_READ_ONLY);
+      if (fetchSize > 0) {
+        statement.setFetchSize(fetchSize);
+      }
+      resultSet = statement.executeQuery(sql);
+    }
+    catch (SQLException e) {
+      close();
+      throw queryFailed(e);
+    }
+  }
+  
+  
+  /**
+   * Runs a bound query on a connection of the DataManager's pool with the
+   * statement that the connection has prepared for its template, holding
+   * the connection and the tables that are open for the query until the
+   * cursor is closed. A cached statement that fails is prepared again once,
+   * since a table it uses may have been dropped and loaded again.
+   *
+   * @param boundQuery       the query template and its values
+   * @param databaseAdapter  the adapter that binds the values
+   * @param fetchSize        the number of rows to fetch from the database
+   *                         at a time, or 0 to leave it to the driver
+   * @param tableMonitor     the table monitor that opened the tables, or
+   *                         null
+   * @param openTableNames   the names of the tables that are open for the
+   *                         query, which the cursor closes
+   * @throws SQLException if the query cannot be run
+   */
+  QueryCursor(BoundQuery boundQuery, DatabaseAdapter databaseAdapter,
+              int fetchSize, TableMonitor tableMonitor,
+              List<String> openTableNames)
+          throws SQLException {
+    this.tableMonitor = tableMonitor;
+    this.openTableNames = openTableNames;
+    this.statementCached = true;
+
+    try {
+      connection = DataManager.getConnection();
+      autoCommit = connection.getAutoCommit();
+      if (fetchSize > 0 && autoCommit) {
+        connection.setAutoCommit(false);
+      }
+
+      String sql = boundQuery.getSQL();
+      boolean cached = PreparedStatementCache.contains(connection, sql);
+      try {
+        resultSet = executeBoundQuery(boundQuery, databaseAdapter, fetchSize);
+      }
+      catch (SQLException e) {
+        if (!cached) {
+          throw(e);
+        }
+        log.debug("Preparing the cached statement again: " + e.getMessage());
+        PreparedStatementCache.remove(connection, sql);
+        if (!connection.getAutoCommit()) {
+          connection.rollback();
+        }
+        resultSet = executeBoundQuery(boundQuery, databaseAdapter, fetchSize);
+      }
+    }
+    catch (SQLException e) {
+      close();
+      throw queryFailed(e);
+    }
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the number of rows that new cursors fetch at a time.
+   *
+   * @return the default fetch size
+   */
+  public static int getDefaultFetchSize() {
+    return defaultFetchSize;
+  }
+
+
+  /**
+   * Sets the number of rows that new cursors fetch at a time. A value of
+   * 0 leaves the fetch size to the driver, which for PostgreSQL reads the
+   * whole result into memory.
+   *
+   * @param fetchSize  the default fetch size
+   */
+  public static void setDefaultFetchSize(int fetchSize) {
+    defaultFetchSize = (fetchSize > 0) ? fetchSize : 0;
+  }
+
+
+  /*
+   * Logs a query that failed, and wraps its exception in one with the same
+   * SQL state and vendor code for the caller.
+   */
+  private static SQLException queryFailed(SQLException e) {
+    log.error("Unable to run the query: " + e.getMessage(), e);
+    SQLException sqlException = 
+      new SQLException("Unable to run the query: " + e.getMessage(),
+                       e.getSQLState(), e.getErrorCode());
+    sqlException.initCause(e);
+    return sqlException;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the result set of the query. Closing it closes the cursor, so it
+   * can be handed to code that expects a plain ResultSet.
+   *
+   * @return the result set, positioned before the next unread row
+   */
+  public ResultSet getResultSet() {
+    if (closingResultSet == null && resultSet != null) {
+      closingResultSet = (ResultSet) Proxy.newProxyInstance(
+        ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args)
+                  throws Throwable {
+            if (method.getName().equals("close") && args == null) {
+              close();
+              return null;
+            }
+            try {
+              return method.invoke(resultSet, args);
+            }
+            catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+    }
+
+    return closingResultSet;
+  }
+
+
+  /**
+   * Gets the names of the columns of the query.
+   *
+   * @return the column labels, in order
+   * @throws SQLException if the metadata cannot be read
+   */
+  public String[] getColumnNames() throws SQLException {
+    readMetaData();
+    return columnNames.clone();
+  }
+
+
+  /**
+   * Gets the types of the columns of the query.
+   *
+   * @return the java.sql.Types of the columns, in order
+   * @throws SQLException if the metadata cannot be read
+   */
+  public int[] getColumnTypes() throws SQLException {
+    readMetaData();
+    return columnTypes.clone();
+  }
+
+
+  /**
+   * Reads the next batch of rows. The values of a row are the Java objects
+   * that the driver maps the column types to, such as Integer, Double,
+   * String or Timestamp, with null for SQL NULL. Once the last row has been
+   * read, the cursor is closed.
+   *
+   * @param maxRows  the largest number of rows to read
+   * @return the rows read, which is fewer than maxRows only at the end of
+   *         the result, and empty once the cursor is closed
+   * @throws SQLException if the rows cannot be read
+   */
+  public List<Object[]> nextBatch(int maxRows) throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+
+    if (closed) {
+      return rows;
+    }
+
+    readMetaData();
+    int columnCount = columnNames.length;
+
+    while (rows.size() < maxRows) {
+      if (!resultSet.next()) {
+        close();
+        break;
+      }
+
+      Object[] row = new Object[columnCount];
+      for (int i = 0; i < columnCount; i++) {
+        row[i] = resultSet.getObject(i + 1);
+      }
+      rows.add(row);
+      rowCount++;
+    }
+
+    return rows;
+  }
+
+
+  /**
+   * Gets the number of rows read with nextBatch() so far.
+   *
+   * @return the number of rows read
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Determines whether the cursor has been closed.
+   *
+   * @return true if the cursor is closed, else false
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+
+  /**
+   * Closes the cursor, its result set and its statement unless the
+   * statement is cached, returns its connection to the pool, and closes the
+   * tables that were opened for the query. Closing a cursor more than once
+   * has no effect.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      if (resultSet != null) resultSet.close();
+      if (statement != null && !statementCached) statement.close();
+    }
+    catch (SQLException e) {
+      log.error("Unable to close the query cursor: " + e.getMessage());
+    }
+
+    if (connection != null) {
+      try {
+        if (autoCommit && !connection.getAutoCommit()) {
+          // The transaction only held the cursor
+          connection.rollback();
+          connection.setAutoCommit(true);
+        }
+      }
+      catch (SQLException e) {
+        log.error("Unable to end the query transaction: " + e.getMessage());
+      }
+      DataManager.returnConnection(connection);
+      connection = null;
+    }
+
+    if (tableMonitor != null && openTableNames != null) {
+      for (String tableName : openTableNames) {
+        tableMonitor.closeTable(tableName);
+      }
+    }
+  }
+
+
+  /*
+   * Binds the values of a query to the cached statement for its template
+   * and runs it.
+   */
+  private ResultSet executeBoundQuery(BoundQuery boundQuery,
+                                      DatabaseAdapter databaseAdapter,
+                                      int fetchSize)
+          throws SQLException {
+    PreparedStatement preparedStatement =
+      PreparedStatementCache.prepare(connection, boundQuery.getSQL());
+    statement = preparedStatement;
+    preparedStatement.setFetchSize(fetchSize > 0 ? fetchSize : 0);
+
+    for (int i = 0; i < boundQuery.getBindCount(); i++) {
+      databaseAdapter.setParameter(preparedStatement, i + 1,
+                                   boundQuery.getBind(i));
+    }
+
+    return preparedStatement.executeQuery();
+  }
+
+
+  /*
+   * Reads the names and types of the columns of the result set.
+   */
+  private void readMetaData() throws SQLException {
+    if (columnNames == null) {
+      ResultSetMetaData metaData = resultSet.getMetaData();
+      int columnCount = metaData.getColumnCount();
+      columnNames = new String[columnCount];
+      columnTypes = new int[columnCount];
+
+      for (int i = 0; i < columnCount; i++) {
+        columnNames[i] = metaData.getColumnLabel(i + 1);
+        columnTypes[i] = metaData.getColumnType(i + 1);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,261 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the results of queries in memory, so that a query that is run
+ * again returns without going to the database. A result is keyed on the
+ * template and values of its bound query, and records the version of each
+ * table that it depends on (see TableMonitor.getTableVersion()). It is used
+ * only while those tables keep their versions, and it is dropped as soon as
+ * one of them is registered, loaded or dropped.
+ *
+ * The cache is disabled by default. It holds results up to a number of
+ * bytes, as estimated by ColumnarResult, and drops the least recently used
+ * results to make room for new ones.
+ */
+public class QueryResultCache {
+
+  /*
+   * Class fields
+   */
+
+  /** The default size of the cache, 64 megabytes */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static volatile boolean enabled = false;
+  private static long maxBytes = DEFAULT_MAX_BYTES;
+  private static long byteSize = 0;
+  private static long hitCount = 0;
+  private static long missCount = 0;
+
+  /* The cached results, in order of use */
+  private static final LinkedHashMap<BoundQuery, CachedResult> results =
+    new LinkedHashMap<BoundQuery, CachedResult>(16, 0.75f, true);
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Determines whether query results are cached.
+   *
+   * @return true if the cache is enabled, else false
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+
+  /**
+   * Enables or disables the cache. Disabling it drops the cached results.
+   *
+   * @param enable  true to cache query results, false to stop
+   */
+  public static void setEnabled(boolean enable) {
+    enabled = enable;
+    if (!enable) {
+      clear();
+    }
+  }
+
+
+  /**
+   * Gets the number of bytes that the cache holds at most.
+   *
+   * @return the maximum size in bytes
+   */
+  public static synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+
+  /**
+   * Sets the number of bytes that the cache holds at most, dropping the
+   * least recently used results that no longer fit. A result larger than
+   * the maximum is not cached.
+   *
+   * @param bytes  the maximum size in bytes
+   */
+  public static synchronized void setMaxBytes(long bytes) {
+    maxBytes = Math.max(bytes, 0);
+    evict();
+  }
+
+
+  /**
+   * Gets the cached result of a query, if every table it depends on still
+   * has the version it had when the result was cached.
+   *
+   * @param boundQuery  the query template and its values
+   * @param versions    the current versions of the tables that the query
+   *                    depends on, by table name
+   * @return the result, or null if it is not cached
+   */
+  public static synchronized ColumnarResult get(BoundQuery boundQuery,
+                                                Map<String, Long> versions) {
+    CachedResult cachedResult = results.get(boundQuery);
+
+    if (cachedResult != null && !cachedResult.versions.equals(versions)) {
+      remove(boundQuery);
+      cachedResult = null;
+    }
+
+    if (cachedResult == null) {
+      missCount++;
+      return null;
+    }
+
+    hitCount++;
+    return cachedResult.result;
+  }
+
+
+  /**
+   * Caches the result of a query, along with the versions that the tables
+   * it depends on had before the query was run.
+   *
+   * @param boundQuery  the query template and its values
+   * @param versions    the versions of the tables that the query depends
+   *                    on, by table name
+   * @param result      the result of the query
+   * @return true if the result was cached, false if it is too large
+   */
+  public static synchronized boolean put(BoundQuery boundQuery,
+                                         Map<String, Long> versions,
+                                         ColumnarResult result) {
+    if (!enabled || result.getByteSize() > maxBytes) {
+      return false;
+    }
+
+    remove(boundQuery);
+    results.put(boundQuery, new CachedResult(versions, result));
+    byteSize += result.getByteSize();
+    evict();
+
+    return true;
+  }
+
+
+  /**
+   * Drops the cached results that depend on a table.
+   *
+   * @param tableName  the table name
+   */
+  public static synchronized void invalidateTable(String tableName) {
+    Iterator<CachedResult> iterator = results.values().iterator();
+
+    while (iterator.hasNext()) {
+      CachedResult cachedResult = iterator.next();
+      for (String dependency : cachedResult.versions.keySet()) {
+        if (dependency.equalsIgnoreCase(tableName)) {
+          byteSize -= cachedResult.result.getByteSize();
+          iterator.remove();
+          break;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Drops all of the cached results.
+   */
+  public static synchronized void clear() {
+    results.clear();
+    byteSize = 0;
+  }
+
+
+  /**
+   * Gets the number of cached results.
+   *
+   * @return the number of results
+   */
+  public static synchronized int size() {
+    return results.size();
+  }
+
+
+  /**
+   * Gets the estimated size of the cached results.
+   *
+   * @return the size in bytes
+   */
+  public static synchronized long getByteSize() {
+    return byteSize;
+  }
+
+
+  /**
+   * Gets the number of lookups that found a result.
+   *
+   * @return the number of hits
+   */
+  public static synchronized long getHitCount() {
+    return hitCount;
+  }
+
+
+  /**
+   * Gets the number of lookups that did not find a result.
+   *
+   * @return the number of misses
+   */
+  public static synchronized long getMissCount() {
+    return missCount;
+  }
+
+
+  /*
+   * Drops a cached result.
+   */
+  private static void remove(BoundQuery boundQuery) {
+    CachedResult cachedResult = results.remove(boundQuery);
+
+    if (cachedResult != null) {
+      byteSize -= cachedResult.result.getByteSize();
+    }
+  }
+
+
+  /*
+   * Drops the least recently used results until the cache fits.
+   */
+  private static void evict() {
+    List<BoundQuery> evicted = new ArrayList<BoundQuery>();
+    long size = byteSize;
+
+    for (Map.Entry<BoundQuery, CachedResult> entry : results.entrySet()) {
+      if (size <= maxBytes) {
+        break;
+      }
+      size -= entry.getValue().result.getByteSize();
+      evicted.add(entry.getKey());
+    }
+
+    for (BoundQuery boundQuery : evicted) {
+      remove(boundQuery);
+    }
+  }
+
+
+  /*
+   * A cached result and the versions of the tables it depends on.
+   */
+  private static class CachedResult {
+    final Map<String, Long> versions;
+    final ColumnarResult result;
+
+    CachedResult(Map<String, Long> versions, ColumnarResult result) {
+      this.versions = versions;
+      this.result = result;
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * An immutable row of field values as parsed from an entity's data by a
+ * TextDataReader. Values are the trimmed String fields in attribute order;
+ * missing fields are represented by empty strings.
+ *
+ * Rows are produced by the stream() and spliterator() methods of
+ * TextDataReader and by DelimitedFileSpliterator.
+ */
+public class Row {
+
+  /*
+   * Instance fields
+   */
+
+  private final String[] values;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a row from an array of field values. The array is not copied.
+   *
+   * @param values  the field values of the row
+   */
+  public Row(String[] values) {
+    this.values = values;
+  }
+
+
+  /**
+   * Constructs a row from the Vector returned by
+   * TextDataReader.getOneRowDataVector().
+   *
+   * @param rowVector  a vector of String field values
+   */
+  public Row(Vector<String> rowVector) {
+    this(rowVector.toArray(new String[rowVector.size()]));
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the value of a field.
+   *
+   * @param index  the zero-based position of the field in the row
+   * @return the field value
+   */
+  public String get(int index) {
+    return values[index];
+  }
+
+
+  /**
+   * Gets the number of fields in the row.
+   *
+   * @return the number of fields
+   */
+  public int size() {
+    return values.length;
+  }
+
+
+  /**
+   * Gets a copy of the field values of this row.
+   *
+   * @return a String array holding the field values
+   */
+  public String[] getValues() {
+    return values.clone();
+  }
+
+
+  /**
+   * Gets the field values of this row as a Vector, the form that is accepted
+   * by DatabaseAdapter.generateInsertSQL().
+   *
+   * @return a Vector of String field values
+   */
+  public Vector<String> toVector() {
+    return new Vector<String>(Arrays.asList(values));
+  }
+
+
+  /**
+   * Returns a string representation of the row.
+   *
+   * @return the field values enclosed in square brackets
+   */
+  public String toString() {
+    return Arrays.toString(values);
+  }
+
+}
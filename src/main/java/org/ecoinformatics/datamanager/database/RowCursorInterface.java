@@ -0,0 +1,70 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A cursor over the rows of a query result, read as batches of typed
+ * values. A cursor holds database resources until it is closed, which
+ * happens when the last row has been read or when close() is called.
+ */
+public interface RowCursorInterface extends Closeable
+{
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the names of the columns of the result.
+   *
+   * @return the column labels, in order
+   * @throws SQLException if the columns cannot be determined
+   */
+  public String[] getColumnNames() throws SQLException;
+
+
+  /**
+   * Gets the types of the columns of the result.
+   *
+   * @return the java.sql.Types of the columns, in order
+   * @throws SQLException if the columns cannot be determined
+   */
+  public int[] getColumnTypes() throws SQLException;
+
+
+  /**
+   * Reads the next batch of rows. The values of a row are the Java objects
+   * that the driver maps the column types to, with null for SQL NULL.
+   *
+   * @param maxRows  the largest number of rows to read
+   * @return the rows read, which is fewer than maxRows only at the end of
+   *         the result, and empty once the cursor is closed
+   * @throws SQLException if the rows cannot be read
+   */
+  public List<Object[]> nextBatch(int maxRows) throws SQLException;
+
+
+  /**
+   * Gets the number of rows read with nextBatch() so far.
+   *
+   * @return the number of rows read
+   */
+  public long getRowCount();
+
+
+  /**
+   * Determines whether the cursor has been closed.
+   *
+   * @return true if the cursor is closed, else false
+   */
+  public boolean isClosed();
+
+
+  /**
+   * Closes the cursor and releases its database resources. Closing a
+   * cursor more than once has no effect.
+   */
+  public void close();
+
+}
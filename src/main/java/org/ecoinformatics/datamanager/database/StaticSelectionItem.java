@@ -11,6 +11,14 @@ public class StaticSelectionItem extends SelectionItem {
 		this.value = value;
 	}
 	
+	public String getName() {
+		return name;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
 	/**
 	 * Gets one selection item string (real name in DB) in sql query string.
      * 
@@ -32,6 +32,7 @@
 package org.ecoinformatics.datamanager.database;
 
 import java.sql.SQLException;
+import java.util.List;
 
 import org.ecoinformatics.datamanager.DataManager;
 import org.ecoinformatics.datamanager.parser.Attribute;
@@ -84,6 +85,17 @@ public class SubQueryClause implements ConditionInterface
 	 * Transform a sub-query clause into a SQL string.
 	 */
 	public String toSQLString() throws UnWellFormedQueryException
+	{
+		return toSQLString(null);
+	}
+	
+    
+	/**
+	 * Transform a sub-query clause into a SQL template, adding the values
+	 * of the sub-query to the binds.
+	 */
+	public String toSQLString(List<Object> binds) 
+            throws UnWellFormedQueryException
 	{
 		if (attribute == null)
 		{
@@ -155,13 +167,23 @@ public class SubQueryClause implements ConditionInterface
 		sql.append(operator);
 		sql.append(ConditionInterface.SPACE);
 		sql.append(LEFT_PARENSIS);
-		sql.append(removeSemicolon(query.toSQLString()));
+		sql.append(removeSemicolon(query.toSQLString(binds)));
 		sql.append(RIGHT_PARENSIS);
         
 		return sql.toString();
 	}
 	
     
+	public Entity getEntity() {
+		return entity;
+	}
+	
+    
+	public Attribute getAttribute() {
+		return attribute;
+	}
+	
+    
 	public String getOperator() {
 		return operator;
 	}
@@ -101,6 +101,16 @@ public class TableItem
     	return tableName;
     }
     
+    /**
+     * Gets the entity of the table.
+     * 
+     * @return the entity
+     */
+    public Entity getEntity()
+    {
+    	return entity;
+    }
+    
     public boolean equals(Object obj) {
     	if (obj instanceof TableItem) {
     		TableItem tableItem = (TableItem) obj;
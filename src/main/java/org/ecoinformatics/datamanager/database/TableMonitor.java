@@ -33,15 +33,27 @@ package org.ecoinformatics.datamanager.database;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.download.SourceValidator;
 import org.ecoinformatics.datamanager.parser.Entity;
 
 /**
@@ -55,10 +67,32 @@ import org.ecoinformatics.datamanager.parser.Entity;
  *   last usage date               last usage date of the database table
  *   priority (expiration policy)  controls whether the table can be expired 
  *                                 from the cache
+ *   load checkpoint               the row number and source byte offset up to
+ *                                 which the table has been loaded, and the
+ *                                 status of the load
  *   
  * It also sets the maximum amount of space that the database can use, and
  * attempts to free up space by dropping old tables when necessary.
  * 
+ * The entries of the registry are cached in memory, shared by all the
+ * TableMonitor objects of a database, so that table names are resolved
+ * without querying the database. Every change is written to the registry
+ * table before it is applied to the cache. Lookups are answered from the
+ * cache alone, so a name that is not in the cache is not registered;
+ * refreshRegistryCache() reloads the cache after changes made outside of
+ * this class, e.g. by another process.
+ * 
+ * When the tables grow beyond the maximum database size, freeTableSpace()
+ * drops tables until they fit again, starting with the tables whose
+ * expiration policy ranks them first and, among those, with the least
+ * recently used. Tables whose policy is zero, tables that were used within
+ * the eviction grace period and tables that have an open query or load (see
+ * openTable()) are never dropped. requestEviction() runs freeTableSpace()
+ * in the background.
+ * 
+ * Each table has a version, which changes whenever the table is registered,
+ * loaded or dropped, so that query results cached for an older version of
+ * a table are no longer used.
  */
 public class TableMonitor {
   
@@ -66,6 +100,59 @@ public class TableMonitor {
    * Class fields
    */
 
+  /* The registry entries of the current database, shared by all monitors */
+  private static DataTableRegistryCache sharedRegistryCache = null;
+
+  /* The default maximum DB size (in Mb) */
+  private static final int DEFAULT_DB_SIZE = 100;
+  
+  /* The maximum DB size (in Mb), shared by all monitors */
+  private static volatile int dbSize = DEFAULT_DB_SIZE;
+  
+  private static final long MEGABYTE = 1024 * 1024;
+  
+  /**
+   * The default time, in milliseconds, that a table is protected from 
+   * eviction after it was last used.
+   */
+  public static final long DEFAULT_EVICTION_GRACE_PERIOD = 60000;
+  
+  private static volatile long evictionGracePeriod = 
+    DEFAULT_EVICTION_GRACE_PERIOD;
+  
+  /* The number of open queries and loads of each table, by upper-case name */
+  private static final HashMap<String, Integer> openTables = 
+    new HashMap<String, Integer>();
+  
+  /* The upper-case names of the tables that are being evicted */
+  private static final HashSet<String> evictingTables = new HashSet<String>();
+  
+  /* Runs one eviction pass at a time */
+  private static final Object evictionLock = new Object();
+  
+  /* Runs requested eviction passes in the background */
+  private static Timer evictionTimer = null;
+  private static final AtomicBoolean evictionRequested = 
+    new AtomicBoolean(false);
+  
+  /* The estimated size of a row, beyond the size of its values */
+  private static final int ROW_OVERHEAD = 16;
+  
+  /* The estimated size of a character value */
+  private static final int CHARACTER_VALUE_SIZE = 32;
+  
+  /* The version of each table, by upper-case name */
+  private static final HashMap<String, Long> tableVersions = 
+    new HashMap<String, Long>();
+  
+  /* The last version given to a table */
+  private static long lastTableVersion = 0;
+  
+  /* The columns of the registry that are cached */
+  private static final String REGISTRY_COLUMNS = 
+    "TABLE_NAME, PACKAGE_ID, ENTITY_IDENTIFIER, ENTITY_NAME," +
+    " CREATION_DATE, LAST_USAGE_DATE, PRIORITY";
+
 
   /*
    * Instance fields
@@ -75,8 +162,18 @@ public class TableMonitor {
   private final String DATA_TABLE_REGISTRY = "DATA_TABLE_REGISTRY";
                                              // name of the database table where
                                              // data tables are registered
-  private final int DEFAULT_DB_SIZE = 100;   // default maximum DB size (in Mb)
-  private int dbSize = DEFAULT_DB_SIZE;      // maximum DB size (in Mb)
+  private final String DATA_VIEW_REGISTRY = "DATA_VIEW_REGISTRY";
+                                             // name of the database table where
+                                             // data views are registered
+  private boolean loadCheckpointsSupported = true;
+                                             // false if the registry lacks
+                                             // the load checkpoint columns
+  private boolean sourceValidatorsSupported = true;
+                                             // false if the registry lacks
+                                             // the source validator columns
+  private boolean loadScopesSupported = true;
+                                             // false if the registry lacks
+                                             // the load scope column
   
   
   /*
@@ -95,19 +192,51 @@ public class TableMonitor {
     this.dbAdapter = dbAdapter;
 
     /*
-     * Check for existence of dataTableRegistry table. Create it if it does not
-     * already exist.
+     * The first monitor of a database checks for existence of the 
+     * dataTableRegistry table, creates it if it does not already exist, and
+     * loads its entries into the registry cache.
      */
-    if (!isTableInDB(DATA_TABLE_REGISTRY)) {
-      createDataTableRegistry();
-    }
-    
+    getRegistryCache();
   }
   
   
   /*
    * Class methods
    */
+  
+  /**
+   * Gets the version of a table, which changes whenever the table is
+   * registered, loaded or dropped.
+   * 
+   * @param tableName  the table name
+   * @return the version, or 0 if the table has not changed since the
+   *         class was loaded
+   */
+  public static long getTableVersion(String tableName) {
+    synchronized (tableVersions) {
+      Long version = tableVersions.get(tableName.toUpperCase());
+      return (version == null) ? 0 : version.longValue();
+    }
+  }
+  
+  
+  /**
+   * Records that the rows of a table have changed, giving it a new version
+   * and dropping the cached query results that depend on it.
+   * 
+   * @param tableName  the table name
+   */
+  public static void recordTableChange(String tableName) {
+    if (tableName == null) {
+      return;
+    }
+    
+    synchronized (tableVersions) {
+      tableVersions.put(tableName.toUpperCase(), 
+                        Long.valueOf(++lastTableVersion));
+    }
+    QueryResultCache.invalidateTable(tableName);
+  }
 	
 
   /*
@@ -128,55 +257,69 @@ public class TableMonitor {
     String packageId = entity.getPackageId();
     String insertString;
     Date now = new Date();
-    String priority = "1";
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-    Statement stmt = null;
+    int priority = 1;
+    PreparedStatement stmt = null;
+    String tableName;
     
-    // Assign a table name for this entity
-    String tableName = assignTableName(entityIdentifier, entityName);
-    
-    boolean inUse = isDBTableNameInUse(tableName);
-
-    /*
-     * If we already have an entry for this entity in the data table registry,
-     * simply update its last usage date to the current date.
-     */
-    if (inUse) {
-      setLastUsageDate(tableName, now);
-    } 
     /*
-     * Otherwise, insert a new entry for this entity into the data
-     * table registry.
+     * Entities may be loaded concurrently, so a table name is assigned and
+     * registered before another entity is given a name
      */
-    else {
-      insertString = 
-        "INSERT INTO " + 
-        DATA_TABLE_REGISTRY + 
-        " values(" + 
-          "'" + tableName + "', " + 
-          "'" + packageId + "', " + 
-          "'" + entityIdentifier + "', " + 
-          "'" + entityName + "', " + 
-          "'" + simpleDateFormat.format(now) + "', " + 
-          "'" + simpleDateFormat.format(now) + "', " + 
-          priority + 
-        ")";
-
-      Connection connection = DataManager.getConnection();
+    synchronized (TableMonitor.class) {
+      // Assign a table name for this entity
+      tableName = assignTableName(entityIdentifier, entityName);
+    
+      boolean inUse = isDBTableNameInUse(tableName);
 
-      try {
-        stmt = connection.createStatement();
-        stmt.executeUpdate(insertString);
-      } 
-      catch (SQLException e) {
-        System.err.println("Error inserting record for " + tableName
-            + " into the data table registry (" + DATA_TABLE_REGISTRY + ")");
-        System.err.println("SQLException: " + e.getMessage());
-        tableName = null;
+      /*
+       * If we already have an entry for this entity in the data table
+       * registry, simply update its last usage date to the current date.
+       */
+      if (inUse && updateLastUsageDate(tableName, now)) {
+        // The entry is up to date
       } 
-      finally {
-        if (stmt != null) stmt.close();
-        DataManager.returnConnection(connection);
+      /*
+       * Otherwise, insert a new entry for this entity into the data
+       * table registry.
+       */
+      else {
+        insertString = 
+          "INSERT INTO " + 
+          DATA_TABLE_REGISTRY + 
+          " (" + REGISTRY_COLUMNS + ")" +
+          " values(?, ?, ?, ?, ?, ?, ?)";
+        java.sql.Date today = toSQLDate(now);
+        DataTableRegistryCache.Entry entry = 
+          new DataTableRegistryCache.Entry(tableName, packageId, 
+                                           entityIdentifier, entityName, 
+                                           today, today, priority);
+
+        Connection connection = DataManager.getConnection();
+
+        try {
+          stmt = connection.prepareStatement(insertString);
+          stmt.setString(1, entry.tableName);
+          stmt.setString(2, entry.packageId);
+          stmt.setString(3, entry.entityIdentifier);
+          stmt.setString(4, entry.entityName);
+          stmt.setDate(5, today);
+          stmt.setDate(6, today);
+          stmt.setInt(7, priority);
+          stmt.executeUpdate();
+          entry.touch();
+          getRegistryCache().put(entry);
+          recordTableChange(tableName);
+        } 
+        catch (SQLException e) {
+          System.err.println("Error inserting record for " + tableName
+              + " into the data table registry (" + DATA_TABLE_REGISTRY + ")");
+          System.err.println("SQLException: " + e.getMessage());
+          tableName = null;
+        } 
+        finally {
+          if (stmt != null) stmt.close();
+          DataManager.returnConnection(connection);
+        }
       }
     }
     
@@ -205,33 +348,17 @@ public class TableMonitor {
    */
   String assignTableName(String entityIdentifier, String entityName) 
           throws SQLException {
-    Connection connection = DataManager.getConnection();
     String tableName = null;
-    String selectString = "SELECT TABLE_NAME, ENTITY_IDENTIFIER, ENTITY_NAME" +
-                          " FROM " + DATA_TABLE_REGISTRY +
-                          " WHERE ENTITY_IDENTIFIER='" + entityIdentifier + 
-                          "' AND ENTITY_NAME='" + entityName + "'";
-    Statement stmt = null;
 
     /*
      * First, determine whether this entity has already been assigned a table
      * name. If it has, just return the previously assigned table name.
      */
-    try {
-      stmt = connection.createStatement();
-      ResultSet rs = stmt.executeQuery(selectString);
-      
-      while (rs.next()) {
-        tableName = rs.getString("table_name");
-      }    
-    }
-    catch (SQLException e) {
-      System.err.println("SQLException: " + e.getMessage());
-      throw(e);
-    }
-    finally {
-      if (stmt != null) stmt.close();
-      DataManager.returnConnection(connection);
+    DataTableRegistryCache.Entry entry = 
+      getRegistryCache().getByEntity(String.valueOf(entityIdentifier),
+                                     String.valueOf(entityName));
+    if (entry != null) {
+      tableName = entry.tableName;
     }
 
     /*
@@ -298,6 +425,119 @@ public class TableMonitor {
   }
   
   
+  /*
+   * Gets the registry cache of the current database. The first time, the
+   * DATA_TABLE_REGISTRY table is created or upgraded as needed and its
+   * entries are loaded.
+   */
+  private DataTableRegistryCache getRegistryCache() throws SQLException {
+    synchronized (TableMonitor.class) {
+      if (sharedRegistryCache == null || !sharedRegistryCache.isCurrent()) {
+        if (!isTableInDB(DATA_TABLE_REGISTRY)) {
+          createDataTableRegistry();
+        }
+        else {
+          upgradeDataTableRegistry();
+        }
+        
+        sharedRegistryCache = loadRegistryCache();
+      }
+      
+      loadCheckpointsSupported = sharedRegistryCache.supportsLoadCheckpoints();
+      sourceValidatorsSupported = 
+        sharedRegistryCache.supportsSourceValidators();
+      loadScopesSupported = sharedRegistryCache.supportsLoadScopes();
+      return sharedRegistryCache;
+    }
+  }
+  
+  
+  /*
+   * Loads all the entries of the registry table into a new cache.
+   */
+  private DataTableRegistryCache loadRegistryCache() throws SQLException {
+    DataTableRegistryCache cache = 
+      new DataTableRegistryCache(loadCheckpointsSupported, 
+                                 sourceValidatorsSupported,
+                                 loadScopesSupported);
+    Connection connection = DataManager.getConnection();
+    String selectString = 
+      "SELECT " + REGISTRY_COLUMNS + " FROM " + DATA_TABLE_REGISTRY;
+    Statement stmt = null;
+    
+    try {
+      stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery(selectString);
+      
+      while (rs.next()) {
+        cache.put(readEntry(rs));
+      }
+      rs.close();
+    }
+    catch (SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+    
+    return cache;
+  }
+  
+  
+  /**
+   * Reloads the cached entries of the data table registry from the database.
+   * Lookups are answered from the cache alone, so this must be called after
+   * the registry table was changed other than through a TableMonitor, e.g.
+   * by another process, for the change to be seen.
+   * 
+   * @throws SQLException
+   */
+  public void refreshRegistryCache() throws SQLException {
+    synchronized (TableMonitor.class) {
+      getRegistryCache();
+      sharedRegistryCache = loadRegistryCache();
+    }
+  }
+  
+  
+  /*
+   * Gets the registry entry of a table. The cache holds every entry of the
+   * registry table, so a table that is not cached has no entry.
+   */
+  private DataTableRegistryCache.Entry getEntry(String tableName) 
+          throws SQLException {
+    return getRegistryCache().getByTableName(tableName);
+  }
+  
+  
+  /*
+   * Reads a registry entry from a row holding the REGISTRY_COLUMNS.
+   */
+  private static DataTableRegistryCache.Entry readEntry(ResultSet rs) 
+          throws SQLException {
+    return new DataTableRegistryCache.Entry(rs.getString("TABLE_NAME"), 
+                                            rs.getString("PACKAGE_ID"), 
+                                            rs.getString("ENTITY_IDENTIFIER"), 
+                                            rs.getString("ENTITY_NAME"), 
+                                            rs.getDate("CREATION_DATE"), 
+                                            rs.getDate("LAST_USAGE_DATE"), 
+                                            rs.getInt("PRIORITY"));
+  }
+  
+  
+  /*
+   * Converts a date to the day that the registry stores for it.
+   */
+  private static java.sql.Date toSQLDate(Date date) {
+    SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    
+    return java.sql.Date.valueOf(simpleDateFormat.format(date));
+  }
+  
+  
   /**
    * Creates the DATA_TABLE_REGISTRY table. This is the table that the
    * TableMonitor uses to keep track of data table information such as
@@ -316,7 +556,17 @@ public class TableMonitor {
       "  ENTITY_NAME varchar(256), " +        // entity name
       "  CREATION_DATE date, " +             // creation date
       "  LAST_USAGE_DATE date, " +           // last usage date
-      "  PRIORITY int" +                     // expiration policy
+      "  PRIORITY int, " +                   // expiration policy
+      "  LOAD_ROW bigint, " +                // rows loaded at the checkpoint
+      "  LOAD_OFFSET bigint, " +             // source offset at the checkpoint
+      "  LOAD_STATUS varchar(16), " +        // status of the load
+      "  SOURCE_ETAG varchar(256), " +       // entity tag of the source
+      "  SOURCE_MODIFIED bigint, " +         // modification time of the source
+      "  SOURCE_SIZE bigint, " +             // size of the source in bytes
+      "  SOURCE_CHECKSUM varchar(64), " +    // MD5 checksum of the source
+      "  SOURCE_RECORDS bigint, " +          // records in the metadata
+      "  LOAD_SCOPE varchar(" + LoadScope.MAX_LENGTH + ")" +
+                                             // attributes and rows loaded
       ")";
 
     Statement stmt = null;
@@ -336,6 +586,74 @@ public class TableMonitor {
   }
   
   
+  /**
+   * Adds the load checkpoint, source validator and load scope columns to a
+   * DATA_TABLE_REGISTRY table that was created before they were introduced.
+   * If the columns cannot be added, the features that use them are not
+   * supported.
+   */
+  private void upgradeDataTableRegistry() throws SQLException {
+    loadCheckpointsSupported = addRegistryColumns(
+      new String[] {"LOAD_ROW", "LOAD_OFFSET", "LOAD_STATUS"},
+      new String[] {"bigint", "bigint", "varchar(16)"},
+      "load checkpoint");
+    sourceValidatorsSupported = addRegistryColumns(
+      new String[] {"SOURCE_ETAG", "SOURCE_MODIFIED", "SOURCE_SIZE", 
+                    "SOURCE_CHECKSUM", "SOURCE_RECORDS"},
+      new String[] {"varchar(256)", "bigint", "bigint", "varchar(64)", 
+                    "bigint"},
+      "source validator");
+    loadScopesSupported = addRegistryColumns(
+      new String[] {"LOAD_SCOPE"},
+      new String[] {"varchar(" + LoadScope.MAX_LENGTH + ")"},
+      "load scope");
+  }
+  
+  
+  /*
+   * Adds a group of columns to the DATA_TABLE_REGISTRY table, unless its
+   * last column is already there. Returns false if they cannot be added.
+   */
+  private boolean addRegistryColumns(String[] columns, String[] types,
+                                     String description) 
+        throws SQLException {
+    Connection connection = DataManager.getConnection();
+    Statement stmt = null;
+
+    try {
+      stmt = connection.createStatement();
+      
+      try {
+        ResultSet rs = stmt.executeQuery("SELECT " + 
+                                         columns[columns.length - 1] + 
+                                         " FROM " + DATA_TABLE_REGISTRY + 
+                                         " WHERE 1=0");
+        rs.close();
+        return true;
+      }
+      catch (SQLException e) {
+        // The registry predates the columns
+      }
+      
+      for (int i = 0; i < columns.length; i++) {
+        stmt.executeUpdate("ALTER TABLE " + DATA_TABLE_REGISTRY +
+                           " ADD COLUMN " + columns[i] + " " + types[i]);
+      }
+      
+      return true;
+    }
+    catch (SQLException e) {
+      System.err.println("Unable to add " + description + " columns to " + 
+                         DATA_TABLE_REGISTRY + ": " + e.getMessage());
+      return false;
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+  }
+  
+  
   /**
    * Drops a table entry for a given table name.
    * 
@@ -347,15 +665,18 @@ public class TableMonitor {
     boolean success = false;
     String deleteString;
     int rowCount = -1;
-    Statement stmt = null;
+    PreparedStatement stmt = null;
 
     deleteString = "DELETE FROM " + DATA_TABLE_REGISTRY + 
-                   " WHERE TABLE_NAME='" + tableName + "'";
+                   " WHERE TABLE_NAME=?";
     
     try {
-      stmt = connection.createStatement();
-      rowCount = stmt.executeUpdate(deleteString);
+      stmt = connection.prepareStatement(deleteString);
+      stmt.setString(1, tableName);
+      rowCount = stmt.executeUpdate();
       success = (rowCount == 1);
+      getRegistryCache().remove(tableName);
+      recordTableChange(tableName);
     }
     catch(SQLException e) {
       System.err.println("SQLException: " + e.getMessage());
@@ -371,40 +692,130 @@ public class TableMonitor {
   
 
   /**
-   * Frees up table space by dropping one or more old tables.
-   * @param  databaseHandler  the databaseHandler which will free space
-   * @return  the size of table which has been freed
+   * Registers a materialized data view, replacing any view of the same
+   * name. The DATA_VIEW_REGISTRY table is created on first use.
+   * 
+   * @param   dataView  the definition of the view
+   * @return  true if the view is registered, else false
    */
-  public int freeTableSpace(DatabaseHandler databaseHandler)
-          throws SQLException {
-    int freedSpace = 0;
-    //String oldestTable = getOldestTable();
+  boolean addViewEntry(DataView dataView) throws SQLException {
+    synchronized (TableMonitor.class) {
+      if (!isTableInDB(DATA_VIEW_REGISTRY)) {
+        createDataViewRegistry();
+      }
+    }
+    
+    Connection connection = DataManager.getConnection();
+    int rowCount = 0;
+    PreparedStatement stmt = null;
+    String[] sourceTableNames = dataView.getSourceTableNames();
+    StringBuffer sourceTables = new StringBuffer();
+    
+    for (int i = 0; i < sourceTableNames.length; i++) {
+      if (i > 0) {
+        sourceTables.append(',');
+      }
+      sourceTables.append(sourceTableNames[i]);
+    }
+    
+    try {
+      stmt = connection.prepareStatement("DELETE FROM " + DATA_VIEW_REGISTRY +
+                                         " WHERE VIEW_NAME=?");
+      stmt.setString(1, dataView.getName());
+      stmt.executeUpdate();
+      stmt.close();
+      
+      stmt = connection.prepareStatement(
+        "INSERT INTO " + DATA_VIEW_REGISTRY + 
+        " (VIEW_NAME, SOURCE_TABLES, VIEW_SQL, INCREMENTAL_SQL," +
+        " CREATION_DATE) VALUES (?, ?, ?, ?, ?)");
+      stmt.setString(1, dataView.getName());
+      stmt.setString(2, sourceTables.toString());
+      stmt.setString(3, dataView.getSQL());
+      stmt.setString(4, dataView.getIncrementalSQL());
+      stmt.setDate(5, toSQLDate(new Date()));
+      rowCount = stmt.executeUpdate();
+    }
+    catch(SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
     
-    return freedSpace;
+    return (rowCount == 1);
   }
   
- 
+  
   /**
-   * Gets the creation date of a given table in the database.
+   * Drops the registry entry of a data view.
    * 
-   * @param   tableName   the name of the table whose creation date is returned
-   * @return  the creation date, a Date object
+   * @param   viewName  the name of the view
+   * @return  true if the entry was dropped, else false
    */
-  public Date getCreationDate(String tableName) throws SQLException {
+  boolean dropViewEntry(String viewName) throws SQLException {
+    if (!isTableInDB(DATA_VIEW_REGISTRY)) {
+      return false;
+    }
+    
+    Connection connection = DataManager.getConnection();
+    int rowCount = 0;
+    PreparedStatement stmt = null;
+    
+    try {
+      stmt = connection.prepareStatement("DELETE FROM " + DATA_VIEW_REGISTRY +
+                                         " WHERE VIEW_NAME=?");
+      stmt.setString(1, viewName.toUpperCase());
+      rowCount = stmt.executeUpdate();
+    }
+    catch(SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+    
+    return (rowCount == 1);
+  }
+  
+  
+  /**
+   * Gets the definitions of the registered data views.
+   * 
+   * @return  the views, which is empty if none has been registered
+   */
+  List<DataView> getViewEntries() throws SQLException {
+    List<DataView> dataViews = new ArrayList<DataView>();
+    
+    if (!isTableInDB(DATA_VIEW_REGISTRY)) {
+      return dataViews;
+    }
+    
     Connection connection = DataManager.getConnection();
-    Date creationDate = null;
-    String selectString = 
-      "SELECT creation_date FROM " + DATA_TABLE_REGISTRY +
-      " WHERE table_name='" + tableName + "'";
     Statement stmt = null;
+    String selectString = 
+      "SELECT VIEW_NAME, SOURCE_TABLES, VIEW_SQL, INCREMENTAL_SQL FROM " +
+      DATA_VIEW_REGISTRY;
     
     try {
-      stmt = connection.createStatement();             
+      stmt = connection.createStatement();
       ResultSet rs = stmt.executeQuery(selectString);
       
       while (rs.next()) {
-        creationDate = rs.getDate("creation_date");    
+        String sourceTables = rs.getString("SOURCE_TABLES");
+        String[] sourceTableNames = 
+          (sourceTables == null || sourceTables.equals("")) ? 
+          new String[0] : sourceTables.split(",");
+        dataViews.add(new DataView(rs.getString("VIEW_NAME"), 
+                                   sourceTableNames, 
+                                   rs.getString("VIEW_SQL"), 
+                                   rs.getString("INCREMENTAL_SQL")));
       }
+      rs.close();
     }
     catch(SQLException e) {
       System.err.println("SQLException: " + e.getMessage());
@@ -415,32 +826,465 @@ public class TableMonitor {
       DataManager.returnConnection(connection);
     }
     
-    return creationDate;
+    return dataViews;
   }
   
-
+  
   /**
-   * Gets a list of database field names for the specified packageID and entity
-   * name.
+   * Gets the definition of a registered data view.
    * 
-   * @param packageID    the packageID for this entity
-   * @param entityName   the entity name
-   * @return  a String array holding the field names for this entity, or null
-   *          if there was no match for this packageID and entity name in the
-   *          database.
-   * @throws SQLException
+   * @param   viewName  the name of the view
+   * @return  the view, or null if there is no view of that name
    */
-  public String[] getDBFieldNames(String packageID, String entityName) 
-        throws SQLException{
-    String catalog = null;          // A catalog name (may be null)
-    String columnNamePattern = "%"; // Matches all column names in the table
-    DatabaseMetaData databaseMetaData = null; // For getting db metadata
-    String[] fieldNames = null;
-    ResultSet rs;
-    String schemaPattern = null;    // A schema name pattern (may be null)
-    String tableName = getDBTableName(packageID, entityName);
+  DataView getViewEntry(String viewName) throws SQLException {
+    for (DataView dataView : getViewEntries()) {
+      if (dataView.getName().equalsIgnoreCase(viewName)) {
+        return dataView;
+      }
+    }
     
-    if (tableName != null ) {
+    return null;
+  }
+  
+  
+  /**
+   * Creates the DATA_VIEW_REGISTRY table, in which the materialized data
+   * views are registered along with the tables they are selected from.
+   */
+  private void createDataViewRegistry() throws SQLException {
+    Connection connection = DataManager.getConnection();
+    String textType = dbAdapter.mapDataType("string");
+    String createString = 
+      "create table " + DATA_VIEW_REGISTRY + " " +
+      "(" +
+      "  VIEW_NAME varchar(64), " +          // view and table name
+      "  SOURCE_TABLES varchar(4000), " +    // tables selected from
+      "  VIEW_SQL " + textType + ", " +      // selection
+      "  INCREMENTAL_SQL " + textType + ", " + // selection of appended rows
+      "  CREATION_DATE date" +               // creation date
+      ")";
+
+    Statement stmt = null;
+
+    try {
+      stmt = connection.createStatement();             
+      stmt.executeUpdate(createString);
+    } 
+    catch(SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+  }
+  
+  
+  /**
+   * Frees up table space by dropping one or more old tables, until the
+   * tables in the registry fit in the maximum database size. Tables that
+   * are open, protected by their expiration policy, or used within the 
+   * eviction grace period are kept, even if the tables do not fit.
+   * 
+   * @param  databaseHandler  the databaseHandler which will free space
+   * @return  the size of table which has been freed, in Mb, rounded up
+   */
+  public int freeTableSpace(DatabaseHandler databaseHandler)
+          throws SQLException {
+    long budget = dbSize * MEGABYTE;
+    long freedBytes = 0;
+    
+    synchronized (evictionLock) {
+      List<DataTableRegistryCache.Entry> entries = 
+        getRegistryCache().getEntries();
+      HashMap<String, Long> sizes = new HashMap<String, Long>();
+      long usedBytes = 0;
+      
+      for (DataTableRegistryCache.Entry entry : entries) {
+        long size = getTableSize(entry);
+        sizes.put(entry.tableName, size);
+        usedBytes += size;
+      }
+      
+      if (usedBytes > budget) {
+        List<DataTableRegistryCache.Entry> candidates = 
+          getEvictionCandidates(entries);
+        long now = System.currentTimeMillis();
+        
+        for (DataTableRegistryCache.Entry entry : candidates) {
+          if (usedBytes <= budget) {
+            break;
+          }
+          
+          if (now - entry.lastAccessMillis < evictionGracePeriod ||
+              !beginEviction(entry.tableName)) {
+            continue;
+          }
+          
+          try {
+            if (databaseHandler.dropTable(entry.tableName)) {
+              long size = sizes.get(entry.tableName);
+              usedBytes -= size;
+              freedBytes += size;
+            }
+          }
+          finally {
+            endEviction(entry.tableName);
+          }
+        }
+      }
+    }
+    
+    return (int) ((freedBytes + MEGABYTE - 1) / MEGABYTE);
+  }
+  
+  
+  /*
+   * Orders the tables that may expire in the order that they are evicted:
+   * larger expiration policy values first, then least recently used first.
+   */
+  private static List<DataTableRegistryCache.Entry> getEvictionCandidates(
+                                  List<DataTableRegistryCache.Entry> entries) {
+    List<DataTableRegistryCache.Entry> candidates = 
+      new ArrayList<DataTableRegistryCache.Entry>();
+    
+    for (DataTableRegistryCache.Entry entry : entries) {
+      if (entry.priority != 0) {
+        candidates.add(entry);
+      }
+    }
+    
+    Collections.sort(candidates, 
+                     new Comparator<DataTableRegistryCache.Entry>() {
+      public int compare(DataTableRegistryCache.Entry a, 
+                         DataTableRegistryCache.Entry b) {
+        if (a.priority != b.priority) {
+          return (a.priority > b.priority) ? -1 : 1;
+        }
+        if (a.lastAccessMillis != b.lastAccessMillis) {
+          return (a.lastAccessMillis < b.lastAccessMillis) ? -1 : 1;
+        }
+        return 0;
+      }
+    });
+    
+    return candidates;
+  }
+  
+  
+  /**
+   * Asks for freeTableSpace() to run in the background. Requests made
+   * while a pass is still pending are merged into that pass.
+   */
+  public void requestEviction() {
+    if (evictionRequested.compareAndSet(false, true)) {
+      getEvictionTimer().schedule(new TimerTask() {
+        public void run() {
+          evictionRequested.set(false);
+          
+          try {
+            String dbAdapterName = DataManager.getDatabaseAdapterName();
+            freeTableSpace(new DatabaseHandler(dbAdapterName));
+          }
+          catch (Exception e) {
+            System.err.println("Unable to free table space: " + 
+                               e.getMessage());
+          }
+        }
+      }, 0);
+    }
+  }
+  
+  
+  private static synchronized Timer getEvictionTimer() {
+    if (evictionTimer == null) {
+      evictionTimer = new Timer("TableMonitor eviction", true);
+    }
+    
+    return evictionTimer;
+  }
+  
+  
+  /**
+   * Records that a query or load is open against a table, so that the
+   * table is not evicted until closeTable() is called for it as many times
+   * as openTable() was.
+   * 
+   * @param tableName  the name of the table
+   * @return  false if the table is being evicted, else true
+   */
+  public boolean openTable(String tableName) {
+    String key = tableName.toUpperCase();
+    
+    synchronized (openTables) {
+      if (evictingTables.contains(key)) {
+        return false;
+      }
+      
+      Integer count = openTables.get(key);
+      openTables.put(key, (count == null) ? 1 : count + 1);
+    }
+    
+    DataTableRegistryCache cache = sharedRegistryCache;
+    DataTableRegistryCache.Entry entry = 
+      (cache == null) ? null : cache.getByTableName(tableName);
+    if (entry != null) {
+      entry.touch();
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Records that a query or load against a table has ended. The size of
+   * the table is measured again when it is next needed.
+   * 
+   * @param tableName  the name of the table
+   */
+  public void closeTable(String tableName) {
+    String key = tableName.toUpperCase();
+    
+    synchronized (openTables) {
+      Integer count = openTables.get(key);
+      
+      if (count != null && count > 1) {
+        openTables.put(key, count - 1);
+      }
+      else {
+        openTables.remove(key);
+      }
+    }
+    
+    DataTableRegistryCache cache = sharedRegistryCache;
+    DataTableRegistryCache.Entry entry = 
+      (cache == null) ? null : cache.getByTableName(tableName);
+    if (entry != null) {
+      entry.touch();
+      entry.size = -1;
+    }
+  }
+  
+  
+  /**
+   * Determines whether a query or load is open against a table.
+   * 
+   * @param tableName  the name of the table
+   * @return  true if the table is open, else false
+   */
+  public boolean isTableOpen(String tableName) {
+    synchronized (openTables) {
+      return openTables.containsKey(tableName.toUpperCase());
+    }
+  }
+  
+  
+  /*
+   * Marks a table as being evicted, unless it is open.
+   */
+  private static boolean beginEviction(String tableName) {
+    String key = tableName.toUpperCase();
+    
+    synchronized (openTables) {
+      if (openTables.containsKey(key)) {
+        return false;
+      }
+      
+      evictingTables.add(key);
+      return true;
+    }
+  }
+  
+  
+  private static void endEviction(String tableName) {
+    synchronized (openTables) {
+      evictingTables.remove(tableName.toUpperCase());
+    }
+  }
+  
+  
+  /**
+   * Gets the size of a table on disk, in bytes. Where the database cannot
+   * report it, the size is estimated from the number of rows and the types
+   * of the columns.
+   * 
+   * @param tableName  the name of the table
+   * @return  the size of the table, or 0 if it is not in the database
+   * @throws SQLException
+   */
+  public long getTableSize(String tableName) throws SQLException {
+    DataTableRegistryCache.Entry entry = getEntry(tableName);
+    
+    return (entry == null) ? measureTableSize(tableName) : getTableSize(entry);
+  }
+  
+  
+  /*
+   * Gets the size of a registered table, measuring it if it is not known.
+   */
+  private long getTableSize(DataTableRegistryCache.Entry entry) 
+          throws SQLException {
+    long size = entry.size;
+    
+    if (size < 0) {
+      size = measureTableSize(entry.tableName);
+      entry.size = size;
+    }
+    
+    return size;
+  }
+  
+  
+  /*
+   * Measures the size of a table, or estimates it.
+   */
+  private long measureTableSize(String tableName) throws SQLException {
+    String sizeString = 
+      (dbAdapter == null) ? null : dbAdapter.getTableSizeSQL(tableName);
+    
+    if (!isTableInDB(tableName)) {
+      return 0;
+    }
+    
+    if (sizeString != null) {
+      Connection connection = DataManager.getConnection();
+      Statement stmt = null;
+      
+      try {
+        stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery(sizeString);
+        long size = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        return size;
+      }
+      catch (SQLException e) {
+        System.err.println("Unable to get the size of " + tableName + 
+                           ", estimating it: " + e.getMessage());
+      }
+      finally {
+        if (stmt != null) stmt.close();
+        DataManager.returnConnection(connection);
+      }
+    }
+    
+    int rowCount = countRows(tableName);
+    
+    return (rowCount <= 0) ? 0 : rowCount * estimateRowSize(tableName);
+  }
+  
+  
+  /*
+   * Estimates the size of a row of a table from the types of its columns.
+   */
+  private long estimateRowSize(String tableName) throws SQLException {
+    Connection connection = DataManager.getConnection();
+    long rowSize = ROW_OVERHEAD;
+    Statement stmt = null;
+    
+    try {
+      stmt = connection.createStatement();
+      ResultSet rs = 
+        stmt.executeQuery("SELECT * FROM " + tableName + " WHERE 1=0");
+      ResultSetMetaData metaData = rs.getMetaData();
+      
+      for (int i = 1; i <= metaData.getColumnCount(); i++) {
+        switch (metaData.getColumnType(i)) {
+          case Types.BIT:
+          case Types.BOOLEAN:
+          case Types.TINYINT:
+            rowSize += 1;
+            break;
+          case Types.SMALLINT:
+          case Types.INTEGER:
+          case Types.REAL:
+            rowSize += 4;
+            break;
+          case Types.CHAR:
+          case Types.VARCHAR:
+          case Types.LONGVARCHAR:
+          case Types.CLOB:
+            int precision = metaData.getPrecision(i);
+            rowSize += (precision > 0 && precision < CHARACTER_VALUE_SIZE) ?
+                       precision : CHARACTER_VALUE_SIZE;
+            break;
+          default:
+            rowSize += 8;
+        }
+      }
+      rs.close();
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+    
+    return rowSize;
+  }
+  
+  
+  /**
+   * Gets the time, in milliseconds, that a table is protected from eviction
+   * after it was last used.
+   * 
+   * @return  the eviction grace period
+   */
+  public static long getEvictionGracePeriod() {
+    return evictionGracePeriod;
+  }
+  
+  
+  /**
+   * Sets the time, in milliseconds, that a table is protected from eviction
+   * after it was last used. This keeps a table that has just been created
+   * from being evicted before its data is loaded.
+   * 
+   * @param millis  the eviction grace period
+   */
+  public static void setEvictionGracePeriod(long millis) {
+    evictionGracePeriod = Math.max(0, millis);
+  }
+  
+ 
+  /**
+   * Gets the creation date of a given table in the database.
+   * 
+   * @param   tableName   the name of the table whose creation date is returned
+   * @return  the creation date, a Date object
+   */
+  public Date getCreationDate(String tableName) throws SQLException {
+    DataTableRegistryCache.Entry entry = getEntry(tableName);
+    
+    return (entry == null) ? null : entry.creationDate;
+  }
+  
+
+  /**
+   * Gets a list of database field names for the specified packageID and entity
+   * name.
+   * 
+   * @param packageID    the packageID for this entity
+   * @param entityName   the entity name
+   * @return  a String array holding the field names for this entity, or null
+   *          if there was no match for this packageID and entity name in the
+   *          database.
+   * @throws SQLException
+   */
+  public String[] getDBFieldNames(String packageID, String entityName) 
+        throws SQLException{
+    String catalog = null;          // A catalog name (may be null)
+    String columnNamePattern = "%"; // Matches all column names in the table
+    DatabaseMetaData databaseMetaData = null; // For getting db metadata
+    String[] fieldNames = null;
+    ResultSet rs;
+    String schemaPattern = null;    // A schema name pattern (may be null)
+    String tableName = getDBTableName(packageID, entityName);
+    
+    if (tableName != null && 
+        getRegistryCache().getFieldNames(tableName) != null) {
+      fieldNames = getRegistryCache().getFieldNames(tableName).clone();
+    }
+    else if (tableName != null ) {
       Vector vector = new Vector();
       Connection connection = DataManager.getConnection();
       String tableNamePattern = tableName.toUpperCase();
@@ -497,6 +1341,10 @@ public class TableMonitor {
           fieldNames[i] = fieldName;
         }
       }
+      
+      if (fieldNames.length > 0) {
+        getRegistryCache().putFieldNames(tableName, fieldNames.clone());
+      }
     }
     
     return fieldNames;
@@ -514,32 +1362,11 @@ public class TableMonitor {
    */
   public String getDBTableName(String packageID, String entityName) 
           throws SQLException {
-    String tableName = null;
-    
-    Connection connection = DataManager.getConnection();
-    String selectString = "SELECT table_name FROM " + DATA_TABLE_REGISTRY +
-                          " WHERE package_id ='" + packageID + "'" +
-                          "   AND entity_name ='" + entityName + "'";
-    Statement stmt = null;
-      
-    try {
-      stmt = connection.createStatement();             
-      ResultSet rs = stmt.executeQuery(selectString);
-      
-      if (rs.next()) {
-        tableName = rs.getString("table_name");
-      }
-    }
-    catch(SQLException e) {
-      System.err.println("SQLException: " + e.getMessage());
-      throw(e);
-    }
-    finally {
-      if (stmt != null) stmt.close();
-      DataManager.returnConnection(connection);
-    }
+    DataTableRegistryCache.Entry entry = 
+      getRegistryCache().getByPackageEntity(String.valueOf(packageID),
+                                            String.valueOf(entityName));
           
-    return tableName;
+    return (entry == null) ? null : entry.tableName;
   }
   
  
@@ -559,28 +1386,13 @@ public class TableMonitor {
     
     if (packageID != null) {
       tableNames = new ArrayList<String>();
-      Connection connection = DataManager.getConnection();
-      String selectString = "SELECT table_name FROM " + DATA_TABLE_REGISTRY +
-                            " WHERE package_id ='" + packageID + "'";
-      Statement stmt = null;
       
-      try {
-        stmt = connection.createStatement();             
-        ResultSet rs = stmt.executeQuery(selectString);
-      
-        while (rs.next()) {
-          String tableName = rs.getString("table_name");
-          tableNames.add(tableName);
+      for (DataTableRegistryCache.Entry entry : 
+           getRegistryCache().getEntries()) {
+        if (entry.packageId.equals(packageID)) {
+          tableNames.add(entry.tableName);
         }
       }
-      catch(SQLException e) {
-        System.err.println("SQLException: " + e.getMessage());
-        throw(e);
-      }
-      finally {
-        if (stmt != null) stmt.close();
-        DataManager.returnConnection(connection);
-      }
     }
           
     return tableNames;
@@ -601,25 +1413,107 @@ public class TableMonitor {
   /**
    * Gets the last usage date for a given table name in the database.
    * 
-   * @param  tableName  the name of the the table whose last usage date
-   *                    is returned
-   * @return  the last usage date, a Date object
+   * @param  tableName  the name of the the table whose last usage date
+   *                    is returned
+   * @return  the last usage date, a Date object
+   */
+  public Date getLastUsageDate(String tableName) throws SQLException {
+    DataTableRegistryCache.Entry entry = getEntry(tableName);
+    
+    return (entry == null) ? null : entry.lastUsageDate;
+  }
+  
+
+  /**
+   * Gets the load checkpoint recorded for a given table.
+   * 
+   * @param  tableName  the name of the table whose checkpoint is returned
+   * @return  the load checkpoint, or null if none has been recorded, as for
+   *          tables loaded in a single transaction
+   */
+  public LoadCheckpoint getLoadCheckpoint(String tableName) 
+        throws SQLException {
+    if (!loadCheckpointsSupported) {
+      return null;
+    }
+    
+    Connection connection = DataManager.getConnection();
+    LoadCheckpoint loadCheckpoint = null;
+    String selectString = 
+      "SELECT load_row, load_offset, load_status FROM " + DATA_TABLE_REGISTRY +
+      " WHERE table_name=?";
+    PreparedStatement stmt = null;
+    
+    try {
+      stmt = connection.prepareStatement(selectString);
+      stmt.setString(1, tableName);
+      ResultSet rs = stmt.executeQuery();
+      
+      while (rs.next()) {
+        long rowNumber = rs.getLong("load_row");
+        long byteOffset = rs.getLong("load_offset");
+        if (rs.wasNull()) {
+          byteOffset = -1;
+        }
+        String status = rs.getString("load_status");
+        if (status != null) {
+          loadCheckpoint = new LoadCheckpoint(rowNumber, byteOffset, status);
+        }
+      }
+      rs.close();
+    }
+    catch(SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+    
+    return loadCheckpoint;
+  }
+  
+
+  /**
+   * Gets the validator of the source that a given table was loaded from.
+   * 
+   * @param  tableName  the name of the table whose validator is returned
+   * @return  the source validator, or null if none has been recorded
    */
-  public Date getLastUsageDate(String tableName) throws SQLException {
+  public SourceValidator getSourceValidator(String tableName) 
+        throws SQLException {
+    if (!sourceValidatorsSupported) {
+      return null;
+    }
+    
     Connection connection = DataManager.getConnection();
-    Date lastUsageDate = null;
+    SourceValidator sourceValidator = null;
     String selectString = 
-      "SELECT last_usage_date FROM " + DATA_TABLE_REGISTRY +
-      " WHERE table_name='" + tableName + "'";
-    Statement stmt = null;
+      "SELECT source_etag, source_modified, source_size, source_checksum," +
+      " source_records FROM " + DATA_TABLE_REGISTRY + " WHERE table_name=?";
+    PreparedStatement stmt = null;
     
     try {
-      stmt = connection.createStatement();             
-      ResultSet rs = stmt.executeQuery(selectString);
+      stmt = connection.prepareStatement(selectString);
+      stmt.setString(1, tableName);
+      ResultSet rs = stmt.executeQuery();
       
       while (rs.next()) {
-        lastUsageDate = rs.getDate("last_usage_date");    
+        String entityTag = rs.getString("source_etag");
+        long lastModified = rs.getLong("source_modified");
+        long size = rs.getLong("source_size");
+        if (rs.wasNull()) {
+          size = -1;
+        }
+        String checksum = rs.getString("source_checksum");
+        long numberOfRecords = rs.getLong("source_records");
+        if (entityTag != null || lastModified > 0 || checksum != null) {
+          sourceValidator = new SourceValidator(entityTag, lastModified, size,
+                                                checksum, numberOfRecords);
+        }
       }
+      rs.close();
     }
     catch(SQLException e) {
       System.err.println("SQLException: " + e.getMessage());
@@ -630,7 +1524,7 @@ public class TableMonitor {
       DataManager.returnConnection(connection);
     }
     
-    return lastUsageDate;
+    return sourceValidator;
   }
   
 
@@ -642,35 +1536,17 @@ public class TableMonitor {
    * @throws SQLException
    */
   String getOldestTable() throws SQLException {
-    Connection connection = DataManager.getConnection();
     Date oldestDate = new Date();
     String oldestTable = null;
-    String selectString = 
-               "SELECT table_name, last_usage_date FROM " + DATA_TABLE_REGISTRY;
-    Statement stmt = null;
     
-    try {
-      stmt = connection.createStatement();
-      ResultSet rs = stmt.executeQuery(selectString);
+    for (DataTableRegistryCache.Entry entry : getRegistryCache().getEntries()) {
+      Date lastUsageDate = entry.lastUsageDate;
       
-      while (rs.next()) {
-        String tableName = rs.getString("table_name");
-        Date lastUsageDate = rs.getDate("last_usage_date");
-        
-        if (lastUsageDate.before(oldestDate)) {
-          oldestDate = lastUsageDate;
-          oldestTable = tableName;
-        }
-      }    
-    }
-    catch (SQLException e) {
-      System.err.println("SQLException: " + e.getMessage());
-      throw(e);
-    }
-    finally {
-      if (stmt != null) stmt.close();
-      DataManager.returnConnection(connection);
-    }
+      if (lastUsageDate != null && lastUsageDate.before(oldestDate)) {
+        oldestDate = lastUsageDate;
+        oldestTable = entry.tableName;
+      }
+    }    
     
     return oldestTable;
   }
@@ -682,32 +1558,11 @@ public class TableMonitor {
    * @return  a String array of all tables names currently in the database
    */
   public String[] getTableList() throws SQLException {
-    Connection connection = DataManager.getConnection();
-    String selectString = "SELECT table_name FROM " + DATA_TABLE_REGISTRY;
-    Statement stmt = null;
-    Vector vector = new Vector();
-    
-    try {
-      stmt = connection.createStatement();             
-      ResultSet rs = stmt.executeQuery(selectString);
-      
-      while (rs.next()) {
-        String tableName = rs.getString("table_name");
-        vector.add(tableName);
-      }
-    }
-    catch(SQLException e) {
-      System.err.println("SQLException: " + e.getMessage());
-      throw(e);
-    }
-    finally {
-      if (stmt != null) stmt.close();
-      DataManager.returnConnection(connection);
-    }
+    List<DataTableRegistryCache.Entry> entries = getRegistryCache().getEntries();
+    String[] tableList = new String[entries.size()];
     
-    String[] tableList = new String[vector.size()];
-    for (int i = 0; i < vector.size(); i++) {
-      tableList[i] = (String) vector.get(i);
+    for (int i = 0; i < tableList.length; i++) {
+      tableList[i] = entries.get(i).tableName;
     }
 
     return tableList;
@@ -723,33 +1578,10 @@ public class TableMonitor {
    */
   String identifierToTableName(String identifier) 
           throws SQLException {
-    Connection connection = DataManager.getConnection();
-    String tableName = null;
-    String selectString = 
-      "SELECT table_name" +
-      " FROM " + DATA_TABLE_REGISTRY +
-      " WHERE entity_identifier='" + identifier + "'";
-    Statement stmt = null;
-    
-    try {
-      stmt = connection.createStatement();             
-      ResultSet rs = stmt.executeQuery(selectString);
-      
-      while (rs.next()) {
-        tableName = rs.getString("table_name");    
-      }
-      if(rs != null)rs.close();
-    }
-    catch(SQLException e) {
-      System.err.println("SQLException: " + e.getMessage());
-      throw(e);
-    }
-    finally {
-      if (stmt != null) stmt.close();
-      DataManager.returnConnection(connection);
-    }
+    DataTableRegistryCache.Entry entry = 
+      getRegistryCache().getByIdentifier(identifier);
     
-    return tableName;
+    return (entry == null) ? null : entry.tableName;
   }
   
 
@@ -762,17 +1594,7 @@ public class TableMonitor {
    * @throws SQLException
    */
   boolean isDBTableNameInUse(String tableName) throws SQLException {
-    boolean inUse = false;
-    String[] tableNames = getTableList();
-    
-    for (int i = 0; i < tableNames.length; i++) {
-      if (tableNames[i].equalsIgnoreCase(tableName)) {
-        inUse = true;
-        break;
-      }
-    }
-    
-    return inUse;
+    return getEntry(tableName) != null;
   }
   
 
@@ -785,32 +1607,74 @@ public class TableMonitor {
    */
   public boolean isTableInDB(String tableName) throws SQLException {
     String catalog = null;          // A catalog name (may be null)
-    Connection connection = DataManager.getConnection();
     DatabaseMetaData databaseMetaData = null; // For getting db metadata
     boolean isPresent = false;  
-    ResultSet rs;
+    ResultSet rs = null;
     String schemaPattern = null;    // A schema name pattern (may be null)
-    String tableNamePattern = "%";  // Matches all table names in the db
     String[] types = {"TABLE"};     // A list of table types to include
     
-    databaseMetaData = connection.getMetaData();
-    rs = databaseMetaData.getTables(catalog, schemaPattern, 
-                                    tableNamePattern, types);
+    if (tableName == null) {
+      return false;
+    }
+    
+    Connection connection = DataManager.getConnection();
+    
+    try {
+      databaseMetaData = connection.getMetaData();
+      String escape = databaseMetaData.getSearchStringEscape();
+      
+      /*
+       * Look the table up by name rather than listing all the tables. The
+       * database may store the name in upper or lower case.
+       */
+      String[] candidates = 
+        {tableName.toUpperCase(), tableName.toLowerCase(), tableName};
+      
+      for (int i = 0; i < candidates.length && !isPresent; i++) {
+        String tableNamePattern = escapePattern(candidates[i], escape);
+        rs = databaseMetaData.getTables(catalog, schemaPattern, 
+                                        tableNamePattern, types);
 
-    while (rs.next()) {
-      String TABLE_NAME = rs.getString("TABLE_NAME");
- 
-      if (TABLE_NAME.equalsIgnoreCase(tableName)) {
-        isPresent = true;
+        while (rs.next()) {
+          String TABLE_NAME = rs.getString("TABLE_NAME");
+     
+          if (TABLE_NAME.equalsIgnoreCase(tableName)) {
+            isPresent = true;
+          }
+        }
+        
+        rs.close();
       }
     }
-    
-    if (rs != null) rs.close();
-    DataManager.returnConnection(connection);
+    finally {
+      DataManager.returnConnection(connection);
+    }
     
     return isPresent;
   }
   
+  
+  /*
+   * Escapes the wildcard characters of a name used as a metadata search
+   * pattern.
+   */
+  private static String escapePattern(String name, String escape) {
+    if (escape == null || escape.length() == 0) {
+      return name;
+    }
+    
+    StringBuffer pattern = new StringBuffer(name.length() + 4);
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c == '_' || c == '%' || escape.indexOf(c) >= 0) {
+        pattern.append(escape);
+      }
+      pattern.append(c);
+    }
+    
+    return pattern.toString();
+  }
+  
 
   /**
    * Given a table name, return a mangled name. This is done by tagging on a
@@ -857,7 +1721,18 @@ public class TableMonitor {
 	
 
   /**
-   * Sets the maximum database size to the given value (in Megabytes).
+   * Gets the maximum database size (in Megabytes).
+   * 
+   * @return  the maximum size (in Megabytes) of the database
+   */
+  public int getDBSize() {
+    return dbSize;
+  }
+  
+
+  /**
+   * Sets the maximum database size to the given value (in Megabytes). The
+   * size is shared by all the TableMonitor objects.
    * (Note: How do we persist this value -- in a table?)
    * 
    * @param size   the maximum size (in Megabytes) of the database
@@ -885,23 +1760,54 @@ public class TableMonitor {
    */
   public boolean setLastUsageDate(String tableName, Date date)
         throws SQLException {
+    DataTableRegistryCache.Entry entry = 
+      getRegistryCache().getByTableName(tableName);
+    
+    // Dates are stored by day, so a table used again today needs no update
+    if (entry != null && entry.lastUsageDate != null &&
+        entry.lastUsageDate.toString().equals(toSQLDate(date).toString())) {
+      entry.lastAccessMillis = date.getTime();
+      return true;
+    }
+    
+    return updateLastUsageDate(tableName, date);
+  }
+  
+  
+  /*
+   * Writes the last usage date of a table to the registry.
+   */
+  private boolean updateLastUsageDate(String tableName, Date date)
+        throws SQLException {
     Connection connection = DataManager.getConnection();
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-    String dateString = simpleDateFormat.format(date);
+    java.sql.Date sqlDate = toSQLDate(date);
     int rowCount = 0;
-    Statement stmt = null;
-		boolean success = false;
+    PreparedStatement stmt = null;
+    boolean success = false;
 
     String updateString = 
       "UPDATE " + DATA_TABLE_REGISTRY +
-      " SET last_usage_date='" + dateString + "'" +
-      " WHERE table_name='" + tableName + "'";
+      " SET last_usage_date=?" +
+      " WHERE table_name=?";
     
     // Set the last usage date
     try {
-      stmt = connection.createStatement();
-      rowCount = stmt.executeUpdate(updateString);
+      stmt = connection.prepareStatement(updateString);
+      stmt.setDate(1, sqlDate);
+      stmt.setString(2, tableName);
+      rowCount = stmt.executeUpdate();
       success = (rowCount == 1);
+      
+      DataTableRegistryCache.Entry entry = 
+        getRegistryCache().getByTableName(tableName);
+      if (rowCount == 0 && entry != null) {
+        // The entry was removed from the registry table behind our back
+        getRegistryCache().remove(tableName);
+      }
+      else if (entry != null) {
+        entry.lastUsageDate = sqlDate;
+        entry.lastAccessMillis = date.getTime();
+      }
     } 
     catch (SQLException e) {
       System.err.println("SQLException: " + e.getMessage());
@@ -913,7 +1819,254 @@ public class TableMonitor {
     }
     
     return success;
-	}
+  }
+
+
+  /**
+   * Records a load checkpoint for a given table. The update is executed on
+   * the connection that loads the table and is not committed, so that the
+   * checkpoint is committed together with the rows it describes.
+   * 
+   * @param connection      the connection that the table is loaded through
+   * @param tableName       the name of the table being loaded
+   * @param loadCheckpoint  the checkpoint, or null to clear it
+   * @return  true if the checkpoint is successfully set; else false
+   */
+  public boolean setLoadCheckpoint(Connection connection, String tableName,
+                                   LoadCheckpoint loadCheckpoint)
+        throws SQLException {
+    if (!loadCheckpointsSupported) {
+      return false;
+    }
+    
+    int rowCount = 0;
+    PreparedStatement stmt = null;
+    String updateString = 
+      "UPDATE " + DATA_TABLE_REGISTRY +
+      " SET load_row=?, load_offset=?, load_status=?" +
+      " WHERE table_name=?";
+    
+    try {
+      stmt = connection.prepareStatement(updateString);
+      
+      if (loadCheckpoint == null) {
+        stmt.setNull(1, Types.BIGINT);
+        stmt.setNull(2, Types.BIGINT);
+        stmt.setNull(3, Types.VARCHAR);
+      }
+      else {
+        long byteOffset = loadCheckpoint.getByteOffset();
+        stmt.setLong(1, loadCheckpoint.getRowNumber());
+        if (byteOffset < 0) {
+          stmt.setNull(2, Types.BIGINT);
+        }
+        else {
+          stmt.setLong(2, byteOffset);
+        }
+        stmt.setString(3, loadCheckpoint.getStatus());
+      }
+      stmt.setString(4, tableName);
+      rowCount = stmt.executeUpdate();
+    } 
+    finally {
+      if (stmt != null) stmt.close();
+    }
+    
+    return (rowCount == 1);
+  }
+
+
+  /**
+   * Records the validator of the source that a given table was loaded from.
+   * Like a load checkpoint, the update is executed on the connection that
+   * loads the table and is not committed, so that the validator is committed
+   * together with the rows loaded from the source.
+   * 
+   * @param connection       the connection that the table is loaded through
+   * @param tableName        the name of the table
+   * @param sourceValidator  the source validator, or null to clear it
+   * @return  true if the validator is successfully set; else false
+   */
+  public boolean setSourceValidator(Connection connection, String tableName,
+                                    SourceValidator sourceValidator)
+        throws SQLException {
+    if (!sourceValidatorsSupported) {
+      return false;
+    }
+    
+    int rowCount = 0;
+    PreparedStatement stmt = null;
+    String updateString = 
+      "UPDATE " + DATA_TABLE_REGISTRY +
+      " SET source_etag=?, source_modified=?, source_size=?," +
+      " source_checksum=?, source_records=?" +
+      " WHERE table_name=?";
+    
+    try {
+      stmt = connection.prepareStatement(updateString);
+      
+      if (sourceValidator == null) {
+        stmt.setNull(1, Types.VARCHAR);
+        stmt.setNull(2, Types.BIGINT);
+        stmt.setNull(3, Types.BIGINT);
+        stmt.setNull(4, Types.VARCHAR);
+        stmt.setNull(5, Types.BIGINT);
+      }
+      else {
+        stmt.setString(1, sourceValidator.getEntityTag());
+        setLongOrNull(stmt, 2, sourceValidator.getLastModified());
+        setLongOrNull(stmt, 3, sourceValidator.getSize());
+        stmt.setString(4, sourceValidator.getChecksum());
+        setLongOrNull(stmt, 5, sourceValidator.getNumberOfRecords());
+      }
+      stmt.setString(6, tableName);
+      rowCount = stmt.executeUpdate();
+    } 
+    finally {
+      if (stmt != null) stmt.close();
+    }
+    
+    return (rowCount == 1);
+  }
+  
+  
+  /**
+   * Gets the scope that a given table was loaded within.
+   * 
+   * @param  tableName  the name of the table whose scope is returned
+   * @return  the load scope, or null if the table holds all of its entity
+   */
+  public LoadScope getLoadScope(String tableName) throws SQLException {
+    if (!loadScopesSupported) {
+      return null;
+    }
+    
+    Connection connection = DataManager.getConnection();
+    LoadScope loadScope = null;
+    String selectString = 
+      "SELECT load_scope FROM " + DATA_TABLE_REGISTRY + " WHERE table_name=?";
+    PreparedStatement stmt = null;
+    
+    try {
+      stmt = connection.prepareStatement(selectString);
+      stmt.setString(1, tableName);
+      ResultSet rs = stmt.executeQuery();
+      
+      while (rs.next()) {
+        try {
+          loadScope = LoadScope.parse(rs.getString("load_scope"));
+        }
+        catch (IllegalArgumentException e) {
+          // An unreadable scope cannot be trusted to cover anything
+          System.err.println("Invalid load scope of " + tableName + ": " + 
+                             e.getMessage());
+          loadScope = LoadScope.parse("columns=");
+        }
+      }
+      rs.close();
+    }
+    catch(SQLException e) {
+      System.err.println("SQLException: " + e.getMessage());
+      throw(e);
+    }
+    finally {
+      if (stmt != null) stmt.close();
+      DataManager.returnConnection(connection);
+    }
+    
+    return loadScope;
+  }
+
+
+  /**
+   * Records the scope that a given table was loaded within. Like a source
+   * validator, the update is executed on the connection that loads the
+   * table and is not committed.
+   * 
+   * @param connection  the connection that the table is loaded through
+   * @param tableName   the name of the table
+   * @param loadScope   the load scope, or null if the table holds all of
+   *                    its entity
+   * @return  true if the scope is successfully set; else false
+   */
+  public boolean setLoadScope(Connection connection, String tableName,
+                              LoadScope loadScope)
+        throws SQLException {
+    if (!loadScopesSupported) {
+      return false;
+    }
+    
+    int rowCount = 0;
+    PreparedStatement stmt = null;
+    String updateString = 
+      "UPDATE " + DATA_TABLE_REGISTRY + " SET load_scope=? WHERE table_name=?";
+    
+    try {
+      stmt = connection.prepareStatement(updateString);
+      
+      if (loadScope == null) {
+        stmt.setNull(1, Types.VARCHAR);
+      }
+      else {
+        stmt.setString(1, loadScope.toString());
+      }
+      stmt.setString(2, tableName);
+      rowCount = stmt.executeUpdate();
+    } 
+    finally {
+      if (stmt != null) stmt.close();
+    }
+    
+    return (rowCount == 1);
+  }
+  
+  
+  /*
+   * Sets a parameter to a number, or to null if the number is negative.
+   */
+  private static void setLongOrNull(PreparedStatement stmt, int index, 
+                                    long value) 
+        throws SQLException {
+    if (value < 0) {
+      stmt.setNull(index, Types.BIGINT);
+    }
+    else {
+      stmt.setLong(index, value);
+    }
+  }
+
+
+  /**
+   * Determines whether load checkpoints can be recorded in the data table
+   * registry.
+   * 
+   * @return true if the registry has the load checkpoint columns
+   */
+  public boolean supportsLoadCheckpoints() {
+    return loadCheckpointsSupported;
+  }
+
+
+  /**
+   * Determines whether source validators can be recorded in the data table
+   * registry.
+   * 
+   * @return true if the registry has the source validator columns
+   */
+  public boolean supportsSourceValidators() {
+    return sourceValidatorsSupported;
+  }
+
+
+  /**
+   * Determines whether load scopes can be recorded in the data table
+   * registry.
+   * 
+   * @return true if the registry has the load scope column
+   */
+  public boolean supportsLoadScopes() {
+    return loadScopesSupported;
+  }
 
 
   /**
@@ -934,19 +2087,27 @@ public class TableMonitor {
         throws SQLException {
     Connection connection = DataManager.getConnection();
     int rowCount = 0;
-    Statement stmt = null;
+    PreparedStatement stmt = null;
     boolean success = false;
 
     String updateString = 
       "UPDATE " + DATA_TABLE_REGISTRY +
-      " SET priority=" + priority +
-      " WHERE table_name='" + tableName + "'";
+      " SET priority=?" +
+      " WHERE table_name=?";
     
-    // Set the last usage date
+    // Set the expiration policy
     try {
-      stmt = connection.createStatement();
-      rowCount = stmt.executeUpdate(updateString);
+      stmt = connection.prepareStatement(updateString);
+      stmt.setInt(1, priority);
+      stmt.setString(2, tableName);
+      rowCount = stmt.executeUpdate();
       success = (rowCount == 1);
+      
+      DataTableRegistryCache.Entry entry = 
+        getRegistryCache().getByTableName(tableName);
+      if (entry != null) {
+        entry.priority = priority;
+      }
     } 
     catch (SQLException e) {
       System.err.println("SQLException: " + e.getMessage());
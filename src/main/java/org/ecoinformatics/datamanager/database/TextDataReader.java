@@ -32,7 +32,10 @@
 package org.ecoinformatics.datamanager.database;
 
 import java.io.InputStream;
+import java.util.Spliterator;
 import java.util.Vector;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 
@@ -79,6 +82,32 @@ public abstract class TextDataReader {
   public abstract Vector<String> getOneRowDataVector() throws Exception;
    
   
+  /**
+   * Gets a Spliterator over the remaining rows of this reader. The reader
+   * is consumed as the spliterator advances.
+   * 
+   * @return a Spliterator of Row objects
+   */
+  public Spliterator<Row> spliterator()
+  {
+    return new TextDataReaderSpliterator(this);
+  }
+  
+  
+  /**
+   * Gets a sequential Stream over the remaining rows of this reader. Call
+   * parallel() on the result to process batches of rows concurrently; the
+   * reader itself is always read by one thread at a time. Errors raised by
+   * the reader are rethrown as DataReaderException.
+   * 
+   * @return a Stream of Row objects
+   */
+  public Stream<Row> stream()
+  {
+    return StreamSupport.stream(spliterator(), false);
+  }
+  
+  
   /**
    * Gets the reader.
    * 
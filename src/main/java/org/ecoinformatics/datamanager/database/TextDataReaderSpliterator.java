@@ -0,0 +1,79 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.Vector;
+import java.util.function.Consumer;
+
+/**
+ * A Spliterator over the rows of any TextDataReader. It adapts the
+ * "loop until an empty Vector is returned" protocol of
+ * getOneRowDataVector() to java.util.stream.
+ *
+ * A TextDataReader can only be read sequentially, so splitting is done by
+ * buffering batches of rows (see Spliterators.AbstractSpliterator). For
+ * splitting a local file by byte ranges, use DelimitedFileSpliterator.
+ */
+public class TextDataReaderSpliterator
+        extends Spliterators.AbstractSpliterator<Row> {
+
+  /*
+   * Instance fields
+   */
+
+  private final TextDataReader dataReader;
+  private boolean exhausted = false;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a spliterator over the remaining rows of a reader.
+   *
+   * @param dataReader  the reader to pull rows from
+   */
+  public TextDataReaderSpliterator(TextDataReader dataReader) {
+    super(Long.MAX_VALUE,
+          Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+    this.dataReader = dataReader;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Reads the next row and passes it to the action.
+   *
+   * @param action  the action to perform on the row
+   * @return false when the reader has no more rows
+   * @throws DataReaderException if the reader fails to read a row
+   */
+  public boolean tryAdvance(Consumer<? super Row> action) {
+    if (exhausted) {
+      return false;
+    }
+
+    Vector<String> rowVector;
+
+    try {
+      rowVector = dataReader.getOneRowDataVector();
+    }
+    catch (Exception e) {
+      exhausted = true;
+      throw new DataReaderException("Error reading row: " + e.getMessage(), e);
+    }
+
+    if (rowVector == null || rowVector.isEmpty()) {
+      exhausted = true;
+      return false;
+    }
+
+    action.accept(new Row(rowVector));
+    return true;
+  }
+
+}
@@ -48,6 +48,7 @@ public class Union
 	private List queryList = null;
 	private String unionType = null;
 	private boolean orderQueryList = false;
+	private boolean parallel = false;
 	
 	//constants
 	public static final String UNION = "UNION";
@@ -71,6 +72,18 @@ public class Union
 	}
 		
 	
+	/**
+	 * Gets the member queries, in the order of the union
+	 * @return the queries
+	 */
+	public Query[] getQueries() {
+		Query[] queries = new Query[queryList.size()];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = (Query) queryList.get(i);
+		}
+		return queries;
+	}
+	
 	public String getUnionType() {
 		return unionType;
 	}
@@ -86,6 +99,21 @@ public class Union
 	public void setOrderQueryList(boolean orderQueryList) {
 		this.orderQueryList = orderQueryList;
 	}
+	
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Sets whether the member queries are run in parallel, each on its own
+	 * connection, with their rows merged as they arrive (see UnionCursor),
+	 * rather than as a single SQL statement. Merged rows are not ordered
+	 * by member query.
+	 * @param parallel true to run the member queries in parallel
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
 
 	/**
 	 * Helper method to remove trailing semicolon
@@ -153,12 +181,79 @@ public class Union
 		
 	}
 
+	/**
+	 * Gets a sql string for each member Query, in the order of the union
+	 * @return the sql strings, without trailing semicolons
+	 * @throws UnWellFormedQueryException (from underlying Query object[s])
+	 */
+	public String[] toSQLStrings() throws UnWellFormedQueryException {
+		
+		if (orderQueryList) {
+			this.orderQueryList();
+		}
+		
+		String[] sqlStrings = new String[queryList.size()];
+		for (int i = 0; i < sqlStrings.length; i++) {
+			Query query = (Query) queryList.get(i);
+			sqlStrings[i] = this.shearSemicolon(query.toSQLString());
+		}
+		
+		return sqlStrings;
+	}
+
+	/**
+	 * Compiles each member Query to a sql template and its values, in the
+	 * order of the union
+	 * @return the bound queries, without trailing semicolons
+	 * @throws UnWellFormedQueryException (from underlying Query object[s])
+	 */
+	public BoundQuery[] toBoundQueries() throws UnWellFormedQueryException {
+		
+		if (orderQueryList) {
+			this.orderQueryList();
+		}
+		
+		BoundQuery[] boundQueries = new BoundQuery[queryList.size()];
+		for (int i = 0; i < boundQueries.length; i++) {
+			Query query = (Query) queryList.get(i);
+			List<Object> binds = new ArrayList<Object>();
+			String sql = this.shearSemicolon(query.toSQLString(binds));
+			boundQueries[i] = new BoundQuery(sql, binds);
+		}
+		
+		return boundQueries;
+	}
+
+	/**
+	 * Compiles the union to a sql template and the values of all of its
+	 * member queries, in order
+	 * @return the bound query
+	 * @throws UnWellFormedQueryException (from underlying Query object[s])
+	 */
+	public BoundQuery toBoundQuery() throws UnWellFormedQueryException {
+		List<Object> binds = new ArrayList<Object>();
+		String sql = toSQLString(binds);
+		return new BoundQuery(sql, binds);
+	}
+
 	/**
 	 * Gets a sql string from the Query objects
 	 * @return sql string
 	 * @throws UnWellFormedQueryException (from underlying Query object[s])
 	 */
 	public String toSQLString() throws UnWellFormedQueryException {
+		return toSQLString(null);
+	}
+
+	/**
+	 * Gets a sql template from the Query objects, adding their values to
+	 * the binds
+	 * @param binds the list to add the values to, or null to inline them
+	 * @return sql string
+	 * @throws UnWellFormedQueryException (from underlying Query object[s])
+	 */
+	public String toSQLString(List<Object> binds) 
+			throws UnWellFormedQueryException {
 		
 		StringBuffer sql = new StringBuffer();
 		
@@ -174,7 +269,7 @@ public class Union
 			//append the query, removing trailing semicolon to prevent execution
 			sql.append(
 					this.shearSemicolon(
-							query.toSQLString()));
+							query.toSQLString(binds)));
 			
 			//if there another one coming, add the union statement
 			if (queryIter.hasNext()) {
@@ -0,0 +1,455 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A cursor over the rows of a union of queries, which runs each member
+ * query on its own connection, in parallel, and merges their rows as they
+ * arrive. The rows of a UNION ALL are passed on as they are; the rows of a
+ * UNION are passed on the first time they are seen, so the distinct rows
+ * are held in memory until the cursor is closed.
+ *
+ * Unlike a union run as a single statement, the values of a column are not
+ * coerced to a common type across the member queries. A UNION compares
+ * numbers by value, as SQL does, whether they are Integers, Longs or
+ * BigDecimals, but only recognizes other values as duplicates if they have
+ * the same Java types. The columns are named after those of the first
+ * member query.
+ */
+public class UnionCursor implements RowCursorInterface {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(UnionCursor.class);
+
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  private static int defaultParallelism = DEFAULT_PARALLELISM;
+
+  /* Marks the end of the rows of a member query */
+  private static final List<Object[]> END_OF_MEMBER =
+    Collections.unmodifiableList(new ArrayList<Object[]>());
+
+
+  /*
+   * Instance fields
+   */
+
+  private final BoundQuery[] memberQueries;
+  private final DatabaseAdapter databaseAdapter;
+  private final int fetchSize;
+  private final boolean distinct;
+  private final TableMonitor tableMonitor;
+  private final List<String> openTableNames;
+  private final BlockingQueue<List<Object[]>> queue;
+  private final List<QueryCursor> memberCursors = new ArrayList<QueryCursor>();
+  private final CountDownLatch firstMemberOpened = new CountDownLatch(1);
+  private final Set<List<Object>> seenRows;
+  private ExecutorService executor = null;
+  private List<Object[]> pendingRows = new ArrayList<Object[]>();
+  private int pendingIndex = 0;
+  private int finishedMembers = 0;
+  private volatile boolean closed = false;
+  private volatile SQLException failure = null;
+  private String[] columnNames = null;
+  private int[] columnTypes = null;
+  private long rowCount = 0;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Starts to run the member queries of a union, each on a connection of
+   * the DataManager's pool, and holds the tables that are open for the
+   * union until the cursor is closed.
+   *
+   * @param memberQueries   the member queries
+   * @param databaseAdapter the adapter that binds the values of the member
+   *                        queries
+   * @param unionType       Union.UNION or Union.UNION_ALL
+   * @param fetchSize       the number of rows to fetch from the database at
+   *                        a time, at least 1
+   * @param parallelism     the largest number of member queries to run at
+   *                        a time, which should not exceed the size of the
+   *                        connection pool
+   * @param tableMonitor    the table monitor that opened the tables, or null
+   * @param openTableNames  the names of the tables that are open for the
+   *                        union, which the cursor closes
+   */
+  UnionCursor(BoundQuery[] memberQueries, DatabaseAdapter databaseAdapter,
+              String unionType, int fetchSize, int parallelism,
+              TableMonitor tableMonitor, List<String> openTableNames) {
+    this.memberQueries = memberQueries;
+    this.databaseAdapter = databaseAdapter;
+    this.fetchSize = (fetchSize > 0) ? fetchSize : QueryCursor.DEFAULT_FETCH_SIZE;
+    this.distinct = Union.UNION.equalsIgnoreCase(unionType);
+    this.tableMonitor = tableMonitor;
+    this.openTableNames = openTableNames;
+    this.queue = new ArrayBlockingQueue<List<Object[]>>(
+                                       2 * Math.max(memberQueries.length, 1));
+    this.seenRows = distinct ? new HashSet<List<Object>>() : null;
+
+    if (memberQueries.length == 0) {
+      firstMemberOpened.countDown();
+      close();
+      return;
+    }
+
+    int threads = Math.max(1, Math.min(parallelism, memberQueries.length));
+    executor = Executors.newFixedThreadPool(threads, new MemberThreadFactory());
+    for (int i = 0; i < memberQueries.length; i++) {
+      executor.execute(new MemberQuery(i));
+    }
+    executor.shutdown();
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the number of member queries that new cursors run at a time.
+   *
+   * @return the default parallelism
+   */
+  public static int getDefaultParallelism() {
+    return defaultParallelism;
+  }
+
+
+  /**
+   * Sets the number of member queries that new cursors run at a time. Each
+   * holds a connection of the pool while it runs.
+   *
+   * @param parallelism  the default parallelism, at least 1
+   */
+  public static void setDefaultParallelism(int parallelism) {
+    defaultParallelism = Math.max(parallelism, 1);
+  }
+
+
+  /*
+   * Gets the key by which a row of a UNION is recognized as a duplicate.
+   */
+  private static List<Object> getRowKey(Object[] row) {
+    Object[] key = new Object[row.length];
+
+    for (int i = 0; i < row.length; i++) {
+      key[i] = normalizeNumber(row[i]);
+    }
+
+    return Arrays.asList(key);
+  }
+
+
+  /*
+   * Converts a number to a BigDecimal without trailing zeros, so that equal
+   * numbers of different types are equal keys. Other values, and numbers
+   * that are not finite, are kept as they are.
+   */
+  private static Object normalizeNumber(Object value) {
+    BigDecimal number;
+
+    if (value instanceof BigDecimal) {
+      number = (BigDecimal) value;
+    }
+    else if (value instanceof BigInteger) {
+      number = new BigDecimal((BigInteger) value);
+    }
+    else if (value instanceof Double || value instanceof Float) {
+      double doubleValue = ((Number) value).doubleValue();
+      if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+        return value;
+      }
+      number = BigDecimal.valueOf(doubleValue);
+    }
+    else if (value instanceof Integer || value instanceof Long ||
+             value instanceof Short || value instanceof Byte) {
+      number = BigDecimal.valueOf(((Number) value).longValue());
+    }
+    else {
+      return value;
+    }
+
+    return (number.signum() == 0) ? BigDecimal.ZERO : number.stripTrailingZeros();
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the names of the columns of the first member query, waiting for
+   * it to start if need be.
+   *
+   * @return the column labels, in order
+   * @throws SQLException if the first member query failed
+   */
+  public String[] getColumnNames() throws SQLException {
+    awaitFirstMember();
+    return columnNames.clone();
+  }
+
+
+  /**
+   * Gets the types of the columns of the first member query, waiting for
+   * it to start if need be.
+   *
+   * @return the java.sql.Types of the columns, in order
+   * @throws SQLException if the first member query failed
+   */
+  public int[] getColumnTypes() throws SQLException {
+    awaitFirstMember();
+    return columnTypes.clone();
+  }
+
+
+  /**
+   * Reads the next batch of merged rows, waiting for the member queries to
+   * produce them. Once every member query has been read, the cursor is
+   * closed.
+   *
+   * @param maxRows  the largest number of rows to read
+   * @return the rows read, which is fewer than maxRows only at the end of
+   *         the union, and empty once the cursor is closed
+   * @throws SQLException if a member query failed; the cursor is closed
+   */
+  public List<Object[]> nextBatch(int maxRows) throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+
+    while (rows.size() < maxRows && !closed) {
+      if (pendingIndex < pendingRows.size()) {
+        Object[] row = pendingRows.get(pendingIndex++);
+        if (seenRows == null || seenRows.add(getRowKey(row))) {
+          rows.add(row);
+          rowCount++;
+        }
+        continue;
+      }
+
+      if (failure != null) {
+        close();
+        throw failure;
+      }
+
+      if (finishedMembers == memberQueries.length) {
+        close();
+        break;
+      }
+
+      try {
+        List<Object[]> batch = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (batch == END_OF_MEMBER) {
+          finishedMembers++;
+        }
+        else if (batch != null) {
+          pendingRows = batch;
+          pendingIndex = 0;
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new SQLException("Interrupted while reading a union");
+      }
+    }
+
+    return rows;
+  }
+
+
+  /**
+   * Gets the number of rows read with nextBatch() so far.
+   *
+   * @return the number of rows read
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Determines whether the cursor has been closed.
+   *
+   * @return true if the cursor is closed, else false
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+
+  /**
+   * Closes the cursor, stops the member queries that are still running,
+   * returns their connections to the pool, and closes the tables that were
+   * opened for the union. Closing a cursor more than once has no effect.
+   */
+  public void close() {
+    synchronized (memberCursors) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      for (QueryCursor memberCursor : memberCursors) {
+        memberCursor.close();
+      }
+    }
+
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    queue.clear();
+    pendingRows = new ArrayList<Object[]>();
+    if (seenRows != null) {
+      seenRows.clear();
+    }
+
+    if (tableMonitor != null && openTableNames != null) {
+      for (String tableName : openTableNames) {
+        tableMonitor.closeTable(tableName);
+      }
+    }
+  }
+
+
+  /*
+   * Waits for the first member query to start, so that its columns are
+   * known.
+   */
+  private void awaitFirstMember() throws SQLException {
+    try {
+      firstMemberOpened.await();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while starting a union");
+    }
+
+    if (columnNames == null) {
+      if (failure != null) {
+        throw failure;
+      }
+      throw new SQLException("The union was closed before it started");
+    }
+  }
+
+
+  /*
+   * Records the first failure of a member query.
+   */
+  private synchronized void fail(SQLException e) {
+    if (failure == null) {
+      failure = e;
+    }
+  }
+
+
+  /*
+   * Runs a member query and puts its rows on the queue in batches of the
+   * fetch size, followed by the end marker.
+   */
+  private class MemberQuery implements Runnable {
+    private final int index;
+
+    MemberQuery(int index) {
+      this.index = index;
+    }
+
+    public void run() {
+      QueryCursor memberCursor = null;
+
+      try {
+        if (!closed) {
+          memberCursor = new QueryCursor(memberQueries[index],
+                                         databaseAdapter, fetchSize,
+                                         null, null);
+          synchronized (memberCursors) {
+            if (closed) {
+              memberCursor.close();
+              return;
+            }
+            memberCursors.add(memberCursor);
+          }
+
+          if (index == 0) {
+            columnNames = memberCursor.getColumnNames();
+            columnTypes = memberCursor.getColumnTypes();
+            firstMemberOpened.countDown();
+          }
+
+          List<Object[]> batch = memberCursor.nextBatch(fetchSize);
+          while (!batch.isEmpty() && !closed) {
+            queue.put(batch);
+            batch = memberCursor.nextBatch(fetchSize);
+          }
+        }
+      }
+      catch (SQLException e) {
+        if (!closed) {
+          log.error("Member query " + index + " of the union failed: " +
+                    e.getMessage());
+          fail(e);
+        }
+      }
+      catch (InterruptedException e) {
+        // The cursor was closed
+      }
+      finally {
+        if (memberCursor != null) {
+          memberCursor.close();
+        }
+        if (index == 0) {
+          firstMemberOpened.countDown();
+        }
+        if (!closed) {
+          try {
+            queue.put(END_OF_MEMBER);
+          }
+          catch (InterruptedException e) {
+            // The cursor was closed
+          }
+        }
+      }
+    }
+  }
+
+
+  /*
+   * Creates the daemon threads that run the member queries.
+   */
+  private static class MemberThreadFactory implements ThreadFactory {
+    private int threadCount = 0;
+
+    public synchronized Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable,
+                                 "UnionCursor-member-" + (++threadCount));
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
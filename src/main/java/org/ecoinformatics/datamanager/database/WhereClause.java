@@ -31,6 +31,8 @@
  */
 package org.ecoinformatics.datamanager.database;
 
+import java.util.List;
+
 /**
  * This class represents a WHERE clause in a sql query. toSQLString can
  * transfer this object to a sql string. This class can have one component -
@@ -135,6 +137,39 @@ public class WhereClause
     }
     
     
+    /**
+     * Gets the condition of the WHERE clause.
+     * 
+     * @return the condition, or null if the clause has another component
+     */
+    public ConditionInterface getConditionInterface()
+    {
+    	return condition;
+    }
+    
+    
+    /**
+     * Gets the ANDRelation of the WHERE clause.
+     * 
+     * @return the ANDRelation, or null if the clause has another component
+     */
+    public ANDRelation getANDRelation()
+    {
+    	return and;
+    }
+    
+    
+    /**
+     * Gets the ORRelation of the WHERE clause.
+     * 
+     * @return the ORRelation, or null if the clause has another component
+     */
+    public ORRelation getORRelation()
+    {
+    	return or;
+    }
+    
+    
     /**
      * Gets the sql string from the WHERE clause object.
      * 
@@ -142,6 +177,21 @@ public class WhereClause
      * @throws UnWellFormedQueryException
      */
     public String toSQLString() throws UnWellFormedQueryException
+    {
+    	return toSQLString(null);
+    }
+    
+    
+    /**
+     * Gets the sql template from the WHERE clause object, adding its values
+     * to the binds.
+     * 
+     * @param binds the list to add the values to, or null to inline them
+     * @return sql string
+     * @throws UnWellFormedQueryException
+     */
+    public String toSQLString(List<Object> binds) 
+            throws UnWellFormedQueryException
     {
     	if (condition == null && or == null && and == null)
     	{
@@ -156,15 +206,15 @@ public class WhereClause
         
     	if (condition != null)
     	{  		
-    		sql.append(condition.toSQLString());
+    		sql.append(condition.toSQLString(binds));
     	}
     	else if (and != null)
     	{
-    	    sql.append(and.toSQLString());
+    	    sql.append(and.toSQLString(binds));
     	}
     	else if (or != null)
     	{
-    		sql.append(or.toSQLString());
+    		sql.append(or.toSQLString(binds));
     	}
     	
     	return sql.toString();
@@ -0,0 +1,100 @@
+package org.ecoinformatics.datamanager.database.embedded;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The rows of an entity that a query reads, held as one column vector per
+ * attribute. Only the attributes that the query refers to are read; the
+ * others have no vector.
+ */
+class ColumnTable {
+
+  /*
+   * Instance fields
+   */
+
+  final int rowCount;
+  final ColumnVector[] columns;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a table.
+   *
+   * @param rowCount  the number of rows
+   * @param columns   a vector per attribute of the entity, in the order of
+   *                  its attribute list, or null for attributes not read
+   */
+  ColumnTable(int rowCount, ColumnVector[] columns) {
+    this.rowCount = rowCount;
+    this.columns = columns;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Joins tables of the same entity end to end.
+   *
+   * @param kinds   the kind of vector of each attribute of the entity, or 0
+   *                for attributes not read
+   * @param tables  the tables, in order
+   * @return a table holding the rows of all of the tables
+   */
+  static ColumnTable concat(int[] kinds, List<ColumnTable> tables) {
+    ColumnVector[] columns = new ColumnVector[kinds.length];
+    int rowCount = 0;
+
+    for (ColumnTable table : tables) {
+      rowCount += table.rowCount;
+    }
+
+    for (int i = 0; i < kinds.length; i++) {
+      if (kinds[i] == 0) {
+        continue;
+      }
+      List<ColumnVector> vectors = new ArrayList<ColumnVector>();
+      for (ColumnTable table : tables) {
+        vectors.add(table.columns[i]);
+      }
+      columns[i] = ColumnVector.concat(kinds[i], vectors);
+    }
+
+    return new ColumnTable(rowCount, columns);
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Keeps the selected rows.
+   *
+   * @param selected  the rows to keep
+   * @return a table of the selected rows, in order
+   */
+  ColumnTable select(BitSet selected) {
+    if (selected.cardinality() == rowCount) {
+      return this;
+    }
+
+    ColumnVector[] selectedColumns = new ColumnVector[columns.length];
+
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i] != null) {
+        selectedColumns[i] = columns[i].select(selected);
+      }
+    }
+
+    return new ColumnTable(selected.cardinality(), selectedColumns);
+  }
+
+}
@@ -0,0 +1,205 @@
+package org.ecoinformatics.datamanager.database.embedded;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The values of one attribute for a range of rows. Integer and float
+ * attributes are held as arrays of int and double, with the nulls in a bit
+ * set; other attributes are held as an array of objects (Strings or
+ * Timestamps). Vectors are not changed once they are built.
+ */
+class ColumnVector {
+
+  /*
+   * Class fields
+   */
+
+  static final int KIND_INT = 1;
+  static final int KIND_DOUBLE = 2;
+  static final int KIND_OBJECT = 3;
+
+
+  /*
+   * Instance fields
+   */
+
+  final int kind;
+  final int size;
+  final int[] ints;
+  final double[] doubles;
+  final Object[] objects;
+  final BitSet nulls;
+
+
+  /*
+   * Constructors
+   */
+
+  private ColumnVector(int kind, int size, int[] ints, double[] doubles,
+                       Object[] objects, BitSet nulls) {
+    this.kind = kind;
+    this.size = size;
+    this.ints = ints;
+    this.doubles = doubles;
+    this.objects = objects;
+    this.nulls = nulls;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Builds a vector from converted values.
+   *
+   * @param kind    the kind of the vector
+   * @param values  the values, which are Integers for KIND_INT and Doubles
+   *                for KIND_DOUBLE, or null
+   * @param size    the number of values
+   * @return the vector
+   */
+  static ColumnVector of(int kind, Object[] values, int size) {
+    BitSet nulls = new BitSet(size);
+
+    if (kind == KIND_INT) {
+      int[] ints = new int[size];
+      for (int i = 0; i < size; i++) {
+        if (values[i] == null) nulls.set(i);
+        else ints[i] = ((Integer) values[i]).intValue();
+      }
+      return new ColumnVector(kind, size, ints, null, null, nulls);
+    }
+    else if (kind == KIND_DOUBLE) {
+      double[] doubles = new double[size];
+      for (int i = 0; i < size; i++) {
+        if (values[i] == null) nulls.set(i);
+        else doubles[i] = ((Double) values[i]).doubleValue();
+      }
+      return new ColumnVector(kind, size, null, doubles, null, nulls);
+    }
+
+    Object[] objects = new Object[size];
+    for (int i = 0; i < size; i++) {
+      objects[i] = values[i];
+      if (values[i] == null) nulls.set(i);
+    }
+    return new ColumnVector(kind, size, null, null, objects, nulls);
+  }
+
+
+  /**
+   * Joins vectors of the same kind end to end.
+   *
+   * @param kind     the kind of the vectors
+   * @param vectors  the vectors, in order
+   * @return a vector holding the values of all of the vectors
+   */
+  static ColumnVector concat(int kind, List<ColumnVector> vectors) {
+    int size = 0;
+    for (ColumnVector vector : vectors) {
+      size += vector.size;
+    }
+
+    int[] ints = (kind == KIND_INT) ? new int[size] : null;
+    double[] doubles = (kind == KIND_DOUBLE) ? new double[size] : null;
+    Object[] objects = (kind == KIND_OBJECT) ? new Object[size] : null;
+    BitSet nulls = new BitSet(size);
+    int offset = 0;
+
+    for (ColumnVector vector : vectors) {
+      if (ints != null) {
+        System.arraycopy(vector.ints, 0, ints, offset, vector.size);
+      }
+      else if (doubles != null) {
+        System.arraycopy(vector.doubles, 0, doubles, offset, vector.size);
+      }
+      else {
+        System.arraycopy(vector.objects, 0, objects, offset, vector.size);
+      }
+      for (int i = vector.nulls.nextSetBit(0); i >= 0;
+           i = vector.nulls.nextSetBit(i + 1)) {
+        nulls.set(offset + i);
+      }
+      offset += vector.size;
+    }
+
+    return new ColumnVector(kind, size, ints, doubles, objects, nulls);
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Determines whether a value is null.
+   *
+   * @param row  the row number
+   * @return true if the value is null
+   */
+  boolean isNull(int row) {
+    return nulls.get(row);
+  }
+
+
+  /**
+   * Gets a value as a number, for vectors of KIND_INT and KIND_DOUBLE.
+   *
+   * @param row  the row number, whose value is not null
+   * @return the value
+   */
+  double getDouble(int row) {
+    return (kind == KIND_INT) ? ints[row] : doubles[row];
+  }
+
+
+  /**
+   * Gets a value as the object that the attribute's converter produced.
+   *
+   * @param row  the row number
+   * @return the value, or null
+   */
+  Object get(int row) {
+    if (nulls.get(row)) {
+      return null;
+    }
+    else if (kind == KIND_INT) {
+      return Integer.valueOf(ints[row]);
+    }
+    else if (kind == KIND_DOUBLE) {
+      return Double.valueOf(doubles[row]);
+    }
+    return objects[row];
+  }
+
+
+  /**
+   * Keeps the values of the selected rows.
+   *
+   * @param selected  the rows to keep
+   * @return a vector of the selected values, in order
+   */
+  ColumnVector select(BitSet selected) {
+    int count = selected.cardinality();
+    int[] newInts = (kind == KIND_INT) ? new int[count] : null;
+    double[] newDoubles = (kind == KIND_DOUBLE) ? new double[count] : null;
+    Object[] newObjects = (kind == KIND_OBJECT) ? new Object[count] : null;
+    BitSet newNulls = new BitSet(count);
+    int j = 0;
+
+    for (int i = selected.nextSetBit(0); i >= 0;
+         i = selected.nextSetBit(i + 1)) {
+      if (newInts != null) newInts[j] = ints[i];
+      else if (newDoubles != null) newDoubles[j] = doubles[i];
+      else newObjects[j] = objects[i];
+      if (nulls.get(i)) newNulls.set(j);
+      j++;
+    }
+
+    return new ColumnVector(kind, count, newInts, newDoubles, newObjects,
+                            newNulls);
+  }
+
+}
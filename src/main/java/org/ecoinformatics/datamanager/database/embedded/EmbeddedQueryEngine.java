@@ -0,0 +1,1267 @@
+package org.ecoinformatics.datamanager.database.embedded;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.database.ANDRelation;
+import org.ecoinformatics.datamanager.database.AggregateSelectionItem;
+import org.ecoinformatics.datamanager.database.AttributeConverter;
+import org.ecoinformatics.datamanager.database.ColumnarResult;
+import org.ecoinformatics.datamanager.database.Condition;
+import org.ecoinformatics.datamanager.database.ConditionInterface;
+import org.ecoinformatics.datamanager.database.DataReaderException;
+import org.ecoinformatics.datamanager.database.DatabaseAdapter;
+import org.ecoinformatics.datamanager.database.DelimitedFileSpliterator;
+import org.ecoinformatics.datamanager.database.GroupBy;
+import org.ecoinformatics.datamanager.database.HSQLAdapter;
+import org.ecoinformatics.datamanager.database.Join;
+import org.ecoinformatics.datamanager.database.LogicalRelation;
+import org.ecoinformatics.datamanager.database.ORRelation;
+import org.ecoinformatics.datamanager.database.Query;
+import org.ecoinformatics.datamanager.database.SelectionItem;
+import org.ecoinformatics.datamanager.database.StaticSelectionItem;
+import org.ecoinformatics.datamanager.database.SubQueryClause;
+import org.ecoinformatics.datamanager.database.TableItem;
+import org.ecoinformatics.datamanager.database.UnWellFormedQueryException;
+import org.ecoinformatics.datamanager.database.Union;
+import org.ecoinformatics.datamanager.database.WhereClause;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+
+/**
+ * Runs queries directly against the data files of entities, without
+ * loading them into a database. It evaluates the same query model that
+ * DataManager turns into SQL: selection items with aggregates, GROUP BY,
+ * DISTINCT, WHERE clauses of conditions, joins and subqueries combined
+ * with AND and OR, and unions.
+ *
+ * The data file of each entity that a query names is split on record
+ * boundaries and read by the tasks of a fork-join pool into column
+ * vectors. Only the attributes that the query refers to are converted, and
+ * the conditions on a single entity are applied to each batch as it is
+ * read. Entities are then combined with hash joins on their join
+ * conditions, and the rows are grouped and aggregated in ranges that are
+ * merged in order, so that results come out in the order of the files.
+ *
+ * Values are converted as the database loaders convert them, with missing
+ * value codes read as null. A value that does not match its attribute's
+ * type is read as null and counted; see getConversionErrorCount().
+ */
+public class EmbeddedQueryEngine {
+
+  /*
+   * Class fields
+   */
+
+  public static Log log = LogFactory.getLog(EmbeddedQueryEngine.class);
+
+  /** The default number of rows converted at a time */
+  public static final int DEFAULT_BATCH_SIZE = 4096;
+
+  /** The default number of rows that a task joins, filters or groups */
+  public static final int DEFAULT_RANGE_SIZE = 16384;
+
+
+  /*
+   * Instance fields
+   */
+
+  private final ForkJoinPool pool;
+  private final DatabaseAdapter conversionAdapter = new HSQLAdapter();
+  private final Map<Entity, File> dataFiles =
+    new ConcurrentHashMap<Entity, File>();
+  private final AtomicLong conversionErrors = new AtomicLong();
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+  private volatile int rangeSize = DEFAULT_RANGE_SIZE;
+  private volatile long minimumChunkSize =
+    DelimitedFileSpliterator.DEFAULT_MINIMUM_CHUNK_SIZE;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs an engine that runs its tasks in the common fork-join pool.
+   */
+  public EmbeddedQueryEngine() {
+    this(ForkJoinPool.commonPool());
+  }
+
+
+  /**
+   * Constructs an engine that runs its tasks in a fork-join pool.
+   *
+   * @param pool  the pool
+   */
+  public EmbeddedQueryEngine(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Registers the local data file of an entity, so that queries on the
+   * entity can be run.
+   *
+   * @param entity    the entity metadata describing the file
+   * @param dataFile  the local file holding the entity's data
+   */
+  public void addDataFile(Entity entity, File dataFile) {
+    dataFiles.put(entity, dataFile);
+  }
+
+
+  /**
+   * Forgets the data file of an entity.
+   *
+   * @param entity  the entity
+   */
+  public void removeDataFile(Entity entity) {
+    dataFiles.remove(entity);
+  }
+
+
+  /**
+   * Gets the number of rows that are converted at a time.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+
+  /**
+   * Sets the number of rows that are converted at a time.
+   *
+   * @param batchSize  the batch size, at least 1
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(batchSize, 1);
+  }
+
+
+  /**
+   * Gets the number of rows that a task joins, filters or groups.
+   *
+   * @return the range size
+   */
+  public int getRangeSize() {
+    return rangeSize;
+  }
+
+
+  /**
+   * Sets the number of rows that a task joins, filters or groups.
+   *
+   * @param rangeSize  the range size, at least 1
+   */
+  public void setRangeSize(int rangeSize) {
+    this.rangeSize = Math.max(rangeSize, 1);
+  }
+
+
+  /**
+   * Gets the smallest byte range of a data file that is read by a task.
+   *
+   * @return the minimum chunk size in bytes
+   */
+  public long getMinimumChunkSize() {
+    return minimumChunkSize;
+  }
+
+
+  /**
+   * Sets the smallest byte range of a data file that is read by a task.
+   *
+   * @param minimumChunkSize  the minimum chunk size in bytes
+   */
+  public void setMinimumChunkSize(long minimumChunkSize) {
+    this.minimumChunkSize = Math.max(minimumChunkSize, 1);
+  }
+
+
+  /**
+   * Gets the number of values that did not match their attribute's type and
+   * were read as null, over all of the queries run by this engine.
+   *
+   * @return the number of values
+   */
+  public long getConversionErrorCount() {
+    return conversionErrors.get();
+  }
+
+
+  /**
+   * Runs a query against the data files of its entities.
+   *
+   * @param query  the query
+   * @return the rows of the result, labelled as the database would label
+   *         them
+   * @throws UnWellFormedQueryException if the query is not well formed
+   * @throws IOException if a data file is not registered or cannot be read
+   */
+  public ColumnarResult execute(Query query)
+          throws UnWellFormedQueryException, IOException {
+    Plan plan = new Plan(query);
+
+    try {
+      Frame frame = plan.join(plan.scan());
+      frame = plan.filter(frame);
+      return plan.project(frame);
+    }
+    catch (DataReaderException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+
+  /**
+   * Runs a union of queries. The member queries are run at the same time,
+   * and their rows are returned in the order of the union; a UNION drops
+   * the repeated rows. The columns are named after those of the first
+   * query.
+   *
+   * @param union  the union
+   * @return the rows of the result
+   * @throws UnWellFormedQueryException if a query is not well formed
+   * @throws IOException if a data file is not registered or cannot be read
+   */
+  public ColumnarResult execute(Union union)
+          throws UnWellFormedQueryException, IOException {
+    Query[] queries = union.getQueries();
+
+    if (queries.length == 0) {
+      throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.QUERY_SELECTION_OR_TABLE_IS_NULL);
+    }
+
+    List<Future<ColumnarResult>> futures =
+      new ArrayList<Future<ColumnarResult>>();
+
+    for (final Query query : queries) {
+      futures.add(pool.submit(() -> execute(query)));
+    }
+
+    List<ColumnarResult> results = new ArrayList<ColumnarResult>();
+
+    for (Future<ColumnarResult> future : futures) {
+      try {
+        results.add(future.get());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while running a union", e);
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UnWellFormedQueryException) {
+          throw (UnWellFormedQueryException) cause;
+        }
+        else if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+    ColumnarResult first = results.get(0);
+    int columnCount = first.getColumnNames().length;
+    boolean distinct = Union.UNION.equals(union.getUnionType());
+    List<Object[]> rows = new ArrayList<Object[]>();
+    Set<List<Object>> seen = new HashSet<List<Object>>();
+
+    for (ColumnarResult result : results) {
+      if (result.getColumnNames().length != columnCount) {
+        throw new UnWellFormedQueryException(
+                    "The queries of a union select different numbers of columns");
+      }
+      for (int i = 0; i < result.getRowCount(); i++) {
+        Object[] row = new Object[columnCount];
+        for (int j = 0; j < columnCount; j++) {
+          row[j] = result.getValue(i, j);
+        }
+        if (!distinct || seen.add(Arrays.asList(row))) {
+          rows.add(row);
+        }
+      }
+    }
+
+    return new ColumnarResult(first.getColumnNames(), first.getColumnTypes(),
+                              rows);
+  }
+
+
+  /*
+   * Runs a function over ranges of rows in the pool, returning the results
+   * of the ranges in order.
+   */
+  private <T> List<T> forEachRange(int size, RangeFunction<T> function) {
+    return pool.invoke(new RangeTask<T>(function, 0, size, rangeSize));
+  }
+
+
+  /*
+   * The plan of a query: the slot of each of its tables, the attributes
+   * that it reads from each, and its conditions compiled to predicates.
+   */
+  private class Plan {
+    final Query query;
+    final Entity[] entities;
+    final AttributeConverter[][] converters;
+    final int[][] kinds;
+    final List<Conjunct> conjuncts = new ArrayList<Conjunct>();
+    final SelectionItem[] selectionList;
+    final int[][] selectionRefs;
+    final int[][] groupRefs;
+    final boolean aggregate;
+
+    Plan(Query query) throws UnWellFormedQueryException, IOException {
+      this.query = query;
+
+      TableItem[] tableList = query.getTableList();
+      selectionList = query.getSelectionList();
+
+      if (tableList == null || tableList.length == 0 ||
+          selectionList == null || selectionList.length == 0) {
+        throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.QUERY_SELECTION_OR_TABLE_IS_NULL);
+      }
+
+      entities = new Entity[tableList.length];
+      converters = new AttributeConverter[tableList.length][];
+      kinds = new int[tableList.length][];
+
+      for (int i = 0; i < tableList.length; i++) {
+        entities[i] = tableList[i].getEntity();
+        if (entities[i] == null) {
+          throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.TABLEITEM_ENTITY_IS_NULL);
+        }
+        try {
+          converters[i] =
+            conversionAdapter.compileConverters(entities[i].getAttributeList());
+        }
+        catch (SQLException e) {
+          throw new UnWellFormedQueryException(e.getMessage());
+        }
+        kinds[i] = new int[converters[i].length];
+      }
+
+      boolean hasAggregate = false;
+      selectionRefs = new int[selectionList.length][];
+
+      for (int i = 0; i < selectionList.length; i++) {
+        SelectionItem item = selectionList[i];
+        if (item instanceof StaticSelectionItem) {
+          continue;
+        }
+        if (item instanceof AggregateSelectionItem) {
+          hasAggregate = true;
+        }
+        selectionRefs[i] = resolve(item.getEntity(), item.getAttribute());
+      }
+
+      GroupBy groupBy = query.getGroupBy();
+      SelectionItem[] groupByList =
+        (groupBy == null) ? null : groupBy.getGroupByList();
+      int groupCount = (groupByList == null) ? 0 : groupByList.length;
+      groupRefs = new int[groupCount][];
+
+      for (int i = 0; i < groupCount; i++) {
+        groupRefs[i] = resolve(groupByList[i].getEntity(),
+                               groupByList[i].getAttribute());
+      }
+
+      aggregate = hasAggregate || groupCount > 0;
+
+      WhereClause where = query.getWhereClause();
+
+      if (where != null) {
+        if (where.getConditionInterface() != null) {
+          conjuncts.add(compile(where.getConditionInterface()));
+        }
+        else if (where.getANDRelation() != null) {
+          flatten(where.getANDRelation());
+        }
+        else if (where.getORRelation() != null) {
+          conjuncts.add(compile(where.getORRelation()));
+        }
+      }
+    }
+
+    /*
+     * Reads the tables of the query, all at once, applying the conditions
+     * on each table alone as it is read.
+     */
+    ColumnTable[] scan() throws IOException {
+      List<EntityScan> scans = new ArrayList<EntityScan>();
+      ColumnTable[] tables = new ColumnTable[entities.length];
+
+      for (int slot = 0; slot < entities.length; slot++) {
+        List<RowPredicate> local = new ArrayList<RowPredicate>();
+        for (Conjunct conjunct : conjuncts) {
+          if (conjunct.slots.cardinality() == 1 && conjunct.slots.get(slot)) {
+            local.add(conjunct.predicate);
+            conjunct.applied = true;
+          }
+        }
+
+        RowPredicate filter = local.isEmpty() ? null : new RowPredicate.And(local);
+        File dataFile = getDataFile(entities[slot]);
+        DelimitedFileSpliterator spliterator =
+          new DelimitedFileSpliterator(dataFile, entities[slot],
+                                       minimumChunkSize);
+        EntityScan scan = new EntityScan(spliterator, converters[slot],
+                                         kinds[slot], filter, slot,
+                                         entities.length, batchSize,
+                                         conversionErrors);
+        pool.execute(scan);
+        scans.add(scan);
+      }
+
+      for (int slot = 0; slot < entities.length; slot++) {
+        tables[slot] = ColumnTable.concat(kinds[slot], scans.get(slot).join());
+      }
+
+      return tables;
+    }
+
+    /*
+     * Joins the tables, following the join conditions with hash joins and
+     * taking the cross product of tables that no join condition reaches.
+     */
+    Frame join(ColumnTable[] tables) throws UnWellFormedQueryException {
+      Frame frame = new Frame(tables.length, 0, tables[0]);
+      BitSet joined = new BitSet(tables.length);
+      joined.set(0);
+
+      while (joined.cardinality() < tables.length) {
+        Conjunct edge = null;
+
+        for (Conjunct conjunct : conjuncts) {
+          if (conjunct.join != null && !conjunct.applied &&
+              joined.get(conjunct.join[0]) != joined.get(conjunct.join[2])) {
+            edge = conjunct;
+            break;
+          }
+        }
+
+        if (edge != null) {
+          int[] refs = edge.join;
+          boolean leftJoined = joined.get(refs[0]);
+          int frameSlot = leftJoined ? refs[0] : refs[2];
+          int frameAttribute = leftJoined ? refs[1] : refs[3];
+          int newSlot = leftJoined ? refs[2] : refs[0];
+          int newAttribute = leftJoined ? refs[3] : refs[1];
+          frame = hashJoin(frame, frameSlot, frameAttribute,
+                           tables[newSlot], newSlot, newAttribute);
+          edge.applied = true;
+          joined.set(newSlot);
+        }
+        else {
+          int newSlot = joined.nextClearBit(0);
+          frame = crossJoin(frame, tables[newSlot], newSlot);
+          joined.set(newSlot);
+        }
+      }
+
+      return frame;
+    }
+
+    /*
+     * Applies the conditions that were not applied by the scans or joins.
+     */
+    Frame filter(final Frame frame) {
+      List<RowPredicate> residual = new ArrayList<RowPredicate>();
+
+      for (Conjunct conjunct : conjuncts) {
+        if (!conjunct.applied) {
+          residual.add(conjunct.predicate);
+        }
+      }
+
+      if (residual.isEmpty()) {
+        return frame;
+      }
+
+      final RowPredicate predicate = new RowPredicate.And(residual);
+      List<int[]> ranges = forEachRange(frame.rowCount, (from, to) -> {
+        BitSet selected = new BitSet(to);
+        selected.set(from, to);
+        predicate.filter(frame, selected);
+        int[] rows = new int[selected.cardinality()];
+        int j = 0;
+        for (int i = selected.nextSetBit(0); i >= 0;
+             i = selected.nextSetBit(i + 1)) {
+          rows[j++] = i;
+        }
+        return rows;
+      });
+
+      int rowCount = 0;
+      for (int[] rows : ranges) {
+        rowCount += rows.length;
+      }
+
+      int[][] indices = new int[frame.tables.length][];
+      for (int slot = 0; slot < indices.length; slot++) {
+        indices[slot] = new int[rowCount];
+        int j = 0;
+        for (int[] rows : ranges) {
+          for (int row : rows) {
+            indices[slot][j++] = frame.row(slot, row);
+          }
+        }
+      }
+
+      return new Frame(rowCount, frame.tables, indices);
+    }
+
+    /*
+     * Turns the rows of the frame into the rows of the result, grouping and
+     * aggregating them if the query asks for it.
+     */
+    ColumnarResult project(final Frame frame) {
+      List<Object[]> rows;
+
+      if (aggregate) {
+        rows = aggregate(frame);
+      }
+      else {
+        rows = new ArrayList<Object[]>(frame.rowCount);
+        List<List<Object[]>> ranges =
+          forEachRange(frame.rowCount, (from, to) -> {
+            List<Object[]> rangeRows = new ArrayList<Object[]>(to - from);
+            for (int i = from; i < to; i++) {
+              rangeRows.add(selectRow(frame, i));
+            }
+            return rangeRows;
+          });
+        for (List<Object[]> rangeRows : ranges) {
+          rows.addAll(rangeRows);
+        }
+      }
+
+      if (query.isDistinct()) {
+        Set<List<Object>> distinctRows = new LinkedHashSet<List<Object>>();
+        for (Object[] row : rows) {
+          distinctRows.add(Arrays.asList(row));
+        }
+        rows = new ArrayList<Object[]>(distinctRows.size());
+        for (List<Object> row : distinctRows) {
+          rows.add(row.toArray());
+        }
+      }
+
+      String[] names = new String[selectionList.length];
+      int[] types = new int[selectionList.length];
+
+      for (int i = 0; i < selectionList.length; i++) {
+        SelectionItem item = selectionList[i];
+        if (item instanceof StaticSelectionItem) {
+          names[i] = ((StaticSelectionItem) item).getName();
+          types[i] = Types.VARCHAR;
+          continue;
+        }
+
+        int[] ref = selectionRefs[i];
+        names[i] = label(item.getAttribute());
+        types[i] = converters[ref[0]][ref[1]].getSqlType();
+
+        if (item instanceof AggregateSelectionItem) {
+          String function = ((AggregateSelectionItem) item).getFunction();
+          names[i] = function + "(" + names[i] + ")";
+          if (function.equalsIgnoreCase(
+                           AggregateSelectionItem.COUNT_FUNCTION)) {
+            types[i] = Types.BIGINT;
+          }
+          else if (function.equalsIgnoreCase(
+                                AggregateSelectionItem.AVERAGE_FUNCTION)) {
+            types[i] = Types.DOUBLE;
+          }
+        }
+      }
+
+      return new ColumnarResult(names, types, rows);
+    }
+
+    /*
+     * Groups the rows of the frame in ranges, then merges the groups of the
+     * ranges in order. Without a GROUP BY, all of the rows form one group.
+     */
+    private List<Object[]> aggregate(final Frame frame) {
+      List<Map<List<Object>, Group>> ranges =
+        forEachRange(frame.rowCount, (from, to) -> {
+          Map<List<Object>, Group> groups =
+            new LinkedHashMap<List<Object>, Group>();
+          for (int i = from; i < to; i++) {
+            Object[] key = new Object[groupRefs.length];
+            for (int k = 0; k < groupRefs.length; k++) {
+              Object value = frame.get(groupRefs[k][0], groupRefs[k][1], i);
+              key[k] = (value == null) ? null : RowPredicate.key(value);
+            }
+            List<Object> groupKey = Arrays.asList(key);
+            Group group = groups.get(groupKey);
+            if (group == null) {
+              group = new Group(selectRow(frame, i));
+              groups.put(groupKey, group);
+            }
+            group.add(frame, i);
+          }
+          return groups;
+        });
+
+      Map<List<Object>, Group> groups = new LinkedHashMap<List<Object>, Group>();
+
+      for (Map<List<Object>, Group> rangeGroups : ranges) {
+        for (Map.Entry<List<Object>, Group> entry : rangeGroups.entrySet()) {
+          Group group = groups.get(entry.getKey());
+          if (group == null) {
+            groups.put(entry.getKey(), entry.getValue());
+          }
+          else {
+            group.merge(entry.getValue());
+          }
+        }
+      }
+
+      if (groups.isEmpty() && groupRefs.length == 0) {
+        groups.put(Collections.<Object>emptyList(), new Group(null));
+      }
+
+      List<Object[]> rows = new ArrayList<Object[]>(groups.size());
+
+      for (Group group : groups.values()) {
+        rows.add(group.toRow());
+      }
+
+      return rows;
+    }
+
+    /*
+     * Gets the values of the selection items for a row of the frame.
+     */
+    private Object[] selectRow(Frame frame, int row) {
+      Object[] values = new Object[selectionList.length];
+
+      for (int j = 0; j < selectionList.length; j++) {
+        if (selectionList[j] instanceof StaticSelectionItem) {
+          values[j] = ((StaticSelectionItem) selectionList[j]).getValue();
+        }
+        else {
+          values[j] = frame.get(selectionRefs[j][0], selectionRefs[j][1], row);
+        }
+      }
+
+      return values;
+    }
+
+    /*
+     * Adds the conditions of an AND relation, and of the AND relations
+     * within it, as conjuncts of the WHERE clause.
+     */
+    private void flatten(ANDRelation and) throws UnWellFormedQueryException,
+                                                 IOException {
+      ConditionInterface[] conditions = and.getConditionInterfaceList();
+      ANDRelation[] ands = and.getANDRelationList();
+      ORRelation[] ors = and.getORRelationList();
+
+      if (conditions != null) {
+        for (ConditionInterface condition : conditions) {
+          conjuncts.add(compile(condition));
+        }
+      }
+      if (ands != null) {
+        for (ANDRelation nested : ands) {
+          flatten(nested);
+        }
+      }
+      if (ors != null) {
+        for (ORRelation or : ors) {
+          conjuncts.add(compile(or));
+        }
+      }
+    }
+
+    /*
+     * Compiles a condition to a predicate, noting the tables it refers to.
+     */
+    private Conjunct compile(ConditionInterface condition)
+            throws UnWellFormedQueryException, IOException {
+      Conjunct conjunct = new Conjunct();
+
+      if (condition instanceof Condition) {
+        Condition c = (Condition) condition;
+        int[] ref = resolve(c.getEntity(), c.getAttribute());
+        String operator = c.getOperator();
+        if (operator == null) {
+          throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.CONDITION_OPERATOR_IS_NULL);
+        }
+        if (c.getValue() == null) {
+          throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.CONDITION_VALUE_IS_NULL);
+        }
+        operator = operator.trim().toUpperCase();
+        if (operator.equals(ConditionInterface.LIKE_OPERATOR) ||
+            operator.equals(ConditionInterface.NOT_LIKE_OPERATOR)) {
+          conjunct.predicate =
+            new RowPredicate.Like(ref[0], ref[1], c.getValue().toString(),
+                         operator.equals(ConditionInterface.NOT_LIKE_OPERATOR));
+        }
+        else if (Arrays.asList(ConditionInterface.NUMBER_OPERATOR_LIST)
+                       .contains(operator) ||
+                 operator.equals(ConditionInterface.NOT_EQUAL_OPERATOR)) {
+          conjunct.predicate =
+            new RowPredicate.Compare(ref[0], ref[1], operator, c.getValue());
+        }
+        else {
+          throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.CONDITION_NOT_HANDLED_OPERATOR +
+                  operator);
+        }
+        conjunct.slots.set(ref[0]);
+      }
+      else if (condition instanceof Join) {
+        Join join = (Join) condition;
+        if (!join.isLeftSet() || !join.isRightSet()) {
+          throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.JOIN_ATTRIBUTE_IS_NULL);
+        }
+        int[] left = resolve(join.getLeftEntity(), join.getLeftAttribute());
+        int[] right = resolve(join.getRightEntity(), join.getRightAttribute());
+        conjunct.predicate =
+          new RowPredicate.ColumnsEqual(left[0], left[1], right[0], right[1]);
+        conjunct.slots.set(left[0]);
+        conjunct.slots.set(right[0]);
+        if (left[0] != right[0]) {
+          conjunct.join = new int[] { left[0], left[1], right[0], right[1] };
+        }
+      }
+      else if (condition instanceof SubQueryClause) {
+        SubQueryClause subQuery = (SubQueryClause) condition;
+        String operator = subQuery.getOperator();
+        boolean not;
+        if (operator != null && operator.trim().equalsIgnoreCase("IN")) {
+          not = false;
+        }
+        else if (operator != null &&
+                 operator.trim().replaceAll("\\s+", " ")
+                         .equalsIgnoreCase("NOT IN")) {
+          not = true;
+        }
+        else {
+          throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.SUBQUERY_OPERATOR_IS_ILLEGAL);
+        }
+        if (subQuery.getQuery() == null) {
+          throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.SUBQUERY_QUERY_IS_NULL);
+        }
+        int[] ref = resolve(subQuery.getEntity(), subQuery.getAttribute());
+        ColumnarResult result = execute(subQuery.getQuery());
+        Set<Object> keys = new HashSet<Object>();
+        for (int i = 0; i < result.getRowCount(); i++) {
+          Object value = result.getValue(i, 0);
+          if (value != null) {
+            keys.add(RowPredicate.key(value));
+          }
+        }
+        conjunct.predicate = new RowPredicate.In(ref[0], ref[1], keys, not);
+        conjunct.slots.set(ref[0]);
+      }
+      else {
+        throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.CONDITION_NOT_HANDLED_OPERATOR +
+                  condition);
+      }
+
+      return conjunct;
+    }
+
+    /*
+     * Compiles an AND or OR relation to a single predicate.
+     */
+    private Conjunct compile(LogicalRelation relation)
+            throws UnWellFormedQueryException, IOException {
+      Conjunct conjunct = new Conjunct();
+      List<RowPredicate> predicates = new ArrayList<RowPredicate>();
+      List<Conjunct> parts = new ArrayList<Conjunct>();
+      ConditionInterface[] conditions = relation.getConditionInterfaceList();
+      ANDRelation[] ands = relation.getANDRelationList();
+      ORRelation[] ors = relation.getORRelationList();
+
+      if (conditions != null) {
+        for (ConditionInterface condition : conditions) {
+          parts.add(compile(condition));
+        }
+      }
+      if (ands != null) {
+        for (ANDRelation and : ands) {
+          parts.add(compile(and));
+        }
+      }
+      if (ors != null) {
+        for (ORRelation or : ors) {
+          parts.add(compile(or));
+        }
+      }
+
+      if (parts.isEmpty()) {
+        throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.LOGICALREALTION_IS_NULL);
+      }
+
+      for (Conjunct part : parts) {
+        predicates.add(part.predicate);
+        conjunct.slots.or(part.slots);
+      }
+
+      conjunct.predicate = (relation instanceof ORRelation) ?
+        new RowPredicate.Or(predicates) : new RowPredicate.And(predicates);
+
+      return conjunct;
+    }
+
+    /*
+     * Finds the slot of an entity in the query and the index of an
+     * attribute in the entity, and marks the attribute to be read. An
+     * entity is matched by identity or by table name, and an attribute by
+     * identity or by name. Without an entity, the first table having the
+     * attribute is used.
+     */
+    private int[] resolve(Entity entity, Attribute attribute)
+            throws UnWellFormedQueryException {
+      if (attribute == null) {
+        throw new UnWellFormedQueryException(
+                  UnWellFormedQueryException.SELECTION_ATTRIBUTE_IS_NULL);
+      }
+
+      for (int pass = 0; pass < 2; pass++) {
+        for (int slot = 0; slot < entities.length; slot++) {
+          if (entity != null && !sameEntity(entity, entities[slot], pass)) {
+            continue;
+          }
+          int index = indexOf(entities[slot], attribute);
+          if (index >= 0) {
+            kinds[slot][index] = EntityScan.kindOf(converters[slot][index]);
+            return new int[] { slot, index };
+          }
+        }
+      }
+
+      throw new UnWellFormedQueryException(
+                  "Attribute " + label(attribute) +
+                  " is not in the tables of the query");
+    }
+
+    private boolean sameEntity(Entity entity, Entity other, int pass) {
+      if (pass == 0) {
+        return entity == other;
+      }
+      String name = entity.getDBTableName();
+      return name != null && name.equalsIgnoreCase(other.getDBTableName());
+    }
+
+    private int indexOf(Entity entity, Attribute attribute) {
+      Attribute[] attributes = entity.getAttributes();
+
+      for (int i = 0; i < attributes.length; i++) {
+        if (attributes[i] == attribute) {
+          return i;
+        }
+      }
+
+      for (int i = 0; i < attributes.length; i++) {
+        String name = attributes[i].getName();
+        if (name != null && name.equals(attribute.getName())) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+
+    /*
+     * The values of the selection items of a group: the values of its first
+     * row, and an accumulator for each aggregate.
+     */
+    private class Group {
+      final Object[] first;
+      final Accumulator[] accumulators =
+        new Accumulator[selectionList.length];
+
+      Group(Object[] first) {
+        this.first = first;
+        for (int j = 0; j < selectionList.length; j++) {
+          if (selectionList[j] instanceof AggregateSelectionItem) {
+            accumulators[j] = new Accumulator(
+                ((AggregateSelectionItem) selectionList[j]).getFunction());
+          }
+        }
+      }
+
+      void add(Frame frame, int row) {
+        for (int j = 0; j < accumulators.length; j++) {
+          if (accumulators[j] != null) {
+            accumulators[j].add(
+                frame.get(selectionRefs[j][0], selectionRefs[j][1], row));
+          }
+        }
+      }
+
+      void merge(Group other) {
+        for (int j = 0; j < accumulators.length; j++) {
+          if (accumulators[j] != null) {
+            accumulators[j].merge(other.accumulators[j]);
+          }
+        }
+      }
+
+      Object[] toRow() {
+        Object[] row = new Object[selectionList.length];
+
+        for (int j = 0; j < row.length; j++) {
+          if (accumulators[j] != null) {
+            row[j] = accumulators[j].getValue();
+          }
+          else if (selectionList[j] instanceof StaticSelectionItem) {
+            row[j] = ((StaticSelectionItem) selectionList[j]).getValue();
+          }
+          else if (first != null) {
+            row[j] = first[j];
+          }
+        }
+
+        return row;
+      }
+    }
+  }
+
+
+  /*
+   * Gets the label of an attribute's column: its field name in the
+   * database, or its name if it has none.
+   */
+  private static String label(Attribute attribute) {
+    String name = attribute.getDBFieldName();
+    return (name != null) ? name : attribute.getName();
+  }
+
+
+  /*
+   * Gets the data file registered for an entity, or for an entity with the
+   * same table name.
+   */
+  private File getDataFile(Entity entity) throws IOException {
+    File dataFile = dataFiles.get(entity);
+
+    if (dataFile == null && entity.getDBTableName() != null) {
+      for (Map.Entry<Entity, File> entry : dataFiles.entrySet()) {
+        if (entity.getDBTableName().equalsIgnoreCase(
+                              entry.getKey().getDBTableName())) {
+          dataFile = entry.getValue();
+          break;
+        }
+      }
+    }
+
+    if (dataFile == null) {
+      throw new IOException("No data file is registered for entity " +
+                            entity.getName());
+    }
+
+    return dataFile;
+  }
+
+
+  /*
+   * Joins each row of a frame to the rows of a table with an equal key,
+   * building a hash table of the table's keys and probing it with ranges
+   * of the frame's rows.
+   */
+  private Frame hashJoin(final Frame frame, final int frameSlot,
+                         final int frameAttribute, ColumnTable table,
+                         int newSlot, int newAttribute) {
+    final Map<Object, IntList> hashTable = new HashMap<Object, IntList>();
+    ColumnVector keys = table.columns[newAttribute];
+
+    for (int row = 0; row < table.rowCount; row++) {
+      Object value = keys.get(row);
+      if (value == null) {
+        continue;
+      }
+      Object key = RowPredicate.key(value);
+      IntList rows = hashTable.get(key);
+      if (rows == null) {
+        rows = new IntList();
+        hashTable.put(key, rows);
+      }
+      rows.add(row);
+    }
+
+    List<IntList[]> ranges = forEachRange(frame.rowCount, (from, to) -> {
+      IntList frameRows = new IntList();
+      IntList tableRows = new IntList();
+      for (int i = from; i < to; i++) {
+        Object value = frame.get(frameSlot, frameAttribute, i);
+        if (value == null) {
+          continue;
+        }
+        IntList matches = hashTable.get(RowPredicate.key(value));
+        if (matches == null) {
+          continue;
+        }
+        for (int k = 0; k < matches.size; k++) {
+          frameRows.add(i);
+          tableRows.add(matches.values[k]);
+        }
+      }
+      return new IntList[] { frameRows, tableRows };
+    });
+
+    int rowCount = 0;
+    for (IntList[] range : ranges) {
+      rowCount += range[0].size;
+    }
+
+    ColumnTable[] tables = frame.tables.clone();
+    int[][] indices = new int[tables.length][];
+    tables[newSlot] = table;
+
+    for (int slot = 0; slot < tables.length; slot++) {
+      if (tables[slot] == null) {
+        continue;
+      }
+      indices[slot] = new int[rowCount];
+      int j = 0;
+      for (IntList[] range : ranges) {
+        for (int k = 0; k < range[0].size; k++) {
+          indices[slot][j++] = (slot == newSlot) ?
+            range[1].values[k] : frame.row(slot, range[0].values[k]);
+        }
+      }
+    }
+
+    return new Frame(rowCount, tables, indices);
+  }
+
+
+  /*
+   * Joins each row of a frame to every row of a table.
+   */
+  private Frame crossJoin(Frame frame, ColumnTable table, int newSlot)
+          throws UnWellFormedQueryException {
+    long size = (long) frame.rowCount * table.rowCount;
+
+    if (size > Integer.MAX_VALUE) {
+      throw new UnWellFormedQueryException(
+                  "The tables of the query have no join condition and " +
+                  "their product is too large");
+    }
+
+    int rowCount = (int) size;
+    ColumnTable[] tables = frame.tables.clone();
+    int[][] indices = new int[tables.length][];
+    tables[newSlot] = table;
+
+    for (int slot = 0; slot < tables.length; slot++) {
+      if (tables[slot] != null) {
+        indices[slot] = new int[rowCount];
+      }
+    }
+
+    int j = 0;
+    for (int i = 0; i < frame.rowCount; i++) {
+      for (int row = 0; row < table.rowCount; row++) {
+        for (int slot = 0; slot < tables.length; slot++) {
+          if (slot == newSlot) {
+            indices[slot][j] = row;
+          }
+          else if (tables[slot] != null) {
+            indices[slot][j] = frame.row(slot, i);
+          }
+        }
+        j++;
+      }
+    }
+
+    return new Frame(rowCount, tables, indices);
+  }
+
+
+  /*
+   * A condition of the WHERE clause, the tables it refers to, and, for a
+   * join of two tables, the slot and attribute of each side.
+   */
+  private static class Conjunct {
+    RowPredicate predicate;
+    final BitSet slots = new BitSet();
+    int[] join;
+    boolean applied;
+  }
+
+
+  /*
+   * Computes a COUNT, AVG, MIN or MAX over the values of a group. COUNT
+   * counts the values that are not null; AVG averages the numbers.
+   */
+  private static class Accumulator {
+    final String function;
+    long count;
+    long numberCount;
+    double sum;
+    Object min;
+    Object max;
+
+    Accumulator(String function) {
+      this.function = function.trim().toUpperCase();
+    }
+
+    void add(Object value) {
+      if (value == null) {
+        return;
+      }
+      count++;
+      if (value instanceof Number) {
+        numberCount++;
+        sum += ((Number) value).doubleValue();
+      }
+      if (min == null || compare(value, min) < 0) {
+        min = value;
+      }
+      if (max == null || compare(value, max) > 0) {
+        max = value;
+      }
+    }
+
+    void merge(Accumulator other) {
+      count += other.count;
+      numberCount += other.numberCount;
+      sum += other.sum;
+      if (other.min != null && (min == null || compare(other.min, min) < 0)) {
+        min = other.min;
+      }
+      if (other.max != null && (max == null || compare(other.max, max) > 0)) {
+        max = other.max;
+      }
+    }
+
+    Object getValue() {
+      if (function.equals(AggregateSelectionItem.COUNT_FUNCTION)) {
+        return Long.valueOf(count);
+      }
+      else if (function.equals(AggregateSelectionItem.AVERAGE_FUNCTION)) {
+        return (numberCount == 0) ? null : Double.valueOf(sum / numberCount);
+      }
+      else if (function.equals(AggregateSelectionItem.MIN_FUNCTION)) {
+        return min;
+      }
+      return max;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compare(Object a, Object b) {
+      if (a instanceof Number && b instanceof Number) {
+        return Double.compare(((Number) a).doubleValue(),
+                              ((Number) b).doubleValue());
+      }
+      else if (a.getClass() == b.getClass() && a instanceof Comparable) {
+        return ((Comparable) a).compareTo(b);
+      }
+      return a.toString().compareTo(b.toString());
+    }
+  }
+
+
+  /*
+   * A growable array of row numbers.
+   */
+  private static class IntList {
+    int[] values = new int[16];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+  }
+
+
+  /*
+   * A function over a range of rows.
+   */
+  private interface RangeFunction<T> {
+    T apply(int from, int to);
+  }
+
+
+  /*
+   * Splits a range of rows in halves until they are no larger than the
+   * range size, applies the function to each, and gathers the results in
+   * order.
+   */
+  private static class RangeTask<T> extends RecursiveTask<List<T>> {
+    private static final long serialVersionUID = 1L;
+
+    private final RangeFunction<T> function;
+    private final int from;
+    private final int to;
+    private final int rangeSize;
+
+    RangeTask(RangeFunction<T> function, int from, int to, int rangeSize) {
+      this.function = function;
+      this.from = from;
+      this.to = to;
+      this.rangeSize = rangeSize;
+    }
+
+    protected List<T> compute() {
+      if (to - from <= rangeSize) {
+        List<T> results = new ArrayList<T>(1);
+        results.add(function.apply(from, to));
+        return results;
+      }
+
+      int middle = from + (to - from) / 2;
+      RangeTask<T> left = new RangeTask<T>(function, from, middle, rangeSize);
+      RangeTask<T> right = new RangeTask<T>(function, middle, to, rangeSize);
+      left.fork();
+      List<T> results = new ArrayList<T>(right.compute());
+      results.addAll(0, left.join());
+      return results;
+    }
+  }
+
+}
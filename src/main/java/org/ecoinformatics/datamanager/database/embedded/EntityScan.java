@@ -0,0 +1,224 @@
+package org.ecoinformatics.datamanager.database.embedded;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ecoinformatics.datamanager.database.AttributeConverter;
+import org.ecoinformatics.datamanager.database.DataNotMatchingMetadataException;
+import org.ecoinformatics.datamanager.database.Row;
+
+/**
+ * Reads the rows of an entity's data file into column tables. The file is
+ * split on record boundaries into ranges that are read by the tasks of a
+ * fork-join pool. Each range is read in batches: the attributes that the
+ * query refers to are converted into column vectors, and the rows that
+ * fail the conditions on the entity alone are dropped before the batch is
+ * kept. The tables are returned in the order of the file.
+ */
+class EntityScan extends RecursiveTask<List<ColumnTable>> {
+
+  /*
+   * Class fields
+   */
+
+  private static final long serialVersionUID = 1L;
+
+
+  /*
+   * Instance fields
+   */
+
+  private final Spliterator<Row> spliterator;
+  private final AttributeConverter[] converters;
+  private final int[] kinds;
+  private final RowPredicate filter;
+  private final int slot;
+  private final int slotCount;
+  private final int batchSize;
+  private final AtomicLong conversionErrors;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a scan.
+   *
+   * @param spliterator       the rows of the data file
+   * @param converters        the converters of the attributes of the entity
+   * @param kinds             the kind of vector of each attribute, or 0 for
+   *                          attributes that are not read
+   * @param filter            the conditions on the entity alone, or null
+   * @param slot              the slot of the entity in the query
+   * @param slotCount         the number of tables in the query
+   * @param batchSize         the number of rows converted at a time
+   * @param conversionErrors  the count of values that did not match their
+   *                          attribute's type and were read as null
+   */
+  EntityScan(Spliterator<Row> spliterator, AttributeConverter[] converters,
+             int[] kinds, RowPredicate filter, int slot, int slotCount,
+             int batchSize, AtomicLong conversionErrors) {
+    this.spliterator = spliterator;
+    this.converters = converters;
+    this.kinds = kinds;
+    this.filter = filter;
+    this.slot = slot;
+    this.slotCount = slotCount;
+    this.batchSize = batchSize;
+    this.conversionErrors = conversionErrors;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the kind of vector that holds the values of an attribute.
+   *
+   * @param converter  the converter of the attribute
+   * @return the kind
+   */
+  static int kindOf(AttributeConverter converter) {
+    switch (converter.getKind()) {
+      case AttributeConverter.KIND_INTEGER:
+        return ColumnVector.KIND_INT;
+      case AttributeConverter.KIND_FLOAT:
+        return ColumnVector.KIND_DOUBLE;
+      default:
+        return ColumnVector.KIND_OBJECT;
+    }
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Splits off the leading ranges of the file to be read by other tasks,
+   * reads the last range, and gathers the tables in order.
+   *
+   * @return the tables read from the file
+   */
+  protected List<ColumnTable> compute() {
+    List<EntityScan> prefixes = new ArrayList<EntityScan>();
+    Spliterator<Row> prefix;
+
+    while ((prefix = spliterator.trySplit()) != null) {
+      EntityScan task = new EntityScan(prefix, converters, kinds, filter,
+                                       slot, slotCount, batchSize,
+                                       conversionErrors);
+      task.fork();
+      prefixes.add(task);
+    }
+
+    List<ColumnTable> own = read();
+    List<ColumnTable> tables = new ArrayList<ColumnTable>();
+
+    for (EntityScan task : prefixes) {
+      tables.addAll(task.join());
+    }
+    tables.addAll(own);
+
+    return tables;
+  }
+
+
+  /*
+   * Reads the range of this task a batch at a time.
+   */
+  private List<ColumnTable> read() {
+    final List<ColumnTable> tables = new ArrayList<ColumnTable>();
+    final String[][] batch = new String[kinds.length][];
+    final int[] count = new int[1];
+
+    for (int i = 0; i < kinds.length; i++) {
+      if (kinds[i] != 0) {
+        batch[i] = new String[batchSize];
+      }
+    }
+
+    while (spliterator.tryAdvance(row -> {
+      for (int i = 0; i < kinds.length; i++) {
+        if (batch[i] != null) {
+          batch[i][count[0]] = (i < row.size()) ? row.get(i) : null;
+        }
+      }
+      count[0]++;
+    })) {
+      if (count[0] == batchSize) {
+        addBatch(tables, batch, count[0]);
+        count[0] = 0;
+      }
+    }
+
+    if (count[0] > 0) {
+      addBatch(tables, batch, count[0]);
+    }
+
+    return tables;
+  }
+
+
+  /*
+   * Converts a batch of values, filters it and keeps the rows that pass.
+   */
+  private void addBatch(List<ColumnTable> tables, String[][] batch,
+                        int size) {
+    ColumnVector[] columns = new ColumnVector[kinds.length];
+    Object[] values = new Object[size];
+
+    for (int i = 0; i < kinds.length; i++) {
+      if (batch[i] == null) {
+        continue;
+      }
+      for (int j = 0; j < size; j++) {
+        values[j] = convert(converters[i], batch[i][j]);
+      }
+      columns[i] = ColumnVector.of(kinds[i], values, size);
+    }
+
+    ColumnTable table = new ColumnTable(size, columns);
+
+    if (filter != null) {
+      BitSet selected = new BitSet(size);
+      selected.set(0, size);
+      filter.filter(new Frame(slotCount, slot, table), selected);
+      table = table.select(selected);
+    }
+
+    if (table.rowCount > 0) {
+      tables.add(table);
+    }
+  }
+
+
+  /*
+   * Converts a value of the data file. A value that does not match the
+   * attribute's type is counted and read as null; the value of an attribute
+   * of unknown type is kept as it is.
+   */
+  private Object convert(AttributeConverter converter, String value) {
+    if (converter.isNullValue(value)) {
+      return null;
+    }
+    else if (converter.getKind() == AttributeConverter.KIND_UNKNOWN) {
+      return value;
+    }
+
+    try {
+      return converter.convertValue(value);
+    }
+    catch (DataNotMatchingMetadataException e) {
+      conversionErrors.incrementAndGet();
+      return null;
+    }
+  }
+
+}
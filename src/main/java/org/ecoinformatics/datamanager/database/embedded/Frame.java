@@ -0,0 +1,95 @@
+package org.ecoinformatics.datamanager.database.embedded;
+
+/**
+ * The rows produced by scanning and joining the tables of a query. Each
+ * table of the query has a slot; a row of the frame is a row number in
+ * each of the tables that have been joined so far. The row numbers are
+ * held as one array per slot, or the frame has a single table whose rows
+ * are its own.
+ */
+class Frame {
+
+  /*
+   * Instance fields
+   */
+
+  final int rowCount;
+  final ColumnTable[] tables;
+  final int[][] indices;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a frame of the rows of one table.
+   *
+   * @param slotCount  the number of tables in the query
+   * @param slot       the slot of the table
+   * @param table      the table
+   */
+  Frame(int slotCount, int slot, ColumnTable table) {
+    this.rowCount = table.rowCount;
+    this.tables = new ColumnTable[slotCount];
+    this.indices = new int[slotCount][];
+    this.tables[slot] = table;
+  }
+
+
+  /**
+   * Constructs a frame of joined rows.
+   *
+   * @param rowCount  the number of rows
+   * @param tables    the table in each slot, or null for tables that have
+   *                  not been joined
+   * @param indices   the row numbers of each joined table
+   */
+  Frame(int rowCount, ColumnTable[] tables, int[][] indices) {
+    this.rowCount = rowCount;
+    this.tables = tables;
+    this.indices = indices;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Gets the vector of an attribute of a table.
+   *
+   * @param slot       the slot of the table
+   * @param attribute  the index of the attribute in the entity
+   * @return the vector
+   */
+  ColumnVector column(int slot, int attribute) {
+    return tables[slot].columns[attribute];
+  }
+
+
+  /**
+   * Gets the row number in a table of a row of the frame.
+   *
+   * @param slot  the slot of the table
+   * @param row   the row of the frame
+   * @return the row of the table
+   */
+  int row(int slot, int row) {
+    return (indices[slot] == null) ? row : indices[slot][row];
+  }
+
+
+  /**
+   * Gets a value of a row of the frame.
+   *
+   * @param slot       the slot of the table
+   * @param attribute  the index of the attribute in the entity
+   * @param row        the row of the frame
+   * @return the value, or null
+   */
+  Object get(int slot, int attribute, int row) {
+    return tables[slot].columns[attribute].get(row(slot, row));
+  }
+
+}
@@ -0,0 +1,355 @@
+package org.ecoinformatics.datamanager.database.embedded;
+
+import java.sql.Timestamp;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.ecoinformatics.datamanager.database.ConditionInterface;
+
+/**
+ * A condition of a WHERE clause, compiled to test the rows of a frame a
+ * vector at a time. A null value fails every test, as it does in SQL.
+ */
+abstract class RowPredicate {
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the key under which a value is compared for equality in joins and
+   * IN lists, so that an Integer and a Double of the same number are equal.
+   *
+   * @param value  the value, which is not null
+   * @return the key
+   */
+  static Object key(Object value) {
+    if (value instanceof Number) {
+      return Double.valueOf(((Number) value).doubleValue());
+    }
+    return value;
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Clears the selected rows of a frame that fail this predicate.
+   *
+   * @param frame     the frame
+   * @param selected  the rows to test, which is changed in place
+   */
+  abstract void filter(Frame frame, BitSet selected);
+
+
+  /*
+   * Tests the result of a comparison against a comparison operator.
+   */
+  static boolean matches(String operator, int comparison) {
+    if (operator.equals(ConditionInterface.EQUAL_OPERATOR)) {
+      return comparison == 0;
+    }
+    else if (operator.equals(ConditionInterface.NOT_EQUAL_OPERATOR)) {
+      return comparison != 0;
+    }
+    else if (operator.equals(ConditionInterface.LESS_THAN_OPERATOR)) {
+      return comparison < 0;
+    }
+    else if (operator.equals(
+                 ConditionInterface.LESS_THAN_OR_EQUALS_OPERATOR)) {
+      return comparison <= 0;
+    }
+    else if (operator.equals(ConditionInterface.GREATER_THAN_OPERATOR)) {
+      return comparison > 0;
+    }
+    return comparison >= 0;
+  }
+
+
+  /*
+   * Compares two numbers, treating 0.0 and -0.0 as equal.
+   */
+  static int compare(double a, double b) {
+    return (a < b) ? -1 : ((a > b) ? 1 : 0);
+  }
+
+
+  /**
+   * Compares an attribute with a value. A numeric attribute is compared
+   * with the value as a number, and a date-time attribute with the value
+   * as a timestamp, when the value can be read as one; otherwise the
+   * attribute is compared with the value as a string.
+   */
+  static class Compare extends RowPredicate {
+    private final int slot;
+    private final int attribute;
+    private final String operator;
+    private final Object value;
+    private final String text;
+    private final boolean numeric;
+    private final double number;
+    private final Timestamp timestamp;
+
+    Compare(int slot, int attribute, String operator, Object value) {
+      this.slot = slot;
+      this.attribute = attribute;
+      this.operator = operator;
+      this.value = value;
+      this.text = value.toString();
+      this.numeric = (value instanceof Number) || isNumber(text);
+      this.number = numeric ? Double.parseDouble(text.trim()) : 0;
+      this.timestamp = toTimestamp(text);
+    }
+
+    void filter(Frame frame, BitSet selected) {
+      ColumnVector vector = frame.column(slot, attribute);
+      int[] rows = frame.indices[slot];
+
+      if (vector.kind != ColumnVector.KIND_OBJECT && !numeric) {
+        // A number never equals a value that is not one
+        boolean notEqual =
+          operator.equals(ConditionInterface.NOT_EQUAL_OPERATOR);
+        for (int i = selected.nextSetBit(0); i >= 0;
+             i = selected.nextSetBit(i + 1)) {
+          int row = (rows == null) ? i : rows[i];
+          if (!notEqual || vector.nulls.get(row)) selected.clear(i);
+        }
+      }
+      else if (vector.kind == ColumnVector.KIND_INT) {
+        for (int i = selected.nextSetBit(0); i >= 0;
+             i = selected.nextSetBit(i + 1)) {
+          int row = (rows == null) ? i : rows[i];
+          if (vector.nulls.get(row) ||
+              !matches(operator, compare(vector.ints[row], number))) {
+            selected.clear(i);
+          }
+        }
+      }
+      else if (vector.kind == ColumnVector.KIND_DOUBLE) {
+        for (int i = selected.nextSetBit(0); i >= 0;
+             i = selected.nextSetBit(i + 1)) {
+          int row = (rows == null) ? i : rows[i];
+          if (vector.nulls.get(row) ||
+              !matches(operator, compare(vector.doubles[row], number))) {
+            selected.clear(i);
+          }
+        }
+      }
+      else {
+        for (int i = selected.nextSetBit(0); i >= 0;
+             i = selected.nextSetBit(i + 1)) {
+          int row = (rows == null) ? i : rows[i];
+          Object cell = vector.objects[row];
+          if (cell == null || !test(cell)) selected.clear(i);
+        }
+      }
+    }
+
+    private boolean test(Object cell) {
+      if (cell instanceof Timestamp && timestamp != null) {
+        return matches(operator, ((Timestamp) cell).compareTo(timestamp));
+      }
+      else if (value instanceof Number) {
+        String cellText = cell.toString();
+        if (!isNumber(cellText)) {
+          return false;
+        }
+        return matches(operator,
+                       compare(Double.parseDouble(cellText.trim()), number));
+      }
+      return matches(operator, cell.toString().compareTo(text));
+    }
+
+    private static boolean isNumber(String text) {
+      try {
+        double parsed = Double.parseDouble(text.trim());
+        return !Double.isNaN(parsed);
+      }
+      catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    /*
+     * Reads a value as a timestamp, taking a date alone as midnight.
+     */
+    private static Timestamp toTimestamp(String text) {
+      String trimmed = text.trim();
+
+      if (trimmed.length() == 10) {
+        trimmed = trimmed + " 00:00:00";
+      }
+
+      try {
+        return Timestamp.valueOf(trimmed);
+      }
+      catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+  }
+
+
+  /**
+   * Matches an attribute, as a string, against a LIKE pattern, in which
+   * '%' stands for any characters and '_' for any one character.
+   */
+  static class Like extends RowPredicate {
+    private final int slot;
+    private final int attribute;
+    private final boolean not;
+    private final Pattern pattern;
+
+    Like(int slot, int attribute, String likePattern, boolean not) {
+      this.slot = slot;
+      this.attribute = attribute;
+      this.not = not;
+      this.pattern = toPattern(likePattern);
+    }
+
+    void filter(Frame frame, BitSet selected) {
+      ColumnVector vector = frame.column(slot, attribute);
+
+      for (int i = selected.nextSetBit(0); i >= 0;
+           i = selected.nextSetBit(i + 1)) {
+        Object cell = vector.get(frame.row(slot, i));
+        if (cell == null ||
+            pattern.matcher(cell.toString()).matches() == not) {
+          selected.clear(i);
+        }
+      }
+    }
+
+    private static Pattern toPattern(String likePattern) {
+      StringBuffer regex = new StringBuffer();
+      StringBuffer literal = new StringBuffer();
+
+      for (int i = 0; i < likePattern.length(); i++) {
+        char c = likePattern.charAt(i);
+        if (c == '%' || c == '_') {
+          if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+            literal.setLength(0);
+          }
+          regex.append((c == '%') ? ".*" : ".");
+        }
+        else {
+          literal.append(c);
+        }
+      }
+
+      if (literal.length() > 0) {
+        regex.append(Pattern.quote(literal.toString()));
+      }
+
+      return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+  }
+
+
+  /**
+   * Tests whether two attributes are equal, for a join condition.
+   */
+  static class ColumnsEqual extends RowPredicate {
+    private final int leftSlot;
+    private final int leftAttribute;
+    private final int rightSlot;
+    private final int rightAttribute;
+
+    ColumnsEqual(int leftSlot, int leftAttribute,
+                 int rightSlot, int rightAttribute) {
+      this.leftSlot = leftSlot;
+      this.leftAttribute = leftAttribute;
+      this.rightSlot = rightSlot;
+      this.rightAttribute = rightAttribute;
+    }
+
+    void filter(Frame frame, BitSet selected) {
+      for (int i = selected.nextSetBit(0); i >= 0;
+           i = selected.nextSetBit(i + 1)) {
+        Object left = frame.get(leftSlot, leftAttribute, i);
+        Object right = frame.get(rightSlot, rightAttribute, i);
+        if (left == null || right == null || !key(left).equals(key(right))) {
+          selected.clear(i);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Tests whether an attribute is, or is not, among the values of a
+   * subquery.
+   */
+  static class In extends RowPredicate {
+    private final int slot;
+    private final int attribute;
+    private final Set<Object> keys;
+    private final boolean not;
+
+    In(int slot, int attribute, Set<Object> keys, boolean not) {
+      this.slot = slot;
+      this.attribute = attribute;
+      this.keys = keys;
+      this.not = not;
+    }
+
+    void filter(Frame frame, BitSet selected) {
+      for (int i = selected.nextSetBit(0); i >= 0;
+           i = selected.nextSetBit(i + 1)) {
+        Object cell = frame.get(slot, attribute, i);
+        if (cell == null || keys.contains(key(cell)) == not) {
+          selected.clear(i);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Passes the rows that pass all of its predicates.
+   */
+  static class And extends RowPredicate {
+    private final List<RowPredicate> predicates;
+
+    And(List<RowPredicate> predicates) {
+      this.predicates = predicates;
+    }
+
+    void filter(Frame frame, BitSet selected) {
+      for (RowPredicate predicate : predicates) {
+        predicate.filter(frame, selected);
+      }
+    }
+  }
+
+
+  /**
+   * Passes the rows that pass any of its predicates.
+   */
+  static class Or extends RowPredicate {
+    private final List<RowPredicate> predicates;
+
+    Or(List<RowPredicate> predicates) {
+      this.predicates = predicates;
+    }
+
+    void filter(Frame frame, BitSet selected) {
+      BitSet passed = new BitSet(frame.rowCount);
+
+      for (RowPredicate predicate : predicates) {
+        BitSet tested = (BitSet) selected.clone();
+        tested.andNot(passed);
+        predicate.filter(frame, tested);
+        passed.or(tested);
+      }
+
+      selected.and(passed);
+    }
+  }
+
+}
@@ -0,0 +1,733 @@
+package org.ecoinformatics.datamanager.database.pooling;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.datamanager.database.ConnectionNotAvailableException;
+import org.ecoinformatics.datamanager.database.DatabaseConnectionPoolInterface;
+import org.ecoinformatics.datamanager.database.PreparedStatementCache;
+
+/**
+ * A bounded pool of connections opened from a DataSource. At most
+ * maxConnections connections are checked out at a time; callers that ask for
+ * more wait in a first-come, first-served queue until a connection is
+ * returned or the connection timeout passes, when a
+ * ConnectionNotAvailableException is thrown.
+ *
+ * Returned connections are kept open for reuse. A connection that has been
+ * idle for longer than the validation interval is checked with the
+ * validation query before it is handed out again, connections idle for
+ * longer than the idle timeout are closed, keeping at least minConnections
+ * open, and connections checked out for longer than the leak threshold are
+ * logged together with the stack trace of the code that took them. If a
+ * leak timeout is set, a connection checked out for longer than it, such
+ * as that of a ResultSet that was never closed, is closed and its place in
+ * the pool is reclaimed. By default none is set, since loads and exports
+ * may hold a connection for as long as they run.
+ *
+ * The pool's options are read from the datamanager properties by
+ * fromOptions(): dbMaxConnections, dbMinConnections, dbConnectionTimeout,
+ * dbIdleTimeout, dbLeakThreshold and dbLeakTimeout, the times being in
+ * milliseconds.
+ */
+public class BoundedConnectionPool implements DatabaseConnectionPoolInterface {
+
+	public static Log log = LogFactory.getLog(BoundedConnectionPool.class);
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+	public static final int DEFAULT_MIN_CONNECTIONS = 0;
+
+	/* As long as the 10 tries, 2 seconds apart, that DataManager used to make */
+	public static final long DEFAULT_CONNECTION_TIMEOUT = 20000;
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 600000;
+	public static final long DEFAULT_LEAK_THRESHOLD = 300000;
+	public static final long DEFAULT_LEAK_TIMEOUT = 0;
+	public static final long DEFAULT_VALIDATION_INTERVAL = 5000;
+	public static final long MAINTENANCE_INTERVAL = 30000;
+
+	private final DataSource dataSource;
+	private final String databaseAdapterName;
+	private final String validationQuery;
+	private final int minConnections;
+	private final int maxConnections;
+	private volatile long connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private volatile long leakThreshold = DEFAULT_LEAK_THRESHOLD;
+	private volatile long leakTimeout = DEFAULT_LEAK_TIMEOUT;
+	private volatile long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
+	/* A permit for each connection that may be checked out, handed out fairly */
+	private final Semaphore permits;
+
+	/* Idle connections, the most recently returned first */
+	private final LinkedList<IdleConnection> idleConnections =
+		new LinkedList<IdleConnection>();
+
+	/* The checked out connections */
+	private final Map<Connection, Lease> leases =
+		Collections.synchronizedMap(new IdentityHashMap<Connection, Lease>());
+
+	private final Timer maintenanceTimer;
+	private volatile boolean closed = false;
+
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong invalidCount = new AtomicLong();
+	private final AtomicLong leakCount = new AtomicLong();
+	private final AtomicLong reclaimedCount = new AtomicLong();
+
+	/**
+	 * Constructs a pool.
+	 *
+	 * @param dataSource           opens the connections of the pool
+	 * @param databaseAdapterName  the name of the database adapter
+	 * @param validationQuery      a query that succeeds on a usable
+	 *                             connection, or null to only check that
+	 *                             connections are open
+	 * @param minConnections       the number of connections kept open
+	 * @param maxConnections       the number of connections that may be
+	 *                             checked out at a time
+	 */
+	public BoundedConnectionPool(DataSource dataSource,
+			String databaseAdapterName, String validationQuery,
+			int minConnections, int maxConnections) {
+		this.dataSource = dataSource;
+		this.databaseAdapterName = databaseAdapterName;
+		this.validationQuery = validationQuery;
+		this.maxConnections = (maxConnections > 0) ? maxConnections
+				: DEFAULT_MAX_CONNECTIONS;
+		this.minConnections = Math.max(0, Math.min(minConnections,
+				this.maxConnections));
+		this.permits = new Semaphore(this.maxConnections, true);
+
+		maintenanceTimer = new Timer("BoundedConnectionPool-maintenance", true);
+		maintenanceTimer.schedule(new TimerTask() {
+			public void run() {
+				runMaintenance();
+			}
+		}, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL);
+	}
+
+	/**
+	 * Creates a pool configured by the datamanager properties. Options that
+	 * are missing or not numbers take their default values.
+	 *
+	 * @param dataSource           opens the connections of the pool
+	 * @param databaseAdapterName  the name of the database adapter
+	 * @param validationQuery      a query that succeeds on a usable connection
+	 * @param options              the datamanager properties
+	 * @return the pool
+	 */
+	public static BoundedConnectionPool fromOptions(DataSource dataSource,
+			String databaseAdapterName, String validationQuery,
+			ResourceBundle options) {
+		BoundedConnectionPool pool = new BoundedConnectionPool(dataSource,
+				databaseAdapterName, validationQuery,
+				(int) getOption(options, "dbMinConnections",
+						DEFAULT_MIN_CONNECTIONS),
+				(int) getOption(options, "dbMaxConnections",
+						DEFAULT_MAX_CONNECTIONS));
+		pool.setConnectionTimeout(getOption(options, "dbConnectionTimeout",
+				DEFAULT_CONNECTION_TIMEOUT));
+		pool.setIdleTimeout(getOption(options, "dbIdleTimeout",
+				DEFAULT_IDLE_TIMEOUT));
+		pool.setLeakThreshold(getOption(options, "dbLeakThreshold",
+				DEFAULT_LEAK_THRESHOLD));
+		pool.setLeakTimeout(getOption(options, "dbLeakTimeout",
+				DEFAULT_LEAK_TIMEOUT));
+
+		return pool;
+	}
+
+	/*
+	 * Gets a numeric option, or its default value if it is missing or not a
+	 * number.
+	 */
+	private static long getOption(ResourceBundle options, String key,
+			long defaultValue) {
+		try {
+			return Long.parseLong(options.getString(key).trim());
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get dabase adpater name.
+	 *
+	 * @return database adapter name
+	 */
+	public String getDBAdapterName() {
+		return databaseAdapterName;
+	}
+
+	/**
+	 * Gets a connection from the pool, waiting for one to be returned if
+	 * maxConnections connections are checked out.
+	 *
+	 * @return checked out connection
+	 * @throws SQLException if a new connection cannot be opened
+	 * @throws ConnectionNotAvailableException if no connection was returned
+	 *         within the connection timeout
+	 */
+	public Connection getConnection() throws SQLException,
+			ConnectionNotAvailableException {
+		if (closed) {
+			throw new SQLException("The connection pool is closed");
+		}
+
+		long start = System.nanoTime();
+		boolean acquired = false;
+
+		try {
+			acquired = permits.tryAcquire(connectionTimeout,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		recordWait(System.nanoTime() - start);
+
+		if (!acquired) {
+			timeoutCount.incrementAndGet();
+			log.warn("No connection was available within "
+					+ connectionTimeout + " ms: " + this);
+			throw new ConnectionNotAvailableException();
+		}
+
+		try {
+			Connection connection = takeIdleConnection();
+
+			if (connection == null) {
+				connection = dataSource.getConnection();
+				createdCount.incrementAndGet();
+			}
+
+			leases.put(connection, new Lease(leakThreshold > 0));
+			borrowCount.incrementAndGet();
+
+			return connection;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a checked out connection to the pool. Any open transaction is
+	 * rolled back and auto-commit is switched back on. Connections that are
+	 * closed, or that cannot be reset, are discarded.
+	 *
+	 * @param conn
+	 *            Connection needs to be returned.
+	 * @return true if the connection was checked out from the pool
+	 */
+	public boolean returnConnection(Connection conn) {
+		if (conn == null) {
+			return false;
+		}
+
+		Lease lease = leases.remove(conn);
+
+		if (lease == null) {
+			if (isIdle(conn)) {
+				log.warn("A connection was returned to the pool twice");
+			} else {
+				log.warn("A connection that was not checked out from the "
+						+ "pool was returned to it and is closed");
+				closeQuietly(conn);
+			}
+			return false;
+		}
+
+		try {
+			if (!closed && resetConnection(conn)) {
+				synchronized (idleConnections) {
+					idleConnections.addFirst(new IdleConnection(conn));
+				}
+			} else {
+				closeQuietly(conn);
+			}
+		} finally {
+			permits.release();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Closes idle connections that have timed out, opens connections up to
+	 * minConnections, logs connections that have been checked out for
+	 * longer than the leak threshold and reclaims those checked out for
+	 * longer than the leak timeout. This is run periodically by a
+	 * background thread.
+	 */
+	public void runMaintenance() {
+		if (closed) {
+			return;
+		}
+
+		evictIdleConnections();
+		fillIdleConnections();
+		detectLeaks();
+	}
+
+	/**
+	 * Closes the idle connections and stops the maintenance thread.
+	 * Connections that are checked out are closed when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		maintenanceTimer.cancel();
+		List<IdleConnection> connections;
+
+		synchronized (idleConnections) {
+			connections = new ArrayList<IdleConnection>(idleConnections);
+			idleConnections.clear();
+		}
+
+		for (IdleConnection idleConnection : connections) {
+			closeQuietly(idleConnection.connection);
+		}
+	}
+
+	/*
+	 * Takes the most recently returned idle connection that is still usable,
+	 * or returns null if there is none.
+	 */
+	private Connection takeIdleConnection() {
+		while (true) {
+			IdleConnection idleConnection;
+
+			synchronized (idleConnections) {
+				idleConnection = idleConnections.poll();
+			}
+
+			if (idleConnection == null) {
+				return null;
+			}
+
+			if (isUsable(idleConnection)) {
+				return idleConnection.connection;
+			}
+
+			invalidCount.incrementAndGet();
+			closeQuietly(idleConnection.connection);
+		}
+	}
+
+	/*
+	 * Checks that an idle connection is open and, if it has been idle for
+	 * longer than the validation interval, that the validation query runs.
+	 */
+	private boolean isUsable(IdleConnection idleConnection) {
+		Connection connection = idleConnection.connection;
+
+		try {
+			if (connection.isClosed()) {
+				return false;
+			}
+
+			if (validationQuery != null
+					&& idleConnection.idleMillis() > validationInterval) {
+				Statement statement = connection.createStatement();
+				try {
+					statement.executeQuery(validationQuery).close();
+				} finally {
+					statement.close();
+				}
+			}
+
+			return true;
+		} catch (SQLException e) {
+			log.debug("Discarding a connection that failed validation: "
+					+ e.getMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * Rolls back any open transaction of a returned connection and switches
+	 * auto-commit back on.
+	 */
+	private boolean resetConnection(Connection connection) {
+		try {
+			if (connection.isClosed()) {
+				return false;
+			}
+
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			connection.clearWarnings();
+
+			return true;
+		} catch (SQLException e) {
+			log.debug("Discarding a connection that could not be reset: "
+					+ e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean isIdle(Connection connection) {
+		synchronized (idleConnections) {
+			for (IdleConnection idleConnection : idleConnections) {
+				if (idleConnection.connection == connection) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/*
+	 * Closes the connections that have been idle for longer than the idle
+	 * timeout, oldest first, keeping minConnections connections open.
+	 */
+	private void evictIdleConnections() {
+		List<Connection> evicted = new ArrayList<Connection>();
+
+		synchronized (idleConnections) {
+			Iterator<IdleConnection> iterator =
+				idleConnections.descendingIterator();
+			while (iterator.hasNext()
+					&& idleConnections.size() + leases.size() > minConnections) {
+				IdleConnection idleConnection = iterator.next();
+				if (idleConnection.idleMillis() <= idleTimeout) {
+					break;
+				}
+				iterator.remove();
+				evicted.add(idleConnection.connection);
+			}
+		}
+
+		for (Connection connection : evicted) {
+			evictedCount.incrementAndGet();
+			closeQuietly(connection);
+		}
+	}
+
+	/*
+	 * Opens idle connections until minConnections connections are open.
+	 */
+	private void fillIdleConnections() {
+		while (!closed && getIdleConnections() + getActiveConnections() < minConnections) {
+			try {
+				Connection connection = dataSource.getConnection();
+				createdCount.incrementAndGet();
+				synchronized (idleConnections) {
+					idleConnections.addLast(new IdleConnection(connection));
+				}
+			} catch (SQLException e) {
+				log.warn("Could not open a connection for the pool: "
+						+ e.getMessage());
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Logs the connections checked out for longer than the leak threshold,
+	 * once each. A leaked connection that was closed rather than returned is
+	 * taken off the pool so that its place can be used again, and so is one
+	 * held for longer than the leak timeout, which is closed first.
+	 */
+	private void detectLeaks() {
+		if (leakThreshold <= 0 && leakTimeout <= 0) {
+			return;
+		}
+
+		List<Map.Entry<Connection, Lease>> expired =
+			new ArrayList<Map.Entry<Connection, Lease>>();
+		List<Map.Entry<Connection, Lease>> timedOut =
+			new ArrayList<Map.Entry<Connection, Lease>>();
+
+		synchronized (leases) {
+			for (Map.Entry<Connection, Lease> entry : leases.entrySet()) {
+				Lease lease = entry.getValue();
+				if (leakTimeout > 0 && lease.heldMillis() > leakTimeout) {
+					timedOut.add(entry);
+				} else if (leakThreshold > 0 && !lease.reported
+						&& lease.heldMillis() > leakThreshold) {
+					lease.reported = true;
+					expired.add(entry);
+				}
+			}
+		}
+
+		for (Map.Entry<Connection, Lease> entry : timedOut) {
+			Connection connection = entry.getKey();
+			Lease lease = entry.getValue();
+
+			if (leases.remove(connection) != null) {
+				if (!lease.reported) {
+					leakCount.incrementAndGet();
+				}
+				reclaimedCount.incrementAndGet();
+				log.warn("A connection checked out by " + lease.threadName
+						+ " for " + lease.heldMillis() + " ms is closed and "
+						+ "its place in the pool reclaimed", lease.origin);
+				closeQuietly(connection);
+				permits.release();
+			}
+		}
+
+		for (Map.Entry<Connection, Lease> entry : expired) {
+			Connection connection = entry.getKey();
+			Lease lease = entry.getValue();
+			leakCount.incrementAndGet();
+			boolean isClosed = true;
+
+			try {
+				isClosed = connection.isClosed();
+			} catch (SQLException e) {
+				// Treat it as closed
+			}
+
+			if (isClosed && leases.remove(connection) != null) {
+				log.warn("A connection checked out by " + lease.threadName
+						+ " was closed instead of returned to the pool",
+						lease.origin);
+				permits.release();
+			} else {
+				log.warn("A connection has been checked out by "
+						+ lease.threadName + " for " + lease.heldMillis()
+						+ " ms without being returned", lease.origin);
+			}
+		}
+	}
+
+	private void recordWait(long nanos) {
+		totalWaitNanos.addAndGet(nanos);
+
+		long max = maxWaitNanos.get();
+		while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		PreparedStatementCache.clear(connection);
+		try {
+			connection.close();
+		} catch (Exception e) {
+			// The connection is no longer used
+		}
+	}
+
+	/**
+	 * Sets how long getConnection() waits for a connection to be returned.
+	 *
+	 * @param millis  the connection timeout in milliseconds
+	 */
+	public void setConnectionTimeout(long millis) {
+		connectionTimeout = millis;
+	}
+
+	/**
+	 * Sets how long a connection may be idle before it is closed.
+	 *
+	 * @param millis  the idle timeout in milliseconds
+	 */
+	public void setIdleTimeout(long millis) {
+		idleTimeout = millis;
+	}
+
+	/**
+	 * Sets how long a connection may be checked out before it is logged as
+	 * leaked.
+	 *
+	 * @param millis  the leak threshold in milliseconds, or zero to not
+	 *                detect leaks
+	 */
+	public void setLeakThreshold(long millis) {
+		leakThreshold = millis;
+	}
+
+	/**
+	 * Sets how long a connection may be checked out before it is closed and
+	 * its place in the pool is reclaimed. The leak timeout should be longer
+	 * than any query or cursor is expected to hold a connection.
+	 *
+	 * @param millis  the leak timeout in milliseconds, or zero, the default,
+	 *                to never reclaim a connection that is still open
+	 */
+	public void setLeakTimeout(long millis) {
+		leakTimeout = millis;
+	}
+
+	/**
+	 * Sets how long a connection may be idle before it is validated with
+	 * the validation query when it is checked out.
+	 *
+	 * @param millis  the validation interval in milliseconds
+	 */
+	public void setValidationInterval(long millis) {
+		validationInterval = millis;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getMinConnections() {
+		return minConnections;
+	}
+
+	/**
+	 * Gets the number of connections checked out.
+	 *
+	 * @return the number of active connections
+	 */
+	public int getActiveConnections() {
+		return leases.size();
+	}
+
+	/**
+	 * Gets the number of open connections waiting to be checked out.
+	 *
+	 * @return the number of idle connections
+	 */
+	public int getIdleConnections() {
+		synchronized (idleConnections) {
+			return idleConnections.size();
+		}
+	}
+
+	/**
+	 * Gets the number of threads waiting for a connection.
+	 *
+	 * @return the number of waiting threads
+	 */
+	public int getWaitingThreads() {
+		return permits.getQueueLength();
+	}
+
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	public long getInvalidCount() {
+		return invalidCount.get();
+	}
+
+	public long getLeakCount() {
+		return leakCount.get();
+	}
+
+	/**
+	 * Gets the number of connections closed after the leak timeout.
+	 *
+	 * @return the number of reclaimed connections
+	 */
+	public long getReclaimedCount() {
+		return reclaimedCount.get();
+	}
+
+	/**
+	 * Gets the average time getConnection() waited for a connection to be
+	 * available.
+	 *
+	 * @return the average wait time in milliseconds
+	 */
+	public double getAverageWaitMillis() {
+		long requests = borrowCount.get() + timeoutCount.get();
+
+		return (requests == 0) ? 0.0
+				: totalWaitNanos.get() / 1000000.0 / requests;
+	}
+
+	/**
+	 * Gets the longest time getConnection() waited for a connection to be
+	 * available.
+	 *
+	 * @return the longest wait time in milliseconds
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1000000.0;
+	}
+
+	public String toString() {
+		return "active=" + getActiveConnections() + ", idle="
+				+ getIdleConnections() + ", max=" + maxConnections
+				+ ", waiting=" + getWaitingThreads() + ", borrowed="
+				+ getBorrowCount() + ", created=" + getCreatedCount()
+				+ ", timeouts=" + getTimeoutCount() + ", average wait="
+				+ Math.round(getAverageWaitMillis() * 10) / 10.0 + " ms";
+	}
+
+	/*
+	 * An open connection waiting in the pool.
+	 */
+	private static class IdleConnection {
+		private final Connection connection;
+		private final long idleSince = System.currentTimeMillis();
+
+		IdleConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		long idleMillis() {
+			return System.currentTimeMillis() - idleSince;
+		}
+	}
+
+	/*
+	 * Records who checked out a connection, and when.
+	 */
+	private static class Lease {
+		private final long since = System.currentTimeMillis();
+		private final String threadName = Thread.currentThread().getName();
+		private final Exception origin;
+		private boolean reported = false;
+
+		Lease(boolean recordOrigin) {
+			origin = recordOrigin ? new Exception("Connection checked out here")
+					: null;
+		}
+
+		long heldMillis() {
+			return System.currentTimeMillis() - since;
+		}
+	}
+}
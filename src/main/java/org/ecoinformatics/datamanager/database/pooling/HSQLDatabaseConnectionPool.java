@@ -64,7 +64,10 @@ public class HSQLDatabaseConnectionPool implements
 
 	private static jdbcDataSource source = null;
 	
-	private static int connCount = 0;
+	/* Checks that a connection that has been idle is still usable */
+	private static final String VALIDATION_QUERY = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS";
+
+	private static BoundedConnectionPool pool = null;
 	
 	/**
 	 * Constructor. Loading database parameter from property file
@@ -75,11 +78,16 @@ public class HSQLDatabaseConnectionPool implements
 		initPool();
 	}
 
-	private static void initPool() {
+	private static synchronized void initPool() {
+		if (pool != null) {
+			return;
+		}
 		source = new jdbcDataSource();
 		source.setDatabase(databaseName);
 		source.setUser(user);
 		source.setPassword(password);
+		pool = BoundedConnectionPool.fromOptions(source, databaseAdapterName,
+				VALIDATION_QUERY, options);
 	}
 
 	/**
@@ -108,24 +116,17 @@ public class HSQLDatabaseConnectionPool implements
 	}
 
 	/**
-	 * Gets a database connection from the pool
+	 * Gets a database connection from the pool, waiting for one to be
+	 * returned if all of them are checked out.
 	 * 
 	 * @return checked out connection
 	 * @throws SQLException
+	 * @throws ConnectionNotAvailableException if no connection was returned
+	 *         within the connection timeout
 	 */
 	public Connection getConnection() throws SQLException,
 			ConnectionNotAvailableException {
-		Connection connection = null;
-
-		try {
-			connection = source.getConnection();
-			connCount++;
-		} catch (SQLException e) {
-			System.err.println("SQLException: " + e.getMessage());
-			throw (e);
-		}
-
-		return connection;
+		return pool.getConnection();
 	}
 
 	/**
@@ -136,19 +137,16 @@ public class HSQLDatabaseConnectionPool implements
 	 * @return indicator if the connection was returned successfully
 	 */
 	public boolean returnConnection(Connection conn) {
-		boolean success = false;
-
-		try {
-			conn.close();
-			success = true;
-			connCount--;
-		} catch (Exception e) {
-			success = false;
-		}
-
-		//log.debug(Thread.currentThread().getName() + ": connection count=" + connCount);
+		return pool.returnConnection(conn);
+	}
 
-		return success;
+	/**
+	 * Gets the pool that holds the connections, e.g. to read its metrics.
+	 * 
+	 * @return the pool
+	 */
+	public BoundedConnectionPool getPool() {
+		return pool;
 	}
 
 	public static void main(String arg[]) {
@@ -156,7 +154,7 @@ public class HSQLDatabaseConnectionPool implements
 		try {
 			Connection conn = pool.getConnection();
 			log.debug("conn=" + conn);
-			conn.close();
+			pool.returnConnection(conn);
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -39,7 +39,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ecoinformatics.datamanager.database.ConnectionNotAvailableException;
 import org.ecoinformatics.datamanager.database.DatabaseConnectionPoolInterface;
-import org.postgresql.jdbc3.Jdbc3PoolingDataSource;
+import org.postgresql.jdbc3.Jdbc3SimpleDataSource;
 
 /**
  * This class implements DataConnetionPoolInterface to provide a connection for
@@ -61,12 +61,14 @@ public class PostgresDatabaseConnectionPool implements
 	private static String databaseName = null;
 	private static String user = null;
 	private static String password = null;
-	private static int maxConnections = 0;
 	private static String databaseAdapterName = null;
 
-	private static Jdbc3PoolingDataSource source = null;
+	private static Jdbc3SimpleDataSource source = null;
 	
-	private static int connCount = 0;
+	/* Checks that a connection that has been idle is still usable */
+	private static final String VALIDATION_QUERY = "SELECT 1";
+
+	private static BoundedConnectionPool pool = null;
 	
 	/**
 	 * Constructor. Loading database parameter from property file
@@ -77,14 +79,18 @@ public class PostgresDatabaseConnectionPool implements
 		initPool();
 	}
 
-	private static void initPool() {
-		source = new Jdbc3PoolingDataSource();
-		//source.setDataSourceName(databaseAdapterName);
+	private static synchronized void initPool() {
+		if (pool != null) {
+			return;
+		}
+		// The pool keeps the connections, so the data source only opens them
+		source = new Jdbc3SimpleDataSource();
 		source.setServerName(serverName);
 		source.setDatabaseName(databaseName);
 		source.setUser(user);
 		source.setPassword(password);
-		source.setMaxConnections(maxConnections);
+		pool = BoundedConnectionPool.fromOptions(source, databaseAdapterName,
+				VALIDATION_QUERY, options);
 	}
 
 	/**
@@ -98,8 +104,6 @@ public class PostgresDatabaseConnectionPool implements
 			databaseName = options.getString("dbName");
 			user = options.getString("dbUser");
 			password = options.getString("dbPassword");
-			maxConnections = Integer.parseInt(options
-					.getString("dbMaxConnections"));
 			databaseAdapterName = options.getString("dbAdapter");
 		} catch (Exception e) {
 			System.out.println("Error in loading options: " + e.getMessage());
@@ -116,24 +120,17 @@ public class PostgresDatabaseConnectionPool implements
 	}
 
 	/**
-	 * Gets a database connection from the pool
+	 * Gets a database connection from the pool, waiting for one to be
+	 * returned if all of them are checked out.
 	 * 
 	 * @return checked out connection
 	 * @throws SQLException
+	 * @throws ConnectionNotAvailableException if no connection was returned
+	 *         within the connection timeout
 	 */
 	public Connection getConnection() throws SQLException,
 			ConnectionNotAvailableException {
-		Connection connection = null;
-
-		try {
-			connection = source.getConnection();
-			connCount++;
-		} catch (SQLException e) {
-			System.err.println("SQLException: " + e.getMessage());
-			throw (e);
-		}
-
-		return connection;
+		return pool.getConnection();
 	}
 
 	/**
@@ -144,19 +141,16 @@ public class PostgresDatabaseConnectionPool implements
 	 * @return indicator if the connection was returned successfully
 	 */
 	public boolean returnConnection(Connection conn) {
-		boolean success = false;
-
-		try {
-			conn.close();
-			success = true;
-			connCount--;
-		} catch (Exception e) {
-			success = false;
-		}
-
-		//log.debug(Thread.currentThread().getName() + ": connection count=" + connCount);
+		return pool.returnConnection(conn);
+	}
 
-		return success;
+	/**
+	 * Gets the pool that holds the connections, e.g. to read its metrics.
+	 * 
+	 * @return the pool
+	 */
+	public BoundedConnectionPool getPool() {
+		return pool;
 	}
 
 	public static void main(String arg[]) {
@@ -164,7 +158,7 @@ public class PostgresDatabaseConnectionPool implements
 		try {
 			Connection conn = pool.getConnection();
 			log.debug("conn=" + conn);
-			conn.close();
+			pool.returnConnection(conn);
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -35,10 +35,18 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -47,6 +55,7 @@ import org.ecoinformatics.datamanager.database.ANDRelation;
 import org.ecoinformatics.datamanager.database.Condition;
 import org.ecoinformatics.datamanager.database.ConditionInterface;
 import org.ecoinformatics.datamanager.database.DatabaseConnectionPoolInterface;
+import org.ecoinformatics.datamanager.database.DatabaseHandler;
 import org.ecoinformatics.datamanager.database.Join;
 import org.ecoinformatics.datamanager.database.LogicalRelation;
 import org.ecoinformatics.datamanager.database.ORRelation;
@@ -79,6 +88,10 @@ import edu.ucsb.nceas.utilities.OrderedMap;
  * @see dataquery.xsd. The Data Manager Library should be used to execute the 
  * Query or Union provided by this class.
  * Note that the Datapackages involved in the Query are given by the getDataPackages() method
+ * 
+ * The metadata of the datapackages is read while the specification is parsed,
+ * but only the entities that the queries use are loaded to the database, once
+ * parsing is done, several at a time.
  */
 public class DataquerySpecification extends DefaultHandler
 {
@@ -130,6 +143,16 @@ public class DataquerySpecification extends DefaultHandler
     private List queryList = new ArrayList();
     
     private Union union = null;
+    
+    /** The entities used by the queries, in the order they are referenced
+     */
+    private Set<Entity> referencedEntities = new LinkedHashSet<Entity>();
+    
+    /** The default number of entities that are loaded at a time
+     */
+    public static final int DEFAULT_PRIMING_THREADS = 4;
+    
+    private static int primingThreads = DEFAULT_PRIMING_THREADS;
 
     /**
      * construct an instance of the QuerySpecification class
@@ -168,6 +191,9 @@ public class DataquerySpecification extends DefaultHandler
                     + "DataquerySpecification.DataquerySpecification");
         	log.error(e.getMessage());
         }
+        
+        // Load the data used by the queries
+        primeEntities();
     }
 
     /**
@@ -217,6 +243,110 @@ public class DataquerySpecification extends DefaultHandler
     	return (DataPackage[]) datapackageStack.toArray(new DataPackage[0]);
     }
     
+    /**
+     * Gets the number of entities that are loaded to the database at a time
+     * once a specification is parsed.
+     * @return the number of loading threads
+     */
+    public static int getPrimingThreads() {
+    	return primingThreads;
+    }
+    
+    /**
+     * Sets the number of entities that are loaded to the database at a time
+     * once a specification is parsed.
+     * @param threads the number of loading threads, at least 1
+     */
+    public static void setPrimingThreads(int threads) {
+    	primingThreads = Math.max(threads, 1);
+    }
+    
+    /**
+     * Loads the data of the entities used by the queries to the database,
+     * several at a time, so that priming takes about as long as loading
+     * the largest entity. Entities that could not be loaded are logged, as
+     * they were when each datapackage was loaded as it was parsed, and the
+     * foreign keys of each datapackage with loaded entities are built.
+     */
+    private void primeEntities() {
+    	if (referencedEntities.isEmpty()) {
+    		return;
+    	}
+    	
+    	final DataManager dataManager = 
+    		DataManager.getInstance(
+    				connectionPool, 
+    				connectionPool.getDBAdapterName());
+    	int threads = Math.min(primingThreads, referencedEntities.size());
+    	ExecutorService service = Executors.newFixedThreadPool(threads);
+    	Map<Entity, Future<Boolean>> loads = 
+    		new LinkedHashMap<Entity, Future<Boolean>>();
+    	Set<Entity> loadedEntities = new LinkedHashSet<Entity>();
+    	
+    	try {
+    		for (final Entity entity : referencedEntities) {
+    			loads.put(entity, service.submit(new Callable<Boolean>() {
+    				public Boolean call() throws Exception {
+    					return dataManager.loadDataToDB(entity, ecogridEndPoint);
+    				}
+    			}));
+    		}
+    		
+    		for (Map.Entry<Entity, Future<Boolean>> load : loads.entrySet()) {
+    			String entityName = load.getKey().getName();
+    			try {
+    				if (load.getValue().get()) {
+    					loadedEntities.add(load.getKey());
+    				} else {
+    					log.error("could not load data for entity: " + entityName);
+    				}
+    			} catch (ExecutionException e) {
+    				log.error(
+    						"could not load data for entity: " + entityName + 
+    						": " + e.getCause());
+    			} catch (InterruptedException e) {
+    				log.error("interrupted while loading entity: " + entityName);
+    				Thread.currentThread().interrupt();
+    				break;
+    			}
+    		}
+    	} finally {
+    		service.shutdownNow();
+    	}
+    	
+    	buildForeignKeys(loadedEntities);
+    }
+    
+    /**
+     * Builds the foreign keys of the fetched datapackages that have loaded
+     * entities, as loading a whole datapackage does.
+     */
+    private void buildForeignKeys(Set<Entity> loadedEntities) {
+    	for (Object value : fetchedDatapackages.values()) {
+    		DataPackage datapackage = (DataPackage) value;
+    		if (datapackage == null) {
+    			continue;
+    		}
+    		Entity[] entities = datapackage.getEntityList();
+    		boolean loaded = false;
+    		for (int i = 0; i < entities.length && !loaded; i++) {
+    			loaded = loadedEntities.contains(entities[i]);
+    		}
+    		
+    		if (loaded) {
+    			try {
+    				DatabaseHandler databaseHandler = 
+    					new DatabaseHandler(connectionPool.getDBAdapterName());
+    				databaseHandler.buildForeignKeys(datapackage);
+    			} catch (Exception e) {
+    				log.error(
+    						"could not build foreign keys for datapackage: " + 
+    						datapackage.getPackageId() + ": " + e.getMessage());
+    			}
+    		}
+    	}
+    }
+    
     /**
      * Set up the SAX parser for reading the XML serialized query
      */
@@ -285,17 +415,7 @@ public class DataquerySpecification extends DefaultHandler
 						"could not parse metadata given by docid: " + docId);
 			}
         	
-        	//prime the data?
-        	try {
-				DataManager.getInstance(
-						connectionPool, 
-						connectionPool.getDBAdapterName()).loadDataToDB(
-								datapackage, 
-								ecogridEndPoint);
-			} catch (Exception e) {
-				log.error(
-						"could not load data given by docid: " + docId);
-			}
+        	//the data is primed once parsing is done, for the entities used
 			
 			//save for later
 			fetchedDatapackages.put(docId, datapackage);
@@ -336,6 +456,11 @@ public class DataquerySpecification extends DefaultHandler
         	entity = datapackage.getEntity(nameAttribute);
     	}
     	
+    	//load it once parsing is done
+    	if (entity != null) {
+    		referencedEntities.add(entity);
+    	}
+    	
     	//save for later
     	entityStack.push(entity);
     }
@@ -146,4 +146,16 @@ public abstract class ArchivedDataHandler extends DownloadHandler
 		return compressedFile;
    }
    
+   
+   /**
+    * The bytes written to the storages are the decompressed ones, which
+    * cannot be matched to a tail of the source, so a source that has
+    * grown is reloaded in full.
+    * 
+    * @return false
+    */
+   protected boolean canAppend()
+   {
+      return false;
+   }
 }
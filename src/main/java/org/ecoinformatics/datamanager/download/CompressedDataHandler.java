@@ -143,4 +143,17 @@ public abstract class CompressedDataHandler extends DownloadHandler
         
      	return compressedFile;
      }
+     
+     
+     /**
+      * The bytes written to the storages are the decompressed ones, which
+      * cannot be matched to a tail of the source, so a source that has
+      * grown is reloaded in full.
+      * 
+      * @return false
+      */
+     protected boolean canAppend()
+     {
+    	 return false;
+     }
 }
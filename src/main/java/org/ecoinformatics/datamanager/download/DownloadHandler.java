@@ -39,6 +39,8 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Hashtable;
 
 import org.apache.commons.logging.Log;
@@ -108,6 +110,22 @@ public class DownloadHandler implements Runnable
 	protected Entity entity = null;
 	protected String sessionId      = null;
 	
+	/*
+	 * What to do with each storage of a source whose validator is known:
+	 * skip it, replace its data, append the tail of the source to its data,
+	 * or store the source in it for the first time.
+	 */
+	private static final int PLAN_SKIP   = 1;
+	private static final int PLAN_RELOAD = 2;
+	private static final int PLAN_APPEND = 3;
+	private static final int PLAN_NEW    = 4;
+	
+	private SourceValidator sourceValidator = null; // null if not known
+	private int[] storagePlans = null;     // null if no storage is planned
+	private long[] appendOffsets = null;   // bytes already stored, to append
+	private boolean[] serializing = null;  // storages that were started
+	private boolean appendRejected = false;
+	
     
     /*
      * Constructors
@@ -410,7 +428,7 @@ public class DownloadHandler implements Runnable
     			DataStorageInterface storage = dataStorageClassList[i];
     			if (storage != null)
     			{
-    			   if (storage.doesDataExist(url))
+    			   if (!isSerializing(i) && storage.doesDataExist(url))
     			   {
     				   
     			   }
@@ -433,7 +451,7 @@ public class DownloadHandler implements Runnable
                     
         			if (storage != null)
         			{
-        			   if (storage.doesDataExist(url))
+        			   if (!isSerializing(i) && storage.doesDataExist(url))
           			   {
           				   
           			   }
@@ -450,6 +468,16 @@ public class DownloadHandler implements Runnable
     }
     
     
+    /*
+     * Determines whether a stream to the storage at the given index of the
+     * dataStorageClassList was started.
+     */
+    private boolean isSerializing(int index)
+    {
+        return serializing != null && serializing[index];
+    }
+    
+    
     /**
      * Downloads data into the given list of DataStorageInterface objects. 
      * This method will create, start and wait for another thread to download 
@@ -555,6 +583,8 @@ public class DownloadHandler implements Runnable
     	boolean successFlag = false;
     	QualityCheck onlineURLsQualityCheck = null;
     	boolean onlineURLsException = false;  // used to determine status of onlineURLs quality check
+    	sourceValidator = null;
+    	storagePlans = null;
         
       if (resourceName != null) { resourceName = resourceName.trim(); }
       
@@ -584,11 +614,17 @@ public class DownloadHandler implements Runnable
                      contentType = httpURLConnection.getContentType();
                      responseCode = httpURLConnection.getResponseCode();
                      responseMessage = httpURLConnection.getResponseMessage();
+                     if (responseCode == HttpURLConnection.HTTP_OK) {
+                       sourceValidator = 
+                         SourceValidator.fromConnection(httpURLConnection, entity);
+                     }
                    }
                    else if (resourceName.startsWith("file")) {
                      URLConnection urlConnection= url.openConnection();
                      urlConnection.connect();
                      contentType = urlConnection.getContentType();
+                     sourceValidator = 
+                       SourceValidator.fromConnection(urlConnection, entity);
                    }
                    else { // FTP
                 	 isFTP = true;
@@ -598,22 +634,42 @@ public class DownloadHandler implements Runnable
                    entity.setUrlContentType(contentType);
                  }
                  
-                 if (!isFTP) { // HTTP(S) or FILE
-                   InputStream filestream = url.openStream();
+                 planStorages();
+                 
+                 if (!isFTP && !isDownloadNeeded()) {
+                   // The source has not changed since it was stored
+                   log.info("Not downloading unchanged source: " + resourceName);
+                   successFlag = true;
+                 }
+                 else if (!isFTP) { // HTTP(S) or FILE
+                   boolean download = true;
+                   
+                   while (download) {
+                     InputStream filestream = url.openStream();
+                     download = false;
 
-                   try {
-                     successFlag = 
-                        this.writeRemoteInputStreamIntoDataStorage(filestream);
-                   }
-                   catch (IOException e) {
-                     exception = e;
-                     String errorMessage = e.getMessage();
-                     if (errorMessage.startsWith(ONLINE_URLS_EXCEPTION_MESSAGE)) {
-                       onlineURLsException = true;
+                     try {
+                       successFlag = 
+                          this.writeRemoteInputStreamIntoDataStorage(filestream);
+                     }
+                     catch (IOException e) {
+                       exception = e;
+                       String errorMessage = e.getMessage();
+                       if (errorMessage.startsWith(ONLINE_URLS_EXCEPTION_MESSAGE)) {
+                         onlineURLsException = true;
+                       }
+                     }
+                     finally {
+                	   filestream.close();
+                     }
+                     
+                     if (appendRejected) {
+                       // The stored data is not the start of the source
+                       log.info("Reloading source that was not appended to: " + 
+                                resourceName);
+                       appendRejected = false;
+                       download = true;
                      }
-                   }
-                   finally {
-                	 filestream.close();
                    }
                  } else { // FTP
                    String[] urlParts = resourceName.split("/");
@@ -750,6 +806,116 @@ public class DownloadHandler implements Runnable
     }
     
     
+    /*
+     * Decides what to do with each storage that records source validators,
+     * from the validator of the source. Nothing is planned if the source
+     * cannot be validated, so that data stored before is kept as it is.
+     */
+    private void planStorages()
+    {
+    	storagePlans = null;
+    	appendOffsets = null;
+    	
+    	if (sourceValidator == null || !sourceValidator.isComparable() || 
+    	    dataStorageClassList == null)
+    	{
+    		return;
+    	}
+    	
+    	int length = dataStorageClassList.length;
+    	int storageCount = 0;
+    	storagePlans = new int[length];
+    	appendOffsets = new long[length];
+    	
+    	for (int i = 0; i < length; i++)
+    	{
+    		if (dataStorageClassList[i] != null)
+    		{
+    			storageCount++;
+    		}
+    	}
+    	
+    	for (int i = 0; i < length; i++)
+    	{
+    		if (!(dataStorageClassList[i] instanceof IncrementalDataStorageInterface))
+    		{
+    			continue;
+    		}
+    		
+    		IncrementalDataStorageInterface storage = 
+    		  (IncrementalDataStorageInterface) dataStorageClassList[i];
+    		
+    		if (!storage.doesDataExist(url))
+    		{
+    			storagePlans[i] = PLAN_NEW;
+    			continue;
+    		}
+    		
+    		SourceValidator stored = storage.getSourceValidator(url);
+    		
+    		if (sourceValidator.matches(stored))
+    		{
+    			storagePlans[i] = PLAN_SKIP;
+    		}
+    		else if (sourceValidator.mayHaveGrownFrom(stored) && 
+    		         storageCount == 1 && canAppend() && 
+    		         storage.canAppend(url))
+    		{
+    			/*
+    			 * The tail is only sent once the start of the source is
+    			 * verified, so that a single storage can still be reloaded
+    			 * from the start if it is not.
+    			 */
+    			storagePlans[i] = PLAN_APPEND;
+    			appendOffsets[i] = stored.getSize();
+    		}
+    		else
+    		{
+    			storagePlans[i] = PLAN_RELOAD;
+    		}
+    		
+    		log.debug("Plan " + storagePlans[i] + " for " + url + 
+    		          " with stored validator " + stored);
+    	}
+    }
+    
+    
+    /*
+     * Determines whether any storage needs the source to be downloaded.
+     */
+    private boolean isDownloadNeeded()
+    {
+    	if (storagePlans == null)
+    	{
+    		return true;
+    	}
+    	
+    	for (int i = 0; i < storagePlans.length; i++)
+    	{
+    		if (dataStorageClassList[i] != null && storagePlans[i] != PLAN_SKIP)
+    		{
+    			return true;
+    		}
+    	}
+    	
+    	return false;
+    }
+    
+    
+    /**
+     * Determines whether the bytes that this handler writes to the storages
+     * are the bytes of the source, so that a storage can be sent only the
+     * tail of a source that has grown. Handlers that decompress or extract
+     * the source return false.
+     * 
+     * @return true if the tail of a source can be appended, else false
+     */
+    protected boolean canAppend()
+    {
+    	return true;
+    }
+    
+    
     /*
      * Embeds a string value inside CDATA opening and closing tags.
      */
@@ -785,6 +951,7 @@ public class DownloadHandler implements Runnable
 	            //log.debug("This is instance pattern");
 	            	            
 	            //log.debug("Get from EcoGrid: " + identifier);
+	            storagePlans = null;
 	            NeededOutputStream [] outputStreamList = getOutputStreamList();
                 
 	            if (outputStreamList != null)
@@ -907,15 +1074,51 @@ public class DownloadHandler implements Runnable
     	if (dataStorageClassList != null)
     	{ 
     		 list = new NeededOutputStream[dataStorageClassList.length];
+    		 serializing = new boolean[dataStorageClassList.length];
              
 	  		 for (int i = 0; i<dataStorageClassList.length; i++)
 	  		 {
 	  			 DataStorageInterface dataStorge = dataStorageClassList[i];
+	  			 int plan = (storagePlans == null) ? 0 : storagePlans[i];
                  
-	  			 if (dataStorge != null && !dataStorge.doesDataExist(url))
+	  			 if (dataStorge != null && plan != 0)
+	  			 {
+	  				 IncrementalDataStorageInterface storage = 
+	  				   (IncrementalDataStorageInterface) dataStorge;
+	  				 OutputStream osw = null;
+	  				 
+	  				 if (plan == PLAN_RELOAD)
+	  				 {
+	  					 osw = storage.startSerialize(url, sourceValidator, 0);
+	  					 serializing[i] = true;
+	  				 }
+	  				 else if (plan == PLAN_NEW)
+	  				 {
+	  					 storage.setSourceValidator(url, sourceValidator);
+	  					 osw = storage.startSerialize(url);
+	  					 serializing[i] = true;
+	  				 }
+	  				 
+	  				 // An append is started once the stored bytes are verified
+	  				 NeededOutputStream stream = 
+	  				   new NeededOutputStream(osw, plan != PLAN_SKIP);
+	  				 if (plan == PLAN_APPEND)
+	  				 {
+	  					 stream.appendOffset = appendOffsets[i];
+	  				 }
+	  				 list[i] = stream;
+	  			 }
+	  			 else if (dataStorge != null && !dataStorge.doesDataExist(url))
 	  			 {
 	  		     log.debug("DownloadHandler.startSerialize()");
+	  				 if (dataStorge instanceof IncrementalDataStorageInterface)
+	  				 {
+	  					 // The validator of the source is not known
+	  					 ((IncrementalDataStorageInterface) dataStorge).
+	  					   setSourceValidator(url, null);
+	  				 }
 	  				 OutputStream osw = dataStorge.startSerialize(url);
+	  				 serializing[i] = true;
 	  				 NeededOutputStream stream = new NeededOutputStream(osw, 
                                                                         true);
 	                 list[i] = stream;
@@ -994,6 +1197,7 @@ public class DownloadHandler implements Runnable
       
     	private OutputStream stream = null;
     	private boolean needed      = true;
+    	private long appendOffset   = 0;  // bytes of the source to skip
     	
         
     	/**
@@ -1076,15 +1280,33 @@ public class DownloadHandler implements Runnable
 				
 				NeededOutputStream stream = null;
 				OutputStream os = null;
+				MessageDigest digest = (sourceValidator == null || !canAppend()) ? 
+				                         null : getDigest();
+				long position = 0;
+				byte lastByte = 0;
 				while (bytesRead > -1) {
 					// write to each outputstreams
 					for (int i = 0; i < outputStreamList.length; i++) {
 						stream = outputStreamList[i];
-						if (stream != null && stream.getNeeded()) {
+						if (stream != null && stream.getNeeded() && 
+						    stream.getOutputStream() == null) {
+							// an append that waits for its offset
+							if (!startAppend(i, stream, digest, position, 
+							                 lastByte, b, bytesRead)) {
+								appendRejected = true;
+								return false;
+							}
+						}
+						else if (stream != null && stream.getNeeded()) {
 							os = stream.getOutputStream();
               os.write(b, 0, bytesRead);
 						}
 					}
+					if (digest != null) {
+						digest.update(b, 0, bytesRead);
+					}
+					position += bytesRead;
+					lastByte = b[bytesRead - 1];
 					// get the next bytes
 					bytesRead = inputStream.read(b, 0, 1024);
 					kilobytes++;
@@ -1100,10 +1322,28 @@ public class DownloadHandler implements Runnable
 				}
         //System.err.printf("\n");
 
+				// the source ended before the offset of an append
+				for (int i = 0; i < outputStreamList.length; i++) {
+					stream = outputStreamList[i];
+					if (stream != null && stream.getNeeded() && 
+					    stream.getOutputStream() == null) {
+						storagePlans[i] = PLAN_RELOAD;
+						appendRejected = true;
+						return false;
+					}
+				}
+
+				// the validator is recorded when the streams are closed
+				if (digest != null) {
+					sourceValidator.setSize(position);
+					sourceValidator.setChecksum(toHex(digest.digest()));
+				}
+
 				// done writing to the streams
 				for (int i = 0; i < outputStreamList.length; i++) {
 					stream = outputStreamList[i];
 					if (stream != null && stream.getNeeded()) {
+						os = stream.getOutputStream();
 						os.flush();
 						os.close();
 					}
@@ -1132,4 +1372,90 @@ public class DownloadHandler implements Runnable
 
 	}
     
+    
+    /*
+     * Starts the append to the storage at the given index once the bytes
+     * read reach the offset to append at, and writes the bytes that follow
+     * the offset. The append is started only if the bytes before the offset
+     * have the stored checksum and end a line; otherwise the storage is
+     * planned to be reloaded instead.
+     * 
+     * @return false if the append was rejected, else true
+     */
+    private boolean startAppend(int index, NeededOutputStream stream, 
+                                MessageDigest digest, long position, 
+                                byte lastByte, byte[] b, int bytesRead)
+            throws Exception
+    {
+    	long offset = stream.appendOffset;
+    	
+    	if (position + bytesRead < offset)
+    	{
+    		return true;
+    	}
+    	
+    	int start = (int) (offset - position);
+    	IncrementalDataStorageInterface storage = 
+    	  (IncrementalDataStorageInterface) dataStorageClassList[index];
+    	SourceValidator stored = storage.getSourceValidator(url);
+    	boolean verified = false;
+    	
+    	if (digest != null && stored != null)
+    	{
+    		MessageDigest prefix = (MessageDigest) digest.clone();
+    		prefix.update(b, 0, start);
+    		byte previous = (start > 0) ? b[start - 1] : lastByte;
+    		verified = toHex(prefix.digest()).equals(stored.getChecksum()) && 
+    		           (previous == '\n' || previous == '\r');
+    	}
+    	
+    	if (!verified)
+    	{
+    		storagePlans[index] = PLAN_RELOAD;
+    		return false;
+    	}
+    	
+    	log.debug("DownloadHandler.startSerialize() at offset " + offset);
+    	stream.stream = storage.startSerialize(url, sourceValidator, offset);
+    	serializing[index] = true;
+    	stream.stream.write(b, start, bytesRead - start);
+    	
+    	return true;
+    }
+    
+    
+    /*
+     * Gets a digest that computes the MD5 checksum of a source, or null if
+     * MD5 is not available.
+     */
+    private static MessageDigest getDigest()
+    {
+    	try
+    	{
+    		return MessageDigest.getInstance("MD5");
+    	}
+    	catch (NoSuchAlgorithmException e)
+    	{
+    		log.error("MD5 is not available: " + e.getMessage());
+    		return null;
+    	}
+    }
+    
+    
+    /*
+     * Converts the bytes of a checksum to hex.
+     */
+    private static String toHex(byte[] bytes)
+    {
+    	StringBuffer hex = new StringBuffer(bytes.length * 2);
+    	
+    	for (int i = 0; i < bytes.length; i++)
+    	{
+    		hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+    		hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+    	}
+    	
+    	return hex.toString();
+    }
+    
 }
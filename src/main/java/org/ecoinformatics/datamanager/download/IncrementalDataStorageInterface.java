@@ -0,0 +1,66 @@
+package org.ecoinformatics.datamanager.download;
+
+import java.io.OutputStream;
+
+/**
+ * A DataStorageInterface that stores the validator of the source next to
+ * the data, so that the DownloadHandler can skip a source that has not
+ * changed, and can send only the new tail of a source that has grown by
+ * appending.
+ *
+ * The DownloadHandler calls startSerialize(identifier, validator, offset)
+ * for data that is already stored, and startSerialize(identifier) as before
+ * for data that is not; in both cases the storage records the validator
+ * passed to the handler's most recent call, once the data has been stored
+ * successfully.
+ */
+public interface IncrementalDataStorageInterface extends DataStorageInterface
+{
+  /**
+   * Gets the validator of the source, as recorded when its data was last
+   * stored successfully.
+   *
+   * @param identifier  the identifier of the data
+   * @return  the stored validator, or null if none is known
+   */
+  public SourceValidator getSourceValidator(String identifier);
+
+
+  /**
+   * Sets the validator to record for data that will be stored through
+   * startSerialize(identifier).
+   *
+   * @param identifier  the identifier of the data
+   * @param validator   the validator of the source, or null
+   */
+  public void setSourceValidator(String identifier, SourceValidator validator);
+
+
+  /**
+   * Determines whether new data can be appended to the stored data, that
+   * is, whether the rows of a tail of the source can be stored on their own.
+   *
+   * @param identifier  the identifier of the data
+   * @return  true if a tail can be appended, else false
+   */
+  public boolean canAppend(String identifier);
+
+
+  /**
+   * Starts to serialize a source whose data is already stored. An offset of
+   * zero replaces the stored data with the source. A positive offset appends
+   * to the stored data, which holds the source's bytes before the offset;
+   * the stream then starts at that byte of the source. The validator is
+   * completed with the size and checksum of the source before the stream is
+   * closed.
+   *
+   * @param identifier  the identifier of the data
+   * @param validator   the validator of the source
+   * @param offset      zero, or the number of bytes of the source that are
+   *                    already stored
+   * @return  the OutputStream which will serialize the source
+   */
+  public OutputStream startSerialize(String identifier,
+                                     SourceValidator validator, long offset);
+
+}
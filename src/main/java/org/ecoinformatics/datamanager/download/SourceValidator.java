@@ -0,0 +1,216 @@
+package org.ecoinformatics.datamanager.download;
+
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+
+import org.ecoinformatics.datamanager.parser.Entity;
+
+/**
+ * Describes a version of the data behind a source URL: the HTTP entity tag,
+ * the last modification time, the size in bytes, an MD5 checksum of the
+ * bytes, and the number of records that the metadata documents. Stored next
+ * to the data, it tells whether the source has changed since it was loaded,
+ * without downloading it again.
+ *
+ * Values that are not known are null, or -1 for the numbers.
+ */
+public class SourceValidator
+{
+  /*
+   * Instance fields
+   */
+
+  private String entityTag = null;
+  private long lastModified = -1;
+  private volatile long size = -1;
+  private volatile String checksum = null;
+  private long numberOfRecords = -1;
+
+
+  /*
+   * Constructors
+   */
+
+  /**
+   * Constructs a validator from its values.
+   *
+   * @param entityTag        the HTTP entity tag, or null
+   * @param lastModified     the last modification time in milliseconds, or -1
+   * @param size             the size in bytes, or -1
+   * @param checksum         the MD5 checksum of the bytes in hex, or null
+   * @param numberOfRecords  the number of records in the metadata, or -1
+   */
+  public SourceValidator(String entityTag, long lastModified, long size,
+                         String checksum, long numberOfRecords)
+  {
+    this.entityTag = entityTag;
+    this.lastModified = (lastModified > 0) ? lastModified : -1;
+    this.size = (size >= 0) ? size : -1;
+    this.checksum = checksum;
+    this.numberOfRecords = (numberOfRecords > 0) ? numberOfRecords : -1;
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Reads the validator of a source from the headers of a connection to it,
+   * such as the response to an HTTP HEAD request.
+   *
+   * @param connection  the connection, already connected
+   * @param entity      the entity whose data the source holds, or null
+   * @return  the validator, which has no checksum
+   */
+  public static SourceValidator fromConnection(URLConnection connection,
+                                               Entity entity)
+  {
+    String entityTag = connection.getHeaderField("ETag");
+
+    // A weak entity tag does not promise that the bytes are the same
+    if (entityTag != null && entityTag.startsWith("W/")) {
+      entityTag = null;
+    }
+
+    long size = connection.getContentLength();
+    if (connection instanceof HttpURLConnection &&
+        connection.getHeaderField("Content-Encoding") != null) {
+      // The length is that of the encoded bytes
+      size = -1;
+    }
+
+    long numberOfRecords = (entity == null) ? -1 : entity.getNumRecords();
+
+    return new SourceValidator(entityTag, connection.getLastModified(), size,
+                               null, numberOfRecords);
+  }
+
+
+  /*
+   * Instance methods
+   */
+
+  /**
+   * Determines whether this validator of the current source shows that the
+   * source is unchanged since the stored validator was taken. The sources
+   * must have the same size and number of records where these are known,
+   * and the same entity tag or, without one, the same modification time.
+   *
+   * @param stored  the validator stored with the data, or null
+   * @return  true if the source is known to be unchanged, else false
+   */
+  public boolean matches(SourceValidator stored)
+  {
+    if (stored == null) {
+      return false;
+    }
+
+    if (numberOfRecords >= 0 && stored.numberOfRecords >= 0 &&
+        numberOfRecords != stored.numberOfRecords) {
+      return false;
+    }
+
+    if (size >= 0 && stored.size >= 0 && size != stored.size) {
+      return false;
+    }
+
+    if (entityTag != null && stored.entityTag != null) {
+      return entityTag.equals(stored.entityTag);
+    }
+
+    if (lastModified > 0 && stored.lastModified > 0) {
+      return lastModified == stored.lastModified;
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Determines whether the source can be compared with the stored one at
+   * all, that is, whether it has an entity tag or a modification time.
+   *
+   * @return  true if the validator can show that the source is unchanged
+   */
+  public boolean isComparable()
+  {
+    return entityTag != null || lastModified > 0;
+  }
+
+
+  /**
+   * Determines whether the current source may be the stored one with data
+   * appended to it: it is larger, and the stored data has a checksum with
+   * which the start of the current source can be verified.
+   *
+   * @param stored  the validator stored with the data, or null
+   * @return  true if the source may have grown by appending, else false
+   */
+  public boolean mayHaveGrownFrom(SourceValidator stored)
+  {
+    return stored != null && stored.checksum != null && stored.size > 0 &&
+           size > stored.size;
+  }
+
+
+  public String getEntityTag()
+  {
+    return entityTag;
+  }
+
+
+  public long getLastModified()
+  {
+    return lastModified;
+  }
+
+
+  public long getSize()
+  {
+    return size;
+  }
+
+
+  /**
+   * Sets the size of the source, once it has been read.
+   *
+   * @param size  the size in bytes
+   */
+  public void setSize(long size)
+  {
+    this.size = size;
+  }
+
+
+  public String getChecksum()
+  {
+    return checksum;
+  }
+
+
+  /**
+   * Sets the checksum of the source, once it has been read.
+   *
+   * @param checksum  the MD5 checksum of the bytes in hex
+   */
+  public void setChecksum(String checksum)
+  {
+    this.checksum = checksum;
+  }
+
+
+  public long getNumberOfRecords()
+  {
+    return numberOfRecords;
+  }
+
+
+  public String toString()
+  {
+    return "entityTag=" + entityTag + ", lastModified=" + lastModified +
+           ", size=" + size + ", checksum=" + checksum +
+           ", numberOfRecords=" + numberOfRecords;
+  }
+
+}
@@ -32,6 +32,7 @@
 
 package org.ecoinformatics.datamanager.parser;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.TreeSet;
 
@@ -107,6 +108,7 @@ public class Entity extends DataObjectDescription
     private String format;
     private String dbTableName;    // the unique table name will be stored in DB
     private String compressionMethod = null;
+    private String characterEncoding = null;
     private boolean externallyDefinedFormat = false;
     private String firstKilobyte = null;
     private boolean hasDistributionOnline = false;
@@ -129,6 +131,7 @@ public class Entity extends DataObjectDescription
     
     private EntityReport entityReport = null;
     private String entityAccessXML = null;
+    private ArrayList<Constraint> constraintList = new ArrayList<Constraint>();
     
     
     /* 
@@ -964,14 +967,46 @@ public class Entity extends DataObjectDescription
     /**
      * Gets the Primary Key Definition for the table.
      * 
-     * @return   A primary key Constraint object. (Currently always null)
+     * @return   A primary key Constraint object, or null if the entity has
+     *           no primary key
      */
     public Constraint getPrimaryKey()
     {
+      for (Constraint constraint : constraintList)
+      {
+        if (constraint.getType() == Constraint.PRIMARYKEY)
+        {
+          return constraint;
+        }
+      }
+      
       return null;
     }
     
     
+    /**
+     * Adds a constraint on the entity's attributes, such as a primary key,
+     * unique key or foreign key constraint.
+     * 
+     * @param constraint  the constraint to add
+     */
+    public void addConstraint(Constraint constraint)
+    {
+      constraintList.add(constraint);
+    }
+    
+    
+    /**
+     * Gets the constraints on the entity's attributes.
+     * 
+     * @return  an array of Constraint objects, empty if there are none
+     */
+    public Constraint[] getConstraints()
+    {
+      return constraintList.toArray(new Constraint[constraintList.size()]);
+    }
+    
+    
     /**
      * Gets the compression method for the entity distribution file.
      * 
@@ -994,6 +1029,30 @@ public class Entity extends DataObjectDescription
     }
     
     
+    /**
+     * Gets the character encoding of the entity data file, as declared in
+     * the physical/characterEncoding element of the metadata.
+     * 
+     * @return the characterEncoding string value, or null if not declared
+     */
+    public String getCharacterEncoding()
+    {
+      return this.characterEncoding;
+    }
+    
+    
+    /**
+     * Sets the character encoding of the entity data file.
+     * 
+     * @param characterEncoding  A string naming the character encoding, 
+     *                           e.g. "UTF-8" or "ASCII".
+     */
+    public void setCharacterEncoding(String characterEncoding)
+    {
+      this.characterEncoding = characterEncoding;
+    }
+    
+    
     /**
      * Boolean to determine if this entity has at least one distribution 
      * online element.
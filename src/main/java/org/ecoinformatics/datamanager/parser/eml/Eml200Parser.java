@@ -848,6 +848,7 @@ public class Eml200Parser
         String recordDelimiter = "";
         String compressionMethod = "";
         String encodingMethod = "";
+        String characterEncoding = null;
         String quoteCharacter = null;
         String literalCharacter = null;
         boolean isImageEntity   = false;
@@ -1129,6 +1130,18 @@ public class Eml200Parser
               }
           }
 
+          // Get the character encoding of the data file
+          NodeList characterEncodingNodeList = 
+              xpathapi.selectNodeList(entityNode, "physical/characterEncoding");
+          
+          if (characterEncodingNodeList != null && 
+              characterEncodingNodeList.getLength() > 0 &&
+              characterEncodingNodeList.item(0).getFirstChild() != null
+             ) {
+              characterEncoding = 
+                characterEncodingNodeList.item(0).getFirstChild().getNodeValue().trim();
+          }
+
           if (entityOrientation.trim().equals("column")) {
               entityOrientation = Entity.COLUMNMAJOR;
           } else {
@@ -1174,6 +1187,7 @@ public class Eml200Parser
           entityObject.setRecordDelimiter(recordDelimiter);
           entityObject.setURL(onlineUrl);
           entityObject.setCompressionMethod(compressionMethod);
+          entityObject.setCharacterEncoding(characterEncoding);
           entityObject.setIsImageEntity(isImageEntity);
           entityObject.setHasGZipDataFile(isGZipDataFile);
           entityObject.setHasZipDataFile(isZipDataFile);
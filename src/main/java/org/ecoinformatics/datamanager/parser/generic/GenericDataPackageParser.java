@@ -58,13 +58,17 @@ import org.ecoinformatics.datamanager.parser.EnumeratedDomain;
 import org.ecoinformatics.datamanager.parser.NumericDomain;
 import org.ecoinformatics.datamanager.parser.Attribute;
 import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.Constraint;
 import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.ForeignKey;
 import org.ecoinformatics.datamanager.parser.Party;
+import org.ecoinformatics.datamanager.parser.PrimaryKey;
 import org.ecoinformatics.datamanager.parser.StorageType;
 import org.ecoinformatics.datamanager.parser.TextComplexDataFormat;
 import org.ecoinformatics.datamanager.parser.TextDelimitedDataFormat;
 import org.ecoinformatics.datamanager.parser.TextDomain;
 import org.ecoinformatics.datamanager.parser.TextWidthFixedDataFormat;
+import org.ecoinformatics.datamanager.parser.UniqueKey;
 import org.ecoinformatics.datamanager.parser.UserId;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
@@ -1231,6 +1235,7 @@ public class GenericDataPackageParser implements DataPackageParserInterface
             String metadataRecordDelimiter = null; // The record delimiter specified in the metadata
             String compressionMethod = "";
             String encodingMethod = "";
+            String characterEncoding = null;
             String quoteCharacter = null;
             String literalCharacter = null;
             TextComplexDataFormat[] formatArray = null;        
@@ -1623,6 +1628,18 @@ public class GenericDataPackageParser implements DataPackageParserInterface
               }
           }
 
+          // Get the character encoding of the data file
+          NodeList characterEncodingNodeList = 
+              xpathapi.selectNodeList(entityNode, "physical/characterEncoding");
+          
+          if (characterEncodingNodeList != null && 
+              characterEncodingNodeList.getLength() > 0 &&
+              characterEncodingNodeList.item(0).getFirstChild() != null
+             ) {
+              characterEncoding = 
+                characterEncodingNodeList.item(0).getFirstChild().getNodeValue().trim();
+          }
+
           if (entityOrientation.trim().equals("column")) {
               entityOrientation = Entity.COLUMNMAJOR;
           } else {
@@ -1667,6 +1684,7 @@ public class GenericDataPackageParser implements DataPackageParserInterface
           entityObject.setURLFunction(onlineUrlFunction);
           entityObject.setDataFormat(format);
           entityObject.setCompressionMethod(compressionMethod);
+          entityObject.setCharacterEncoding(characterEncoding);
           entityObject.setIsImageEntity(isImageEntity);
           entityObject.setIsOtherEntity(isOtherEntity);
           entityObject.setHasGZipDataFile(isGZipDataFile);
@@ -1690,6 +1708,8 @@ public class GenericDataPackageParser implements DataPackageParserInterface
                                     e.getMessage(), e);
           }
           
+          processConstraints(xpathapi, entityNode, entityObject);
+          
           //entityHash.put(Integer.toString(elementId), entityObject);
           emlDataPackage.add(entityObject);
           //fileHash.put(elementId, onlineUrl); 
@@ -1698,6 +1718,75 @@ public class GenericDataPackageParser implements DataPackageParserInterface
     }
     
     
+    /**
+     * Processes the primary key, unique key and foreign key constraints of
+     * an entity, adding them to the entity object. Constraints without keys
+     * are ignored.
+     * 
+     * @param  xpathapi    the XPath API
+     * @param  entityNode  the entity node
+     * @param  entity      the entity object whose constraints are processed
+     */
+    private void processConstraints(CachedXPathAPI xpathapi, 
+                                    Node entityNode, 
+                                    Entity entity)
+            throws TransformerException
+    {
+        NodeList constraintNodeList = xpathapi.selectNodeList(entityNode,
+            "constraint/primaryKey | constraint/uniqueKey | " +
+            "constraint/foreignKey");
+        
+        for (int i = 0; i < constraintNodeList.getLength(); i++) {
+            Node constraintNode = constraintNodeList.item(i);
+            String constraintType = constraintNode.getNodeName();
+            Node nameNode = 
+                xpathapi.selectSingleNode(constraintNode, "constraintName");
+            String name = 
+                (nameNode == null) ? null : nameNode.getTextContent().trim();
+            NodeList keyNodeList = xpathapi.selectNodeList(constraintNode, 
+                                                  "key/attributeReference");
+            String[] keys = new String[keyNodeList.getLength()];
+            
+            for (int j = 0; j < keys.length; j++) {
+                keys[j] = keyNodeList.item(j).getTextContent().trim();
+            }
+            
+            if (keys.length == 0) {
+                continue;
+            }
+            
+            Constraint constraint = null;
+            
+            if (constraintType.equals("primaryKey")) {
+                PrimaryKey primaryKey = new PrimaryKey();
+                primaryKey.setName(name);
+                primaryKey.setKeys(keys);
+                constraint = primaryKey;
+            }
+            else if (constraintType.equals("uniqueKey")) {
+                UniqueKey uniqueKey = new UniqueKey();
+                uniqueKey.setName(name);
+                uniqueKey.setKeys(keys);
+                constraint = uniqueKey;
+            }
+            else {
+                Node referenceNode = 
+                    xpathapi.selectSingleNode(constraintNode, "entityReference");
+                ForeignKey foreignKey = new ForeignKey();
+                foreignKey.setName(name);
+                foreignKey.setKeys(keys);
+                if (referenceNode != null) {
+                    foreignKey.setEntityReference(
+                        referenceNode.getTextContent().trim());
+                }
+                constraint = foreignKey;
+            }
+            
+            entity.addConstraint(constraint);
+        }
+    }
+    
+    
     /**
      * This method will digest a text fixed data format node and return
      * a TextFixedDataFormat object.
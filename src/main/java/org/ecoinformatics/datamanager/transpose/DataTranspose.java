@@ -1,5 +1,6 @@
 package org.ecoinformatics.datamanager.transpose;
 
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -79,7 +80,27 @@ public class DataTranspose {
 		
 		return retTable;
 	}
-	
+
+	/**
+	 * Transposes a result set one row at a time, without holding the table
+	 * in memory. See StreamingTranspose for the memory budget of unordered
+	 * results and for setting the pivot values beforehand.
+	 *
+	 * @param rs            the result set
+	 * @param idCol         the index of the id column
+	 * @param pivotCol      the index of the pivot column
+	 * @param omitIdValues  true to number the rows in place of their ids
+	 * @param orderedById   true if the result set is ordered by the id column
+	 * @param handler       the handler of the header and the value rows
+	 * @return the number of value rows
+	 */
+	public static int transpose(ResultSet rs, int idCol, int pivotCol, boolean omitIdValues,
+			boolean orderedById, RowHandlerInterface handler) throws SQLException, IOException {
+		StreamingTranspose transpose = new StreamingTranspose(idCol, pivotCol, omitIdValues);
+		transpose.setOrderedById(orderedById);
+		return transpose.transpose(rs, handler);
+	}
+
 	/**
 	 * @param args
 	 */
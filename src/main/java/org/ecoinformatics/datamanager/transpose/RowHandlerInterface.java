@@ -0,0 +1,19 @@
+package org.ecoinformatics.datamanager.transpose;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a transposed table one at a time: first the header,
+ * then the value rows, so that the table does not have to be held in memory.
+ */
+public interface RowHandlerInterface {
+
+	/**
+	 * Handles the next row of the table.
+	 *
+	 * @param row  the header or the values of a row, all of the same length
+	 * @throws IOException if the row cannot be written
+	 */
+	public void handleRow(String[] row) throws IOException;
+
+}
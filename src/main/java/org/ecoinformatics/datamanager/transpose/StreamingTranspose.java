@@ -0,0 +1,589 @@
+package org.ecoinformatics.datamanager.transpose;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Transposes a result set from long format to wide format, like
+ * DataTranspose.transpose(), but hands the rows to a RowHandlerInterface one
+ * at a time instead of building the table in memory.
+ *
+ * Each value row holds the values of one id. If the result set is ordered by
+ * the id column, a row is complete once the id changes and is handed on
+ * straight away. Otherwise the rows of the result set are sorted by id in
+ * runs that fit a memory budget, which are spilled to temporary files and
+ * merged, and the value rows are handed on in the order of the ids' text.
+ * At most the merge fan-in of runs are merged at once; if there are more,
+ * they are first merged in groups into longer runs, in as many passes as
+ * needed, so that the number of open files stays bounded.
+ *
+ * The header holds a column for each value column and pivot value. If the
+ * pivot values are set beforehand, the header is known before the first
+ * row; values of other pivot values are left out. Otherwise the pivot
+ * values are found in a first pass over the result set, which spills its
+ * rows to a temporary file to read them again in a second pass.
+ */
+public class StreamingTranspose {
+
+	/** The default memory budget for sorting, 16 megabytes */
+	public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+	/** The default number of runs that are merged at once */
+	public static final int DEFAULT_MERGE_FAN_IN = 64;
+
+	/* The estimated bytes of a row in memory, besides its strings */
+	private static final int ROW_OVERHEAD = 64;
+	private static final int STRING_OVERHEAD = 40;
+
+	private static final String TEMP_PREFIX = "transpose";
+
+	private final int idCol;
+	private final int pivotCol;
+	private final boolean omitIdValues;
+	private boolean orderedById = false;
+	private List<String> pivotValues = null;
+	private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+	private int mergeFanIn = DEFAULT_MERGE_FAN_IN;
+	private File tempDirectory = null;
+	private int spillCount = 0;
+
+	/**
+	 * Constructs a transpose of the rows of a result set.
+	 *
+	 * @param idCol         the index of the id column, starting at 1
+	 * @param pivotCol      the index of the column whose values name the
+	 *                      transposed columns, starting at 1
+	 * @param omitIdValues  true to number the rows in place of their ids
+	 */
+	public StreamingTranspose(int idCol, int pivotCol, boolean omitIdValues) {
+		this.idCol = idCol;
+		this.pivotCol = pivotCol;
+		this.omitIdValues = omitIdValues;
+	}
+
+	/**
+	 * Sets whether the rows of the result set are ordered by the id column,
+	 * so that they need not be sorted. The rows of an id must then be
+	 * together.
+	 *
+	 * @param orderedById  true if the rows are ordered by id
+	 */
+	public void setOrderedById(boolean orderedById) {
+		this.orderedById = orderedById;
+	}
+
+	/**
+	 * Sets the pivot values, in the order of their columns, so that the
+	 * header is known without a first pass over the result set. They may be
+	 * selected beforehand with SELECT DISTINCT on the pivot column.
+	 *
+	 * @param pivotValues  the pivot values, or null to find them
+	 */
+	public void setPivotValues(List<String> pivotValues) {
+		this.pivotValues = pivotValues;
+	}
+
+	/**
+	 * Sets the number of bytes of rows that are held in memory while they
+	 * are sorted, before they are spilled to a temporary file.
+	 *
+	 * @param bytes  the memory budget in bytes
+	 */
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = Math.max(bytes, 0);
+	}
+
+	/**
+	 * Sets the number of sorted runs that are merged at once, each of which
+	 * but one is read from an open temporary file.
+	 *
+	 * @param fanIn  the merge fan-in, at least 2
+	 */
+	public void setMergeFanIn(int fanIn) {
+		this.mergeFanIn = Math.max(fanIn, 2);
+	}
+
+	/**
+	 * Sets the directory of the temporary files.
+	 *
+	 * @param directory  the directory, or null for the default
+	 */
+	public void setTempDirectory(File directory) {
+		this.tempDirectory = directory;
+	}
+
+	/**
+	 * Gets the number of temporary files that the last transpose spilled
+	 * rows to.
+	 *
+	 * @return the number of files
+	 */
+	public int getSpillCount() {
+		return spillCount;
+	}
+
+	/**
+	 * Transposes the rows of a result set, handing on the header and then
+	 * each value row.
+	 *
+	 * @param rs       the result set, which is read to its end
+	 * @param handler  the handler of the transposed rows
+	 * @return the number of value rows
+	 * @throws SQLException if the result set cannot be read
+	 * @throws IOException if a temporary file or the handler fails
+	 */
+	public int transpose(ResultSet rs, RowHandlerInterface handler)
+			throws SQLException, IOException {
+		ResultSetMetaData metaData = rs.getMetaData();
+		int colCount = metaData.getColumnCount();
+		String idColName = metaData.getColumnName(idCol);
+		List<Integer> valueCols = new ArrayList<Integer>();
+		List<String> valueColNames = new ArrayList<String>();
+		for (int i = 1; i <= colCount; i++) {
+			if (i != idCol && i != pivotCol) {
+				valueCols.add(i);
+				valueColNames.add(metaData.getColumnName(i));
+			}
+		}
+
+		List<File> files = new ArrayList<File>();
+		RecordSource source = new ResultSetSource(rs, valueCols);
+		LinkedHashSet<String> columnValues = new LinkedHashSet<String>();
+		spillCount = 0;
+
+		try {
+			if (pivotValues != null) {
+				columnValues.addAll(pivotValues);
+			}
+
+			if (!orderedById) {
+				source = sort(source, columnValues, files);
+			}
+			else if (pivotValues == null) {
+				// Find the pivot values in a first pass
+				source = new FileSource(spill(source, columnValues, files));
+			}
+
+			return emit(source, idColName, valueColNames,
+				new ArrayList<String>(columnValues), handler);
+		}
+		finally {
+			source.close();
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/*
+	 * Builds each value row from the records of its id, which are together,
+	 * and hands it on once the id changes.
+	 */
+	private int emit(RecordSource source, String idColName,
+			List<String> valueColNames, List<String> columnValues,
+			RowHandlerInterface handler) throws SQLException, IOException {
+		int width = valueColNames.size();
+		Map<String, Integer> offsets = new HashMap<String, Integer>();
+		String[] header = new String[1 + columnValues.size() * width];
+		header[0] = idColName;
+		for (int p = 0; p < columnValues.size(); p++) {
+			String pivotValue = columnValues.get(p);
+			offsets.put(pivotValue, 1 + p * width);
+			for (int c = 0; c < width; c++) {
+				header[1 + p * width + c] = pivotValue + "_" + valueColNames.get(c);
+			}
+		}
+		handler.handleRow(header);
+
+		int rowCount = 0;
+		String[] row = null;
+		String rowId = null;
+
+		while (source.next()) {
+			String id = source.getId();
+			if (row == null || !equal(id, rowId)) {
+				if (row != null) {
+					handler.handleRow(row);
+				}
+				rowCount++;
+				row = new String[header.length];
+				rowId = id;
+				row[0] = omitIdValues ? String.valueOf(rowCount) : id;
+			}
+
+			Integer offset = offsets.get(source.getPivot());
+			if (offset != null) {
+				String[] values = source.getValues();
+				System.arraycopy(values, 0, row, offset.intValue(), width);
+			}
+		}
+
+		if (row != null) {
+			handler.handleRow(row);
+		}
+
+		return rowCount;
+	}
+
+	/*
+	 * Sorts the records by id in runs that fit the memory budget, noting
+	 * their pivot values unless these are set. A single run is read from
+	 * memory; several are spilled and merged, at most the merge fan-in at a
+	 * time, the last run being merged from memory.
+	 */
+	private RecordSource sort(RecordSource source,
+			LinkedHashSet<String> foundValues, List<File> files)
+			throws SQLException, IOException {
+		List<Record> run = new ArrayList<Record>();
+		List<File> runFiles = new ArrayList<File>();
+		long runBytes = 0;
+
+		while (source.next()) {
+			Record record = source.getRecord();
+			if (pivotValues == null) {
+				foundValues.add(record.pivot);
+			}
+			run.add(record);
+			runBytes += record.estimateBytes();
+
+			if (runBytes > memoryBudget) {
+				Collections.sort(run, BY_ID);
+				runFiles.add(spill(new ListSource(run), null, files));
+				run = new ArrayList<Record>();
+				runBytes = 0;
+			}
+		}
+		source.close();
+
+		Collections.sort(run, BY_ID);
+		if (runFiles.isEmpty()) {
+			return new ListSource(run);
+		}
+
+		// Merge consecutive groups of runs, which keeps the records of an id
+		// in order, until the files and the run in memory fit one merge
+		while (runFiles.size() >= mergeFanIn) {
+			List<File> mergedFiles = new ArrayList<File>();
+			for (int i = 0; i < runFiles.size(); i += mergeFanIn) {
+				List<File> group = runFiles.subList(i,
+					Math.min(i + mergeFanIn, runFiles.size()));
+				mergedFiles.add((group.size() == 1) ? group.get(0)
+					: merge(group, files));
+			}
+			runFiles = mergedFiles;
+		}
+
+		List<RecordSource> runs = openRuns(runFiles);
+		runs.add(new ListSource(run));
+
+		return new MergeSource(runs);
+	}
+
+	/*
+	 * Merges sorted runs into a temporary file, deleting their files.
+	 */
+	private File merge(List<File> runFiles, List<File> files)
+			throws SQLException, IOException {
+		File file = spill(new MergeSource(openRuns(runFiles)), null, files);
+
+		for (File runFile : runFiles) {
+			runFile.delete();
+			files.remove(runFile);
+		}
+
+		return file;
+	}
+
+	/*
+	 * Opens the files of sorted runs, closing those already open if one
+	 * cannot be opened.
+	 */
+	private static List<RecordSource> openRuns(List<File> runFiles)
+			throws IOException {
+		List<RecordSource> runs = new ArrayList<RecordSource>();
+
+		try {
+			for (File file : runFiles) {
+				runs.add(new FileSource(file));
+			}
+		}
+		catch (IOException e) {
+			for (RecordSource run : runs) {
+				run.close();
+			}
+			throw e;
+		}
+
+		return runs;
+	}
+
+	/*
+	 * Writes the records of a source to a temporary file, noting their pivot
+	 * values.
+	 */
+	private File spill(RecordSource source, LinkedHashSet<String> foundValues,
+			List<File> files) throws SQLException, IOException {
+		File file = File.createTempFile(TEMP_PREFIX, ".tmp", tempDirectory);
+		files.add(file);
+		spillCount++;
+
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			while (source.next()) {
+				Record record = source.getRecord();
+				if (foundValues != null) {
+					foundValues.add(record.pivot);
+				}
+				writeString(out, record.id);
+				writeString(out, record.pivot);
+				out.writeInt(record.values.length);
+				for (int i = 0; i < record.values.length; i++) {
+					writeString(out, record.values[i]);
+				}
+			}
+		}
+		finally {
+			out.close();
+			source.close();
+		}
+
+		return file;
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		}
+		else {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	private static int compareIds(String a, String b) {
+		if (a == null) {
+			return (b == null) ? 0 : -1;
+		}
+		return (b == null) ? 1 : a.compareTo(b);
+	}
+
+	/*
+	 * Orders records by id. The sort is stable, so the records of an id keep
+	 * the order of the result set.
+	 */
+	private static final Comparator<Record> BY_ID = new Comparator<Record>() {
+		public int compare(Record a, Record b) {
+			return compareIds(a.id, b.id);
+		}
+	};
+
+	/*
+	 * A row of the result set: its id, pivot value and other values.
+	 */
+	private static class Record {
+		final String id;
+		final String pivot;
+		final String[] values;
+
+		Record(String id, String pivot, String[] values) {
+			this.id = id;
+			this.pivot = pivot;
+			this.values = values;
+		}
+
+		long estimateBytes() {
+			long bytes = ROW_OVERHEAD + estimateBytes(id) + estimateBytes(pivot);
+			for (int i = 0; i < values.length; i++) {
+				bytes += estimateBytes(values[i]);
+			}
+			return bytes;
+		}
+
+		private static long estimateBytes(String value) {
+			return (value == null) ? 8 : STRING_OVERHEAD + 2L * value.length();
+		}
+	}
+
+	/*
+	 * A sequence of records.
+	 */
+	private static abstract class RecordSource {
+		Record current = null;
+
+		abstract boolean next() throws SQLException, IOException;
+
+		void close() throws IOException {
+		}
+
+		Record getRecord() {
+			return current;
+		}
+
+		String getId() {
+			return current.id;
+		}
+
+		String getPivot() {
+			return current.pivot;
+		}
+
+		String[] getValues() {
+			return current.values;
+		}
+	}
+
+	private class ResultSetSource extends RecordSource {
+		private final ResultSet rs;
+		private final int[] valueCols;
+
+		ResultSetSource(ResultSet rs, List<Integer> valueCols) {
+			this.rs = rs;
+			this.valueCols = new int[valueCols.size()];
+			for (int i = 0; i < this.valueCols.length; i++) {
+				this.valueCols[i] = valueCols.get(i).intValue();
+			}
+		}
+
+		boolean next() throws SQLException {
+			if (!rs.next()) {
+				current = null;
+				return false;
+			}
+			String[] values = new String[valueCols.length];
+			for (int i = 0; i < valueCols.length; i++) {
+				values[i] = rs.getString(valueCols[i]);
+			}
+			current = new Record(rs.getString(idCol), rs.getString(pivotCol),
+				values);
+			return true;
+		}
+	}
+
+	private static class ListSource extends RecordSource {
+		private final List<Record> records;
+		private int next = 0;
+
+		ListSource(List<Record> records) {
+			this.records = records;
+		}
+
+		boolean next() {
+			current = (next < records.size()) ? records.get(next++) : null;
+			return current != null;
+		}
+	}
+
+	private static class FileSource extends RecordSource {
+		private final DataInputStream in;
+
+		FileSource(File file) throws IOException {
+			in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		boolean next() throws IOException {
+			String id;
+			try {
+				id = readString(in);
+			}
+			catch (EOFException e) {
+				current = null;
+				return false;
+			}
+			String pivot = readString(in);
+			String[] values = new String[in.readInt()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = readString(in);
+			}
+			current = new Record(id, pivot, values);
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/*
+	 * Merges sorted runs by id. The records of an id are taken from the
+	 * earlier runs first, so they keep the order of the result set.
+	 */
+	private static class MergeSource extends RecordSource {
+		private final List<RecordSource> runs;
+		private final PriorityQueue<Integer> heads;
+
+		MergeSource(final List<RecordSource> runs)
+				throws SQLException, IOException {
+			this.runs = runs;
+			heads = new PriorityQueue<Integer>(Math.max(runs.size(), 1),
+				new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						int order = compareIds(runs.get(a.intValue()).getId(),
+							runs.get(b.intValue()).getId());
+						return (order != 0) ? order : a.compareTo(b);
+					}
+				});
+			for (int i = 0; i < runs.size(); i++) {
+				if (runs.get(i).next()) {
+					heads.add(Integer.valueOf(i));
+				}
+			}
+		}
+
+		boolean next() throws SQLException, IOException {
+			Integer head = heads.poll();
+			if (head == null) {
+				current = null;
+				return false;
+			}
+			RecordSource run = runs.get(head.intValue());
+			current = run.getRecord();
+			if (run.next()) {
+				heads.add(head);
+			}
+			return true;
+		}
+
+		void close() throws IOException {
+			for (RecordSource run : runs) {
+				run.close();
+			}
+		}
+	}
+
+}
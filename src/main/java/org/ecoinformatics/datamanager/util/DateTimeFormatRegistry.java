@@ -0,0 +1,453 @@
+package org.ecoinformatics.datamanager.util;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.SignStyle;
+import java.time.format.TextStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalField;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A shared registry of datetime parsers for EML format strings, such as
+ * "YYYY-MM-DD", "YYYY-MM-DDThh:mm:ss" or "DD WWW YYYY". Each format string
+ * is translated once into an immutable, thread-safe java.time formatter and
+ * cached, so that parsing a datetime value does not repeat the translation.
+ *
+ * Format strings that cannot be expressed with java.time fields fall back to
+ * the translation into a SimpleDateFormat pattern that was used previously,
+ * with one SimpleDateFormat per thread.
+ */
+public class DateTimeFormatRegistry {
+
+  /*
+   * Class fields
+   */
+
+  /* Values of two-digit years fall within 80 years before now and 20 after */
+  private static final LocalDate TWO_DIGIT_YEAR_BASE =
+    LocalDate.now().minusYears(80);
+
+  private static final ConcurrentMap<String, DateTimeFormat> formats =
+    new ConcurrentHashMap<String, DateTimeFormat>();
+
+
+  /*
+   * Constructors
+   */
+
+  /*
+   * This class only has static methods.
+   */
+  private DateTimeFormatRegistry() {
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Gets the compiled format for an EML format string, translating it on
+   * first use.
+   *
+   * @param emlFormatString  the EML datetime format string
+   * @return the compiled format
+   */
+  public static DateTimeFormat getFormat(String emlFormatString) {
+    if (emlFormatString == null) {
+      throw new IllegalArgumentException("The datetime format string is null");
+    }
+
+    DateTimeFormat format = formats.get(emlFormatString);
+
+    if (format == null) {
+      format = compile(emlFormatString);
+      DateTimeFormat existing = formats.putIfAbsent(emlFormatString, format);
+      if (existing != null) {
+        format = existing;
+      }
+    }
+
+    return format;
+  }
+
+
+  /**
+   * Parses a datetime value using an EML format string.
+   *
+   * @param value            the datetime value as found in a data table
+   * @param emlFormatString  the EML datetime format string
+   * @return the value as a Timestamp
+   * @throws ParseException if the value does not match the format string
+   */
+  public static Timestamp parseTimestamp(String value, String emlFormatString)
+          throws ParseException {
+    return getFormat(emlFormatString).parseTimestamp(value);
+  }
+
+
+  /*
+   * Translates an EML format string into a java.time formatter, or into a
+   * SimpleDateFormat pattern if it uses fields that are not recognized.
+   */
+  private static DateTimeFormat compile(String emlFormatString) {
+    DateTimeFormatter formatter = null;
+
+    try {
+      formatter = buildFormatter(emlFormatString);
+    }
+    catch (IllegalArgumentException e) {
+      formatter = null;
+    }
+
+    if (formatter != null) {
+      return new DateTimeFormat(emlFormatString, formatter, null);
+    }
+
+    return new DateTimeFormat(emlFormatString, null,
+                              toSimpleDateFormatPattern(emlFormatString));
+  }
+
+
+  /*
+   * Builds a java.time formatter for an EML format string. Returns null if
+   * the format string contains a field that is not recognized or that
+   * occurs more than once.
+   */
+  private static DateTimeFormatter buildFormatter(String emlFormatString) {
+    List<String> tokens = tokenize(emlFormatString);
+    Set<TemporalField> fields = new HashSet<TemporalField>();
+    boolean hasAmPm = false;
+
+    for (String token : tokens) {
+      if (token.equals("AM") || token.equals("PM") ||
+          token.equals("A") || token.equals("a")) {
+        hasAmPm = true;
+      }
+    }
+
+    DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+    builder.parseCaseInsensitive();
+
+    for (int i = 0; i < tokens.size(); i++) {
+      String token = tokens.get(i);
+      char c = token.charAt(0);
+      int width = token.length();
+      boolean adjacent = i + 1 < tokens.size() && isNumericToken(tokens.get(i + 1));
+      TemporalField field = null;
+
+      if (token.equals("AM") || token.equals("PM") ||
+          token.equals("A") || token.equals("a")) {
+        field = ChronoField.AMPM_OF_DAY;
+        builder.appendText(field, TextStyle.SHORT);
+      }
+      else if (c == 'Y' || c == 'y') {
+        field = ChronoField.YEAR;
+        if (width == 2) {
+          builder.appendValueReduced(field, 2, 2, TWO_DIGIT_YEAR_BASE);
+        }
+        else {
+          appendNumber(builder, field, width, adjacent);
+        }
+      }
+      else if (c == 'M' && width <= 2) {
+        field = ChronoField.MONTH_OF_YEAR;
+        appendNumber(builder, field, width, adjacent);
+      }
+      else if (c == 'M' || (c == 'W' && width >= 3)) {
+        field = ChronoField.MONTH_OF_YEAR;
+        builder.appendText(field, width >= 4 ? TextStyle.FULL : TextStyle.SHORT);
+      }
+      else if ((c == 'D' || c == 'd') && width <= 2) {
+        field = ChronoField.DAY_OF_MONTH;
+        appendNumber(builder, field, width, adjacent);
+      }
+      else if (c == 'D' || c == 'd') {
+        field = ChronoField.DAY_OF_YEAR;
+        appendNumber(builder, field, width, adjacent);
+      }
+      else if (c == 'h' || c == 'H') {
+        field = hasAmPm ? ChronoField.CLOCK_HOUR_OF_AMPM
+                        : ChronoField.HOUR_OF_DAY;
+        appendNumber(builder, field, width, adjacent);
+      }
+      else if (c == 'm') {
+        field = ChronoField.MINUTE_OF_HOUR;
+        appendNumber(builder, field, width, adjacent);
+      }
+      else if (c == 's' && i >= 2 && tokens.get(i - 1).equals(".") &&
+               tokens.get(i - 2).charAt(0) == 's') {
+        // Fractional seconds, e.g. the "sss" in "hh:mm:ss.sss"
+        field = ChronoField.NANO_OF_SECOND;
+        builder.appendFraction(field, 1, 9, false);
+      }
+      else if (c == 's') {
+        field = ChronoField.SECOND_OF_MINUTE;
+        appendNumber(builder, field, width, adjacent);
+      }
+      else if (c == 'Z' && i == tokens.size() - 1 && width == 1) {
+        // A trailing "Z" denotes UTC or an offset such as "+01:00"
+        builder.appendPattern("[XXX][XX][X]");
+      }
+      else if (Character.isLetter(c) && c != 'T') {
+        return null;
+      }
+      else {
+        builder.appendLiteral(token);
+      }
+
+      if (field != null && !fields.add(field)) {
+        return null;
+      }
+    }
+
+    // Fields that are not part of the format string take default values
+    if (!fields.contains(ChronoField.YEAR)) {
+      builder.parseDefaulting(ChronoField.YEAR, 1970);
+    }
+    if (!fields.contains(ChronoField.DAY_OF_YEAR)) {
+      if (!fields.contains(ChronoField.MONTH_OF_YEAR)) {
+        builder.parseDefaulting(ChronoField.MONTH_OF_YEAR, 1);
+      }
+      if (!fields.contains(ChronoField.DAY_OF_MONTH)) {
+        builder.parseDefaulting(ChronoField.DAY_OF_MONTH, 1);
+      }
+    }
+    if (!fields.contains(ChronoField.HOUR_OF_DAY) &&
+        !fields.contains(ChronoField.CLOCK_HOUR_OF_AMPM)) {
+      builder.parseDefaulting(ChronoField.HOUR_OF_DAY, 0);
+    }
+    if (!fields.contains(ChronoField.MINUTE_OF_HOUR)) {
+      builder.parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0);
+    }
+
+    return builder.toFormatter(Locale.ENGLISH);
+  }
+
+
+  /*
+   * Appends a numeric field. A field that is directly followed by another
+   * numeric field, as in "YYYYMMDD", has a fixed width; otherwise a shorter
+   * value such as "7" for "DD" is accepted.
+   */
+  private static void appendNumber(DateTimeFormatterBuilder builder,
+                                   TemporalField field, int width,
+                                   boolean adjacent) {
+    if (adjacent) {
+      builder.appendValue(field, width);
+    }
+    else {
+      builder.appendValue(field, 1, Math.max(width, 2), SignStyle.NOT_NEGATIVE);
+    }
+  }
+
+
+  /*
+   * Determines whether a token stands for a numeric field.
+   */
+  private static boolean isNumericToken(String token) {
+    char c = token.charAt(0);
+    int width = token.length();
+
+    switch (c) {
+      case 'Y': case 'y': case 'D': case 'd':
+      case 'h': case 'H': case 'm': case 's':
+        return true;
+      case 'M':
+        return width <= 2;
+      default:
+        return false;
+    }
+  }
+
+
+  /*
+   * Splits a format string into runs of the same letter and single
+   * non-letter characters. "AM" and "PM" are kept together.
+   */
+  private static List<String> tokenize(String formatString) {
+    List<String> tokens = new ArrayList<String>();
+    int length = formatString.length();
+    int i = 0;
+
+    while (i < length) {
+      char c = formatString.charAt(i);
+      int end = i + 1;
+
+      if ((c == 'A' || c == 'P') && end < length &&
+          formatString.charAt(end) == 'M') {
+        end++;
+        tokens.add(c == 'A' ? "AM" : "PM");
+        i = end;
+        continue;
+      }
+
+      if (Character.isLetter(c)) {
+        while (end < length && formatString.charAt(end) == c) {
+          end++;
+        }
+      }
+
+      tokens.add(formatString.substring(i, end));
+      i = end;
+    }
+
+    return tokens;
+  }
+
+
+  /*
+   * Translates an EML format string into a SimpleDateFormat pattern.
+   */
+  private static String toSimpleDateFormatPattern(String emlFormatString) {
+    String pattern = emlFormatString;
+    // year
+    pattern = pattern.replace('Y', 'y');
+    // day in month
+    pattern = pattern.replace('D', 'd');
+    // abbreviated month name
+    pattern = pattern.replace('W', 'M');
+    // AM or PM?
+    pattern = pattern.replace('A', 'a');
+    pattern = pattern.replace('P', 'p');
+    // "T" between date and time
+    pattern = pattern.replace("T", "'T'");
+
+    return pattern;
+  }
+
+
+  /*
+   * Removes any double quotes from a datetime value.
+   */
+  private static String removeQuotes(String value) {
+    if (value.indexOf('"') < 0) {
+      return value;
+    }
+
+    StringBuffer buffer = new StringBuffer(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c != '"') {
+        buffer.append(c);
+      }
+    }
+
+    return buffer.toString();
+  }
+
+
+  /**
+   * A compiled EML datetime format. Instances are immutable and can be
+   * shared between threads.
+   */
+  public static final class DateTimeFormat {
+
+    private final String emlFormatString;
+    private final DateTimeFormatter formatter;
+    private final ThreadLocal<SimpleDateFormat> simpleDateFormat;
+
+    private DateTimeFormat(String emlFormatString,
+                           DateTimeFormatter formatter,
+                           final String simpleDateFormatPattern) {
+      this.emlFormatString = emlFormatString;
+      this.formatter = formatter;
+
+      if (simpleDateFormatPattern == null) {
+        this.simpleDateFormat = null;
+      }
+      else {
+        // Fail now rather than for every value if the pattern is illegal
+        new SimpleDateFormat(simpleDateFormatPattern);
+        this.simpleDateFormat = new ThreadLocal<SimpleDateFormat>() {
+          protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(simpleDateFormatPattern);
+          }
+        };
+      }
+    }
+
+    /**
+     * Gets the EML format string of this format.
+     *
+     * @return the EML format string
+     */
+    public String getEmlFormatString() {
+      return emlFormatString;
+    }
+
+    /**
+     * Gets the java.time formatter of this format.
+     *
+     * @return the formatter, or null if the format string could only be
+     *         translated into a SimpleDateFormat pattern
+     */
+    public DateTimeFormatter getFormatter() {
+      return formatter;
+    }
+
+    /**
+     * Parses a datetime value. Double quotes around the value are ignored,
+     * as is any text following the datetime.
+     *
+     * @param value  the datetime value as found in a data table
+     * @return the value as a Timestamp
+     * @throws ParseException if the value does not match the format
+     */
+    public Timestamp parseTimestamp(String value) throws ParseException {
+      if (value == null) {
+        throw new ParseException("The datetime value is null", 0);
+      }
+
+      value = removeQuotes(value);
+
+      if (formatter == null) {
+        Date date = simpleDateFormat.get().parse(value);
+        return new Timestamp(date.getTime());
+      }
+
+      try {
+        TemporalAccessor parsed = formatter.parse(value, new ParsePosition(0));
+        LocalDateTime dateTime =
+          LocalDateTime.of(LocalDate.from(parsed), LocalTime.from(parsed));
+
+        if (parsed.isSupported(ChronoField.OFFSET_SECONDS)) {
+          ZoneOffset offset = ZoneOffset.ofTotalSeconds(
+            parsed.get(ChronoField.OFFSET_SECONDS));
+          return Timestamp.from(dateTime.toInstant(offset));
+        }
+
+        return Timestamp.valueOf(dateTime);
+      }
+      catch (DateTimeParseException e) {
+        throw new ParseException("Unparseable date: \"" + value +
+                                 "\" with format " + emlFormatString,
+                                 e.getErrorIndex());
+      }
+      catch (RuntimeException e) {
+        throw new ParseException("Unparseable date: \"" + value +
+                                 "\" with format " + emlFormatString +
+                                 ": " + e.getMessage(), 0);
+      }
+    }
+  }
+
+}
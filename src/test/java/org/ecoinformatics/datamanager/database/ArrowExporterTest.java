@@ -0,0 +1,410 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.Vector;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.DateTimeDomain;
+import org.ecoinformatics.datamanager.parser.EnumeratedDomain;
+import org.ecoinformatics.datamanager.parser.NumericDomain;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class ArrowExporterTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static final String DATA =
+    "site,count,value,date,note\n" +
+    "north,1,1.5,2002-10-14,a\n" +
+    "south,-999,2.5,2002-10-15,b\n" +
+    "east,3,x,2002-10-16,c\n" +
+    "north,4,4.5,2002-10-17,d\n" +
+    "south,5,5.5,2002-10-18,e\n";
+
+
+  /*
+   * Instance fields
+   */
+  private ArrowExporter exporter = null;
+  private AttributeList attributeList = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public ArrowExporterTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new ArrowExporterTest("testExportEntity"));
+    suite.addTest(new ArrowExporterTest("testExportCursor"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating the attributes of an entity
+   * with an enumerated, an integer, a real, a datetime and a text attribute.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    exporter = new ArrowExporter(new HSQLAdapter());
+
+    Vector<String> codes = new Vector<String>();
+    codes.add("north");
+    codes.add("south");
+    EnumeratedDomain enumeratedDomain = new EnumeratedDomain();
+    enumeratedDomain.setInfo(codes);
+    Attribute count = new Attribute("a2", "count",
+                                    new NumericDomain("integer", null, null));
+    count.addMissingValueCode("-999");
+    DateTimeDomain dateTimeDomain = new DateTimeDomain();
+    dateTimeDomain.setFormatString("YYYY-MM-DD");
+
+    attributeList = new AttributeList();
+    attributeList.add(new Attribute("a1", "site", enumeratedDomain));
+    attributeList.add(count);
+    attributeList.add(new Attribute("a3", "value",
+                                    new NumericDomain("real", null, null)));
+    attributeList.add(new Attribute("a4", "date", dateTimeDomain));
+    attributeList.add(new Attribute("a5", "note", new TextDomain()));
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception {
+    exporter = null;
+    attributeList = null;
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that the rows of an entity are written to an Arrow file in
+   * batches, with the types of their attributes, and that a value outside
+   * the enumerated codes is added to the dictionary in a delta batch.
+   */
+  public void testExportEntity() throws Exception {
+    DelimitedReader reader = new DelimitedReader(
+        new ByteArrayInputStream(DATA.getBytes("UTF-8")),
+        5, ",", 1, "\n", -1, true);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    exporter.setBatchSize(2);
+
+    assertEquals(5, exporter.export(attributeList, reader, output));
+    assertEquals(1, exporter.getConversionErrorCount());
+
+    byte[] file = output.toByteArray();
+    assertEquals("ARROW1", new String(file, 0, 6, "US-ASCII"));
+    assertEquals("ARROW1", new String(file, file.length - 6, 6, "US-ASCII"));
+
+    // The footer finds the schema and the batches
+    int footerLength = readInt(file, file.length - 10);
+    int footer = root(file, file.length - 10 - footerLength);
+    int footerSchema = table(file, footer, 1);
+    assertEquals(5, vectorLength(file, table(file, footerSchema, 1)));
+    int recordBatches = field(file, footer, 3);
+    int dictionaries = field(file, footer, 2);
+    recordBatches += readInt(file, recordBatches);
+    dictionaries += readInt(file, dictionaries);
+    assertEquals(3, readInt(file, recordBatches));
+    assertEquals(2, readInt(file, dictionaries));
+    long firstBatch = readLong(file, recordBatches + 4);
+    assertEquals(-1, readInt(file, (int) firstBatch));
+
+    List<Message> messages = readMessages(file, 8);
+    assertEquals(6, messages.size());
+
+    // The schema maps the attribute domains to Arrow types
+    Message schema = messages.get(0);
+    assertEquals(1, schema.type);
+    int fields = table(file, schema.header, 1);
+    assertEquals(5, vectorLength(file, fields));
+    byte[] types = {5, 2, 3, 10, 5};
+    String[] names = {"site", "count", "value", "date", "note"};
+    for (int i = 0; i < 5; i++) {
+      int fieldTable = element(file, fields, i);
+      assertEquals(names[i], string(file, fieldTable, 0));
+      assertEquals(types[i], file[field(file, fieldTable, 2)]);
+      assertEquals(i == 0, field(file, fieldTable, 4) >= 0);
+    }
+    int count = element(file, fields, 1);
+    assertEquals(64, readInt(file, field(file, table(file, count, 3), 0)));
+
+    // The codes are written first, and the value outside them as a delta
+    Message dictionary = messages.get(1);
+    assertEquals(2, dictionary.type);
+    int isDelta = field(file, dictionary.header, 2);
+    assertTrue(isDelta < 0 || file[isDelta] == 0);
+    Batch codes = new Batch(file, dictionary);
+    assertEquals("north", codes.string(1, 0));
+    assertEquals("south", codes.string(1, 1));
+
+    Batch first = new Batch(file, messages.get(2));
+    assertEquals(2, first.length);
+    assertEquals(0, first.intValue(1, 0));
+    assertEquals(1, first.intValue(1, 1));
+    assertEquals(1, first.longValue(3, 0));
+    assertEquals(1, first.nullCount(1));
+    assertFalse(first.isValid(2, 1));
+    assertEquals(1.5, Double.longBitsToDouble(first.longValue(5, 0)), 0);
+    assertEquals(utcMillis(2002, 10, 14), first.longValue(7, 0));
+    assertEquals(utcMillis(2002, 10, 15), first.longValue(7, 1));
+    assertEquals("b", first.string(9, 1));
+
+    Message delta = messages.get(3);
+    assertEquals(2, delta.type);
+    assertEquals(1, file[field(file, delta.header, 2)]);
+    assertEquals("east", new Batch(file, delta).string(1, 0));
+
+    Batch second = new Batch(file, messages.get(4));
+    assertEquals(2, second.intValue(1, 0));
+    assertEquals(0, second.nullCount(1));
+    assertFalse(second.isValid(4, 0));
+    assertEquals(4.5, Double.longBitsToDouble(second.longValue(5, 1)), 0);
+
+    Batch third = new Batch(file, messages.get(5));
+    assertEquals(1, third.length);
+    assertEquals("e", third.string(9, 0));
+  }
+
+
+  /**
+   * Tests that a cursor is written to an Arrow stream with the types of its
+   * columns, and is closed.
+   */
+  public void testExportCursor() throws Exception {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[] {Integer.valueOf(7), "seven", Boolean.TRUE});
+    rows.add(new Object[] {null, "été", Boolean.FALSE});
+    rows.add(new Object[] {Integer.valueOf(9), null, null});
+    ColumnarResult result = new ColumnarResult(
+        new String[] {"ID", "NAME", "FLAG"},
+        new int[] {Types.INTEGER, Types.VARCHAR, Types.BOOLEAN}, rows);
+
+    RowCursorInterface cursor = result.openCursor();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    exporter.setFileFormat(false);
+    exporter.setBatchSize(2);
+    assertEquals(3, exporter.export(cursor, null, output));
+    assertTrue(cursor.isClosed());
+
+    byte[] stream = output.toByteArray();
+    assertEquals(-1, readInt(stream, stream.length - 8));
+    assertEquals(0, readInt(stream, stream.length - 4));
+
+    List<Message> messages = readMessages(stream, 0);
+    assertEquals(3, messages.size());
+    int fields = table(stream, messages.get(0).header, 1);
+    assertEquals(2, stream[field(stream, element(stream, fields, 0), 2)]);
+    assertEquals(5, stream[field(stream, element(stream, fields, 1), 2)]);
+    assertEquals(6, stream[field(stream, element(stream, fields, 2), 2)]);
+
+    Batch first = new Batch(stream, messages.get(1));
+    assertEquals(7, first.longValue(1, 0));
+    assertFalse(first.isValid(0, 1));
+    assertEquals("été", first.string(3, 1));
+    assertEquals(1, first.buffer(6)[0] & 3);
+
+    Batch second = new Batch(stream, messages.get(2));
+    assertEquals(9, second.longValue(1, 0));
+    assertEquals(1, second.nullCount(1));
+    assertEquals(1, second.nullCount(2));
+
+    // A result without rows has a schema and no batches
+    result = new ColumnarResult(new String[] {"ID"}, new int[] {Types.INTEGER},
+                                new ArrayList<Object[]>());
+    output = new ByteArrayOutputStream();
+    assertEquals(0, exporter.export(result.openCursor(), null, output));
+    assertEquals(1, readMessages(output.toByteArray(), 0).size());
+  }
+
+
+  private static long utcMillis(int year, int month, int day) {
+    Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    calendar.clear();
+    calendar.set(year, month - 1, day);
+    return calendar.getTimeInMillis();
+  }
+
+
+  /*
+   * Reads the encapsulated messages of a stream up to its end.
+   */
+  private static List<Message> readMessages(byte[] bytes, int position) {
+    List<Message> messages = new ArrayList<Message>();
+
+    while (true) {
+      assertEquals(-1, readInt(bytes, position));
+      int metadataLength = readInt(bytes, position + 4);
+      assertEquals(0, (position + 8 + metadataLength) % 8);
+      if (metadataLength == 0) {
+        return messages;
+      }
+
+      Message message = new Message();
+      int root = root(bytes, position + 8);
+      assertEquals(4, readShort(bytes, field(bytes, root, 0)));
+      message.type = bytes[field(bytes, root, 1)];
+      message.header = table(bytes, root, 2);
+      long bodyLength = readLong(bytes, field(bytes, root, 3));
+      message.body = position + 8 + metadataLength;
+      messages.add(message);
+      position = message.body + (int) bodyLength;
+    }
+  }
+
+
+  private static int root(byte[] bytes, int position) {
+    return position + readInt(bytes, position);
+  }
+
+
+  /*
+   * Finds the position of a field of a FlatBuffers table, or -1 if the
+   * field is absent.
+   */
+  private static int field(byte[] bytes, int table, int slot) {
+    int vtable = table - readInt(bytes, table);
+    if (4 + 2 * slot >= readShort(bytes, vtable)) {
+      return -1;
+    }
+    int offset = readShort(bytes, vtable + 4 + 2 * slot);
+    return (offset == 0) ? -1 : table + offset;
+  }
+
+
+  /*
+   * Follows the offset in a field to a table, or to the length of a
+   * vector.
+   */
+  private static int table(byte[] bytes, int table, int slot) {
+    int position = field(bytes, table, slot);
+    return position + readInt(bytes, position);
+  }
+
+
+  private static int vectorLength(byte[] bytes, int vector) {
+    return readInt(bytes, vector);
+  }
+
+
+  private static int element(byte[] bytes, int vector, int index) {
+    int position = vector + 4 + 4 * index;
+    return position + readInt(bytes, position);
+  }
+
+
+  private static String string(byte[] bytes, int table, int slot)
+          throws Exception {
+    int position = table(bytes, table, slot);
+    return new String(bytes, position + 4, readInt(bytes, position), "UTF-8");
+  }
+
+
+  private static int readShort(byte[] bytes, int position) {
+    return (bytes[position] & 0xff) | (bytes[position + 1] & 0xff) << 8;
+  }
+
+
+  private static int readInt(byte[] bytes, int position) {
+    return readShort(bytes, position) | readShort(bytes, position + 2) << 16;
+  }
+
+
+  private static long readLong(byte[] bytes, int position) {
+    return (readInt(bytes, position) & 0xffffffffL) |
+           ((long) readInt(bytes, position + 4)) << 32;
+  }
+
+
+  /*
+   * A message of a stream: its header type, header table and body.
+   */
+  private static class Message {
+    int type;
+    int header;
+    int body;
+  }
+
+
+  /*
+   * The nodes and buffers of a record batch, or of the record batch of a
+   * dictionary batch.
+   */
+  private static class Batch {
+    final byte[] bytes;
+    final int body;
+    final int nodes;
+    final int buffers;
+    final long length;
+
+    Batch(byte[] bytes, Message message) {
+      int recordBatch = (message.type == 2) ?
+                        table(bytes, message.header, 1) : message.header;
+      this.bytes = bytes;
+      this.body = message.body;
+      this.length = readLong(bytes, field(bytes, recordBatch, 0));
+      this.nodes = table(bytes, recordBatch, 1);
+      this.buffers = table(bytes, recordBatch, 2);
+      assertEquals(0, (nodes + 4) % 8);
+      assertEquals(0, (buffers + 4) % 8);
+    }
+
+    long nullCount(int column) {
+      return readLong(bytes, nodes + 4 + 16 * column + 8);
+    }
+
+    byte[] buffer(int index) {
+      int offset = (int) readLong(bytes, buffers + 4 + 16 * index);
+      int size = (int) readLong(bytes, buffers + 4 + 16 * index + 8);
+      assertEquals(0, offset % 8);
+      byte[] buffer = new byte[size];
+      System.arraycopy(bytes, body + offset, buffer, 0, size);
+      return buffer;
+    }
+
+    boolean isValid(int validityBuffer, int row) {
+      byte[] validity = buffer(validityBuffer);
+      return validity.length == 0 || (validity[row >> 3] & (1 << (row & 7))) != 0;
+    }
+
+    int intValue(int buffer, int row) {
+      return readInt(buffer(buffer), row * 4);
+    }
+
+    long longValue(int buffer, int row) {
+      return readLong(buffer(buffer), row * 8);
+    }
+
+    String string(int offsetsBuffer, int row) throws Exception {
+      int begin = intValue(offsetsBuffer, row);
+      int end = intValue(offsetsBuffer, row + 1);
+      return new String(buffer(offsetsBuffer + 1), begin, end - begin, "UTF-8");
+    }
+  }
+
+}
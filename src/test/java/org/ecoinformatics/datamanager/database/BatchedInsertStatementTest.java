@@ -0,0 +1,204 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Vector;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.DateTimeDomain;
+import org.ecoinformatics.datamanager.parser.NumericDomain;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class BatchedInsertStatementTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private HSQLAdapter adapter = null;
+  private AttributeList attributeList = null;
+  private final String tableName = "batchTest";
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public BatchedInsertStatementTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new BatchedInsertStatementTest("testBatchedInsert"));
+    suite.addTest(new BatchedInsertStatementTest("testTypeMismatch"));
+    suite.addTest(new BatchedInsertStatementTest("testFailedRow"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating a table in an in-memory
+   * HSQL database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    Class.forName("org.hsqldb.jdbcDriver");
+    connection = DriverManager.getConnection("jdbc:hsqldb:mem:batchtest", "sa", "");
+    adapter = new HSQLAdapter();
+
+    Attribute text = new Attribute("a1", "text", new TextDomain());
+    Attribute count = new Attribute("a2", "count",
+                                    new NumericDomain("integer", null, null));
+    count.addMissingValueCode("-999");
+    Attribute value = new Attribute("a3", "value",
+                                    new NumericDomain("real", null, null));
+    DateTimeDomain dateTimeDomain = new DateTimeDomain();
+    dateTimeDomain.setFormatString("YYYY-MM-DD");
+    Attribute date = new Attribute("a4", "date", dateTimeDomain);
+    attributeList = new AttributeList();
+    attributeList.add(text);
+    attributeList.add(count);
+    attributeList.add(value);
+    attributeList.add(date);
+
+    Statement statement = connection.createStatement();
+    statement.execute(adapter.generateDDL(attributeList, tableName));
+    statement.close();
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    Statement statement = connection.createStatement();
+    statement.execute(adapter.generateDropTableSQL(tableName));
+    statement.close();
+    connection.close();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that rows are bound with the right types, that null and missing
+   * values become SQL nulls, and that empty rows are skipped.
+   */
+  public void testBatchedInsert() throws Exception {
+    AttributeConverter[] converters = adapter.compileConverters(attributeList);
+    String insertSQL =
+      adapter.generateParameterizedInsertSQL(converters, tableName);
+    BatchedInsertStatement batchedInsert =
+      new BatchedInsertStatement(connection, insertSQL, converters, 7);
+
+    for (int i = 0; i < 25; i++) {
+      assertTrue(batchedInsert.addRow(row("it's " + i, "" + i, "" + i + ".5",
+                                          "2002-10-14")));
+    }
+    assertTrue(batchedInsert.addRow(row("missing", "-999", "", "")));
+    assertFalse(batchedInsert.addRow(row("", "-999", " ", "")));
+    batchedInsert.executeBatch();
+    batchedInsert.close();
+
+    assertEquals(26, batchedInsert.getRowCount());
+    assertEquals(26, batchedInsert.getInsertedRowCount());
+
+    Statement statement = connection.createStatement();
+    ResultSet resultSet = statement.executeQuery(
+      "SELECT \"text\", \"count\", \"value\", \"date\" FROM " + tableName +
+      " WHERE \"count\" = 3");
+    assertTrue(resultSet.next());
+    assertEquals("it's 3", resultSet.getString(1));
+    assertEquals(3.5, resultSet.getDouble(3), 0.0);
+    assertEquals(Timestamp.valueOf("2002-10-14 00:00:00"),
+                 resultSet.getTimestamp(4));
+    resultSet.close();
+
+    resultSet = statement.executeQuery(
+      "SELECT COUNT(*) FROM " + tableName + " WHERE \"count\" IS NULL");
+    resultSet.next();
+    assertEquals(1, resultSet.getInt(1));
+    resultSet.close();
+    statement.close();
+  }
+
+
+  /**
+   * Tests that a value of the wrong type is reported.
+   */
+  public void testTypeMismatch() throws Exception {
+    AttributeConverter[] converters = adapter.compileConverters(attributeList);
+    String insertSQL =
+      adapter.generateParameterizedInsertSQL(converters, tableName);
+    BatchedInsertStatement batchedInsert =
+      new BatchedInsertStatement(connection, insertSQL, converters, 10);
+
+    try {
+      batchedInsert.addRow(row("text", "1.5", "1", "2002-10-14"));
+      fail("A real value should not be accepted for an integer attribute");
+    }
+    catch (DataNotMatchingMetadataException e) {
+      assertTrue(true);
+    }
+    finally {
+      batchedInsert.close();
+    }
+  }
+
+
+  /**
+   * Tests that a value of the wrong type in the middle of a batch is
+   * reported at its own row, not at the first row of the batch.
+   */
+  public void testFailedRow() throws Exception {
+    AttributeConverter[] converters = adapter.compileConverters(attributeList);
+    String insertSQL =
+      adapter.generateParameterizedInsertSQL(converters, tableName);
+    BatchedInsertStatement batchedInsert =
+      new BatchedInsertStatement(connection, insertSQL, converters, 4);
+
+    try {
+      for (int i = 1; i <= 6; i++) {
+        batchedInsert.addRow(row("row " + i, "" + i, "1", "2002-10-14"));
+      }
+      batchedInsert.addRow(row("row 7", "seven", "1", "2002-10-14"));
+      fail("A text value should not be accepted for an integer attribute");
+    }
+    catch (DataNotMatchingMetadataException e) {
+      assertEquals(4, batchedInsert.getInsertedRowCount());
+      assertEquals(7, batchedInsert.getFailedRow(e));
+    }
+    finally {
+      batchedInsert.close();
+    }
+  }
+
+
+  /*
+   * Builds a row of data.
+   */
+  private Vector<String> row(String text, String count, String value,
+                             String date) {
+    Vector<String> row = new Vector<String>();
+    row.add(text);
+    row.add(count);
+    row.add(value);
+    row.add(date);
+    return row;
+  }
+
+}
@@ -0,0 +1,288 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.Constraint;
+import org.ecoinformatics.datamanager.parser.DataPackage;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.ForeignKey;
+import org.ecoinformatics.datamanager.parser.PrimaryKey;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+import org.ecoinformatics.datamanager.parser.UniqueKey;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class ConstraintBuilderTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private TableMonitor tableMonitor = null;
+  private DatabaseHandler databaseHandler = null;
+  private ConstraintBuilder constraintBuilder = null;
+  private Entity site = null;
+  private Entity sample = null;
+  private final String packageId = "constraints.1.1";
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public ConstraintBuilderTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new ConstraintBuilderTest("testBuildPrimaryKey"));
+    suite.addTest(new ConstraintBuilderTest("testDuplicateKeys"));
+    suite.addTest(new ConstraintBuilderTest("testUniqueKey"));
+    suite.addTest(new ConstraintBuilderTest("testForeignKey"));
+    suite.addTest(new ConstraintBuilderTest("testGenerateConstraintSQL"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating a SITE table and a SAMPLE
+   * table, whose SITE column references the sites, in an in-memory HSQL
+   * database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:constrainttest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+    connection = DataManager.getConnection();
+    tableMonitor = new TableMonitor(new HSQLAdapter());
+    databaseHandler = new DatabaseHandler(DatabaseAdapter.HSQL_ADAPTER);
+    constraintBuilder = new ConstraintBuilder(new HSQLAdapter(), tableMonitor);
+
+    site = createEntity("constraints.e1", "CK_SITE",
+                        new String[] { "code", "name" });
+    sample = createEntity("constraints.e2", "CK_SAMPLE",
+                          new String[] { "id", "site" });
+    execute("CREATE TABLE CK_SITE (CODE VARCHAR(8), NAME VARCHAR(32))");
+    execute("CREATE TABLE CK_SAMPLE (ID VARCHAR(8), SITE VARCHAR(8))");
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    ConstraintBuilder.setForeignKeysEnabled(false);
+    databaseHandler.dropTable("CK_SITE");
+    databaseHandler.dropTable("CK_SAMPLE");
+    DataManager.returnConnection(connection);
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that a primary key is built on rows with unique keys, and is
+   * then enforced.
+   */
+  public void testBuildPrimaryKey() throws Exception {
+    execute("INSERT INTO CK_SITE VALUES ('A', 'Alder')");
+    execute("INSERT INTO CK_SITE VALUES ('B', 'Birch')");
+    site.addConstraint(createPrimaryKey("code"));
+
+    assertEquals(1, constraintBuilder.buildKeys(connection, site));
+
+    try {
+      execute("INSERT INTO CK_SITE VALUES ('A', 'Ash')");
+      fail("A duplicate key should be rejected");
+    }
+    catch (SQLException e) {
+      // expected
+    }
+
+    // The key is dropped before the rows are loaded again
+    constraintBuilder.dropConstraints(connection, site);
+    execute("INSERT INTO CK_SITE VALUES ('A', 'Ash')");
+  }
+
+
+  /**
+   * Tests that keys with duplicate or null values are not built, and do
+   * not fail the load.
+   */
+  public void testDuplicateKeys() throws Exception {
+    execute("INSERT INTO CK_SITE VALUES ('A', 'Alder')");
+    execute("INSERT INTO CK_SITE VALUES ('A', 'Ash')");
+    site.addConstraint(createPrimaryKey("code"));
+    assertEquals(0, constraintBuilder.buildKeys(connection, site));
+
+    execute("DELETE FROM CK_SITE WHERE NAME = 'Ash'");
+    execute("INSERT INTO CK_SITE VALUES (NULL, 'Ash')");
+    assertEquals(0, constraintBuilder.buildKeys(connection, site));
+
+    // A key that is not an attribute is not built either
+    Entity other = createEntity("constraints.e3", "CK_SITE",
+                                new String[] { "code" });
+    other.addConstraint(createPrimaryKey("missing"));
+    assertEquals(0, constraintBuilder.buildKeys(connection, other));
+  }
+
+
+  /**
+   * Tests that a unique key allows null values.
+   */
+  public void testUniqueKey() throws Exception {
+    execute("INSERT INTO CK_SITE VALUES ('A', 'Alder')");
+    execute("INSERT INTO CK_SITE VALUES ('B', NULL)");
+    execute("INSERT INTO CK_SITE VALUES ('C', NULL)");
+    UniqueKey uniqueKey = new UniqueKey();
+    uniqueKey.setKeys(new String[] { "name" });
+    site.addConstraint(uniqueKey);
+
+    assertEquals(1, constraintBuilder.buildKeys(connection, site));
+
+    try {
+      execute("INSERT INTO CK_SITE VALUES ('D', 'Alder')");
+      fail("A duplicate name should be rejected");
+    }
+    catch (SQLException e) {
+      // expected
+    }
+  }
+
+
+  /**
+   * Tests that foreign keys are built only when enabled, and only when the
+   * referenced rows are present.
+   */
+  public void testForeignKey() throws Exception {
+    execute("INSERT INTO CK_SITE VALUES ('A', 'Alder')");
+    execute("INSERT INTO CK_SAMPLE VALUES ('1', 'A')");
+    execute("INSERT INTO CK_SAMPLE VALUES ('2', 'Z')");
+    site.addConstraint(createPrimaryKey("code"));
+    ForeignKey foreignKey = new ForeignKey();
+    foreignKey.setKeys(new String[] { "site" });
+    foreignKey.setEntityReference("constraints.e1");
+    sample.addConstraint(foreignKey);
+    DataPackage dataPackage = new DataPackage(packageId);
+    dataPackage.add(site);
+    dataPackage.add(sample);
+    assertEquals(1, constraintBuilder.buildKeys(connection, site));
+
+    assertEquals(0, constraintBuilder.buildForeignKeys(connection, dataPackage));
+    ConstraintBuilder.setForeignKeysEnabled(true);
+
+    // The sample at site Z has no site
+    assertEquals(0, constraintBuilder.buildForeignKeys(connection, dataPackage));
+
+    execute("DELETE FROM CK_SAMPLE WHERE SITE = 'Z'");
+    assertEquals(1, constraintBuilder.buildForeignKeys(connection, dataPackage));
+    assertEquals(1, constraintBuilder.buildForeignKeys(connection, dataPackage));
+    try {
+      execute("INSERT INTO CK_SAMPLE VALUES ('3', 'Z')");
+      fail("A sample without a site should be rejected");
+    }
+    catch (SQLException e) {
+      // expected
+    }
+
+    // The referenced table can still be dropped
+    assertTrue(databaseHandler.dropTable("CK_SITE"));
+  }
+
+
+  /**
+   * Tests the SQL that adds and drops constraints.
+   */
+  public void testGenerateConstraintSQL() {
+    String[] keys = { "A", "B" };
+    String[] references = { "C", "D" };
+    DatabaseAdapter postgresAdapter = new PostgresAdapter();
+
+    assertEquals("ALTER TABLE T ADD CONSTRAINT T_PK PRIMARY KEY (A,B)",
+      postgresAdapter.generateAddConstraintSQL("T", "T_PK",
+        Constraint.PRIMARYKEY,
+        keys, null, null));
+    assertEquals("ALTER TABLE T ADD CONSTRAINT T_PK UNIQUE (A,B)",
+      new HSQLAdapter().generateAddConstraintSQL("T", "T_PK",
+        Constraint.PRIMARYKEY,
+        keys, null, null));
+    assertEquals("ALTER TABLE T ADD CONSTRAINT T_FK1 FOREIGN KEY (A,B) " +
+                 "REFERENCES P (C,D)",
+      postgresAdapter.generateAddConstraintSQL("T", "T_FK1",
+        Constraint.FOREIGNKEY,
+        keys, "P", references));
+    assertEquals("ALTER TABLE T DROP CONSTRAINT T_PK",
+      postgresAdapter.generateDropConstraintSQL("T", "T_PK"));
+  }
+
+
+  private Entity createEntity(String id, String tableName, String[] names)
+          throws Exception {
+    Entity entity = new Entity(id, tableName, "", Boolean.FALSE, "column", 0);
+    AttributeList attributeList = new AttributeList();
+
+    for (int i = 0; i < names.length; i++) {
+      Attribute attribute = new Attribute(id + ".a" + i, names[i],
+                                          new TextDomain());
+      attribute.setDBFieldName(names[i].toUpperCase());
+      attributeList.add(attribute);
+    }
+    entity.setAttributeList(attributeList);
+    entity.setPackageId(packageId);
+    entity.setEntityIdentifier(id);
+    entity.setDBTableName(tableName);
+    if (!tableMonitor.isTableInDB(tableName)) {
+      tableMonitor.addTableEntry(entity);
+    }
+
+    return entity;
+  }
+
+
+  private PrimaryKey createPrimaryKey(String key) {
+    PrimaryKey primaryKey = new PrimaryKey();
+    primaryKey.setKeys(new String[] { key });
+    return primaryKey;
+  }
+
+
+  private void execute(String sql) throws SQLException {
+    Statement statement = connection.createStatement();
+
+    try {
+      statement.executeUpdate(sql);
+    }
+    finally {
+      statement.close();
+    }
+  }
+
+}
@@ -0,0 +1,297 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.ecoinformatics.datamanager.download.SourceValidator;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class DataTableRegistryCacheTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private TableMonitor tableMonitor = null;
+  private final String packageId = "cache.1.1";
+  private final String entityName = "cache_entity";
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public DataTableRegistryCacheTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new DataTableRegistryCacheTest("testWriteThrough"));
+    suite.addTest(new DataTableRegistryCacheTest("testExternalEntry"));
+    suite.addTest(new DataTableRegistryCacheTest("testRefresh"));
+    suite.addTest(new DataTableRegistryCacheTest("testIsTableInDB"));
+    suite.addTest(new DataTableRegistryCacheTest("testSourceValidator"));
+    suite.addTest(new DataTableRegistryCacheTest("testLoadScope"));
+    suite.addTest(new DataTableRegistryCacheTest("testConcurrentEntries"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by pointing the DataManager at a pool of
+   * connections to an in-memory HSQL database, shared by the tests.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:registrycachetest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+    connection = DataManager.getConnection();
+    tableMonitor = new TableMonitor(new HSQLAdapter());
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    execute("DELETE FROM " + tableMonitor.getDataTableRegistryName() +
+            " WHERE PACKAGE_ID='" + packageId + "'");
+    tableMonitor.refreshRegistryCache();
+    DataManager.returnConnection(connection);
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that entities with the same name that are added at the same time
+   * are given different table names.
+   */
+  public void testConcurrentEntries() throws Exception {
+    final String[] tableNames = new String[4];
+    final Throwable[] failures = new Throwable[tableNames.length];
+    Thread[] threads = new Thread[tableNames.length];
+
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            tableNames[index] = 
+              tableMonitor.addTableEntry(getEntity("cache.c" + index));
+          }
+          catch (Throwable t) {
+            failures[index] = t;
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+
+    for (int i = 0; i < threads.length; i++) {
+      if (failures[i] != null) {
+        fail("Adding entry " + i + " failed: " + failures[i]);
+      }
+      assertNotNull(tableNames[i]);
+      for (int j = 0; j < i; j++) {
+        assertFalse(tableNames[i].equals(tableNames[j]));
+      }
+      assertEquals(1, countEntries(tableNames[i]));
+    }
+  }
+
+
+  /**
+   * Tests that entries added and dropped through the monitor are written to
+   * the registry table and resolved from the cache.
+   */
+  public void testWriteThrough() throws Exception {
+    Entity entity = getEntity("cache.e1");
+    String tableName = tableMonitor.addTableEntry(entity);
+    assertNotNull(tableName);
+    assertEquals(1, countEntries(tableName));
+    assertEquals(tableName, tableMonitor.getDBTableName(packageId, entityName));
+    assertEquals(tableName, tableMonitor.identifierToTableName("cache.e1"));
+    assertTrue(tableMonitor.isDBTableNameInUse(tableName.toLowerCase()));
+    assertNotNull(tableMonitor.getCreationDate(tableName));
+
+    // Adding the entity again reuses its entry
+    assertEquals(tableName, tableMonitor.addTableEntry(getEntity("cache.e1")));
+    assertEquals(1, countEntries(tableName));
+
+    // A second entity with the same name gets a different table name
+    String otherName = tableMonitor.addTableEntry(getEntity("cache.e2"));
+    assertFalse(tableName.equals(otherName));
+
+    assertTrue(tableMonitor.setTableExpirationPolicy(tableName, 3));
+    assertTrue(tableMonitor.dropTableEntry(tableName));
+    assertEquals(0, countEntries(tableName));
+    assertFalse(tableMonitor.isDBTableNameInUse(tableName));
+    assertNull(tableMonitor.identifierToTableName("cache.e1"));
+    assertTrue(tableMonitor.dropTableEntry(otherName));
+  }
+
+
+  /**
+   * Tests that an entry added to the registry table by another process is
+   * found once the cache is refreshed, and not by querying on a miss.
+   */
+  public void testExternalEntry() throws Exception {
+    tableMonitor.getTableList();
+    execute("INSERT INTO " + tableMonitor.getDataTableRegistryName() +
+            " (TABLE_NAME, PACKAGE_ID, ENTITY_IDENTIFIER, ENTITY_NAME," +
+            " CREATION_DATE, LAST_USAGE_DATE, PRIORITY) VALUES" +
+            " ('EXTERNAL_TABLE', '" + packageId + "', 'cache.e3', '" +
+            entityName + "', '2020-01-01', '2020-01-01', 1)");
+    assertNull(tableMonitor.getDBTableName(packageId, entityName));
+    assertFalse(tableMonitor.isDBTableNameInUse("external_table"));
+
+    tableMonitor.refreshRegistryCache();
+    assertEquals("EXTERNAL_TABLE",
+                 tableMonitor.getDBTableName(packageId, entityName));
+    assertTrue(tableMonitor.isDBTableNameInUse("external_table"));
+    assertEquals("EXTERNAL_TABLE", tableMonitor.getOldestTable());
+  }
+
+
+  /**
+   * Tests that the cache forgets an entry deleted behind its back once it
+   * is refreshed, and that re-adding the entity restores the row.
+   */
+  public void testRefresh() throws Exception {
+    String tableName = tableMonitor.addTableEntry(getEntity("cache.e4"));
+    execute("DELETE FROM " + tableMonitor.getDataTableRegistryName() +
+            " WHERE TABLE_NAME='" + tableName + "'");
+    assertTrue(tableMonitor.isDBTableNameInUse(tableName));
+
+    tableMonitor.refreshRegistryCache();
+    assertFalse(tableMonitor.isDBTableNameInUse(tableName));
+
+    assertEquals(tableName, tableMonitor.addTableEntry(getEntity("cache.e4")));
+    assertEquals(1, countEntries(tableName));
+  }
+
+
+  /**
+   * Tests that tables are looked up by name, without treating the
+   * underscore in a name as a wildcard.
+   */
+  public void testIsTableInDB() throws Exception {
+    execute("CREATE TABLE CACHE_LOOKUP1 (ID INTEGER)");
+
+    try {
+      assertTrue(tableMonitor.isTableInDB("CACHE_LOOKUP1"));
+      assertTrue(tableMonitor.isTableInDB("cache_lookup1"));
+      assertFalse(tableMonitor.isTableInDB("CACHEXLOOKUP1"));
+      assertFalse(tableMonitor.isTableInDB(null));
+    }
+    finally {
+      execute("DROP TABLE CACHE_LOOKUP1");
+    }
+  }
+
+
+  /**
+   * Tests that the validator of a source is recorded next to its table.
+   */
+  public void testSourceValidator() throws Exception {
+    String tableName = tableMonitor.addTableEntry(getEntity("cache.e5"));
+    assertTrue(tableMonitor.supportsSourceValidators());
+    assertNull(tableMonitor.getSourceValidator(tableName));
+
+    SourceValidator validator = 
+      new SourceValidator("\"v1\"", 1000, 12, "0123456789abcdef", -1);
+    assertTrue(tableMonitor.setSourceValidator(connection, tableName, 
+                                               validator));
+    SourceValidator stored = tableMonitor.getSourceValidator(tableName);
+    assertEquals("\"v1\"", stored.getEntityTag());
+    assertEquals(1000, stored.getLastModified());
+    assertEquals(12, stored.getSize());
+    assertEquals("0123456789abcdef", stored.getChecksum());
+    assertEquals(-1, stored.getNumberOfRecords());
+    assertTrue(validator.matches(stored));
+
+    assertTrue(tableMonitor.setSourceValidator(connection, tableName, null));
+    assertNull(tableMonitor.getSourceValidator(tableName));
+  }
+
+
+  /**
+   * Tests that the scope of a table is recorded in the registry and read
+   * back, and cleared once the table holds all of its entity.
+   */
+  public void testLoadScope() throws Exception {
+    String tableName = tableMonitor.addTableEntry(getEntity("cache.e6"));
+    assertTrue(tableMonitor.supportsLoadScopes());
+    assertNull(tableMonitor.getLoadScope(tableName));
+
+    LoadScope loadScope = LoadScope.parse("columns=0,2;2>=:D900.0;1=:Snorth");
+    assertTrue(tableMonitor.setLoadScope(connection, tableName, loadScope));
+    assertEquals(loadScope, tableMonitor.getLoadScope(tableName));
+
+    assertTrue(tableMonitor.setLoadScope(connection, tableName, null));
+    assertNull(tableMonitor.getLoadScope(tableName));
+  }
+
+
+  private Entity getEntity(String id) {
+    Entity entity = new Entity(id, entityName, "", Boolean.FALSE, "column", 0);
+    entity.setPackageId(packageId);
+    entity.setEntityIdentifier(id);
+
+    return entity;
+  }
+
+
+  private void execute(String sql) throws Exception {
+    Statement statement = connection.createStatement();
+    statement.executeUpdate(sql);
+    statement.close();
+  }
+
+
+  private int countEntries(String tableName) throws Exception {
+    Statement statement = connection.createStatement();
+    ResultSet resultSet = statement.executeQuery(
+      "SELECT COUNT(*) FROM " + tableMonitor.getDataTableRegistryName() +
+      " WHERE TABLE_NAME='" + tableName + "'");
+    resultSet.next();
+    int count = resultSet.getInt(1);
+    resultSet.close();
+    statement.close();
+
+    return count;
+  }
+
+}
@@ -0,0 +1,263 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class DataViewManagerTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private TableMonitor tableMonitor = null;
+  private DataViewManager viewManager = null;
+  private Entity sites = null;
+  private Entity observations = null;
+  private Attribute observationId = null;
+  private Attribute observationValue = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public DataViewManagerTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new DataViewManagerTest("testCreateView"));
+    suite.addTest(new DataViewManagerTest("testRefreshIfStale"));
+    suite.addTest(new DataViewManagerTest("testIncrementalRefresh"));
+    suite.addTest(new DataViewManagerTest("testDropView"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating a table of sites and a table
+   * of observations at the sites in an in-memory HSQL database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:dataviewtest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+    connection = DataManager.getConnection();
+    tableMonitor = new TableMonitor(new HSQLAdapter());
+    viewManager = new DataViewManager(new HSQLAdapter(), tableMonitor);
+
+    execute("CREATE TABLE VIEWTEST_SITES (SITE_ID INTEGER, NAME VARCHAR(32))");
+    execute("CREATE TABLE VIEWTEST_OBS " +
+            "(OBS_ID INTEGER, SITE_ID INTEGER, VAL DOUBLE)");
+    execute("INSERT INTO VIEWTEST_SITES VALUES (1, 'north')");
+    execute("INSERT INTO VIEWTEST_SITES VALUES (2, 'south')");
+    for (int i = 1; i <= 6; i++) {
+      execute("INSERT INTO VIEWTEST_OBS VALUES (" + i + ", " + (i % 2 + 1) +
+              ", " + (i * 10) + ")");
+    }
+
+    sites = DatabaseTestUtil.newTableEntity("VIEWTEST_SITES",
+                                            new Attribute[0]);
+    observationId = DatabaseTestUtil.newAttribute("a1", "OBS_ID", "real");
+    observationValue = DatabaseTestUtil.newAttribute("a2", "VAL", "real");
+    observations = DatabaseTestUtil.newTableEntity("VIEWTEST_OBS",
+        new Attribute[] {observationId, observationValue});
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    viewManager.dropView("SITE_COUNTS");
+    viewManager.dropView("HIGH_OBS");
+    execute("DROP TABLE VIEWTEST_SITES IF EXISTS");
+    execute("DROP TABLE VIEWTEST_OBS IF EXISTS");
+    execute("DROP TABLE VIEWTEST_OBS_DELTA IF EXISTS");
+    DataManager.returnConnection(connection);
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that a view created from a CREATE VIEW statement holds the rows
+   * of its selection, and is registered with its source tables.
+   */
+  public void testCreateView() throws Exception {
+    assertTrue(viewManager.createView(
+      "CREATE MATERIALIZED VIEW site_counts AS " +
+      "SELECT s.NAME, COUNT(*) AS N FROM VIEWTEST_SITES s, VIEWTEST_OBS o " +
+      "WHERE s.SITE_ID = o.SITE_ID GROUP BY s.NAME;",
+      new Entity[] {sites, observations}));
+
+    assertTrue(tableMonitor.isTableInDB("SITE_COUNTS"));
+    assertEquals(3, count("SELECT N FROM SITE_COUNTS WHERE NAME = 'north'"));
+
+    DataView dataView = tableMonitor.getViewEntry("site_counts");
+    assertNotNull(dataView);
+    assertTrue(dataView.dependsOn("viewtest_obs"));
+    assertFalse(dataView.isIncremental());
+
+    try {
+      viewManager.createView("SELECT * FROM VIEWTEST_SITES",
+                             new Entity[] {sites});
+      fail("A selection was created as a view");
+    }
+    catch (SQLException e) {
+      // expected
+    }
+  }
+
+
+  /**
+   * Tests that a view is refreshed before it is read once one of its source
+   * tables has changed, and only then.
+   */
+  public void testRefreshIfStale() throws Exception {
+    viewManager.createView(
+      "CREATE VIEW site_counts AS " +
+      "SELECT s.NAME, COUNT(*) AS N FROM VIEWTEST_SITES s, VIEWTEST_OBS o " +
+      "WHERE s.SITE_ID = o.SITE_ID GROUP BY s.NAME",
+      new Entity[] {sites, observations});
+
+    String sql = "SELECT N FROM site_counts WHERE NAME = 'south'";
+    assertEquals(0, viewManager.refreshViewsIn(sql));
+    assertEquals(3, count(sql));
+
+    execute("INSERT INTO VIEWTEST_OBS VALUES (7, 2, 70)");
+    TableMonitor.recordTableChange("VIEWTEST_OBS");
+    assertEquals(3, count(sql));
+
+    assertEquals(0, viewManager.refreshViewsIn("SELECT * FROM site_counts_x"));
+    assertEquals(1, viewManager.refreshViewsIn(sql));
+    assertEquals(4, count(sql));
+    assertFalse(viewManager.refreshIfStale("SITE_COUNTS"));
+  }
+
+
+  /**
+   * Tests that a view of a query on one table is refreshed from the rows
+   * appended to the table alone: a row inserted into the table directly is
+   * not selected until the view is refreshed in full.
+   */
+  public void testIncrementalRefresh() throws Exception {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addSelectionItem(new SelectionItem(observations, observationValue));
+    query.addTableItem(new TableItem(observations));
+    query.setWhereClause(new WhereClause(new Condition(observations,
+        observationValue, ConditionInterface.GREATER_THAN_OPERATOR,
+        new Integer(35))));
+
+    assertTrue(viewManager.createView("high_obs", query));
+    assertTrue(tableMonitor.getViewEntry("HIGH_OBS").isIncremental());
+    assertEquals(3, count("SELECT COUNT(*) FROM HIGH_OBS"));
+    assertTrue(viewManager.shouldStageRows("VIEWTEST_OBS"));
+    assertFalse(viewManager.shouldStageRows("VIEWTEST_SITES"));
+
+    // Outside of the appended rows
+    execute("INSERT INTO VIEWTEST_OBS VALUES (100, 1, 1000)");
+
+    long previousVersion = TableMonitor.getTableVersion("VIEWTEST_OBS");
+    String deltaTableName =
+      viewManager.createDeltaTable(connection, "VIEWTEST_OBS");
+    execute("INSERT INTO " + deltaTableName + " VALUES (7, 1, 70)");
+    execute("INSERT INTO " + deltaTableName + " VALUES (8, 2, 5)");
+    assertEquals(2, viewManager.mergeDeltaTable(connection, "VIEWTEST_OBS",
+                                                deltaTableName));
+    TableMonitor.recordTableChange("VIEWTEST_OBS");
+
+    assertEquals(1, viewManager.refreshViewsOf("VIEWTEST_OBS",
+                                               previousVersion, true,
+                                               deltaTableName));
+    viewManager.dropDeltaTable(deltaTableName);
+    assertFalse(tableMonitor.isTableInDB(deltaTableName));
+    assertEquals(4, count("SELECT COUNT(*) FROM HIGH_OBS"));
+    assertEquals(70, count("SELECT VAL FROM HIGH_OBS WHERE OBS_ID = 7"));
+    assertFalse(viewManager.refreshIfStale("HIGH_OBS"));
+
+    // A stale view is refreshed in full
+    TableMonitor.recordTableChange("VIEWTEST_OBS");
+    assertTrue(viewManager.refreshIfStale("HIGH_OBS"));
+    assertEquals(5, count("SELECT COUNT(*) FROM HIGH_OBS"));
+  }
+
+
+  /**
+   * Tests that a dropped view loses its table and its entry, and that a
+   * view is not created over a table that is not a view.
+   */
+  public void testDropView() throws Exception {
+    viewManager.createView("CREATE VIEW site_counts AS " +
+                           "SELECT NAME FROM VIEWTEST_SITES",
+                           new Entity[] {sites});
+
+    assertTrue(viewManager.dropView("site_counts"));
+    assertFalse(tableMonitor.isTableInDB("SITE_COUNTS"));
+    assertNull(tableMonitor.getViewEntry("SITE_COUNTS"));
+    assertFalse(viewManager.dropView("site_counts"));
+
+    try {
+      viewManager.createView("CREATE VIEW viewtest_obs AS " +
+                             "SELECT NAME FROM VIEWTEST_SITES",
+                             new Entity[] {sites});
+      fail("A view replaced a table");
+    }
+    catch (SQLException e) {
+      // expected
+    }
+    assertEquals(6, count("SELECT COUNT(*) FROM VIEWTEST_OBS"));
+  }
+
+
+  private void execute(String sql) throws Exception {
+    DatabaseTestUtil.execute(connection, sql);
+  }
+
+
+  /*
+   * Gets the integer value of the first row of a selection.
+   */
+  private int count(String sql) throws Exception {
+    Statement statement = connection.createStatement();
+    ResultSet resultSet = statement.executeQuery(sql);
+    assertTrue(resultSet.next());
+    int value = resultSet.getInt(1);
+    resultSet.close();
+    statement.close();
+    return value;
+  }
+
+}
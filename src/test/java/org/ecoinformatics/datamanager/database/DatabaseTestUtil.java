@@ -0,0 +1,100 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.NumericDomain;
+
+/**
+ * Builds the entities and attributes, and runs the statements, that the
+ * database tests set up their tables with.
+ */
+public class DatabaseTestUtil {
+
+  /*
+   * Constructors
+   */
+
+  private DatabaseTestUtil() {
+  }
+
+
+  /*
+   * Class methods
+   */
+
+  /**
+   * Creates a numeric attribute.
+   *
+   * @param id    the attribute identifier
+   * @param name  the attribute name
+   * @param type  the number type, e.g. "integer" or "real"
+   * @return the attribute
+   */
+  public static Attribute newAttribute(String id, String name, String type) {
+    Attribute attribute =
+      new Attribute(id, name, new NumericDomain(type, null, null));
+    attribute.setAttributeType(type);
+    return attribute;
+  }
+
+
+  /**
+   * Creates an entity with attributes.
+   *
+   * @param name        the entity identifier and name
+   * @param attributes  the attributes of the entity
+   * @return the entity
+   */
+  public static Entity newEntity(String name, Attribute[] attributes) {
+    Entity entity = new Entity(name, name, "test entity", Boolean.FALSE,
+                               "column", 0);
+    for (int i = 0; i < attributes.length; i++) {
+      entity.add(attributes[i]);
+    }
+    return entity;
+  }
+
+
+  /**
+   * Creates an entity whose data are in an existing table, whose columns
+   * are named after the attributes.
+   *
+   * @param tableName   the name of the entity and of its table
+   * @param attributes  the attributes of the entity
+   * @return the entity
+   */
+  public static Entity newTableEntity(String tableName,
+                                      Attribute[] attributes) {
+    Entity entity = newEntity(tableName, attributes);
+    entity.setDBTableName(tableName);
+    for (int i = 0; i < attributes.length; i++) {
+      attributes[i].setDBFieldName(attributes[i].getName());
+    }
+    return entity;
+  }
+
+
+  /**
+   * Executes an update statement.
+   *
+   * @param connection  the connection to execute it with
+   * @param sql         the statement
+   * @throws SQLException if the statement fails
+   */
+  public static void execute(Connection connection, String sql)
+          throws SQLException {
+    Statement statement = connection.createStatement();
+
+    try {
+      statement.executeUpdate(sql);
+    }
+    finally {
+      statement.close();
+    }
+  }
+
+}
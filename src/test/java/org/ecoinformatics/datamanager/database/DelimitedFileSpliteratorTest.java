@@ -0,0 +1,156 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.NumericDomain;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class DelimitedFileSpliteratorTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private final int numRows = 5000;
+  private File dataFile = null;
+  private Entity entity = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public DelimitedFileSpliteratorTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new DelimitedFileSpliteratorTest("testSequentialStream"));
+    suite.addTest(new DelimitedFileSpliteratorTest("testParallelStream"));
+    suite.addTest(new DelimitedFileSpliteratorTest("testSplitAlignment"));
+    suite.addTest(new DelimitedFileSpliteratorTest("testReaderStream"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by writing a delimited data file with
+   * one header line.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    dataFile = File.createTempFile("spliterator", ".csv");
+    OutputStream outputStream = new FileOutputStream(dataFile);
+    StringBuffer data = new StringBuffer("id,name\n");
+
+    for (int i = 1; i <= numRows; i++) {
+      data.append(i).append(",name").append(i).append("\n");
+    }
+
+    outputStream.write(data.toString().getBytes("UTF-8"));
+    outputStream.close();
+
+    entity = new Entity("1", "spliterator", "test entity",
+                        new Boolean(false), "column", numRows);
+    entity.add(new Attribute("a1", "id",
+                             new NumericDomain("integer", null, null)));
+    entity.add(new Attribute("a2", "name", new TextDomain()));
+    entity.setFieldDelimiter(",");
+    entity.setRecordDelimiter("\\n");
+    entity.setNumHeaderLines(new Integer(1));
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception {
+    dataFile.delete();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that a sequential stream returns every row in order, without the
+   * header line.
+   */
+  public void testSequentialStream() throws Exception {
+    Stream<Row> stream = DelimitedFileSpliterator.stream(dataFile, entity, false);
+    List<Row> rows = stream.collect(Collectors.toList());
+    stream.close();
+
+    assertEquals(numRows, rows.size());
+    assertEquals("1", rows.get(0).get(0));
+    assertEquals("name" + numRows, rows.get(numRows - 1).get(1));
+  }
+
+
+  /**
+   * Tests that a parallel stream over small chunks sees each row exactly
+   * once.
+   */
+  public void testParallelStream() throws Exception {
+    DelimitedFileSpliterator spliterator =
+      new DelimitedFileSpliterator(dataFile, entity, 1024);
+    long sum = java.util.stream.StreamSupport.stream(spliterator, true)
+                 .mapToLong(row -> Long.parseLong(row.get(0)))
+                 .sum();
+
+    assertEquals((long) numRows * (numRows + 1) / 2, sum);
+  }
+
+
+  /**
+   * Tests that split ranges start on record boundaries and together cover
+   * all rows.
+   */
+  public void testSplitAlignment() throws Exception {
+    DelimitedFileSpliterator suffix =
+      new DelimitedFileSpliterator(dataFile, entity, 1024);
+    java.util.Spliterator<Row> prefix = suffix.trySplit();
+    assertNotNull(prefix);
+
+    final int[] counts = new int[2];
+    prefix.forEachRemaining(row -> counts[0]++);
+    suffix.forEachRemaining(row -> {
+      counts[1]++;
+      assertTrue(row.get(1).equals("name" + row.get(0)));
+    });
+
+    assertTrue(counts[0] > 0);
+    assertTrue(counts[1] > 0);
+    assertEquals(numRows, counts[0] + counts[1]);
+  }
+
+
+  /**
+   * Tests the stream() method of a TextDataReader.
+   */
+  public void testReaderStream() throws Exception {
+    java.io.InputStream inputStream = new java.io.FileInputStream(dataFile);
+    DelimitedReader reader = new DelimitedReader(inputStream, entity, true);
+    long count = reader.stream()
+                       .filter(row -> row.get(0).endsWith("0"))
+                       .count();
+    inputStream.close();
+
+    assertEquals(numRows / 10, count);
+  }
+
+}
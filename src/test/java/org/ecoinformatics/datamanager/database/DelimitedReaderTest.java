@@ -0,0 +1,177 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Vector;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class DelimitedReaderTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private final int numCols = 3;
+  private final String fieldDelimiter = ",";
+  private final String recordDelimiter = "\\n";
+  private final int numHeaderLines = 1;
+  private final int numRecords = 2;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public DelimitedReaderTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new DelimitedReaderTest("testUTF8FastPath"));
+    suite.addTest(new DelimitedReaderTest("testDeclaredLatin1Encoding"));
+    suite.addTest(new DelimitedReaderTest("testQuotedFields"));
+    suite.addTest(new DelimitedReaderTest("testCollapseDelimiters"));
+    suite.addTest(new DelimitedReaderTest("testResolveCharset"));
+    suite.addTest(new DelimitedReaderTest("testRowEndOffset"));
+    return suite;
+  }
+
+
+  /*
+   * Builds a reader for the given bytes, declared encoding, and settings.
+   */
+  private DelimitedReader getReader(byte[] bytes, String encoding) {
+    InputStream inputStream = new ByteArrayInputStream(bytes);
+    DelimitedReader reader = new DelimitedReader(inputStream, numCols,
+        fieldDelimiter, numHeaderLines, recordDelimiter, numRecords, true);
+    reader.setCharacterEncoding(encoding);
+    return reader;
+  }
+
+
+  /**
+   * Tests that multi-byte UTF-8 data is split and decoded correctly, and
+   * that the header line and line endings are stripped.
+   */
+  public void testUTF8FastPath() throws Exception {
+    String data = "site,name,value\nA,Zürich,1.5\nB,Łódź,2\n";
+    DelimitedReader reader = getReader(data.getBytes("UTF-8"), "UTF-8");
+
+    Vector<String> row = reader.getOneRowDataVector();
+    assertEquals("A", row.get(0));
+    assertEquals("Zürich", row.get(1));
+    assertEquals("1.5", row.get(2));
+
+    row = reader.getOneRowDataVector();
+    assertEquals("Łódź", row.get(1));
+    assertEquals("2", row.get(2));
+
+    row = reader.getOneRowDataVector();
+    assertTrue(row.isEmpty());
+    assertTrue(reader.hasRecordDelimiter());
+  }
+
+
+  /**
+   * Tests that a non-UTF-8 encoding declared in the metadata is honoured
+   * instead of the platform default.
+   */
+  public void testDeclaredLatin1Encoding() throws Exception {
+    String data = "site,name,value\nA,Zürich,1.5\n";
+    DelimitedReader reader =
+      getReader(data.getBytes("ISO-8859-1"), "ISO-8859-1");
+    assertEquals("ISO-8859-1", reader.getCharset().name());
+
+    Vector<String> row = reader.getOneRowDataVector();
+    assertEquals("Zürich", row.get(1));
+  }
+
+
+  /**
+   * Tests that quoted fields containing delimiters are handled when the
+   * data is read through the byte-oriented path.
+   */
+  public void testQuotedFields() throws Exception {
+    String data = "site,name,value\nA,\"Hello, world\",3\n";
+    DelimitedReader reader = getReader(data.getBytes("UTF-8"), null);
+    reader.setQuoteCharacter("\"");
+
+    Vector<String> row = reader.getOneRowDataVector();
+    assertEquals(3, row.size());
+    assertEquals("Hello, world", row.get(1));
+    assertEquals("3", row.get(2));
+  }
+
+
+  /**
+   * Tests that consecutive delimiters are collapsed when requested, and
+   * that missing fields are padded with empty strings.
+   */
+  public void testCollapseDelimiters() throws Exception {
+    String data = "site,name,value\nA,,,B\nC\n";
+    DelimitedReader reader = getReader(data.getBytes("UTF-8"), "ASCII");
+    reader.setCollapseDelimiters(true);
+
+    Vector<String> row = reader.getOneRowDataVector();
+    assertEquals("A", row.get(0));
+    assertEquals("B", row.get(1));
+    assertEquals("", row.get(2));
+
+    row = reader.getOneRowDataVector();
+    assertEquals(3, row.size());
+    assertEquals("C", row.get(0));
+  }
+
+
+  /**
+   * Tests that the offset after each row is reported, and that reading can
+   * be resumed at that offset without stripping the header again.
+   */
+  public void testRowEndOffset() throws Exception {
+    String data = "site,name,value\nA,Zürich,1.5\nB,Bern,2\n";
+    byte[] bytes = data.getBytes("UTF-8");
+    DelimitedReader reader = getReader(bytes, "UTF-8");
+    assertEquals(-1, reader.getRowEndOffset());
+
+    reader.getOneRowDataVector();
+    long offset = reader.getRowEndOffset();
+    assertEquals("site,name,value\nA,Zürich,1.5\n".getBytes("UTF-8").length,
+                 offset);
+
+    InputStream inputStream = new ByteArrayInputStream(bytes);
+    assertEquals(offset, inputStream.skip(offset));
+    DelimitedReader resumed = new DelimitedReader(inputStream, numCols,
+        fieldDelimiter, numHeaderLines, recordDelimiter, numRecords, false);
+    Vector<String> row = resumed.getOneRowDataVector();
+    assertEquals("B", row.get(0));
+    assertEquals("Bern", row.get(1));
+    assertEquals(bytes.length - offset, resumed.getRowEndOffset());
+    assertTrue(resumed.getOneRowDataVector().isEmpty());
+    assertNull(resumed.getReadException());
+
+    reader = getReader(data.getBytes("ISO-8859-1"), "ISO-8859-1");
+    reader.getOneRowDataVector();
+    assertEquals(-1, reader.getRowEndOffset());
+  }
+
+
+  /**
+   * Tests the mapping of EML characterEncoding values to charsets.
+   */
+  public void testResolveCharset() {
+    assertEquals("US-ASCII", DelimitedReader.resolveCharset("ASCII").name());
+    assertEquals("UTF-8", DelimitedReader.resolveCharset("UTF8").name());
+    assertEquals("UTF-8", DelimitedReader.resolveCharset(null).name());
+    assertEquals("UTF-8",
+                 DelimitedReader.resolveCharset("no-such-charset").name());
+  }
+
+}
@@ -1,5 +1,7 @@
 package org.ecoinformatics.datamanager.database;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.ParseException;
 import java.util.Vector;
 
 import org.ecoinformatics.datamanager.parser.Attribute;
@@ -39,6 +41,7 @@ public class HSQLAdapterTest extends TestCase
          TestSuite suite = new TestSuite();
          suite.addTest(new HSQLAdapterTest("initialize"));
          suite.addTest(new HSQLAdapterTest("testGenerateInsertSQL"));
+         suite.addTest(new HSQLAdapterTest("testToTimestamp"));
          return suite;
        }
       
@@ -202,5 +205,38 @@ public class HSQLAdapterTest extends TestCase
                       );
 	  }
 	  
+	  
+	  /**
+	   * Tests converting datetime values with EML format strings
+	   */
+	  public void testToTimestamp() throws ParseException
+	  {
+		  assertEquals(Timestamp.valueOf("2002-10-14 00:00:00"), 
+				  HSQLAdapter.to_timestamp("2002-10-14", "YYYY-MM-DD"));
+		  assertEquals(Timestamp.valueOf("2002-10-14 09:13:45"), 
+				  HSQLAdapter.to_timestamp("2002-10-14T09:13:45", "YYYY-MM-DDThh:mm:ss"));
+		  assertEquals(Timestamp.valueOf("2002-10-14 17:13:45.432"), 
+				  HSQLAdapter.to_timestamp("\"2002-10-14 17:13:45.432\"", "YYYY-MM-DD hh:mm:ss.sss"));
+		  assertEquals(Timestamp.valueOf("2002-10-14 00:00:00"), 
+				  HSQLAdapter.to_timestamp("2002-OCT-14", "YYYY-WWW-DD"));
+		  assertEquals(Timestamp.valueOf("2002-10-14 00:00:00"), 
+				  HSQLAdapter.to_timestamp("2002Oct14", "YYYYWWWDD"));
+		  assertEquals(Timestamp.valueOf("2002-10-04 00:00:00"), 
+				  HSQLAdapter.to_timestamp("20021004", "YYYYMMDD"));
+		  assertEquals(Timestamp.valueOf("2002-10-14 00:00:00"), 
+				  HSQLAdapter.to_timestamp("10/14/02", "MM/DD/YY"));
+		  assertEquals(Timestamp.valueOf("1970-01-01 17:13:00"), 
+				  HSQLAdapter.to_timestamp("17:13", "hh:mm"));
+		  
+		  try
+		  {
+			  HSQLAdapter.to_timestamp("14/10/2002", "YYYY-MM-DD");
+			  fail("A value that does not match the format should not be parsed");
+		  }
+		  catch (ParseException e)
+		  {
+			  assertTrue(true);
+		  }
+	  }
+	  
 }
-
@@ -0,0 +1,201 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.DateTimeDomain;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.NumericDomain;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class HSQLTextTableLoaderTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private HSQLAdapter adapter = null;
+  private AttributeList attributeList = null;
+  private Entity entity = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public HSQLTextTableLoaderTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new HSQLTextTableLoaderTest("testCanLoad"));
+    suite.addTest(new HSQLTextTableLoaderTest("testGenerateTextTableSQL"));
+    suite.addTest(new HSQLTextTableLoaderTest("testMaterialize"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating an entity with a text, an
+   * integer, a real and a datetime attribute.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    adapter = new HSQLAdapter();
+
+    Attribute text = new Attribute("a1", "text", new TextDomain());
+    Attribute count = new Attribute("a2", "count",
+                                    new NumericDomain("integer", null, null));
+    count.addMissingValueCode("-999");
+    Attribute value = new Attribute("a3", "value",
+                                    new NumericDomain("real", null, null));
+    DateTimeDomain dateTimeDomain = new DateTimeDomain();
+    dateTimeDomain.setFormatString("YYYY-MM-DD");
+    Attribute date = new Attribute("a4", "date", dateTimeDomain);
+    attributeList = new AttributeList();
+    attributeList.add(text);
+    attributeList.add(count);
+    attributeList.add(value);
+    attributeList.add(date);
+
+    entity = new Entity("e1", "textTest", "text table test", attributeList);
+    entity.setDBTableName("textTest");
+    entity.setFieldDelimiter(";");
+    entity.setRecordDelimiter("\\n");
+    entity.setQuoteCharacter("\"");
+    entity.setNumHeaderLines(new Integer(1));
+  }
+
+
+  /**
+   * Tests which physical formats can be read by a TEXT table.
+   */
+  public void testCanLoad() {
+    assertTrue(HSQLTextTableLoader.canLoad(entity));
+
+    entity.setQuoteCharacter("'");
+    assertFalse(HSQLTextTableLoader.canLoad(entity));
+    entity.setQuoteCharacter(null);
+    assertTrue(HSQLTextTableLoader.canLoad(entity));
+
+    entity.setNumHeaderLines(new Integer(2));
+    assertFalse(HSQLTextTableLoader.canLoad(entity));
+    entity.setNumHeaderLines(new Integer(0));
+    assertTrue(HSQLTextTableLoader.canLoad(entity));
+
+    entity.setCollapseDelimiters(true);
+    assertFalse(HSQLTextTableLoader.canLoad(entity));
+    entity.setCollapseDelimiters(false);
+
+    entity.setRecordDelimiter("#x0D#x0A");
+    assertTrue(HSQLTextTableLoader.canLoad(entity));
+    entity.setRecordDelimiter("|");
+    assertFalse(HSQLTextTableLoader.canLoad(entity));
+    entity.setRecordDelimiter("\\n");
+
+    entity.setSimpleDelimited(false);
+    assertFalse(HSQLTextTableLoader.canLoad(entity));
+  }
+
+
+  /**
+   * Tests the TEXT table definition and source string.
+   */
+  public void testGenerateTextTableSQL() throws Exception {
+    // Generating the table's DDL assigns the field names
+    adapter.generateDDL(attributeList, "t");
+    AttributeConverter[] converters = adapter.compileConverters(attributeList);
+    assertFalse(HSQLTextTableLoader.canAttachTyped(converters));
+
+    String ddl = adapter.generateTextTableDDL(converters, "t_text", false);
+    assertEquals("CREATE TEXT TABLE t_text(\"text\" LONGVARCHAR," +
+                 "\"count\" LONGVARCHAR,\"value\" LONGVARCHAR," +
+                 "\"date\" LONGVARCHAR);", ddl);
+    ddl = adapter.generateTextTableDDL(converters, "t", true);
+    assertEquals("CREATE TEXT TABLE t(\"text\" LONGVARCHAR,\"count\" INTEGER," +
+                 "\"value\" FLOAT,\"date\" TIMESTAMP);", ddl);
+
+    String source = adapter.generateTextTableSourceSQL("t", "/data/t.txt", entity);
+    assertEquals("SET TABLE t SOURCE \"/data/t.txt;fs=\\semi;ignore_first=true;" +
+                 "quoted=true;encoding=UTF-8\"", source);
+
+    entity.setFieldDelimiter("\\t");
+    entity.setQuoteCharacter(null);
+    entity.setNumHeaderLines(new Integer(0));
+    source = adapter.generateTextTableSourceSQL("t", "/data/t.txt", entity);
+    assertEquals("SET TABLE t SOURCE \"/data/t.txt;fs=\\t;ignore_first=false;" +
+                 "quoted=false;encoding=UTF-8\"", source);
+
+    assertEquals("\\u0001", HSQLAdapter.escapeTextTableSeparator("\u0001"));
+    assertEquals("\\quote", HSQLAdapter.escapeTextTableSeparator("\""));
+  }
+
+
+  /**
+   * Tests that rows read as text are converted like inserted rows: missing
+   * value codes and blanks become nulls, datetimes are parsed with their
+   * format and rows without values are skipped. A table with text columns
+   * stands in for the TEXT table, which a memory-only database cannot hold.
+   */
+  public void testMaterialize() throws Exception {
+    Class.forName("org.hsqldb.jdbcDriver");
+    Connection connection =
+      DriverManager.getConnection("jdbc:hsqldb:mem:texttabletest", "sa", "");
+    Statement statement = connection.createStatement();
+
+    try {
+      statement.execute(adapter.generateDDL(attributeList, "textTest"));
+      AttributeConverter[] converters = adapter.compileConverters(attributeList);
+      String ddl = adapter.generateTextTableDDL(converters, "textTest_text", false);
+      statement.execute(ddl.replaceFirst("TEXT TABLE", "TABLE"));
+      statement.execute("INSERT INTO textTest_text VALUES " +
+                        "('it''s', '3', '2.5', '2002-10-14')");
+      statement.execute("INSERT INTO textTest_text VALUES " +
+                        "('missing', '-999', ' ', NULL)");
+      statement.execute("INSERT INTO textTest_text VALUES " +
+                        "('', '-999', NULL, ' ')");
+
+      String sql = adapter.generateMaterializeSQL(converters, "textTest",
+                                                  "textTest_text");
+      assertEquals(2, statement.executeUpdate(sql));
+
+      ResultSet resultSet = statement.executeQuery(
+        "SELECT \"text\", \"count\", \"value\", \"date\" FROM textTest " +
+        "WHERE \"count\" = 3");
+      assertTrue(resultSet.next());
+      assertEquals("it's", resultSet.getString(1));
+      assertEquals(2.5, resultSet.getDouble(3), 0.0);
+      assertEquals(Timestamp.valueOf("2002-10-14 00:00:00"),
+                   resultSet.getTimestamp(4));
+      resultSet.close();
+
+      resultSet = statement.executeQuery(
+        "SELECT COUNT(*) FROM textTest " +
+        "WHERE \"count\" IS NULL AND \"value\" IS NULL");
+      resultSet.next();
+      assertEquals(1, resultSet.getInt(1));
+      resultSet.close();
+    }
+    finally {
+      statement.execute(adapter.generateDropTableSQL("textTest_text"));
+      statement.execute(adapter.generateDropTableSQL("textTest"));
+      statement.close();
+      connection.close();
+    }
+  }
+
+}
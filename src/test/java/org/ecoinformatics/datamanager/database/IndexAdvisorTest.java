@@ -0,0 +1,246 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class IndexAdvisorTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+  private static final int NUM_ROWS = 200;
+
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private IndexAdvisor indexAdvisor = null;
+  private Entity sites = null;
+  private Attribute siteId = null;
+  private Entity observations = null;
+  private Attribute observationId = null;
+  private Attribute observationSite = null;
+  private Attribute observationFlag = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public IndexAdvisorTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new IndexAdvisorTest("testRecordQuery"));
+    suite.addTest(new IndexAdvisorTest("testCreateAndRetire"));
+    suite.addTest(new IndexAdvisorTest("testBudget"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating a table of sites and a table
+   * of observations at the sites, with a flag of two values, in an
+   * in-memory HSQL database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:indexadvisortest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+    connection = DataManager.getConnection();
+    indexAdvisor = new IndexAdvisor(new HSQLAdapter(),
+                                    new TableMonitor(new HSQLAdapter()));
+
+    execute("CREATE TABLE ADVISOR_SITES (SITE_ID INTEGER)");
+    execute("CREATE TABLE ADVISOR_OBS " +
+            "(OBS_ID INTEGER, SITE_ID INTEGER, FLAG INTEGER)");
+    for (int i = 1; i <= NUM_ROWS; i++) {
+      execute("INSERT INTO ADVISOR_OBS VALUES (" + i + ", " + (i % 10) +
+              ", " + (i % 2) + ")");
+    }
+
+    siteId = DatabaseTestUtil.newAttribute("a1", "SITE_ID", "integer");
+    sites = DatabaseTestUtil.newTableEntity("ADVISOR_SITES",
+                                            new Attribute[] {siteId});
+    observationId = DatabaseTestUtil.newAttribute("a2", "OBS_ID", "integer");
+    observationSite = DatabaseTestUtil.newAttribute("a3", "SITE_ID", "integer");
+    observationFlag = DatabaseTestUtil.newAttribute("a4", "FLAG", "integer");
+    observations = DatabaseTestUtil.newTableEntity("ADVISOR_OBS",
+        new Attribute[] {observationId, observationSite, observationFlag});
+
+    IndexAdvisor.setEnabled(true);
+    IndexAdvisor.setCreateThreshold(3);
+    IndexAdvisor.setRetireThreshold(2);
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    IndexAdvisor.setEnabled(false);
+    IndexAdvisor.setCreateThreshold(IndexAdvisor.DEFAULT_CREATE_THRESHOLD);
+    IndexAdvisor.setRetireThreshold(IndexAdvisor.DEFAULT_RETIRE_THRESHOLD);
+    IndexAdvisor.setMaxIndexBytes(IndexAdvisor.DEFAULT_MAX_INDEX_BYTES);
+    execute("DROP TABLE ADVISOR_SITES IF EXISTS");
+    execute("DROP TABLE ADVISOR_OBS IF EXISTS");
+    DataManager.returnConnection(connection);
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that the fields of conditions, joins and subqueries are recorded,
+   * and those of LIKE conditions are not.
+   */
+  public void testRecordQuery() throws Exception {
+    Query subQuery = new Query();
+    subQuery.addSelectionItem(new SelectionItem(sites, siteId));
+    subQuery.addTableItem(new TableItem(sites));
+    subQuery.setWhereClause(new WhereClause(new Condition(sites, siteId,
+        ConditionInterface.LESS_THAN_OPERATOR, new Integer(5))));
+
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(observations));
+    ANDRelation and = new ANDRelation();
+    ORRelation or = new ORRelation();
+    or.addCondtionInterface(new Condition(observations, observationId,
+        ConditionInterface.EQUAL_OPERATOR, new Integer(7)));
+    or.addCondtionInterface(new Condition(observations, observationFlag,
+        ConditionInterface.LIKE_OPERATOR, "1%"));
+    and.addORRelation(or);
+    and.addCondtionInterface(new SubQueryClause(observations,
+        observationSite, "IN", subQuery));
+    query.setWhereClause(new WhereClause(and));
+
+    IndexAdvisor.recordQuery(query);
+    IndexAdvisor.recordQuery(query);
+
+    assertEquals(2.0, IndexAdvisor.getUses("ADVISOR_OBS", "OBS_ID"), 0);
+    assertEquals(0.0, IndexAdvisor.getUses("ADVISOR_OBS", "FLAG"), 0);
+    assertEquals(2.0, IndexAdvisor.getUses("advisor_obs", "site_id"), 0);
+    assertEquals(2.0, IndexAdvisor.getUses("ADVISOR_SITES", "SITE_ID"), 0);
+
+    IndexAdvisor.setEnabled(false);
+    IndexAdvisor.recordQuery(query);
+    assertEquals(0.0, IndexAdvisor.getUses("ADVISOR_OBS", "OBS_ID"), 0);
+  }
+
+
+  /**
+   * Tests that a field used enough is indexed unless a value selects too
+   * many rows, and that its index is retired once the halved uses fall
+   * below the retire threshold.
+   */
+  public void testCreateAndRetire() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      IndexAdvisor.recordQuery(filter(observationId, i));
+      IndexAdvisor.recordQuery(filter(observationFlag, i % 2));
+    }
+
+    assertEquals(1, indexAdvisor.advise());
+    String indexName = IndexAdvisor.getIndexName("ADVISOR_OBS", "OBS_ID");
+    assertNotNull(indexName);
+    assertTrue(indexName.startsWith("IX_ADVISOR_OBS_"));
+    assertNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "FLAG"));
+    assertEquals(2.0, IndexAdvisor.getUses("ADVISOR_OBS", "OBS_ID"), 0);
+
+    // The index is kept while its halved uses reach the retire threshold
+    assertEquals(0, indexAdvisor.advise());
+    assertNotNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "OBS_ID"));
+    assertEquals(1, indexAdvisor.advise());
+    assertNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "OBS_ID"));
+
+    // The dropped index can be created again
+    execute("CREATE INDEX " + indexName + " ON ADVISOR_OBS (OBS_ID)");
+    execute("DROP INDEX " + indexName);
+  }
+
+
+  /**
+   * Tests that no index is created beyond the budget, and that indexes over
+   * the budget are retired, least used first.
+   */
+  public void testBudget() throws Exception {
+    for (int i = 0; i < 8; i++) {
+      IndexAdvisor.recordQuery(filter(observationId, i));
+      if (i < 4) {
+        IndexAdvisor.recordQuery(filter(observationSite, i));
+      }
+    }
+
+    IndexAdvisor.setMaxIndexBytes(0);
+    IndexAdvisor.setMaxSelectivity(1.0);
+    try {
+      assertEquals(0, indexAdvisor.advise());
+      assertNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "OBS_ID"));
+
+      for (int i = 0; i < 4; i++) {
+        IndexAdvisor.recordQuery(filter(observationId, i));
+        IndexAdvisor.recordQuery(filter(observationSite, i));
+      }
+      IndexAdvisor.setMaxIndexBytes(Long.MAX_VALUE);
+      assertEquals(2, indexAdvisor.advise());
+      assertNotNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "OBS_ID"));
+      assertNotNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "SITE_ID"));
+
+      // Used 5 and 3 times, the two indexes are over the budget of one
+      IndexAdvisor.recordQuery(filter(observationId, 1));
+      long indexBytes = IndexAdvisor.getIndexBytes();
+      assertTrue(indexBytes > 0);
+      IndexAdvisor.setMaxIndexBytes(indexBytes * 3 / 4);
+      assertEquals(1, indexAdvisor.advise());
+      assertNotNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "OBS_ID"));
+      assertNull(IndexAdvisor.getIndexName("ADVISOR_OBS", "SITE_ID"));
+    }
+    finally {
+      IndexAdvisor.setMaxSelectivity(IndexAdvisor.DEFAULT_MAX_SELECTIVITY);
+    }
+  }
+
+
+  /*
+   * Builds a query of the observations whose field equals a value.
+   */
+  private Query filter(Attribute attribute, int value) {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(observations));
+    query.setWhereClause(new WhereClause(new Condition(observations,
+        attribute, ConditionInterface.EQUAL_OPERATOR, new Integer(value))));
+    return query;
+  }
+
+
+  private void execute(String sql) throws Exception {
+    DatabaseTestUtil.execute(connection, sql);
+  }
+
+}
@@ -0,0 +1,239 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.NumericDomain;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class LoadPipelineTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private HSQLAdapter adapter = null;
+  private AttributeList attributeList = null;
+  private final String tableName = "pipelineTest";
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public LoadPipelineTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new LoadPipelineTest("testLoad"));
+    suite.addTest(new LoadPipelineTest("testCommitInterval"));
+    suite.addTest(new LoadPipelineTest("testTypeMismatch"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating a table in an in-memory
+   * HSQL database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    Class.forName("org.hsqldb.jdbcDriver");
+    connection = DriverManager.getConnection("jdbc:hsqldb:mem:pipelinetest", "sa", "");
+    connection.setAutoCommit(false);
+    adapter = new HSQLAdapter();
+
+    Attribute text = new Attribute("a1", "text", new TextDomain());
+    Attribute count = new Attribute("a2", "count",
+                                    new NumericDomain("integer", null, null));
+    count.addMissingValueCode("-999");
+    Attribute value = new Attribute("a3", "value",
+                                    new NumericDomain("real", null, null));
+    attributeList = new AttributeList();
+    attributeList.add(text);
+    attributeList.add(count);
+    attributeList.add(value);
+
+    Statement statement = connection.createStatement();
+    statement.execute(adapter.generateDDL(attributeList, tableName));
+    statement.close();
+    connection.commit();
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    connection.rollback();
+    Statement statement = connection.createStatement();
+    statement.execute(adapter.generateDropTableSQL(tableName));
+    statement.close();
+    connection.commit();
+    connection.close();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that all the rows pass through the stages, that rows without
+   * values are skipped and that the metrics count the batches.
+   */
+  public void testLoad() throws Exception {
+    DelimitedReader reader = getReader(data(2500, -1));
+    LoadPipelineMetrics metrics = new LoadPipelineMetrics();
+    LoadPipeline pipeline = new LoadPipeline(getConverters(), 100, 3, 2,
+                                             metrics);
+    BatchedInsertStatement insert = getInsert();
+
+    pipeline.load(reader.getOneRowDataVector(), reader, 0, insert);
+    insert.close();
+
+    assertEquals(2500, pipeline.getSourceRowCount());
+    assertEquals(2499, insert.getInsertedRowCount());
+    assertEquals(25, metrics.getBatchCount());
+    assertEquals(2500, metrics.getRowCount());
+    assertTrue(metrics.getMaxQueueDepth() <= 2);
+    assertTrue(metrics.getElapsedNanos() > 0);
+    assertEquals(2499, countRows("\"count\" IS NOT NULL"));
+    assertEquals(1, countRows("\"count\" = 1235 AND \"value\" = 1235.5 " +
+                              "AND \"text\" = 'row 1235'"));
+  }
+
+
+  /**
+   * Tests that chunks end at the commit interval and carry the offset of
+   * their last row.
+   */
+  public void testCommitInterval() throws Exception {
+    final List<long[]> chunks = new ArrayList<long[]>();
+    DelimitedReader reader = getReader(data(1000, -1));
+    LoadPipeline pipeline = new LoadPipeline(getConverters(), 64, 2, 4,
+                                             null);
+    pipeline.setCommitInterval(300, new LoadPipeline.ChunkListener() {
+      public void chunkLoaded(long sourceRows, long endOffset)
+              throws SQLException {
+        connection.commit();
+        chunks.add(new long[] { sourceRows, endOffset });
+      }
+    });
+    BatchedInsertStatement insert = getInsert();
+
+    // Resume after 250 rows, so chunks end at source rows 300, 600, 900
+    // and 1200, leaving the last 50 rows uncommitted
+    pipeline.load(reader.getOneRowDataVector(), reader, 250, insert);
+    insert.close();
+
+    assertEquals(1000, pipeline.getSourceRowCount());
+    assertEquals(4, chunks.size());
+    assertEquals(300, chunks.get(0)[0]);
+    assertEquals(600, chunks.get(1)[0]);
+    assertEquals(1200, chunks.get(3)[0]);
+    assertTrue(chunks.get(0)[1] > 0);
+    assertTrue(chunks.get(1)[1] > chunks.get(0)[1]);
+
+    connection.rollback();
+    assertEquals(950, countRows("1 = 1"));
+  }
+
+
+  /**
+   * Tests that a value of the wrong type fails the load and that the row
+   * it is in is reported.
+   */
+  public void testTypeMismatch() throws Exception {
+    DelimitedReader reader = getReader(data(1000, 703));
+    LoadPipeline pipeline = new LoadPipeline(getConverters(), 50, 4, 2,
+                                             null);
+    BatchedInsertStatement insert = getInsert();
+
+    try {
+      pipeline.load(reader.getOneRowDataVector(), reader, 0, insert);
+      fail("A text value should not be accepted for an integer attribute");
+    }
+    catch (DataNotMatchingMetadataException e) {
+      assertEquals(703, pipeline.getFailedRow());
+    }
+    finally {
+      insert.close();
+    }
+  }
+
+
+  /*
+   * Builds rows numbered from 1 with a header line. The row numbered 1234
+   * has no values and the row numbered badRow has a text count.
+   */
+  private String data(int rows, int badRow) {
+    StringBuffer data = new StringBuffer("text,count,value\n");
+
+    for (int i = 1; i <= rows; i++) {
+      if (i == 1234) {
+        data.append(",-999,\n");
+      }
+      else if (i == badRow) {
+        data.append("row " + i + ",many," + i + ".5\n");
+      }
+      else {
+        data.append("row " + i + "," + i + "," + i + ".5\n");
+      }
+    }
+
+    return data.toString();
+  }
+
+
+  private DelimitedReader getReader(String data) throws Exception {
+    return new DelimitedReader(new ByteArrayInputStream(data.getBytes("UTF-8")),
+                               3, ",", 1, "\n", -1, true);
+  }
+
+
+  private AttributeConverter[] getConverters() throws Exception {
+    return adapter.compileConverters(attributeList);
+  }
+
+
+  private BatchedInsertStatement getInsert() throws Exception {
+    AttributeConverter[] converters = getConverters();
+    String insertSQL =
+      adapter.generateParameterizedInsertSQL(converters, tableName);
+
+    return new BatchedInsertStatement(connection, insertSQL, converters, 100);
+  }
+
+
+  private int countRows(String condition) throws Exception {
+    Statement statement = connection.createStatement();
+    ResultSet resultSet = statement.executeQuery(
+      "SELECT COUNT(*) FROM " + tableName + " WHERE " + condition);
+    resultSet.next();
+    int count = resultSet.getInt(1);
+    resultSet.close();
+    statement.close();
+
+    return count;
+  }
+
+}
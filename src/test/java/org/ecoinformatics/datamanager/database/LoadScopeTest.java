@@ -0,0 +1,274 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class LoadScopeTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private Entity sites = null;
+  private Attribute siteId = null;
+  private Attribute siteName = null;
+  private Entity observations = null;
+  private Attribute observationId = null;
+  private Attribute observationSite = null;
+  private Attribute observationValue = null;
+  private Attribute observationNote = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public LoadScopeTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new LoadScopeTest("testForQuery"));
+    suite.addTest(new LoadScopeTest("testUnfilteredEntities"));
+    suite.addTest(new LoadScopeTest("testCovers"));
+    suite.addTest(new LoadScopeTest("testParse"));
+    suite.addTest(new LoadScopeTest("testFilter"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating an entity of sites and an
+   * entity of observations at the sites.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    siteId = DatabaseTestUtil.newAttribute("a1", "site_id", "integer");
+    siteName = newTextAttribute("a2", "name");
+    sites = DatabaseTestUtil.newEntity("sites",
+        new Attribute[] {siteId, siteName});
+
+    observationId = DatabaseTestUtil.newAttribute("a3", "obs_id", "integer");
+    observationSite = DatabaseTestUtil.newAttribute("a4", "site_id", "integer");
+    observationValue = DatabaseTestUtil.newAttribute("a5", "value", "real");
+    observationNote = newTextAttribute("a6", "note");
+    observations = DatabaseTestUtil.newEntity("observations",
+        new Attribute[] {observationId, observationSite, observationValue,
+                         observationNote});
+  }
+
+
+  /**
+   * Tests that the scope of each entity of a join holds the attributes
+   * that the query refers to, and that the conditions joined by AND are
+   * kept while a LIKE condition is not.
+   */
+  public void testForQuery() throws Exception {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(sites, siteName));
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(sites));
+    query.addTableItem(new TableItem(observations));
+    ANDRelation and = new ANDRelation();
+    and.addCondtionInterface(
+        new Join(sites, siteId, observations, observationSite));
+    and.addCondtionInterface(new Condition(observations, observationValue,
+        ConditionInterface.GREATER_THANOR_EQUALS_OPERATOR,
+        Double.valueOf(900)));
+    and.addCondtionInterface(new Condition(sites, siteName,
+        ConditionInterface.LIKE_OPERATOR, "n%"));
+    query.setWhereClause(new WhereClause(and));
+
+    LoadScope observationScope =
+      LoadScope.forQuery(query, observations, true);
+    assertTrue(Arrays.equals(new int[] {0, 1, 2},
+                             observationScope.getColumns()));
+    assertEquals("columns=0,1,2;2>=:D900.0", observationScope.toString());
+
+    LoadScope unfiltered = LoadScope.forQuery(query, observations, false);
+    assertEquals("columns=0,1,2", unfiltered.toString());
+
+    // Both attributes of the sites are needed, and the LIKE is not used
+    assertNull(LoadScope.forQuery(query, sites, true));
+  }
+
+
+  /**
+   * Tests that rows are not filtered for conditions joined by OR, nor for
+   * an entity that appears in a subquery.
+   */
+  public void testUnfilteredEntities() throws Exception {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(observations));
+    ORRelation or = new ORRelation();
+    or.addCondtionInterface(new Condition(observations, observationId,
+        ConditionInterface.LESS_THAN_OPERATOR, Integer.valueOf(5)));
+    or.addCondtionInterface(new Condition(observations, observationValue,
+        ConditionInterface.GREATER_THAN_OPERATOR, Integer.valueOf(1000)));
+    query.setWhereClause(new WhereClause(or));
+
+    LoadScope loadScope = LoadScope.forQuery(query, observations, true);
+    assertEquals("columns=0,2", loadScope.toString());
+    assertFalse(loadScope.isRowFiltered());
+
+    Query subQuery = new Query();
+    subQuery.addSelectionItem(new SelectionItem(observations, observationSite));
+    subQuery.addTableItem(new TableItem(observations));
+    subQuery.setWhereClause(new WhereClause(new Condition(observations,
+        observationValue, ConditionInterface.GREATER_THAN_OPERATOR,
+        Integer.valueOf(1000))));
+
+    query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(observations));
+    ANDRelation and = new ANDRelation();
+    and.addCondtionInterface(new Condition(observations, observationId,
+        ConditionInterface.LESS_THAN_OPERATOR, Integer.valueOf(5)));
+    and.addCondtionInterface(new SubQueryClause(observations,
+        observationSite, "IN", subQuery));
+    query.setWhereClause(new WhereClause(and));
+
+    loadScope = LoadScope.forQuery(query, observations, true);
+    assertEquals("columns=0,1,2", loadScope.toString());
+  }
+
+
+  /**
+   * Tests that a scope covers one with fewer attributes and more
+   * conditions, but not one with other attributes or fewer conditions.
+   */
+  public void testCovers() throws Exception {
+    LoadScope wide = LoadScope.parse("columns=0,1,2;2>=:D900.0");
+    LoadScope narrow = LoadScope.parse("columns=0,2;2>=:D900.0;1=:I2");
+
+    assertTrue(wide.covers(narrow));
+    assertTrue(wide.covers(wide));
+    assertFalse(narrow.covers(wide));
+    assertFalse(wide.covers(LoadScope.parse("columns=0,3;2>=:D900.0")));
+    assertFalse(wide.covers(LoadScope.parse("columns=0")));
+    assertFalse(wide.covers(null));
+  }
+
+
+  /**
+   * Tests that a scope is read back from its text, with its values
+   * encoded and typed.
+   */
+  public void testParse() throws Exception {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(observations));
+    ANDRelation and = new ANDRelation();
+    and.addCondtionInterface(new Condition(observations, observationNote,
+        ConditionInterface.EQUAL_OPERATOR, "dry; windy=yes"));
+    and.addCondtionInterface(new Condition(observations, observationSite,
+        ConditionInterface.EQUAL_OPERATOR, Integer.valueOf(2)));
+    query.setWhereClause(new WhereClause(and));
+
+    LoadScope loadScope = LoadScope.forQuery(query, observations, true);
+    String text = loadScope.toString();
+    assertEquals("columns=0,1,3;3=:Sdry%3B+windy%3Dyes;1=:I2", text);
+    assertEquals(loadScope, LoadScope.parse(text));
+    assertEquals(text, LoadScope.parse(text).toString());
+    assertNull(LoadScope.parse(null));
+
+    try {
+      LoadScope.parse("rows=1");
+      fail("A scope without columns was read");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+
+  /**
+   * Tests that a filtered reader returns the attributes of the scope for
+   * the rows that pass its conditions, keeping rows whose values cannot be
+   * compared and dropping rows with missing values.
+   */
+  public void testFilter() throws Exception {
+    LoadScope loadScope =
+      LoadScope.parse("columns=0,2;2>=:D900.0;3=:Sdry;1<:I3");
+    AttributeConverter[] converters =
+      new HSQLAdapter().compileConverters(observations.getAttributeList());
+
+    List<Vector<String>> rows = new ArrayList<Vector<String>>();
+    rows.add(row("1", "1", "950.5", "dry"));
+    rows.add(row("2", "1", "899", "dry"));
+    rows.add(row("3", "2", "1000", "wet"));
+    rows.add(row("4", "3", "1000", "dry"));
+    rows.add(row("5", "2", "", "dry"));
+    rows.add(row("6", "2", "n/a", "dry"));
+    rows.add(row("7", "2", "900", "dry"));
+
+    TextDataReader reader = loadScope.filter(new ListReader(rows), converters);
+    List<Vector<String>> loaded = new ArrayList<Vector<String>>();
+    Vector<String> row;
+    while (!(row = reader.getOneRowDataVector()).isEmpty()) {
+      loaded.add(row);
+    }
+
+    assertEquals(3, loaded.size());
+    assertEquals(pair("1", "950.5"), loaded.get(0));
+    assertEquals(pair("6", "n/a"), loaded.get(1));
+    assertEquals(pair("7", "900"), loaded.get(2));
+
+    AttributeConverter[] selected = loadScope.selectConverters(converters);
+    assertEquals(2, selected.length);
+    assertSame(observationValue, selected[1].getAttribute());
+  }
+
+
+  private static Vector<String> row(String id, String site, String value,
+                                    String note) {
+    return new Vector<String>(Arrays.asList(id, site, value, note));
+  }
+
+
+  private static Vector<String> pair(String first, String second) {
+    return new Vector<String>(Arrays.asList(first, second));
+  }
+
+
+  private static Attribute newTextAttribute(String id, String name) {
+    Attribute attribute = new Attribute(id, name, new TextDomain());
+    attribute.setAttributeType("string");
+    return attribute;
+  }
+
+
+  /*
+   * Reads rows from a list.
+   */
+  private static class ListReader extends TextDataReader {
+    private final List<Vector<String>> rows;
+    private int next = 0;
+
+    ListReader(List<Vector<String>> rows) {
+      this.rows = rows;
+    }
+
+    public Vector<String> getOneRowDataVector() {
+      return (next < rows.size()) ? rows.get(next++) : new Vector<String>();
+    }
+  }
+
+}
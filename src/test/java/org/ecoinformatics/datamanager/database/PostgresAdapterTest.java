@@ -5,6 +5,7 @@ import java.util.Vector;
 
 import org.ecoinformatics.datamanager.parser.Attribute;
 import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.DateTimeDomain;
 import org.ecoinformatics.datamanager.parser.NumericDomain;
 import org.ecoinformatics.datamanager.parser.TextDomain;
 
@@ -36,6 +37,7 @@ public class PostgresAdapterTest extends TestCase
          TestSuite suite = new TestSuite();
          suite.addTest(new PostgresAdapterTest("initialize"));
          suite.addTest(new PostgresAdapterTest("testGenerateInsertSQL"));
+         suite.addTest(new PostgresAdapterTest("testCompileConverters"));
          return suite;
        }
 
@@ -196,4 +198,66 @@ public class PostgresAdapterTest extends TestCase
           assertEquals("INSERT INTO table1(name1,name2,name3) VALUES ('data1',1,2.2);", sql);
 	  }
 	  
+	  
+	  /**
+	   * Tests that compiled converters handle missing value codes, quotes,
+	   * numbers and datetimes
+	   */
+	  public void testCompileConverters() throws SQLException, DataNotMatchingMetadataException
+	  {
+		  PostgresAdapter adapter = new PostgresAdapter();
+		  AttributeList attributeList = new AttributeList();
+		  
+		  Attribute text = new Attribute("id1", "text", new TextDomain());
+		  text.addMissingValueCode("NA");
+		  text.setDBFieldName("text");
+		  Attribute real = new Attribute("id2", "real", 
+				  new NumericDomain("real", null, null));
+		  real.addMissingValueCode("-999");
+		  real.setDBFieldName("real");
+		  DateTimeDomain dateTimeDomain = new DateTimeDomain();
+		  dateTimeDomain.setFormatString("YYYY-MM-DDThh:mm:ss");
+		  Attribute date = new Attribute("id3", "date", dateTimeDomain);
+		  date.setDBFieldName("date");
+		  attributeList.add(text);
+		  attributeList.add(real);
+		  attributeList.add(date);
+		  
+		  AttributeConverter[] converters = adapter.compileConverters(attributeList);
+		  assertEquals(3, converters.length);
+		  assertTrue(converters[0].isMissingValue("NA"));
+		  assertFalse(converters[0].isMissingValue("N"));
+		  assertEquals(AttributeConverter.KIND_FLOAT, converters[1].getKind());
+		  assertEquals(java.sql.Types.TIMESTAMP, converters[2].getSqlType());
+		  assertEquals("YYYY-MM-DD HH24:MI:ss", converters[2].getFormatString());
+		  
+		  Vector<String> oneRowData = new Vector<String>();
+		  oneRowData.add("it's");
+		  oneRowData.add(" 3.14159265358979 ");
+		  oneRowData.add("2002-10-14T09:13:45");
+		  String sql = adapter.generateInsertSQL(converters, "table1", oneRowData);
+		  assertEquals("INSERT INTO table1(text,real,date) VALUES ('it''s',3.14159265358979," +
+				  "to_timestamp('2002-10-14 09:13:45','YYYY-MM-DD HH24:MI:ss'));", sql);
+		  
+		  oneRowData.set(0, "NA");
+		  oneRowData.set(1, "-999");
+		  oneRowData.set(2, "");
+		  assertNull(adapter.generateInsertSQL(attributeList, "table1", oneRowData));
+		  
+		  oneRowData.set(1, "1e3");
+		  sql = adapter.generateInsertSQL(attributeList, "table1", oneRowData);
+		  assertEquals("INSERT INTO table1(real) VALUES (1e3);", sql);
+		  
+		  try
+		  {
+			  oneRowData.set(1, "3.1.4");
+			  adapter.generateInsertSQL(attributeList, "table1", oneRowData);
+			  fail("A malformed number should not be accepted");
+		  }
+		  catch (DataNotMatchingMetadataException e)
+		  {
+			  assertTrue(true);
+		  }
+	  }
+	  
 }
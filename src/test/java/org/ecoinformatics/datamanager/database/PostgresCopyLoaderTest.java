@@ -0,0 +1,134 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Vector;
+
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.AttributeList;
+import org.ecoinformatics.datamanager.parser.DateTimeDomain;
+import org.ecoinformatics.datamanager.parser.NumericDomain;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class PostgresCopyLoaderTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private AttributeConverter[] converters = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public PostgresCopyLoaderTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new PostgresCopyLoaderTest("testFormatRow"));
+    suite.addTest(new PostgresCopyLoaderTest("testGenerateCopySQL"));
+    suite.addTest(new PostgresCopyLoaderTest("testCopyNotSupported"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by compiling converters for a text, an
+   * integer and a datetime attribute.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    Attribute text = new Attribute("a1", "text", new TextDomain());
+    text.setDBFieldName("\"text\"");
+    Attribute count = new Attribute("a2", "count",
+                                    new NumericDomain("integer", null, null));
+    count.addMissingValueCode("NA");
+    count.setDBFieldName("\"count\"");
+    DateTimeDomain dateTimeDomain = new DateTimeDomain();
+    dateTimeDomain.setFormatString("YYYY-MM-DDThh:mm:ss");
+    Attribute date = new Attribute("a3", "date", dateTimeDomain);
+    date.setDBFieldName("\"date\"");
+    AttributeList attributeList = new AttributeList();
+    attributeList.add(text);
+    attributeList.add(count);
+    attributeList.add(date);
+    converters = new PostgresAdapter().compileConverters(attributeList);
+  }
+
+
+  /**
+   * Tests formatting rows in the COPY text format.
+   */
+  public void testFormatRow() throws Exception {
+    StringBuffer buffer = new StringBuffer();
+
+    assertTrue(PostgresCopyLoader.formatRow(converters,
+      row("a\tb\\c", "12", "2002-10-14T09:13:45"), buffer));
+    assertEquals("a\\tb\\\\c\t12\t2002-10-14 09:13:45.0\n", buffer.toString());
+
+    buffer.setLength(0);
+    assertTrue(PostgresCopyLoader.formatRow(converters,
+      row("x", "NA", ""), buffer));
+    assertEquals("x\t\\N\t\\N\n", buffer.toString());
+
+    buffer.setLength(0);
+    assertFalse(PostgresCopyLoader.formatRow(converters,
+      row(" ", "NA", ""), buffer));
+    assertEquals("", buffer.toString());
+
+    try {
+      PostgresCopyLoader.formatRow(converters, row("x", "1.5", ""), buffer);
+      fail("A real value should not be accepted for an integer attribute");
+    }
+    catch (DataNotMatchingMetadataException e) {
+      assertTrue(true);
+    }
+  }
+
+
+  /**
+   * Tests generating the COPY command.
+   */
+  public void testGenerateCopySQL() throws Exception {
+    assertEquals("COPY table1 (\"text\",\"count\",\"date\") FROM STDIN",
+                 new PostgresAdapter().generateCopySQL(converters, "table1"));
+  }
+
+
+  /**
+   * Tests that COPY is not offered on a connection to another database.
+   */
+  public void testCopyNotSupported() throws Exception {
+    Class.forName("org.hsqldb.jdbcDriver");
+    Connection connection =
+      DriverManager.getConnection("jdbc:hsqldb:mem:copytest", "sa", "");
+    assertFalse(PostgresCopyLoader.isCopySupported(connection));
+    assertFalse(PostgresCopyLoader.isCopySupported(null));
+    connection.close();
+  }
+
+
+  /*
+   * Builds a row of data.
+   */
+  private Vector<String> row(String text, String count, String date) {
+    Vector<String> row = new Vector<String>();
+    row.add(text);
+    row.add(count);
+    row.add(date);
+    return row;
+  }
+
+}
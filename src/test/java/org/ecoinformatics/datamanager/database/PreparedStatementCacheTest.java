@@ -0,0 +1,127 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class PreparedStatementCacheTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private int maxStatements = 0;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public PreparedStatementCacheTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new PreparedStatementCacheTest("testPrepare"));
+    suite.addTest(new PreparedStatementCacheTest("testEviction"));
+    suite.addTest(new PreparedStatementCacheTest("testClosedConnection"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by opening a connection to an in-memory
+   * HSQL database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    Class.forName("org.hsqldb.jdbcDriver");
+    connection = DriverManager.getConnection(
+      "jdbc:hsqldb:mem:statementcachetest", "sa", "");
+    maxStatements = PreparedStatementCache.getMaxStatements();
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception {
+    PreparedStatementCache.setMaxStatements(maxStatements);
+    PreparedStatementCache.clear(connection);
+    connection.close();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that a template is prepared once per connection.
+   */
+  public void testPrepare() throws Exception {
+    String sql = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS " +
+                 "WHERE USER = ?";
+    PreparedStatement statement =
+      PreparedStatementCache.prepare(connection, sql);
+
+    assertSame(statement, PreparedStatementCache.prepare(connection, sql));
+    assertTrue(PreparedStatementCache.contains(connection, sql));
+    assertEquals(1, PreparedStatementCache.size(connection));
+
+    statement.setString(1, "SA");
+    ResultSet resultSet = statement.executeQuery();
+    assertTrue(resultSet.next());
+    assertEquals(1, resultSet.getInt(1));
+    resultSet.close();
+
+    PreparedStatementCache.remove(connection, sql);
+    assertFalse(PreparedStatementCache.contains(connection, sql));
+    assertNotSame(statement, PreparedStatementCache.prepare(connection, sql));
+  }
+
+
+  /**
+   * Tests that a connection closes its least recently used statement when
+   * it holds more than the maximum.
+   */
+  public void testEviction() throws Exception {
+    PreparedStatementCache.setMaxStatements(2);
+    PreparedStatementCache.prepare(connection, "VALUES (1)");
+    PreparedStatementCache.prepare(connection, "VALUES (2)");
+    PreparedStatementCache.prepare(connection, "VALUES (1)");
+    PreparedStatementCache.prepare(connection, "VALUES (3)");
+
+    assertEquals(2, PreparedStatementCache.size(connection));
+    assertTrue(PreparedStatementCache.contains(connection, "VALUES (1)"));
+    assertFalse(PreparedStatementCache.contains(connection, "VALUES (2)"));
+    assertTrue(PreparedStatementCache.contains(connection, "VALUES (3)"));
+  }
+
+
+  /**
+   * Tests that the statements of a closed connection are dropped when a
+   * new connection is seen.
+   */
+  public void testClosedConnection() throws Exception {
+    Connection closing = DriverManager.getConnection(
+      "jdbc:hsqldb:mem:statementcachetest", "sa", "");
+    PreparedStatementCache.prepare(closing, "VALUES (1)");
+    assertEquals(1, PreparedStatementCache.size(closing));
+    closing.close();
+
+    PreparedStatementCache.prepare(connection, "VALUES (1)");
+    assertEquals(0, PreparedStatementCache.size(closing));
+    assertEquals(1, PreparedStatementCache.size(connection));
+  }
+
+}
@@ -0,0 +1,253 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.ecoinformatics.datamanager.parser.DataPackage;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class QueryCursorTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+
+
+  /*
+   * Instance fields
+   */
+  private TableMonitor tableMonitor = null;
+  private DatabaseHandler databaseHandler = null;
+  private DataPackage[] packages = null;
+  private final String packageId = "cursor.1.1";
+  private final String tableName = "CURSOR_ROWS";
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public QueryCursorTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new QueryCursorTest("testNextBatch"));
+    suite.addTest(new QueryCursorTest("testResultSetClosesCursor"));
+    suite.addTest(new QueryCursorTest("testFailedQuery"));
+    suite.addTest(new QueryCursorTest("testBoundQuery"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by registering a table of 25 rows in an
+   * in-memory HSQL database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:cursortest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+    tableMonitor = new TableMonitor(new HSQLAdapter());
+    databaseHandler = new DatabaseHandler(DatabaseAdapter.HSQL_ADAPTER);
+
+    Connection connection = DataManager.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      statement.executeUpdate("CREATE TABLE " + tableName +
+                              " (ID INTEGER, NAME VARCHAR(16))");
+      statement.close();
+      PreparedStatement insert = connection.prepareStatement(
+        "INSERT INTO " + tableName + " VALUES (?, ?)");
+      for (int i = 0; i < 25; i++) {
+        insert.setInt(1, i);
+        insert.setString(2, "row " + i);
+        insert.executeUpdate();
+      }
+      insert.close();
+    }
+    finally {
+      DataManager.returnConnection(connection);
+    }
+
+    Entity entity = new Entity("cursor.e1", tableName, "", Boolean.FALSE,
+                               "column", 0);
+    entity.setPackageId(packageId);
+    entity.setEntityIdentifier("cursor.e1");
+    tableMonitor.addTableEntry(entity);
+    DataPackage dataPackage = new DataPackage(packageId);
+    dataPackage.add(entity);
+    packages = new DataPackage[] { dataPackage };
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception {
+    databaseHandler.dropTable(tableName);
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that the rows are read in typed batches, and that the cursor
+   * holds its connection and table until the last row is read.
+   */
+  public void testNextBatch() throws Exception {
+    int active = pool.getActiveConnections();
+    QueryCursor cursor = databaseHandler.openCursor(
+      "SELECT ID, NAME FROM " + tableName + " ORDER BY ID", packages, 10);
+
+    assertEquals(active + 1, pool.getActiveConnections());
+    assertTrue(tableMonitor.isTableOpen(tableName));
+    assertEquals("ID", cursor.getColumnNames()[0]);
+    assertEquals(Types.INTEGER, cursor.getColumnTypes()[0]);
+
+    List<Object[]> rows = cursor.nextBatch(10);
+    assertEquals(10, rows.size());
+    assertEquals(Integer.valueOf(0), rows.get(0)[0]);
+    assertEquals("row 9", rows.get(9)[1]);
+    assertEquals(10, cursor.nextBatch(10).size());
+    assertFalse(cursor.isClosed());
+
+    rows = cursor.nextBatch(10);
+    assertEquals(5, rows.size());
+    assertEquals(Integer.valueOf(24), rows.get(4)[0]);
+    assertEquals(25, cursor.getRowCount());
+    assertTrue(cursor.isClosed());
+    assertEquals(0, cursor.nextBatch(10).size());
+
+    assertEquals(active, pool.getActiveConnections());
+    assertFalse(tableMonitor.isTableOpen(tableName));
+    cursor.close();
+    assertEquals(active, pool.getActiveConnections());
+  }
+
+
+  /**
+   * Tests that the ResultSet of selectData() keeps its connection until it
+   * is closed.
+   */
+  public void testResultSetClosesCursor() throws Exception {
+    int active = pool.getActiveConnections();
+    ResultSet resultSet = databaseHandler.selectData(
+      "SELECT COUNT(*) FROM " + tableName, packages);
+
+    assertEquals(active + 1, pool.getActiveConnections());
+    assertTrue(resultSet.next());
+    assertEquals(25, resultSet.getInt(1));
+
+    resultSet.close();
+    assertEquals(active, pool.getActiveConnections());
+    assertFalse(tableMonitor.isTableOpen(tableName));
+
+    // The connection is back in auto-commit mode
+    Connection connection = DataManager.getConnection();
+    try {
+      assertTrue(connection.getAutoCommit());
+    }
+    finally {
+      DataManager.returnConnection(connection);
+    }
+  }
+
+
+  /**
+   * Tests that a query that fails returns its connection and table.
+   */
+  public void testFailedQuery() throws Exception {
+    int active = pool.getActiveConnections();
+
+    try {
+      databaseHandler.openCursor("SELECT MISSING FROM " + tableName,
+                                 packages, 10);
+      fail("The query should fail");
+    }
+    catch (SQLException e) {
+      // expected
+    }
+
+    assertEquals(active, pool.getActiveConnections());
+    assertFalse(tableMonitor.isTableOpen(tableName));
+  }
+
+
+  /**
+   * Tests that bound queries with the same template reuse the statement of
+   * the connection, and that a cached statement whose table was dropped
+   * and created again is prepared again.
+   */
+  public void testBoundQuery() throws Exception {
+    String sql = "SELECT ID, NAME FROM " + tableName +
+                 " WHERE NAME = ? OR ID < ? ORDER BY ID";
+    List<Object> binds = new ArrayList<Object>();
+    binds.add("row 20");
+    binds.add(new Integer(2));
+
+    QueryCursor cursor = databaseHandler.openCursor(
+      new BoundQuery(sql, binds), packages, 10);
+    List<Object[]> rows = cursor.nextBatch(10);
+    assertEquals(3, rows.size());
+    assertEquals(Integer.valueOf(20), rows.get(2)[0]);
+    assertTrue(cursor.isClosed());
+
+    long hits = PreparedStatementCache.getHitCount();
+    binds.set(0, "row 10");
+    binds.set(1, new Integer(1));
+    cursor = databaseHandler.openCursor(new BoundQuery(sql, binds), packages,
+                                        10);
+    rows = cursor.nextBatch(10);
+    assertEquals(2, rows.size());
+    assertEquals(Integer.valueOf(10), rows.get(1)[0]);
+    assertEquals(hits + 1, PreparedStatementCache.getHitCount());
+
+    Connection connection = DataManager.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      statement.executeUpdate("DROP TABLE " + tableName);
+      statement.executeUpdate("CREATE TABLE " + tableName +
+                              " (ID INTEGER, NAME VARCHAR(16))");
+      statement.executeUpdate("INSERT INTO " + tableName +
+                              " VALUES (0, 'row 0')");
+      statement.close();
+    }
+    finally {
+      DataManager.returnConnection(connection);
+    }
+
+    cursor = databaseHandler.openCursor(new BoundQuery(sql, binds), packages,
+                                        10);
+    rows = cursor.nextBatch(10);
+    assertEquals(1, rows.size());
+    assertEquals("row 0", rows.get(0)[1]);
+  }
+
+}
@@ -0,0 +1,281 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.ecoinformatics.datamanager.parser.DataPackage;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class QueryResultCacheTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+
+
+  /*
+   * Instance fields
+   */
+  private DatabaseHandler databaseHandler = null;
+  private DataPackage[] packages = null;
+  private final String packageId = "resultcache.1.1";
+  private final String tableName = "RESULT_CACHE_ROWS";
+  private BoundQuery boundQuery = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public QueryResultCacheTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new QueryResultCacheTest("testRepeatedQuery"));
+    suite.addTest(new QueryResultCacheTest("testTableChange"));
+    suite.addTest(new QueryResultCacheTest("testMaxBytes"));
+    suite.addTest(new QueryResultCacheTest("testResultTooLarge"));
+    suite.addTest(new QueryResultCacheTest("testColumnarResult"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by registering a table of 50 rows in an
+   * in-memory HSQL database, and enabling the cache.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:resultcachetest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+    TableMonitor tableMonitor = new TableMonitor(new HSQLAdapter());
+    databaseHandler = new DatabaseHandler(DatabaseAdapter.HSQL_ADAPTER);
+
+    Connection connection = DataManager.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      statement.executeUpdate("CREATE TABLE " + tableName +
+                              " (ID INTEGER, NAME VARCHAR(16), SCORE DOUBLE)");
+      statement.close();
+      PreparedStatement insert = connection.prepareStatement(
+        "INSERT INTO " + tableName + " VALUES (?, ?, ?)");
+      for (int i = 0; i < 50; i++) {
+        insert.setInt(1, i);
+        insert.setString(2, "row " + i);
+        if (i % 10 == 0) {
+          insert.setNull(3, Types.DOUBLE);
+        }
+        else {
+          insert.setDouble(3, i / 2.0);
+        }
+        insert.executeUpdate();
+      }
+      insert.close();
+    }
+    finally {
+      DataManager.returnConnection(connection);
+    }
+
+    Entity entity = new Entity("resultcache.e1", tableName, "", Boolean.FALSE,
+                               "column", 0);
+    entity.setPackageId(packageId);
+    entity.setEntityIdentifier("resultcache.e1");
+    tableMonitor.addTableEntry(entity);
+    DataPackage dataPackage = new DataPackage(packageId);
+    dataPackage.add(entity);
+    packages = new DataPackage[] { dataPackage };
+
+    List<Object> binds = new ArrayList<Object>();
+    binds.add(new Integer(20));
+    boundQuery = new BoundQuery("SELECT ID, NAME, SCORE FROM " + tableName +
+                                " WHERE ID < ? ORDER BY ID", binds);
+
+    QueryResultCache.clear();
+    QueryResultCache.setEnabled(true);
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception {
+    QueryResultCache.setEnabled(false);
+    QueryResultCache.setMaxBytes(QueryResultCache.DEFAULT_MAX_BYTES);
+    databaseHandler.dropTable(tableName);
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that a repeated query is answered from the cache without a
+   * connection.
+   */
+  public void testRepeatedQuery() throws Exception {
+    long hits = QueryResultCache.getHitCount();
+    ResultSet resultSet = databaseHandler.selectData(boundQuery, packages);
+    assertEquals(20, countRows(resultSet));
+    assertEquals(1, QueryResultCache.size());
+    assertEquals(hits, QueryResultCache.getHitCount());
+
+    int active = pool.getActiveConnections();
+    resultSet = databaseHandler.selectData(boundQuery, packages);
+    assertEquals(active, pool.getActiveConnections());
+    assertEquals(hits + 1, QueryResultCache.getHitCount());
+
+    assertTrue(resultSet.next());
+    assertEquals(0, resultSet.getInt("ID"));
+    assertEquals("row 0", resultSet.getString(2));
+    assertEquals(0.0, resultSet.getDouble(3), 0.0);
+    assertTrue(resultSet.wasNull());
+    assertTrue(resultSet.next());
+    assertEquals(Double.valueOf(0.5), resultSet.getObject("SCORE"));
+    assertEquals(3, resultSet.getMetaData().getColumnCount());
+    assertEquals(18, countRows(resultSet));
+  }
+
+
+  /**
+   * Tests that a change to a table drops the results that depend on it.
+   */
+  public void testTableChange() throws Exception {
+    countRows(databaseHandler.selectData(boundQuery, packages));
+    assertEquals(1, QueryResultCache.size());
+
+    Connection connection = DataManager.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      statement.executeUpdate("DELETE FROM " + tableName + " WHERE ID < 5");
+      statement.close();
+    }
+    finally {
+      DataManager.returnConnection(connection);
+    }
+    TableMonitor.recordTableChange(tableName);
+    assertEquals(0, QueryResultCache.size());
+
+    long misses = QueryResultCache.getMissCount();
+    assertEquals(15, countRows(databaseHandler.selectData(boundQuery,
+                                                           packages)));
+    assertEquals(misses + 1, QueryResultCache.getMissCount());
+  }
+
+
+  /**
+   * Tests that the cache drops its least recently used results to stay
+   * within its size.
+   */
+  public void testMaxBytes() throws Exception {
+    countRows(databaseHandler.selectData(boundQuery, packages));
+    long size = QueryResultCache.getByteSize();
+    assertTrue(size > 0);
+
+    QueryResultCache.setMaxBytes(size + size / 2);
+    List<Object> binds = new ArrayList<Object>();
+    binds.add(new Integer(19));
+    BoundQuery otherQuery = new BoundQuery(boundQuery.getSQL(), binds);
+    countRows(databaseHandler.selectData(otherQuery, packages));
+
+    assertEquals(1, QueryResultCache.size());
+    assertTrue(QueryResultCache.getByteSize() <= QueryResultCache.getMaxBytes());
+
+    QueryResultCache.setMaxBytes(1);
+    assertEquals(0, QueryResultCache.size());
+    assertEquals(0, QueryResultCache.getByteSize());
+  }
+
+
+  /**
+   * Tests that a result too large for the cache is streamed rather than
+   * read into memory, and releases its connection once it is closed.
+   */
+  public void testResultTooLarge() throws Exception {
+    QueryResultCache.setMaxBytes(1);
+    List<Object> binds = new ArrayList<Object>();
+    binds.add(new Integer(50));
+    BoundQuery crossQuery = new BoundQuery(
+      "SELECT A.ID, B.ID FROM " + tableName + " A, " + tableName + " B" +
+      " WHERE A.ID < ? ORDER BY A.ID, B.ID", binds);
+
+    int active = pool.getActiveConnections();
+    ResultSet resultSet = databaseHandler.selectData(crossQuery, packages);
+    assertEquals(active + 1, pool.getActiveConnections());
+
+    int count = 0;
+    while (resultSet.next()) {
+      assertEquals(count / 50, resultSet.getInt(1));
+      assertEquals(count % 50, resultSet.getInt(2));
+      count++;
+      assertEquals(count, resultSet.getRow());
+    }
+    assertEquals(2500, count);
+    resultSet.close();
+
+    assertEquals(active, pool.getActiveConnections());
+    assertEquals(0, QueryResultCache.size());
+  }
+
+
+  /**
+   * Tests that a columnar result holds numbers as primitives and returns
+   * the values it was given.
+   */
+  public void testColumnarResult() throws Exception {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[] { new Integer(1), new Long(10), "a" });
+    rows.add(new Object[] { null, new Long(20), new Integer(2) });
+    ColumnarResult result = new ColumnarResult(
+      new String[] { "A", "B", "C" },
+      new int[] { Types.INTEGER, Types.BIGINT, Types.OTHER }, rows);
+
+    assertEquals(2, result.getRowCount());
+    assertEquals(new Integer(1), result.getValue(0, 0));
+    assertNull(result.getValue(1, 0));
+    assertEquals(new Long(20), result.getValue(1, 1));
+    assertEquals("a", result.getValue(0, 2));
+    assertEquals(new Integer(2), result.getValue(1, 2));
+
+    RowCursorInterface cursor = result.openCursor();
+    assertEquals(2, cursor.nextBatch(10).size());
+    assertTrue(cursor.isClosed());
+  }
+
+
+  private int countRows(ResultSet resultSet) throws Exception {
+    int count = 0;
+
+    while (resultSet.next()) {
+      count++;
+    }
+    resultSet.close();
+
+    return count;
+  }
+
+}
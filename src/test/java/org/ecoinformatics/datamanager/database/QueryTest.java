@@ -67,6 +67,7 @@ public class QueryTest extends TestCase {
     suite.addTest(new QueryTest("testToSQLStringHasWhereClauseBaseOnCondition"));
     suite.addTest(new QueryTest("testToSQLStringHasWhereCaluseBaseOnANDRelation"));
     suite.addTest(new QueryTest("testToSQLStringHasWhereClauseBaseOnORRelation"));
+    suite.addTest(new QueryTest("testToBoundQuery"));
     return suite;
   }
   
@@ -232,5 +233,35 @@ public class QueryTest extends TestCase {
 	   }
   }
  
+  
+  /**
+   * test toBoundQuery, which replaces the values of the where clause with
+   * parameters and keeps them in order
+   *
+   */
+  public void testToBoundQuery() throws Exception
+  {
+	   ANDRelation relation = new ANDRelation();
+	   Condition cond1 = new Condition(entity1, attribute1, operator, "it's");
+	   Condition cond2 = new Condition(entity2, attribute2, "<", new Integer(5));
+	   relation.addCondtionInterface(cond1);
+	   relation.addCondtionInterface(cond2);
+	   query.addSelectionItem(select1);
+	   query.addTableItem(table1);
+	   query.addTableItem(table2);
+	   query.setWhereClause(new WhereClause(relation));
+       
+	   BoundQuery boundQuery = query.toBoundQuery();
+	   assertEquals("SELECT table1.attribute1 FROM table1,table2  where  table1.attribute1 = ? AND table2.attribute2 < ? ;",
+	                boundQuery.getSQL());
+	   assertEquals(2, boundQuery.getBindCount());
+	   assertEquals("it's", boundQuery.getBind(0));
+	   assertEquals(new Integer(5), boundQuery.getBind(1));
+       
+	   cond1.setValue("other");
+	   cond2.setValue(new Integer(7));
+	   assertEquals(boundQuery.getSQL(), query.toBoundQuery().getSQL());
+	   assertTrue(query.toSQLString().indexOf("'other'") > 0);
+  }
+ 
 }
-
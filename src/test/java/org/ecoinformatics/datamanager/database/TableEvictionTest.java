@@ -0,0 +1,176 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Date;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class TableEvictionTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private TableMonitor tableMonitor = null;
+  private DatabaseHandler databaseHandler = null;
+  private final String packageId = "eviction.1.1";
+  private final String[] tableNames = { "EVICT_OLD", "EVICT_KEPT", "EVICT_OPEN" };
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public TableEvictionTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new TableEvictionTest("testTableSize"));
+    suite.addTest(new TableEvictionTest("testFreeTableSpace"));
+    suite.addTest(new TableEvictionTest("testGracePeriod"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by registering three tables of about
+   * 0.6 Mb each in an in-memory HSQL database. All of them were last used
+   * long ago, the oldest first.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:evictiontest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+    connection = DataManager.getConnection();
+    tableMonitor = new TableMonitor(new HSQLAdapter());
+    databaseHandler = new DatabaseHandler(DatabaseAdapter.HSQL_ADAPTER);
+
+    for (int i = 0; i < tableNames.length; i++) {
+      createTable(tableNames[i], 13000);
+      Entity entity = new Entity("eviction.e" + i, tableNames[i], "",
+                                 Boolean.FALSE, "column", 0);
+      entity.setPackageId(packageId);
+      entity.setEntityIdentifier("eviction.e" + i);
+      assertEquals(tableNames[i], tableMonitor.addTableEntry(entity));
+      tableMonitor.setLastUsageDate(tableNames[i], new Date(i * 86400000L));
+    }
+    tableMonitor.setTableExpirationPolicy("EVICT_KEPT", 0);
+    tableMonitor.setDBSize(1);
+    TableMonitor.setEvictionGracePeriod(0);
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    for (int i = 0; i < tableNames.length; i++) {
+      databaseHandler.dropTable(tableNames[i]);
+    }
+    TableMonitor.setEvictionGracePeriod(
+      TableMonitor.DEFAULT_EVICTION_GRACE_PERIOD);
+    tableMonitor.setDBSize(100);
+    DataManager.returnConnection(connection);
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that the size of a table is estimated from its rows.
+   */
+  public void testTableSize() throws Exception {
+    long size = tableMonitor.getTableSize("EVICT_OLD");
+    assertTrue(size > 500000);
+    assertTrue(size < 700000);
+    assertEquals(0, tableMonitor.getTableSize("EVICT_MISSING"));
+  }
+
+
+  /**
+   * Tests that the least recently used table is evicted first, and that
+   * tables that never expire or that are open are kept.
+   */
+  public void testFreeTableSpace() throws Exception {
+    assertTrue(tableMonitor.openTable("EVICT_OPEN"));
+    assertTrue(tableMonitor.isTableOpen("evict_open"));
+    assertEquals(1, tableMonitor.freeTableSpace(databaseHandler));
+
+    assertFalse(tableMonitor.isTableInDB("EVICT_OLD"));
+    assertFalse(tableMonitor.isDBTableNameInUse("EVICT_OLD"));
+    assertTrue(tableMonitor.isTableInDB("EVICT_KEPT"));
+    assertTrue(tableMonitor.isTableInDB("EVICT_OPEN"));
+
+    // Once closed, the open table is evicted in the background
+    tableMonitor.closeTable("EVICT_OPEN");
+    assertFalse(tableMonitor.isTableOpen("EVICT_OPEN"));
+    tableMonitor.requestEviction();
+    for (int i = 0; i < 100 && tableMonitor.isTableInDB("EVICT_OPEN"); i++) {
+      Thread.sleep(50);
+    }
+    assertFalse(tableMonitor.isTableInDB("EVICT_OPEN"));
+    assertTrue(tableMonitor.isTableInDB("EVICT_KEPT"));
+  }
+
+
+  /**
+   * Tests that tables used within the grace period are not evicted.
+   */
+  public void testGracePeriod() throws Exception {
+    TableMonitor.setEvictionGracePeriod(60000);
+    tableMonitor.openTable("EVICT_OLD");
+    tableMonitor.closeTable("EVICT_OLD");
+
+    assertEquals(1, tableMonitor.freeTableSpace(databaseHandler));
+    assertTrue(tableMonitor.isTableInDB("EVICT_OLD"));
+    assertFalse(tableMonitor.isTableInDB("EVICT_OPEN"));
+  }
+
+
+  private void createTable(String tableName, int rows) throws Exception {
+    Statement statement = connection.createStatement();
+    statement.executeUpdate("CREATE TABLE " + tableName +
+                            " (ID INTEGER, NAME VARCHAR(64))");
+    statement.close();
+
+    PreparedStatement insert = connection.prepareStatement(
+      "INSERT INTO " + tableName + " VALUES (?, ?)");
+    for (int i = 0; i < rows; i++) {
+      insert.setInt(1, i);
+      insert.setString(2, "row " + i);
+      insert.addBatch();
+    }
+    insert.executeBatch();
+    insert.close();
+  }
+
+}
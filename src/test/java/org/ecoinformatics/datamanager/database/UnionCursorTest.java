@@ -0,0 +1,231 @@
+package org.ecoinformatics.datamanager.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ecoinformatics.datamanager.DataManager;
+import org.ecoinformatics.datamanager.database.pooling.BoundedConnectionPool;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class UnionCursorTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static BoundedConnectionPool pool = null;
+
+
+  /*
+   * Instance fields
+   */
+  private final String[] tableNames = { "UNION_A", "UNION_B", "UNION_C" };
+  private final DatabaseAdapter adapter = new HSQLAdapter();
+  private BoundQuery[] memberQueries = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public UnionCursorTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new UnionCursorTest("testUnionAll"));
+    suite.addTest(new UnionCursorTest("testUnion"));
+    suite.addTest(new UnionCursorTest("testUnionNumericTypes"));
+    suite.addTest(new UnionCursorTest("testFailedMember"));
+    suite.addTest(new UnionCursorTest("testClose"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating three tables in an in-memory
+   * HSQL database. Each has 500 rows, of which the first 100 are the same
+   * in every table.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    if (pool == null) {
+      jdbcDataSource dataSource = new jdbcDataSource();
+      dataSource.setDatabase("jdbc:hsqldb:mem:unioncursortest");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      pool = new BoundedConnectionPool(dataSource, DatabaseAdapter.HSQL_ADAPTER,
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 4);
+    }
+    DataManager.getInstance(pool, DatabaseAdapter.HSQL_ADAPTER);
+
+    memberQueries = new BoundQuery[tableNames.length];
+    for (int i = 0; i < tableNames.length; i++) {
+      execute("CREATE TABLE " + tableNames[i] +
+              " (ID INTEGER, NAME VARCHAR(16))");
+      for (int j = 0; j < 500; j++) {
+        int id = (j < 100) ? j : i * 1000 + j;
+        execute("INSERT INTO " + tableNames[i] + " VALUES (" + id +
+                ", 'row " + id + "')");
+      }
+      memberQueries[i] = new BoundQuery("SELECT ID, NAME FROM " +
+                                        tableNames[i]);
+    }
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception {
+    for (int i = 0; i < tableNames.length; i++) {
+      execute("DROP TABLE " + tableNames[i]);
+    }
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that a UNION ALL passes on every row of every member query.
+   */
+  public void testUnionAll() throws Exception {
+    int active = pool.getActiveConnections();
+    UnionCursor cursor = new UnionCursor(memberQueries, adapter, Union.UNION_ALL,
+                                         50, 2, null, null);
+
+    assertEquals("ID", cursor.getColumnNames()[0]);
+    List<Object[]> rows = readAll(cursor, 64);
+    assertEquals(1500, rows.size());
+    assertEquals(1500, cursor.getRowCount());
+    assertTrue(cursor.isClosed());
+    assertEquals(active, pool.getActiveConnections());
+  }
+
+
+  /**
+   * Tests that a UNION passes on each distinct row once.
+   */
+  public void testUnion() throws Exception {
+    UnionCursor cursor = new UnionCursor(memberQueries, adapter, Union.UNION,
+                                         50, 3, null, null);
+    List<Object[]> rows = readAll(cursor, 1000);
+    Set<Object> ids = new HashSet<Object>();
+
+    for (Object[] row : rows) {
+      assertTrue(ids.add(row[0]));
+    }
+    assertEquals(1300, rows.size());
+  }
+
+
+  /**
+   * Tests that a UNION recognizes equal numbers of different types as
+   * duplicates.
+   */
+  public void testUnionNumericTypes() throws Exception {
+    BoundQuery[] numericQueries = {
+      new BoundQuery("SELECT ID FROM " + tableNames[0] + " WHERE ID < 10"),
+      new BoundQuery("SELECT CAST(ID AS BIGINT) FROM " + tableNames[1] +
+                     " WHERE ID < 10"),
+      new BoundQuery("SELECT CAST(ID AS DECIMAL(10,2)) FROM " + tableNames[2] +
+                     " WHERE ID < 10")
+    };
+    UnionCursor cursor = new UnionCursor(numericQueries, adapter, Union.UNION,
+                                         50, 3, null, null);
+
+    assertEquals(10, readAll(cursor, 100).size());
+  }
+
+
+  /**
+   * Tests that the failure of a member query is thrown to the reader.
+   */
+  public void testFailedMember() throws Exception {
+    int active = pool.getActiveConnections();
+    BoundQuery[] failing = { memberQueries[0],
+                        new BoundQuery("SELECT ID FROM UNION_MISSING") };
+    UnionCursor cursor = new UnionCursor(failing, adapter, Union.UNION_ALL,
+                                         50, 2, null, null);
+
+    try {
+      readAll(cursor, 100);
+      fail("The union should fail");
+    }
+    catch (SQLException e) {
+      // expected
+    }
+
+    assertTrue(cursor.isClosed());
+    waitForConnections(active);
+    assertEquals(active, pool.getActiveConnections());
+  }
+
+
+  /**
+   * Tests that closing a union before it is read returns its connections.
+   */
+  public void testClose() throws Exception {
+    int active = pool.getActiveConnections();
+    UnionCursor cursor = new UnionCursor(memberQueries, adapter, Union.UNION_ALL,
+                                         10, 3, null, null);
+
+    assertEquals(10, cursor.nextBatch(10).size());
+    cursor.close();
+    assertEquals(0, cursor.nextBatch(10).size());
+    waitForConnections(active);
+    assertEquals(active, pool.getActiveConnections());
+  }
+
+
+  private List<Object[]> readAll(UnionCursor cursor, int batchSize)
+          throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    List<Object[]> batch = cursor.nextBatch(batchSize);
+
+    while (!batch.isEmpty()) {
+      rows.addAll(batch);
+      batch = cursor.nextBatch(batchSize);
+    }
+
+    return rows;
+  }
+
+
+  /*
+   * The member threads return their connections as they stop.
+   */
+  private void waitForConnections(int active) throws Exception {
+    for (int i = 0; i < 100 && pool.getActiveConnections() > active; i++) {
+      Thread.sleep(20);
+    }
+  }
+
+
+  private void execute(String sql) throws Exception {
+    Connection connection = DataManager.getConnection();
+
+    try {
+      Statement statement = connection.createStatement();
+      statement.executeUpdate(sql);
+      statement.close();
+    }
+    finally {
+      DataManager.returnConnection(connection);
+    }
+  }
+
+}
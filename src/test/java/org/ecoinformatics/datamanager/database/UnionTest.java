@@ -67,6 +67,7 @@ public class UnionTest extends TestCase {
   public static Test suite() {
     TestSuite suite = new TestSuite();
     suite.addTest(new UnionTest("testToSQLStringBasicUnion"));
+    suite.addTest(new UnionTest("testToSQLStrings"));
     return suite;
   }
   
@@ -138,5 +139,26 @@ public class UnionTest extends TestCase {
 	
   }
  
+  
+  /**
+   * The member queries of a Union can be run on their own
+   *
+   */
+  public void testToSQLStrings() throws UnWellFormedQueryException
+  {
+	for (int i=0; i<queryCount; i++) {
+		query = new Query();
+		query.addSelectionItem(select1);
+		query.addTableItem(table1);
+		union.addQuery(query);
+	}
+	
+	String[] sqlStrings = union.toSQLStrings();
+	assertEquals(queryCount, sqlStrings.length);
+	for (int i=0; i<queryCount; i++) {
+		assertEquals("SELECT table1.attribute1 FROM table1", sqlStrings[i]);
+	}
+  }
+ 
 }
 
@@ -0,0 +1,332 @@
+package org.ecoinformatics.datamanager.database.embedded;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ecoinformatics.datamanager.database.ANDRelation;
+import org.ecoinformatics.datamanager.database.AggregateSelectionItem;
+import org.ecoinformatics.datamanager.database.ColumnarResult;
+import org.ecoinformatics.datamanager.database.Condition;
+import org.ecoinformatics.datamanager.database.ConditionInterface;
+import org.ecoinformatics.datamanager.database.DatabaseTestUtil;
+import org.ecoinformatics.datamanager.database.GroupBy;
+import org.ecoinformatics.datamanager.database.Join;
+import org.ecoinformatics.datamanager.database.ORRelation;
+import org.ecoinformatics.datamanager.database.Query;
+import org.ecoinformatics.datamanager.database.SelectionItem;
+import org.ecoinformatics.datamanager.database.SubQueryClause;
+import org.ecoinformatics.datamanager.database.TableItem;
+import org.ecoinformatics.datamanager.database.Union;
+import org.ecoinformatics.datamanager.database.WhereClause;
+import org.ecoinformatics.datamanager.parser.Attribute;
+import org.ecoinformatics.datamanager.parser.Entity;
+import org.ecoinformatics.datamanager.parser.TextDomain;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class EmbeddedQueryEngineTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static final int NUM_OBSERVATIONS = 2000;
+  private static final String[] SITE_NAMES = {"north", "south", "east", "west"};
+
+
+  /*
+   * Instance fields
+   */
+  private File sitesFile = null;
+  private File observationsFile = null;
+  private Entity sites = null;
+  private Attribute siteId = null;
+  private Attribute siteName = null;
+  private Entity observations = null;
+  private Attribute observationId = null;
+  private Attribute observationSite = null;
+  private Attribute observationValue = null;
+  private EmbeddedQueryEngine engine = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public EmbeddedQueryEngineTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new EmbeddedQueryEngineTest("testFilteredScan"));
+    suite.addTest(new EmbeddedQueryEngineTest("testJoinGroupBy"));
+    suite.addTest(new EmbeddedQueryEngineTest("testOrAndSubQuery"));
+    suite.addTest(new EmbeddedQueryEngineTest("testDistinct"));
+    suite.addTest(new EmbeddedQueryEngineTest("testUnion"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by writing a file of sites and a file of
+   * observations at the sites, in which every hundredth value is missing.
+   * The engine reads them in small batches and chunks, so that the files
+   * are split and the rows are joined and grouped in several ranges.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    StringBuffer data = new StringBuffer("site_id,name\n");
+    for (int i = 0; i < SITE_NAMES.length; i++) {
+      data.append(i + 1).append(",").append(SITE_NAMES[i]).append("\n");
+    }
+    sitesFile = writeFile("sites", data.toString());
+
+    data = new StringBuffer("obs_id,site_id,value\n");
+    for (int i = 1; i <= NUM_OBSERVATIONS; i++) {
+      data.append(i).append(",").append(siteOf(i)).append(",");
+      if (i % 100 != 0) {
+        data.append(i * 0.5);
+      }
+      data.append("\n");
+    }
+    observationsFile = writeFile("observations", data.toString());
+
+    siteId = DatabaseTestUtil.newAttribute("a1", "site_id", "integer");
+    siteName = new Attribute("a2", "name", new TextDomain());
+    siteName.setAttributeType("string");
+    sites = newCSVEntity("sites", new Attribute[] {siteId, siteName});
+
+    observationId = DatabaseTestUtil.newAttribute("a3", "obs_id", "integer");
+    observationSite = DatabaseTestUtil.newAttribute("a4", "site_id", "integer");
+    observationValue = DatabaseTestUtil.newAttribute("a5", "value", "real");
+    observations = newCSVEntity("observations",
+        new Attribute[] {observationId, observationSite, observationValue});
+
+    engine = new EmbeddedQueryEngine();
+    engine.setBatchSize(64);
+    engine.setRangeSize(100);
+    engine.setMinimumChunkSize(512);
+    engine.addDataFile(sites, sitesFile);
+    engine.addDataFile(observations, observationsFile);
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception {
+    sitesFile.delete();
+    observationsFile.delete();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that the conditions on one entity select the rows of its file,
+   * in order, and skip missing values.
+   */
+  public void testFilteredScan() throws Exception {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(observations));
+    ANDRelation and = new ANDRelation();
+    and.addCondtionInterface(new Condition(observations, observationValue,
+        ConditionInterface.GREATER_THAN_OPERATOR, new Double(900)));
+    and.addCondtionInterface(new Condition(observations, observationSite,
+        ConditionInterface.EQUAL_OPERATOR, new Integer(2)));
+    query.setWhereClause(new WhereClause(and));
+
+    List<Object> expected = new ArrayList<Object>();
+    for (int i = 1; i <= NUM_OBSERVATIONS; i++) {
+      if (i * 0.5 > 900 && siteOf(i) == 2 && i % 100 != 0) {
+        expected.add(new Integer(i));
+      }
+    }
+
+    ColumnarResult result = engine.execute(query);
+    assertEquals("obs_id", result.getColumnNames()[0]);
+    assertEquals(expected, column(result, 0));
+  }
+
+
+  /**
+   * Tests a hash join of the sites to their observations, grouped by site
+   * with a count and an average of the values.
+   */
+  public void testJoinGroupBy() throws Exception {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(sites, siteName));
+    query.addSelectionItem(new AggregateSelectionItem(observations,
+        observationValue, AggregateSelectionItem.COUNT_FUNCTION));
+    query.addSelectionItem(new AggregateSelectionItem(observations,
+        observationValue, AggregateSelectionItem.AVERAGE_FUNCTION));
+    query.addTableItem(new TableItem(sites));
+    query.addTableItem(new TableItem(observations));
+    query.setWhereClause(new WhereClause(
+        new Join(sites, siteId, observations, observationSite)));
+    GroupBy groupBy = new GroupBy();
+    groupBy.addGroupByItem(new SelectionItem(sites, siteName));
+    query.setGroupBy(groupBy);
+
+    ColumnarResult result = engine.execute(query);
+    assertEquals(SITE_NAMES.length, result.getRowCount());
+    assertEquals("COUNT(value)", result.getColumnNames()[1]);
+
+    for (int site = 1; site <= SITE_NAMES.length; site++) {
+      long count = 0;
+      double sum = 0;
+      for (int i = 1; i <= NUM_OBSERVATIONS; i++) {
+        if (siteOf(i) == site && i % 100 != 0) {
+          count++;
+          sum += i * 0.5;
+        }
+      }
+      assertEquals(SITE_NAMES[site - 1], result.getValue(site - 1, 0));
+      assertEquals(new Long(count), result.getValue(site - 1, 1));
+      assertEquals(sum / count,
+                   ((Number) result.getValue(site - 1, 2)).doubleValue(),
+                   1e-9);
+    }
+  }
+
+
+  /**
+   * Tests an OR relation within an AND relation, together with an IN
+   * subquery on another entity.
+   */
+  public void testOrAndSubQuery() throws Exception {
+    Query subQuery = new Query();
+    subQuery.addSelectionItem(new SelectionItem(sites, siteId));
+    subQuery.addTableItem(new TableItem(sites));
+    subQuery.setWhereClause(new WhereClause(new Condition(sites, siteName,
+        ConditionInterface.LIKE_OPERATOR, "n%")));
+
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationId));
+    query.addTableItem(new TableItem(observations));
+    ORRelation or = new ORRelation();
+    or.addCondtionInterface(new Condition(observations, observationId,
+        ConditionInterface.LESS_THAN_OPERATOR, new Integer(5)));
+    or.addCondtionInterface(new Condition(observations, observationId,
+        ConditionInterface.GREATER_THAN_OPERATOR, new Integer(1996)));
+    ANDRelation and = new ANDRelation();
+    and.addORRelation(or);
+    and.addCondtionInterface(new SubQueryClause(observations, observationSite,
+                                                "IN", subQuery));
+    query.setWhereClause(new WhereClause(and));
+
+    ColumnarResult result = engine.execute(query);
+    List<Object> expected = new ArrayList<Object>();
+    expected.add(new Integer(4));
+    expected.add(new Integer(2000));
+    assertEquals(expected, column(result, 0));
+  }
+
+
+  /**
+   * Tests that DISTINCT keeps the first of each value, in order.
+   */
+  public void testDistinct() throws Exception {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(observations, observationSite));
+    query.addTableItem(new TableItem(observations));
+    query.setDistinct(true);
+
+    ColumnarResult result = engine.execute(query);
+    List<Object> expected = new ArrayList<Object>();
+    for (int i = 1; i <= SITE_NAMES.length; i++) {
+      expected.add(new Integer(siteOf(i)));
+    }
+    assertEquals(expected, column(result, 0));
+  }
+
+
+  /**
+   * Tests that a UNION drops the rows repeated between its queries and a
+   * UNION ALL keeps them.
+   */
+  public void testUnion() throws Exception {
+    Union union = new Union();
+    union.addQuery(siteQuery(ConditionInterface.LESS_THAN_OR_EQUALS_OPERATOR));
+    union.addQuery(siteQuery(ConditionInterface.GREATER_THANOR_EQUALS_OPERATOR));
+
+    ColumnarResult result = engine.execute(union);
+    assertEquals(5, result.getRowCount());
+
+    union.setUnionType(Union.UNION);
+    result = engine.execute(union);
+    List<Object> expected = new ArrayList<Object>();
+    for (int i = 1; i <= SITE_NAMES.length; i++) {
+      expected.add(new Integer(i));
+    }
+    assertEquals("site_id", result.getColumnNames()[0]);
+    assertEquals(expected, column(result, 0));
+  }
+
+
+  /*
+   * Gets the site of an observation.
+   */
+  private static int siteOf(int observation) {
+    return observation % SITE_NAMES.length + 1;
+  }
+
+
+  /*
+   * Builds a query of the site ids compared with 2.
+   */
+  private Query siteQuery(String operator) {
+    Query query = new Query();
+    query.addSelectionItem(new SelectionItem(sites, siteId));
+    query.addTableItem(new TableItem(sites));
+    query.setWhereClause(new WhereClause(
+        new Condition(sites, siteId, operator, new Integer(2))));
+    return query;
+  }
+
+
+  /*
+   * Gets the values of a column of a result.
+   */
+  private static List<Object> column(ColumnarResult result, int column) {
+    List<Object> values = new ArrayList<Object>();
+    for (int i = 0; i < result.getRowCount(); i++) {
+      values.add(result.getValue(i, column));
+    }
+    return values;
+  }
+
+
+  /*
+   * Creates an entity whose data file has a header line and comma-separated
+   * fields.
+   */
+  private static Entity newCSVEntity(String name, Attribute[] attributes) {
+    Entity entity = DatabaseTestUtil.newEntity(name, attributes);
+    entity.setFieldDelimiter(",");
+    entity.setRecordDelimiter("\\n");
+    entity.setNumHeaderLines(Integer.valueOf(1));
+    return entity;
+  }
+
+
+  private static File writeFile(String name, String data) throws Exception {
+    File file = File.createTempFile(name, ".csv");
+    OutputStream outputStream = new FileOutputStream(file);
+    outputStream.write(data.getBytes("UTF-8"));
+    outputStream.close();
+    return file;
+  }
+
+}
@@ -0,0 +1,218 @@
+package org.ecoinformatics.datamanager.database.pooling;
+
+import java.sql.Connection;
+
+import org.ecoinformatics.datamanager.database.ConnectionNotAvailableException;
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class BoundedConnectionPoolTest extends TestCase {
+
+  /*
+   * Instance fields
+   */
+  private jdbcDataSource dataSource = null;
+  private BoundedConnectionPool pool = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public BoundedConnectionPoolTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new BoundedConnectionPoolTest("testReuse"));
+    suite.addTest(new BoundedConnectionPoolTest("testWaitQueue"));
+    suite.addTest(new BoundedConnectionPoolTest("testValidation"));
+    suite.addTest(new BoundedConnectionPoolTest("testIdleEviction"));
+    suite.addTest(new BoundedConnectionPoolTest("testLeakDetection"));
+    suite.addTest(new BoundedConnectionPoolTest("testLeakReclaim"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating a pool of at most two
+   * connections to an in-memory HSQL database.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    dataSource = new jdbcDataSource();
+    dataSource.setDatabase("jdbc:hsqldb:mem:pooltest");
+    dataSource.setUser("sa");
+    dataSource.setPassword("");
+    pool = new BoundedConnectionPool(dataSource, "HSQLAdapter",
+      "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS", 1, 2);
+    pool.setConnectionTimeout(200);
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    pool.close();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that returned connections are reused and reset.
+   */
+  public void testReuse() throws Exception {
+    Connection connection = pool.getConnection();
+    connection.setAutoCommit(false);
+    assertEquals(1, pool.getActiveConnections());
+    assertTrue(pool.returnConnection(connection));
+    assertEquals(0, pool.getActiveConnections());
+    assertEquals(1, pool.getIdleConnections());
+
+    Connection again = pool.getConnection();
+    assertSame(connection, again);
+    assertTrue(again.getAutoCommit());
+    assertEquals(1, pool.getCreatedCount());
+    assertEquals(2, pool.getBorrowCount());
+    pool.returnConnection(again);
+
+    // A connection returned twice is not pooled twice
+    assertFalse(pool.returnConnection(again));
+    assertEquals(1, pool.getIdleConnections());
+  }
+
+
+  /**
+   * Tests that callers wait for a connection to be returned, and time out
+   * if none is.
+   */
+  public void testWaitQueue() throws Exception {
+    final Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+
+    try {
+      pool.getConnection();
+      fail("A third connection should not be available");
+    }
+    catch (ConnectionNotAvailableException e) {
+      assertEquals(1, pool.getTimeoutCount());
+    }
+
+    pool.setConnectionTimeout(5000);
+    Thread returner = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+        }
+        catch (InterruptedException e) {
+          // Return the connection right away
+        }
+        pool.returnConnection(first);
+      }
+    };
+    returner.start();
+
+    Connection third = pool.getConnection();
+    assertSame(first, third);
+    assertTrue(pool.getMaxWaitMillis() >= 50);
+    returner.join();
+    pool.returnConnection(second);
+    pool.returnConnection(third);
+  }
+
+
+  /**
+   * Tests that an idle connection that can no longer be used is replaced.
+   */
+  public void testValidation() throws Exception {
+    pool.setValidationInterval(0);
+    Connection connection = pool.getConnection();
+    pool.returnConnection(connection);
+    connection.close();
+
+    Connection replacement = pool.getConnection();
+    assertNotSame(connection, replacement);
+    assertFalse(replacement.isClosed());
+    assertEquals(1, pool.getInvalidCount());
+    pool.returnConnection(replacement);
+  }
+
+
+  /**
+   * Tests that idle connections are closed after the idle timeout, keeping
+   * the minimum number of connections open.
+   */
+  public void testIdleEviction() throws Exception {
+    Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+    pool.returnConnection(first);
+    pool.returnConnection(second);
+    assertEquals(2, pool.getIdleConnections());
+
+    pool.setIdleTimeout(0);
+    Thread.sleep(10);
+    pool.runMaintenance();
+    assertEquals(1, pool.getIdleConnections());
+    assertEquals(1, pool.getEvictedCount());
+    assertTrue(first.isClosed());
+    assertFalse(second.isClosed());
+  }
+
+
+  /**
+   * Tests that a connection held past the leak threshold is reported, and
+   * that one closed instead of returned frees its place in the pool.
+   */
+  public void testLeakDetection() throws Exception {
+    pool.setLeakThreshold(1);
+    Connection held = pool.getConnection();
+    Connection closed = pool.getConnection();
+    closed.close();
+
+    Thread.sleep(10);
+    pool.runMaintenance();
+    assertEquals(2, pool.getLeakCount());
+    assertEquals(1, pool.getActiveConnections());
+
+    Connection another = pool.getConnection();
+    pool.returnConnection(another);
+    pool.returnConnection(held);
+  }
+
+
+  /**
+   * Tests that connections held past the leak timeout are closed and their
+   * places in the pool reclaimed.
+   */
+  public void testLeakReclaim() throws Exception {
+    pool.setLeakTimeout(1);
+    Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+
+    Thread.sleep(10);
+    pool.runMaintenance();
+    assertTrue(first.isClosed());
+    assertTrue(second.isClosed());
+    assertEquals(0, pool.getActiveConnections());
+    assertEquals(2, pool.getReclaimedCount());
+
+    pool.setLeakTimeout(0);
+    Connection third = pool.getConnection();
+    Connection fourth = pool.getConnection();
+    assertFalse(third.isClosed());
+    pool.returnConnection(third);
+    pool.returnConnection(fourth);
+  }
+
+}
@@ -0,0 +1,278 @@
+package org.ecoinformatics.datamanager.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.ecoinformatics.datamanager.parser.Entity;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+/**
+ * JUnit test class for the skipping and appending of sources whose
+ * validators are stored by an IncrementalDataStorageInterface.
+ */
+public class IncrementalDownloadTest extends TestCase
+{
+  /*
+   * Instance fields
+   */
+
+  private File source = null;
+  private String url = null;
+  private MemoryStorage storage = null;
+  private EcogridEndPointInterfaceTest endPointInfo =
+    new EcogridEndPointInterfaceTest();
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public IncrementalDownloadTest(String name)
+  {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite()
+  {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new IncrementalDownloadTest("testSkipUnchanged"));
+    suite.addTest(new IncrementalDownloadTest("testAppendTail"));
+    suite.addTest(new IncrementalDownloadTest("testReloadChangedPrefix"));
+    suite.addTest(new IncrementalDownloadTest("testValidatorMatches"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by writing a small delimited source file.
+   */
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    source = File.createTempFile("incremental", ".csv");
+    url = "file://" + source.getAbsolutePath();
+    storage = new MemoryStorage();
+    writeSource("a,1\nb,2\n", 1000000000000L);
+  }
+
+
+  /**
+   * Release any objects after tests are complete.
+   */
+  protected void tearDown() throws Exception
+  {
+    source.delete();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that a source that has not changed is not read again.
+   */
+  public void testSkipUnchanged() throws Exception
+  {
+    assertTrue(download());
+    assertEquals("a,1\nb,2\n", storage.getData());
+    assertEquals(1, storage.serializeCount);
+    assertEquals(8, storage.validator.getSize());
+    assertNotNull(storage.validator.getChecksum());
+
+    assertTrue(download());
+    assertEquals(1, storage.serializeCount);
+    assertEquals("a,1\nb,2\n", storage.getData());
+  }
+
+
+  /**
+   * Tests that only the tail of a source that has grown is sent.
+   */
+  public void testAppendTail() throws Exception
+  {
+    assertTrue(download());
+    writeSource("a,1\nb,2\nc,3\n", 1000000060000L);
+
+    assertTrue(download());
+    assertEquals(2, storage.serializeCount);
+    assertEquals(8, storage.lastOffset);
+    assertEquals("c,3\n", storage.lastWrite);
+    assertEquals("a,1\nb,2\nc,3\n", storage.getData());
+    assertEquals(12, storage.validator.getSize());
+  }
+
+
+  /**
+   * Tests that a source that has grown but whose start has changed is
+   * loaded again in full.
+   */
+  public void testReloadChangedPrefix() throws Exception
+  {
+    assertTrue(download());
+    writeSource("x,9\nb,2\nc,3\n", 1000000060000L);
+
+    assertTrue(download());
+    assertEquals(0, storage.lastOffset);
+    assertEquals("x,9\nb,2\nc,3\n", storage.getData());
+    assertEquals(12, storage.validator.getSize());
+  }
+
+
+  /**
+   * Tests the comparison of validators.
+   */
+  public void testValidatorMatches()
+  {
+    SourceValidator stored = new SourceValidator("\"v1\"", 1000, 10, "ab", 5);
+
+    assertTrue(new SourceValidator("\"v1\"", 2000, 10, null, 5).matches(stored));
+    assertFalse(new SourceValidator("\"v2\"", 1000, 10, null, 5).matches(stored));
+    assertFalse(new SourceValidator("\"v1\"", 1000, 11, null, 5).matches(stored));
+    assertFalse(new SourceValidator("\"v1\"", 1000, 10, null, 6).matches(stored));
+    assertTrue(new SourceValidator(null, 1000, -1, null, -1).matches(stored));
+    assertFalse(new SourceValidator(null, -1, 10, null, 5).matches(stored));
+    assertFalse(new SourceValidator(null, 1000, 10, null, 5).matches(null));
+
+    assertTrue(new SourceValidator(null, 2000, 20, null, -1).mayHaveGrownFrom(stored));
+    assertFalse(new SourceValidator(null, 2000, 10, null, -1).mayHaveGrownFrom(stored));
+  }
+
+
+  private boolean download() throws Exception
+  {
+    Entity entity = new Entity("incremental.e1", "incremental", "",
+                               Boolean.FALSE, "column", 0);
+    DownloadHandler handler =
+      DownloadHandler.getInstance(entity, url, endPointInfo);
+    DataStorageInterface[] list = { storage };
+
+    return handler.download(list);
+  }
+
+
+  private void writeSource(String content, long lastModified) throws Exception
+  {
+    FileOutputStream stream = new FileOutputStream(source);
+    stream.write(content.getBytes("UTF-8"));
+    stream.close();
+    assertTrue(source.setLastModified(lastModified));
+  }
+
+
+  /*
+   * An IncrementalDataStorageInterface that keeps the data in memory.
+   */
+  private static class MemoryStorage implements IncrementalDataStorageInterface
+  {
+    private ByteArrayOutputStream data = null;
+    private SourceValidator validator = null;
+    private SourceValidator pendingValidator = null;
+    private volatile boolean serializing = false;
+    private volatile boolean completed = false;
+    private int serializeCount = 0;
+    private long lastOffset = -1;
+    private String lastWrite = null;
+
+
+    public OutputStream startSerialize(String identifier)
+    {
+      return startSerialize(identifier, pendingValidator, 0);
+    }
+
+
+    public OutputStream startSerialize(String identifier,
+                                       final SourceValidator validator,
+                                       final long offset)
+    {
+      serializeCount++;
+      lastOffset = offset;
+      serializing = true;
+      completed = false;
+
+      return new ByteArrayOutputStream() {
+        public void close() throws IOException
+        {
+          lastWrite = toString("UTF-8");
+          if (offset == 0 || data == null) {
+            data = new ByteArrayOutputStream();
+          }
+          writeTo(data);
+          MemoryStorage.this.validator = validator;
+          completed = true;
+        }
+      };
+    }
+
+
+    public void finishSerialize(String identifier, String errorCode)
+    {
+    }
+
+
+    public InputStream load(String identifier)
+      throws DataSourceNotFoundException
+    {
+      throw new DataSourceNotFoundException(identifier);
+    }
+
+
+    public boolean doesDataExist(String identifier)
+    {
+      return data != null;
+    }
+
+
+    public boolean isCompleted(String identifier)
+    {
+      return completed || (!serializing && doesDataExist(identifier));
+    }
+
+
+    public boolean isSuccess(String identifier)
+    {
+      return isCompleted(identifier);
+    }
+
+
+    public Exception getException()
+    {
+      return null;
+    }
+
+
+    public SourceValidator getSourceValidator(String identifier)
+    {
+      return validator;
+    }
+
+
+    public void setSourceValidator(String identifier,
+                                   SourceValidator validator)
+    {
+      pendingValidator = validator;
+    }
+
+
+    public boolean canAppend(String identifier)
+    {
+      return true;
+    }
+
+
+    String getData() throws IOException
+    {
+      return data.toString("UTF-8");
+    }
+  }
+
+}
@@ -0,0 +1,260 @@
+package org.ecoinformatics.datamanager.transpose;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.hsqldb.jdbc.jdbcDataSource;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class StreamingTransposeTest extends TestCase {
+
+  /*
+   * Class fields
+   */
+  private static final int NUM_STATIONS = 50;
+  private static final String[] SENSORS = {"temp", "rh", "wind"};
+
+
+  /*
+   * Instance fields
+   */
+  private Connection connection = null;
+  private Statement statement = null;
+
+
+  /**
+   * Constructor
+   * @param name The name of testing
+   */
+  public StreamingTransposeTest(String name) {
+    super(name);
+  }
+
+
+  /**
+   * Create a suite of tests to be run together
+   */
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTest(new StreamingTransposeTest("testOrdered"));
+    suite.addTest(new StreamingTransposeTest("testUnorderedSpill"));
+    suite.addTest(new StreamingTransposeTest("testMergePasses"));
+    suite.addTest(new StreamingTransposeTest("testPivotValues"));
+    return suite;
+  }
+
+
+  /**
+   * Establish a testing framework by creating a long-format table of
+   * readings, a value and a quality flag for each sensor of each station,
+   * inserted sensor by sensor so that the rows of a station are apart. One
+   * station has no wind sensor.
+   */
+  protected void setUp() throws Exception {
+    super.setUp();
+    jdbcDataSource dataSource = new jdbcDataSource();
+    dataSource.setDatabase("jdbc:hsqldb:mem:transposetest");
+    dataSource.setUser("sa");
+    dataSource.setPassword("");
+    connection = dataSource.getConnection();
+    statement = connection.createStatement();
+
+    statement.executeUpdate("CREATE TABLE READINGS (STATION VARCHAR(8), " +
+        "SENSOR VARCHAR(8), VAL VARCHAR(16), QC VARCHAR(4))");
+    for (int s = 0; s < SENSORS.length; s++) {
+      for (int i = NUM_STATIONS; i >= 1; i--) {
+        if (i == 7 && SENSORS[s].equals("wind")) {
+          continue;
+        }
+        statement.executeUpdate("INSERT INTO READINGS VALUES ('" +
+            station(i) + "', '" + SENSORS[s] + "', '" + (i * 10 + s) +
+            "', '" + ((i + s) % 3 == 0 ? "bad" : "ok") + "')");
+      }
+    }
+  }
+
+
+  /**
+   * Release any objects and closes database connections after tests
+   * are complete.
+   */
+  protected void tearDown() throws Exception {
+    statement.executeUpdate("DROP TABLE READINGS IF EXISTS");
+    statement.close();
+    connection.close();
+    super.tearDown();
+  }
+
+
+  /**
+   * Tests that rows ordered by id are transposed as DataTranspose does,
+   * with the pivot values found in a first pass.
+   */
+  public void testOrdered() throws Exception {
+    String sql = "SELECT * FROM READINGS ORDER BY STATION, SENSOR";
+    List expected = DataTranspose.transpose(query(sql), 1, 2, false);
+
+    StreamingTranspose transpose = new StreamingTranspose(1, 2, false);
+    transpose.setOrderedById(true);
+    RowCollector collector = new RowCollector();
+    assertEquals(NUM_STATIONS, transpose.transpose(query(sql), collector));
+
+    assertEquals(1, transpose.getSpillCount());
+    assertRowsEqual(expected, collector.rows);
+    assertNull(find(collector.rows, station(7))[cell(collector, "wind_VAL")]);
+  }
+
+
+  /**
+   * Tests that unordered rows are sorted through spilled runs within a
+   * small memory budget, and are handed on in the order of their ids.
+   */
+  public void testUnorderedSpill() throws Exception {
+    String sql = "SELECT * FROM READINGS";
+    List<String[]> sorted = sortedTranspose(sql);
+
+    StreamingTranspose transpose = new StreamingTranspose(1, 2, false);
+    transpose.setMemoryBudget(2048);
+    RowCollector collector = new RowCollector();
+    assertEquals(NUM_STATIONS, transpose.transpose(query(sql), collector));
+
+    assertTrue(transpose.getSpillCount() > 1);
+    assertRowsEqual(sorted, collector.rows);
+
+    transpose.setMemoryBudget(StreamingTranspose.DEFAULT_MEMORY_BUDGET);
+    collector = new RowCollector();
+    transpose.transpose(query(sql), collector);
+    assertEquals(0, transpose.getSpillCount());
+    assertRowsEqual(sorted, collector.rows);
+  }
+
+
+  /**
+   * Tests that more runs than the merge fan-in are merged in several
+   * passes, with the same result.
+   */
+  public void testMergePasses() throws Exception {
+    String sql = "SELECT * FROM READINGS";
+    List<String[]> sorted = sortedTranspose(sql);
+
+    StreamingTranspose transpose = new StreamingTranspose(1, 2, false);
+    transpose.setMemoryBudget(1024);
+    RowCollector collector = new RowCollector();
+    transpose.transpose(query(sql), collector);
+    int runCount = transpose.getSpillCount();
+    assertTrue(runCount > 9);
+    assertRowsEqual(sorted, collector.rows);
+
+    // The runs are merged in groups of three, and the merged runs again,
+    // each merge spilling a longer run
+    transpose.setMergeFanIn(3);
+    collector = new RowCollector();
+    transpose.transpose(query(sql), collector);
+    assertTrue(transpose.getSpillCount() > runCount + runCount / 3);
+    assertRowsEqual(sorted, collector.rows);
+  }
+
+
+  /**
+   * Tests that pivot values set beforehand give the header without a
+   * first pass, leave out the values of other pivot values, and that rows
+   * are numbered in place of their ids.
+   */
+  public void testPivotValues() throws Exception {
+    StreamingTranspose transpose = new StreamingTranspose(1, 2, true);
+    transpose.setOrderedById(true);
+    transpose.setPivotValues(Arrays.asList(new String[] {"wind", "temp"}));
+    RowCollector collector = new RowCollector();
+    transpose.transpose(query("SELECT * FROM READINGS ORDER BY STATION"),
+                        collector);
+
+    assertEquals(0, transpose.getSpillCount());
+    assertTrue(Arrays.equals(
+        new String[] {"STATION", "wind_VAL", "wind_QC", "temp_VAL", "temp_QC"},
+        collector.rows.get(0)));
+    assertEquals(NUM_STATIONS + 1, collector.rows.size());
+
+    String[] third = collector.rows.get(3);
+    assertEquals("3", third[0]);
+    assertEquals("32", third[1]);
+    assertEquals("30", third[3]);
+  }
+
+
+  private static String station(int i) {
+    return (i < 10) ? "s0" + i : "s" + i;
+  }
+
+
+  private ResultSet query(String sql) throws Exception {
+    return statement.executeQuery(sql);
+  }
+
+
+  /*
+   * Transposes a selection with DataTranspose, ordering the value rows by
+   * id.
+   */
+  private List<String[]> sortedTranspose(String sql) throws Exception {
+    List expected = DataTranspose.transpose(query(sql), 1, 2, false);
+    List<String[]> sorted = new ArrayList<String[]>();
+    for (int i = 1; i < expected.size(); i++) {
+      sorted.add((String[]) expected.get(i));
+    }
+    Collections.sort(sorted, new Comparator<String[]>() {
+      public int compare(String[] a, String[] b) {
+        return a[0].compareTo(b[0]);
+      }
+    });
+    sorted.add(0, (String[]) expected.get(0));
+    return sorted;
+  }
+
+
+  private static int cell(RowCollector collector, String columnName) {
+    return Arrays.asList(collector.rows.get(0)).indexOf(columnName);
+  }
+
+
+  private static String[] find(List<String[]> rows, String id) {
+    for (String[] row : rows) {
+      if (row[0].equals(id)) {
+        return row;
+      }
+    }
+    return null;
+  }
+
+
+  private static void assertRowsEqual(List expected, List<String[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(Arrays.asList((String[]) expected.get(i)),
+                   Arrays.asList(actual.get(i)));
+    }
+  }
+
+
+  /*
+   * Collects the transposed rows.
+   */
+  private static class RowCollector implements RowHandlerInterface {
+    final List<String[]> rows = new ArrayList<String[]>();
+
+    public void handleRow(String[] row) throws IOException {
+      rows.add(row);
+    }
+  }
+
+}